@@ -0,0 +1,211 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Content addressed store of build outputs (e.g. object files) on a node.
+ * Every entry is a file named by its key. Lookups and stores are done in
+ * batches, so each needs a single call to the node and no file content
+ * crosses the remoting channel.
+ * @author Bjoern.Berg
+ */
+public class ArtifactCache {
+    /** name of the cache directory below the root of a node. */
+    public static final String DIRNAME = "wix-cache";
+    // directory of cache entries
+    private final FilePath dir;
+    // file extension of entries
+    private final String extension;
+    
+    /**
+     * constructor.
+     * @param dir directory of the cache on the node.
+     * @param extension file extension of entries, e.g. .wixobj.
+     */
+    public ArtifactCache(FilePath dir, String extension) {
+        this.dir = dir;
+        this.extension = extension;
+    }
+    
+    public FilePath getDir() {
+        return dir;
+    }
+    
+    /**
+     * Returns the path of the entry for the given key.
+     * @param key cache key.
+     * @return path of entry, which may not exist.
+     */
+    public FilePath entry(String key) {
+        return dir.child(key + extension);
+    }
+    
+    /**
+     * Copies every cached entry to its target.
+     * @param targets target file by key.
+     * @return keys found in the cache.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Set<String> restore(Map<String, FilePath> targets) throws IOException, InterruptedException {
+        return dir.act(new Restore(paths(targets), extension, false));
+    }
+    
+    /**
+     * Checks which keys are in the cache without copying anything.
+     * @param keys cache keys.
+     * @return keys found in the cache.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Set<String> probe(Set<String> keys) throws IOException, InterruptedException {
+        Map<String, String> targets = new HashMap<String, String>();
+        for (String key : keys) {
+            targets.put(key, null);
+        }
+        return dir.act(new Restore(targets, extension, true));
+    }
+    
+    /**
+     * Adds the given files to the cache.
+     * @param sources file by key.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void store(Map<String, FilePath> sources) throws IOException, InterruptedException {
+        if (!sources.isEmpty()) {
+            dir.act(new Store(paths(sources), extension));
+        }
+    }
+    
+    private static Map<String, String> paths(Map<String, FilePath> files) {
+        Map<String, String> paths = new HashMap<String, String>();
+        for (Map.Entry<String, FilePath> entry : files.entrySet()) {
+            paths.put(entry.getKey(), entry.getValue().getRemote());
+        }
+        return paths;
+    }
+    
+    /**
+     * Copies a file on the node.
+     * @param from source file.
+     * @param to target file.
+     * @throws IOException
+     */
+    static void copy(File from, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[65536];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * Looks up entries and copies them to their targets.
+     */
+    private static final class Restore implements FilePath.FileCallable<Set<String>> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> targets;
+        private final String extension;
+        private final boolean probeOnly;
+        
+        Restore(Map<String, String> targets, String extension, boolean probeOnly) {
+            this.targets = targets;
+            this.extension = extension;
+            this.probeOnly = probeOnly;
+        }
+        
+        public Set<String> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Set<String> hits = new HashSet<String>();
+            for (Map.Entry<String, String> target : targets.entrySet()) {
+                File cached = new File(dir, target.getKey() + extension);
+                if (cached.isFile()) {
+                    if (!probeOnly) {
+                        copy(cached, new File(target.getValue()));
+                        // last modified tells when an entry was used the last time
+                        cached.setLastModified(System.currentTimeMillis());
+                    }
+                    hits.add(target.getKey());
+                }
+            }
+            return hits;
+        }
+    }
+    
+    /**
+     * Copies files into the cache. Entries are written to a temporary file
+     * first, so concurrent builds never see incomplete entries.
+     */
+    private static final class Store implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> sources;
+        private final String extension;
+        
+        Store(Map<String, String> sources, String extension) {
+            this.sources = sources;
+            this.extension = extension;
+        }
+        
+        public Void invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            for (Map.Entry<String, String> source : sources.entrySet()) {
+                File cached = new File(dir, source.getKey() + extension);
+                if (cached.isFile()) {
+                    continue;
+                }
+                File tmp = new File(dir, source.getKey() + extension + ".tmp" + Thread.currentThread().getId());
+                copy(new File(source.getValue()), tmp);
+                if (!tmp.renameTo(cached)) {
+                    // another build stored the same entry in the meantime
+                    tmp.delete();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Agents with warm WiX caches for a job. Every build step which looked up
+ * or filled a WiX cache records the agent it ran on together with the cache
+ * hits of the build, the chained packages in the package cache of the agent
+ * and the size of all WiX caches on the agent. An agent is warm while its
+ * last recorded build step is recent and looked up a cache or left chained
+ * packages in it; having run a build of the job alone does not count. The record is stored as properties file in the root directory of
+ * the job and kept in memory, so {@link CacheAffinityDispatcher} can read it
+ * while the queue is locked. A record is loaded by the first build step of
+ * the job and dropped when the job is deleted or moved.
+ * <p>Every agent has an entry <i>node=time,hits,lookups,bytes</i> with the
+ * time of the last build in milliseconds, and an entry
+ * <i>node/packages=name|name</i>. The controller is recorded with an empty
+ * node name.</p>
+ * @author Bjoern.Berg
+ */
+public final class CacheAffinity {
+    /** name of the record inside the job directory. */
+    public static final String FILENAME = "wix-cache-affinity.properties";
+    /** agents without a build of the job for this long are cold. */
+    static final long MAX_AGE = TimeUnit.DAYS.toMillis(14);
+    // suffix of the entries listing the chained packages of an agent
+    private static final String PACKAGES = "/packages";
+    /** minimum time between two measurements of the caches of an agent. */
+    static final long SIZE_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    // records in memory by record file
+    private static final Map<File, CacheAffinity> RECORDS = new HashMap<File, CacheAffinity>();
+    // last measurement of the caches by agent as time and size
+    private static final Map<String, long[]> SIZES = new HashMap<String, long[]>();
+    
+    private final File file;
+    private final Properties entries = new Properties();
+    private final ToolsetLogger lg = ToolsetLogger.INSTANCE;
+    
+    /**
+     * constructor. Loads the record from the given file if it exists.
+     * @param file record file; null keeps the record in memory only.
+     */
+    CacheAffinity(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                entries.load(in);
+            } catch (IOException e) {
+                lg.log("Cannot read cache affinity %s: %s", file, e.getMessage());
+            } finally {
+                close(in);
+            }
+        }
+    }
+    
+    /**
+     * Returns the record of a job, loaded once and shared by all builds.
+     * @param jobDir root directory of the job.
+     * @return record of the job.
+     */
+    public static CacheAffinity of(File jobDir) {
+        File file = new File(jobDir, FILENAME);
+        synchronized (RECORDS) {
+            CacheAffinity affinity = RECORDS.get(file);
+            if (affinity == null) {
+                affinity = new CacheAffinity(file);
+                RECORDS.put(file, affinity);
+            }
+            return affinity;
+        }
+    }
+    
+    /**
+     * Returns the record of a job if it is in memory. The record is never
+     * read from disk, so it can be used while the queue is locked.
+     * @param jobDir root directory of the job.
+     * @return record of the job, null if no build step loaded it yet.
+     */
+    static CacheAffinity peek(File jobDir) {
+        synchronized (RECORDS) {
+            return RECORDS.get(new File(jobDir, FILENAME));
+        }
+    }
+    
+    /**
+     * Drops the records of jobs whose directory does not exist any more,
+     * e.g. after a job was deleted, renamed or moved.
+     */
+    static void evictMissing() {
+        synchronized (RECORDS) {
+            for (Iterator<File> it = RECORDS.keySet().iterator(); it.hasNext(); ) {
+                if (!it.next().getParentFile().isDirectory()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the size of all WiX caches on an agent. The caches are measured
+     * at most once per {@link #SIZE_INTERVAL}, in between the last
+     * measurement is returned, because measuring walks every cached file.
+     * @param node name of the agent.
+     * @param dir WiX cache directory of the agent.
+     * @param now current time in milliseconds.
+     * @return size in bytes.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static long cacheBytes(String node, FilePath dir, long now) throws IOException, InterruptedException {
+        synchronized (SIZES) {
+            long[] sample = SIZES.get(node);
+            if (sample != null && now - sample[0] < SIZE_INTERVAL) {
+                return sample[1];
+            }
+        }
+        long size = dir.act(new Size());
+        synchronized (SIZES) {
+            SIZES.put(node, new long[] {now, size});
+        }
+        return size;
+    }
+    
+    /**
+     * Checks if the caches of an agent are warm for the job.
+     * @param node name of the agent, empty for the controller.
+     * @param now current time in milliseconds.
+     * @return true if a recent build step of the job used the caches of the agent.
+     */
+    public synchronized boolean isWarm(String node, long now) {
+        long time = field(node, 0);
+        if (time <= 0 || now - time >= MAX_AGE) {
+            return false;
+        }
+        return field(node, 2) > 0 || entries.getProperty(node + PACKAGES, "").length() > 0;
+    }
+    
+    /**
+     * Returns the agents with warm caches for the job.
+     * @param now current time in milliseconds.
+     * @return names of agents, the most recently used first.
+     */
+    public synchronized List<String> getWarmNodes(long now) {
+        List<String> nodes = new ArrayList<String>();
+        for (String key : entries.stringPropertyNames()) {
+            if (!key.endsWith(PACKAGES) && isWarm(key, now)) {
+                nodes.add(key);
+            }
+        }
+        Collections.sort(nodes, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long ta = field(a, 0);
+                long tb = field(b, 0);
+                return (ta < tb) ? 1 : (ta > tb) ? -1 : a.compareTo(b);
+            }
+        });
+        return nodes;
+    }
+    
+    /**
+     * @param node name of the agent.
+     * @return cache hits of the last build on the agent, -1 if unknown.
+     */
+    public synchronized long getHits(String node) {
+        return field(node, 1);
+    }
+    
+    /**
+     * @param node name of the agent.
+     * @return cache lookups of the last build on the agent, -1 if unknown.
+     */
+    public synchronized long getLookups(String node) {
+        return field(node, 2);
+    }
+    
+    /**
+     * @param node name of the agent.
+     * @return size of all WiX caches on the agent in bytes, -1 if unknown.
+     */
+    public synchronized long getCacheBytes(String node) {
+        return field(node, 3);
+    }
+    
+    /**
+     * @param node name of the agent.
+     * @return chained packages of the job in the package cache of the agent.
+     */
+    public synchronized Set<String> getPackages(String node) {
+        String value = entries.getProperty(node + PACKAGES, "");
+        Set<String> packages = new TreeSet<String>();
+        if (value.length() > 0) {
+            packages.addAll(Arrays.asList(value.split("\\|")));
+        }
+        return packages;
+    }
+    
+    /**
+     * Records a build step on an agent and writes the record back to its
+     * file. Entries of agents which turned cold are removed. Only build steps
+     * which looked up or filled a cache are recorded, see {@link #isWarm}.
+     * @param node name of the agent.
+     * @param time end of the build step in milliseconds.
+     * @param hits cache hits of the build step.
+     * @param lookups cache lookups of the build step.
+     * @param cacheBytes size of all WiX caches on the agent.
+     * @param packages chained packages restored from or stored in the package cache.
+     */
+    public synchronized void record(String node, long time, int hits, int lookups, long cacheBytes, 
+            Set<String> packages) {
+        entries.setProperty(node, time + "," + hits + "," + lookups + "," + cacheBytes);
+        Set<String> all = getPackages(node);
+        all.addAll(packages);
+        StringBuilder sb = new StringBuilder();
+        for (String name : all) {
+            sb.append((sb.length() > 0) ? "|" : "").append(name);
+        }
+        entries.setProperty(node + PACKAGES, sb.toString());
+        for (String key : entries.stringPropertyNames()) {
+            if (!key.endsWith(PACKAGES) && !isWarm(key, time)) {
+                entries.remove(key);
+                entries.remove(key + PACKAGES);
+            }
+        }
+        save();
+    }
+    
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            entries.store(out, "Agents with warm WiX caches: time,hits,lookups,bytes");
+        } catch (IOException e) {
+            lg.log("Cannot write cache affinity %s: %s", file, e.getMessage());
+        } finally {
+            close(out);
+        }
+    }
+    
+    private long field(String key, int index) {
+        String value = entries.getProperty(key);
+        if (value == null) {
+            return -1;
+        }
+        String[] fields = value.split(",");
+        try {
+            return (index < fields.length) ? Long.parseLong(fields[index].trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static void close(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+    
+    /**
+     * Sums up the size of all files below a directory on the node.
+     */
+    static final class Size implements FilePath.FileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+        
+        public Long invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            return size(dir);
+        }
+        
+        private static long size(File file) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return file.isFile() ? file.length() : 0;
+            }
+            long size = 0;
+            for (File child : children) {
+                size += size(child);
+            }
+            return size;
+        }
+    }
+}
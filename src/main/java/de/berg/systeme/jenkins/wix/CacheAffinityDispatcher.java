@@ -0,0 +1,128 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.ResourceBundle;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import jenkins.model.Jenkins;
+
+/**
+ * Prefers agents with warm WiX caches for jobs with a WiX build step. An
+ * agent with cold caches is refused while an agent with warm caches for the
+ * job can take the build: immediately if the warm agent is idle, and for at
+ * most the configured wait if it is busy. Once the wait is over any agent may
+ * take the build. A wait of 0 disables the preference. Only the in-memory
+ * record of {@link CacheAffinity} is read, so the queue is never blocked by
+ * I/O; a job without a record loaded by one of its builds runs anywhere.
+ * @author Bjoern.Berg
+ */
+@Extension
+public class CacheAffinityDispatcher extends QueueTaskDispatcher {
+    /** longest time a build waits for an idle warm agent in milliseconds, e.g. if it refuses the build. */
+    static final long IDLE_GRACE = 5000;
+    private static final ResourceBundle MESSAGES = ResourceBundle.getBundle("Messages");
+    
+    @Override
+    public CauseOfBlockage canTake(Node node, Queue.BuildableItem item) {
+        if (!(item.task instanceof Project)) {
+            return null;
+        }
+        Project<?, ?> project = (Project<?, ?>) item.task;
+        WixToolsetBuilder builder = project.getBuildersList().get(WixToolsetBuilder.class);
+        if (builder == null) {
+            return null;
+        }
+        long maxWait = 1000L * builder.getAffinityWait();
+        if (maxWait <= 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CacheAffinity affinity = CacheAffinity.peek(project.getRootDir());
+        if (affinity == null || affinity.isWarm(node.getNodeName(), now)) {
+            return null;
+        }
+        Node warm = waitFor(affinity.getWarmNodes(now), project.getAssignedLabel(), 
+                now - item.buildableStartMilliseconds, maxWait);
+        return (warm == null) ? null : new WarmAgent(warm.getDisplayName());
+    }
+    
+    /**
+     * Selects the warm agent a build waits for.
+     * @param warmNodes names of agents with warm caches, most recently used first.
+     * @param label label of the job, null if it may run anywhere.
+     * @param waited time the build is buildable in milliseconds.
+     * @param maxWait wait for a busy warm agent in milliseconds, 0 never waits.
+     * @return agent or null if the build may run on a cold agent.
+     */
+    static Node waitFor(List<String> warmNodes, Label label, long waited, long maxWait) {
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        for (String name : warmNodes) {
+            Node warm = name.isEmpty() ? jenkins : jenkins.getNode(name);
+            if (warm == null || warm.getNumExecutors() == 0 || !canTake(warm, label)) {
+                continue;
+            }
+            Computer computer = warm.toComputer();
+            if (computer == null || computer.isOffline() || !computer.isAcceptingTasks()) {
+                continue;
+            }
+            long limit = (computer.countIdle() > 0 && maxWait > 0) ? Math.max(maxWait, IDLE_GRACE) : maxWait;
+            if (waited < limit) {
+                return warm;
+            }
+        }
+        return null;
+    }
+    
+    private static boolean canTake(Node node, Label label) {
+        if (label == null) {
+            return node.getMode() != Node.Mode.EXCLUSIVE;
+        }
+        return label.contains(node);
+    }
+    
+    /**
+     * Build waiting for an agent with warm caches.
+     */
+    static final class WarmAgent extends CauseOfBlockage {
+        private final String agent;
+        
+        WarmAgent(String agent) {
+            this.agent = agent;
+        }
+        
+        @Override
+        public String getShortDescription() {
+            return MessageFormat.format(MESSAGES.getString("AFFINITY_WAITING"), agent);
+        }
+    }
+}
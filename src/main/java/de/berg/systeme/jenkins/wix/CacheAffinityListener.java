@@ -0,0 +1,43 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+/**
+ * Drops the in-memory record of {@link CacheAffinity} when a job is deleted,
+ * renamed or moved, so records of jobs which are gone are not kept.
+ * @author Bjoern.Berg
+ */
+@Extension
+public class CacheAffinityListener extends ItemListener {
+    
+    @Override
+    public void onDeleted(Item item) {
+        CacheAffinity.evictMissing();
+    }
+    
+    @Override
+    public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+        CacheAffinity.evictMissing();
+    }
+}
@@ -20,8 +20,12 @@
 
 package de.berg.systeme.jenkins.wix;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -37,6 +41,8 @@ public class Candle extends WixCommand {
     Wix.Arch arch = Wix.Arch.x86;           // default is x86
     // this is done by defining -I<dir> more than once
     List<FilePath> includePaths = new LinkedList<FilePath>();
+    // only run the preprocessor and write the result to stdout (-p)
+    boolean preprocessOnly = false;
     
     /**
      * constructor.
@@ -56,20 +62,102 @@ public class Candle extends WixCommand {
         super(launcher, Wix.COMPILER, settings, vars);
     }
     
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Candle(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.COMPILER, settings, invocation);
+    }
+    
+    /**
+     * Creates a compiler with the same configuration as the given one but
+     * without source files and output file.
+     * @param other compiler to copy.
+     */
+    Candle(Candle other) {
+        super(other);
+        this.arch = other.arch;
+        this.includePaths.addAll(other.includePaths);
+        this.preprocessOnly = other.preprocessOnly;
+    }
+    
     /**
      * set architecture defaults for package, components, etc. (default: x86)
      * @param arch x86, ia64, x64.
      */
     public void setArch(Wix.Arch arch) {
         this.arch = arch;
+        changed();
     }
 
+    /**
+     * only preprocess the sources and write the result to stdout.
+     * @param preprocessOnly true enables preprocessing only (default: false).
+     */
+    public void setPreprocessOnly(boolean preprocessOnly) {
+        this.preprocessOnly = preprocessOnly;
+        changed();
+    }
+    
+    List<FilePath> getIncludePaths() {
+        return this.includePaths;
+    }
+    
+    /**
+     * Returns every option which influences the compiled object file, used as
+     * part of cache keys. Sources and output file are not part of it.
+     * @param withParameters true adds the preprocessor parameters, which are
+     *        not needed if the key is derived from preprocessed sources.
+     * @return options in a deterministic order.
+     */
+    String getOptionsFingerprint(boolean withParameters) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(exec.getPath()).append("|-arch ").append(arch.name());
+        List<String> sortedExtensions = new ArrayList<String>(extensions);
+        Collections.sort(sortedExtensions);
+        for (String extension : sortedExtensions) {
+            sb.append("|-ext ").append(extension);
+        }
+        if (withParameters) {
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(parameters).entrySet()) {
+                sb.append("|-d").append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        }
+        for (FilePath path : includePaths) {
+            sb.append("|-I ").append(path.getRemote());
+        }
+        sb.append(verbose ? "|-v" : "").append(wxall ? "|-wxall" : "");
+        return sb.toString();
+    }
+
+    /**
+     * Moves every include path below a directory to another directory, e.g.
+     * from the workspace to the directory of a compile shard.
+     * @param from original directory.
+     * @param to new directory.
+     */
+    void relocateIncludePaths(FilePath from, FilePath to) {
+        String prefix = from.getRemote();
+        for (int i = 0; i < includePaths.size(); i++) {
+            String path = includePaths.get(i).getRemote();
+            if (path.equals(prefix)) {
+                includePaths.set(i, to);
+            } else if (path.startsWith(prefix + "/") || path.startsWith(prefix + "\\")) {
+                includePaths.set(i, to.child(path.substring(prefix.length() + 1)));
+            }
+        }
+        changed();
+    }
+    
     /**
      * add to include search path.
      * @param includePath path to include.
      */
     public void addIncludePath(FilePath includePath) {
         this.includePaths.add(includePath);
+        changed();
     }
 
     @Override
@@ -99,8 +187,13 @@ public class Candle extends WixCommand {
 	    	args.add(nologo ? "-nologo" : null);
 	    	args.add(verbose ? "-v" : null);
 	        args.add(wxall ? "-wxall" : null);
-	        // output file
-	        args.add("-out").add(outputFile.getRemote());
+	        if (preprocessOnly) {
+	        	// preprocessed sources are written to stdout
+	        	args.add("-p");
+	        } else {
+	        	// output file
+	        	args.add("-out").add(outputFile.getRemote());
+	        }
 	        // append sources
 	        for (FilePath source : sourceFiles) {
 	            args.add(source.getRemote());
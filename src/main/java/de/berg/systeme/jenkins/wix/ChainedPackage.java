@@ -0,0 +1,85 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MSI package chained into a bundle. Chained packages are configured one per
+ * line as <i>output=sources</i>, e.g. <i>packages/core.msi=core/*.wxs</i>.
+ * @author Bjoern.Berg
+ */
+public class ChainedPackage {
+    // path of the package relative to the workspace
+    private final String output;
+    // Ant-style pattern of the sources of the package
+    private final String sources;
+    
+    /**
+     * constructor.
+     * @param output path of the package relative to the workspace.
+     * @param sources Ant-style pattern of the sources.
+     */
+    public ChainedPackage(String output, String sources) {
+        this.output = output;
+        this.sources = sources;
+    }
+    
+    public String getOutput() {
+        return output;
+    }
+    
+    public String getSources() {
+        return sources;
+    }
+    
+    /**
+     * Parses the chained packages of a bundle. Blank lines and lines starting
+     * with # are ignored.
+     * @param text one package per line.
+     * @return chained packages in order of the lines.
+     * @throws ToolsetException if a line is not of the form output=sources.
+     */
+    public static List<ChainedPackage> parse(String text) throws ToolsetException {
+        List<ChainedPackage> packages = new ArrayList<ChainedPackage>();
+        if (text == null) {
+            return packages;
+        }
+        for (String line : text.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if (eq <= 0 || eq == line.length() - 1) {
+                throw new ToolsetException("Invalid chained package: " + line);
+            }
+            packages.add(new ChainedPackage(line.substring(0, eq).trim(), line.substring(eq + 1).trim()));
+        }
+        return packages;
+    }
+    
+    @Override
+    public String toString() {
+        return output + "=" + sources;
+    }
+}
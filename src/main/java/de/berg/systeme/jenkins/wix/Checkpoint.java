@@ -0,0 +1,300 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Finished compiles of a build step kept on its node, so a rerun after an
+ * agent reboot or an abort, e.g. while linking, does not compile them again.
+ * Every finished compile is recorded with the fingerprint of its inputs and
+ * the hash of its object file; a rerun reuses an object file only if both
+ * still match. All other phases run again. The checkpoint is removed when
+ * the build step succeeds.
+ * <p>The file has one line per record, fields separated by tabs:
+ * <i>build TAB number</i> for every attempt and <i>output TAB path TAB key
+ * TAB sha256</i> for every finished compile. Later lines replace earlier
+ * ones of the same output.</p>
+ * @author Bjoern.Berg
+ */
+final class Checkpoint {
+    /** name of the checkpoint in the workspace. */
+    static final String FILENAME = ".wix-checkpoint";
+    // serializes appends of concurrent compile workers on a node
+    private static final Object LOCK = new Object();
+    
+    // checkpoint file on the node
+    private final FilePath file;
+    
+    /**
+     * constructor.
+     * @param file checkpoint file on the node.
+     */
+    Checkpoint(FilePath file) {
+        this.file = file;
+    }
+    
+    /**
+     * Reads the checkpoint left by an interrupted build and starts a new
+     * attempt.
+     * @param build number of the running build.
+     * @return state of the previous attempt, empty if there is none.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    State resume(int build) throws IOException, InterruptedException {
+        State state = file.act(new Read());
+        append("build\t" + build + "\n");
+        return state;
+    }
+    
+    /**
+     * Checks which outputs can be reused.
+     * @param keys key of the inputs by absolute path of output.
+     * @return outputs recorded with the same key and unchanged since.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    Set<String> reusable(Map<String, String> keys) throws IOException, InterruptedException {
+        if (keys.isEmpty()) {
+            return new HashSet<String>();
+        }
+        return file.act(new Validate(keys));
+    }
+    
+    /**
+     * Records finished outputs.
+     * @param keys key of the inputs by absolute path of output.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void record(Map<String, String> keys) throws IOException, InterruptedException {
+        if (!keys.isEmpty()) {
+            file.act(new Record(keys, null));
+        }
+    }
+    
+    /**
+     * Removes the checkpoint.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    void clear() throws IOException, InterruptedException {
+        file.delete();
+    }
+    
+    private void append(String line) throws IOException, InterruptedException {
+        file.act(new Record(new HashMap<String, String>(), line));
+    }
+    
+    /**
+     * Computes the SHA-256 of a file.
+     * @param file existing file.
+     * @return hexadecimal hash.
+     * @throws IOException
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest md = Fingerprints.newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            Fingerprints.update(md, in);
+        } finally {
+            in.close();
+        }
+        return Fingerprints.toHex(md.digest());
+    }
+    
+    private static boolean endsWithLineBreak(File file) throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            return true;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+    
+    /**
+     * Parses a checkpoint file.
+     * @param file checkpoint file.
+     * @return state, empty if the file does not exist.
+     * @throws IOException
+     */
+    static State read(File file) throws IOException {
+        State state = new State();
+        if (!file.isFile()) {
+            return state;
+        }
+        InputStream in = new FileInputStream(file);
+        byte[] content;
+        try {
+            content = new byte[(int) file.length()];
+            int off = 0;
+            int len;
+            while (off < content.length && (len = in.read(content, off, content.length - off)) > 0) {
+                off += len;
+            }
+        } finally {
+            in.close();
+        }
+        for (String line : new String(content, "UTF-8").split("\n")) {
+            String[] fields = line.split("\t");
+            if ("build".equals(fields[0]) && fields.length == 2) {
+                state.build = Integer.parseInt(fields[1]);
+            } else if ("output".equals(fields[0]) && fields.length == 4) {
+                state.outputs.put(fields[1], fields[2] + "\t" + fields[3]);
+            }
+            // an incomplete last line of an interrupted append is ignored
+        }
+        return state;
+    }
+    
+    /**
+     * State of a previous attempt.
+     */
+    static final class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+        // build which wrote the checkpoint, 0 if there is none
+        private int build;
+        // key and hash separated by a tab by absolute path of output
+        private final Map<String, String> outputs = new HashMap<String, String>();
+        
+        /** @return number of the interrupted build, 0 if there is no checkpoint. */
+        int getBuild() {
+            return build;
+        }
+        
+        /** @return number of recorded outputs. */
+        int getOutputs() {
+            return outputs.size();
+        }
+        
+        /** @return true if a previous attempt left progress. */
+        boolean isEmpty() {
+            return outputs.isEmpty();
+        }
+    }
+    
+    /**
+     * Reads the checkpoint on the node.
+     */
+    private static final class Read implements FilePath.FileCallable<State> {
+        private static final long serialVersionUID = 1L;
+        
+        public State invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            synchronized (LOCK) {
+                return read(file);
+            }
+        }
+    }
+    
+    /**
+     * Validates outputs against the checkpoint on the node.
+     */
+    private static final class Validate implements FilePath.FileCallable<Set<String>> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> keys;
+        
+        Validate(Map<String, String> keys) {
+            this.keys = new HashMap<String, String>(keys);
+        }
+        
+        public Set<String> invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            State state;
+            synchronized (LOCK) {
+                state = read(file);
+            }
+            Set<String> valid = new HashSet<String>();
+            for (Map.Entry<String, String> key : keys.entrySet()) {
+                String recorded = state.outputs.get(key.getKey());
+                if (recorded == null || !recorded.startsWith(key.getValue() + "\t")) {
+                    continue;
+                }
+                File output = new File(key.getKey());
+                if (output.isFile() && recorded.substring(key.getValue().length() + 1).equals(hash(output))) {
+                    valid.add(key.getKey());
+                }
+            }
+            return valid;
+        }
+    }
+    
+    /**
+     * Hashes outputs and appends them to the checkpoint on the node.
+     */
+    private static final class Record implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> keys;
+        private final String line;
+        
+        /**
+         * @param keys key of the inputs by absolute path of output.
+         * @param line line appended as is, may be null.
+         */
+        Record(Map<String, String> keys, String line) {
+            this.keys = new HashMap<String, String>(keys);
+            this.line = line;
+        }
+        
+        public Void invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            StringBuilder lines = new StringBuilder((line == null) ? "" : line);
+            for (Map.Entry<String, String> key : keys.entrySet()) {
+                lines.append("output\t").append(key.getKey()).append('\t').append(key.getValue())
+                        .append('\t').append(hash(new File(key.getKey()))).append('\n');
+            }
+            synchronized (LOCK) {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                    throw new IOException("Cannot create directory " + parent);
+                }
+                if (!endsWithLineBreak(file)) {
+                    // starts a new line after an append which was interrupted
+                    lines.insert(0, '\n');
+                }
+                OutputStream out = new FileOutputStream(file, true);
+                try {
+                    // one write per record, so an interruption leaves at most one broken line
+                    out.write(lines.toString().getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+            }
+            return null;
+        }
+    }
+}
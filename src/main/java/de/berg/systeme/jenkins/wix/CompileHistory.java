@@ -0,0 +1,221 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Compile durations per source file, recorded across builds of a job. The
+ * history is stored as properties file in the root directory of the job and
+ * is used to dispatch the longest compile jobs first.
+ * <p>Every entry has the format <i>duration,size</i> with the duration in
+ * milliseconds (exponentially smoothed) and the size of the source in bytes.</p>
+ * <p>Concurrent builds of a job share the file: a history re-reads it when
+ * it is saved and applies only its own measurements, under a lock of the file.</p>
+ * @author Bjoern.Berg
+ */
+public final class CompileHistory {
+    /** name of history file inside the job directory. */
+    public static final String FILENAME = "wix-compile-history.properties";
+    /** startup costs of candle.exe which do not depend on the size of a source. */
+    static final long STARTUP_MILLIS = 500;
+    /** default compile rate in milliseconds per byte if no history is available. */
+    static final double DEFAULT_RATE = 0.02;
+    // weight of the newest measurement
+    private static final double ALPHA = 0.5;
+    // locks of history files, a file always maps to the same lock
+    private static final Object[] LOCKS = new Object[16];
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+    
+    private final File file;
+    private Properties entries = new Properties();
+    // measurements recorded since the last save as duration and size by key
+    private final Map<String, long[]> measured = new LinkedHashMap<String, long[]>();
+    private final ToolsetLogger lg = ToolsetLogger.INSTANCE;
+    
+    /**
+     * constructor. Loads the history from the given file if it exists.
+     * @param file history file; null keeps the history in memory only.
+     */
+    public CompileHistory(File file) {
+        this.file = file;
+        if (file != null) {
+            entries = load(file);
+        }
+    }
+    
+    private Properties load(File file) {
+        Properties loaded = new Properties();
+        if (file.exists()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                loaded.load(in);
+            } catch (IOException e) {
+                lg.log("Cannot read compile history %s: %s", file, e.getMessage());
+            } finally {
+                close(in);
+            }
+        }
+        return loaded;
+    }
+    
+    /**
+     * Returns the recorded duration of a source.
+     * @param key key of source, the path relative to the workspace.
+     * @return duration in milliseconds or -1 if the source has no history.
+     */
+    public synchronized long getDuration(String key) {
+        return field(key, 0);
+    }
+    
+    /**
+     * Returns the recorded size of a source.
+     * @param key key of source.
+     * @return size in bytes or -1 if unknown.
+     */
+    public synchronized long getSize(String key) {
+        return field(key, 1);
+    }
+    
+    /**
+     * Estimates the compile duration of a source. Sources with history use
+     * their recorded duration, all others are estimated by their size using
+     * the compile rate of all recorded sources.
+     * @param key key of source.
+     * @param size size of source in bytes.
+     * @return estimated duration in milliseconds.
+     */
+    public synchronized long estimate(String key, long size) {
+        long duration = getDuration(key);
+        if (duration >= 0) {
+            return duration;
+        }
+        return STARTUP_MILLIS + Math.round(Math.max(size, 0) * getRate());
+    }
+    
+    /**
+     * Returns the compile rate derived from all sources with known size.
+     * @return milliseconds per byte.
+     */
+    synchronized double getRate() {
+        long millis = 0;
+        long bytes = 0;
+        for (String key : entries.stringPropertyNames()) {
+            long duration = field(key, 0);
+            long size = field(key, 1);
+            if (duration >= 0 && size > 0) {
+                millis += Math.max(duration - STARTUP_MILLIS, 0);
+                bytes += size;
+            }
+        }
+        return (bytes == 0) ? DEFAULT_RATE : (double) millis / bytes;
+    }
+    
+    /**
+     * Records a measured compile duration.
+     * @param key key of source.
+     * @param duration measured duration in milliseconds.
+     * @param size size of source in bytes or -1 if unknown.
+     */
+    public synchronized void record(String key, long duration, long size) {
+        apply(entries, key, duration, size);
+        measured.put(key, new long[] {duration, size});
+    }
+    
+    private static void apply(Properties entries, String key, long duration, long size) {
+        long previous = field(entries, key, 0);
+        long smoothed = (previous < 0) ? duration : Math.round(ALPHA * duration + (1 - ALPHA) * previous);
+        long knownSize = (size < 0) ? field(entries, key, 1) : size;
+        entries.setProperty(key, smoothed + "," + knownSize);
+    }
+    
+    /**
+     * Writes the history back to its file. The file is read again and only
+     * the measurements of this history are applied, so the records of
+     * concurrent builds of the job are kept.
+     */
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        synchronized (lock(file)) {
+            Properties merged = load(file);
+            for (Map.Entry<String, long[]> m : measured.entrySet()) {
+                apply(merged, m.getKey(), m.getValue()[0], m.getValue()[1]);
+            }
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                merged.store(out, "WiX compile durations in ms and source sizes in bytes");
+                entries = merged;
+                measured.clear();
+            } catch (IOException e) {
+                lg.log("Cannot write compile history %s: %s", file, e.getMessage());
+            } finally {
+                close(out);
+            }
+        }
+    }
+    
+    private static Object lock(File file) {
+        return LOCKS[(file.getAbsolutePath().hashCode() & Integer.MAX_VALUE) % LOCKS.length];
+    }
+    
+    private long field(String key, int index) {
+        return field(entries, key, index);
+    }
+    
+    private static long field(Properties entries, String key, int index) {
+        String value = entries.getProperty(key);
+        if (value == null) {
+            return -1;
+        }
+        String[] fields = value.split(",");
+        try {
+            return (index < fields.length) ? Long.parseLong(fields[index].trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static void close(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
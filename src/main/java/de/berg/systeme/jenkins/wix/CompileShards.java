@@ -0,0 +1,206 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.remoting.RemoteInputStream;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Helpers to compile the sources of a build on several agents. The sources
+ * are partitioned into one shard per agent, every agent receives only the
+ * sources of its shard and their include files, and only the object files
+ * are sent back. Both directions use the verified zip stream of
+ * {@link OutputTransfer}.
+ * @author Bjoern.Berg
+ */
+final class CompileShards {
+    /** name of the shard directories below the root of a node. */
+    static final String DIRNAME = "wix-shards";
+    
+    private CompileShards() {
+    }
+    
+    /**
+     * Assigns jobs to shards, so the estimated durations of all shards are
+     * as even as possible. The longest job is assigned first, always to the
+     * shard with the least work.
+     * @param estimates estimated duration of every job.
+     * @param shards number of shards.
+     * @return shard of every job.
+     */
+    static int[] partition(final long[] estimates, int shards) {
+        Integer[] order = new Integer[estimates.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (estimates[a] < estimates[b]) ? 1 : (estimates[a] > estimates[b]) ? -1 : a.compareTo(b);
+            }
+        });
+        long[] load = new long[shards];
+        int[] assignment = new int[estimates.length];
+        for (int job : order) {
+            int least = 0;
+            for (int shard = 1; shard < shards; shard++) {
+                if (load[shard] < load[least]) {
+                    least = shard;
+                }
+            }
+            assignment[job] = least;
+            load[least] += estimates[job];
+        }
+        return assignment;
+    }
+    
+    /**
+     * Returns the online nodes matching a label expression. The node of the
+     * build comes first if it matches, all others are ordered by name.
+     * @param label label expression.
+     * @param local node of the build.
+     * @return nodes able to compile.
+     * @throws ToolsetException if the label expression is invalid.
+     */
+    static List<Node> nodes(String label, Node local) throws ToolsetException {
+        Label expression;
+        try {
+            expression = Label.parseExpression(label);
+        } catch (Exception e) {
+            throw new ToolsetException("Invalid label expression " + label + ": " + e.getMessage());
+        }
+        List<Node> nodes = new ArrayList<Node>();
+        for (Node node : expression.getNodes()) {
+            Computer computer = node.toComputer();
+            if (computer != null && computer.isOnline() && computer.getChannel() != null && node.getRootPath() != null) {
+                nodes.add(node);
+            }
+        }
+        final String localName = (local == null) ? null : local.getNodeName();
+        Collections.sort(nodes, new Comparator<Node>() {
+            public int compare(Node a, Node b) {
+                if (a.getNodeName().equals(localName) != b.getNodeName().equals(localName)) {
+                    return a.getNodeName().equals(localName) ? -1 : 1;
+                }
+                return a.getNodeName().compareTo(b.getNodeName());
+            }
+        });
+        return nodes;
+    }
+    
+    /**
+     * Collects the sources and all files they include, as far as they are
+     * located in the workspace. Files outside of the workspace, e.g. include
+     * files of the toolset, are expected on every agent.
+     */
+    static final class Closure implements FilePath.FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final List<FilePath> sources;
+        private final List<FilePath> includePaths;
+        
+        /**
+         * constructor.
+         * @param sources sources of a shard.
+         * @param includePaths include search paths of candle.
+         */
+        Closure(List<FilePath> sources, List<FilePath> includePaths) {
+            this.sources = new ArrayList<FilePath>(sources);
+            this.includePaths = new ArrayList<FilePath>(includePaths);
+        }
+        
+        /**
+         * @return paths relative to the workspace.
+         */
+        public List<String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            SourceDigest resolver = new SourceDigest(new ArrayList<FilePath>(), includePaths);
+            String root = workspace.getCanonicalPath() + File.separator;
+            Set<String> visited = new HashSet<String>();
+            Set<String> paths = new TreeSet<String>();
+            for (FilePath source : sources) {
+                collect(new File(source.getRemote()), resolver, visited);
+            }
+            for (String path : visited) {
+                if (path.startsWith(root)) {
+                    paths.add(path.substring(root.length()).replace('\\', '/'));
+                }
+            }
+            return new ArrayList<String>(paths);
+        }
+        
+        private void collect(File file, SourceDigest resolver, Set<String> visited) throws IOException {
+            if (!file.isFile() || !visited.add(file.getCanonicalPath())) {
+                return;
+            }
+            Matcher m = SourceDigest.INCLUDE.matcher(new String(SourceDigest.read(file), "ISO-8859-1"));
+            while (m.find()) {
+                File include = resolver.resolve(file.getParentFile(), m.group(1).trim());
+                if (include != null) {
+                    collect(include, resolver, visited);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Unpacks a stream written by {@link OutputTransfer} on the node of the
+     * target directory and verifies it against the manifest. Files sent as
+     * delta are restored from their previous version in the directory.
+     */
+    static final class Unpack implements FilePath.FileCallable<List<String>> {
+        private static final long serialVersionUID = 1L;
+        private final InputStream in;
+        private final Map<String, OutputTransfer.Entry> manifest;
+        
+        /**
+         * constructor.
+         * @param in compressed stream on the controller.
+         * @param manifest manifest of the stream.
+         */
+        Unpack(InputStream in, Map<String, OutputTransfer.Entry> manifest) {
+            this.in = new RemoteInputStream(in);
+            this.manifest = manifest;
+        }
+        
+        /**
+         * @return problems, empty if every file was received intact.
+         */
+        public List<String> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            dir.mkdirs();
+            return OutputTransfer.unpack(in, dir, manifest);
+        }
+    }
+}
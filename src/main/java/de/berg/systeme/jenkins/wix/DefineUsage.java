@@ -0,0 +1,117 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Determines on the node holding the workspace which preprocessor defines
+ * each source may use, including the files it includes. A define counts as
+ * used if it is referenced as <i>$(var.NAME)</i> or <i>$(env.NAME)</i>, since
+ * parameters are passed to the environment of candle as well, tested by
+ * <i>&lt;?ifdef?&gt;</i> or <i>&lt;?ifndef?&gt;</i>, or appears as a name
+ * in the expression of <i>&lt;?if?&gt;</i> or <i>&lt;?elseif?&gt;</i>.
+ * The result may contain names which are not defines, but never misses a
+ * define the source depends on. Sources with an include which cannot be
+ * resolved are reported as using every define.
+ * @author Bjoern.Berg
+ */
+public class DefineUsage implements FilePath.FileCallable<Map<String, Set<String>>> {
+    private static final long serialVersionUID = 1L;
+    /** name used for sources which may depend on every define. */
+    public static final String ALL = "*";
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\((?:var|env)\\.([\\w.]+)\\)");
+    private static final Pattern INSTRUCTION = Pattern.compile("<\\?(ifdef|ifndef|if|elseif|include)\\s+(.+?)\\s*\\?>");
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][\\w.]*");
+    // absolute paths of sources
+    private final List<String> sources;
+    // resolves include files like the fingerprint of the compile cache
+    private final SourceDigest includes;
+    
+    /**
+     * constructor.
+     * @param sources sources to scan.
+     * @param includePaths include search paths of candle.
+     */
+    public DefineUsage(List<FilePath> sources, List<FilePath> includePaths) {
+        this.includes = new SourceDigest(Collections.<FilePath>emptyList(), includePaths);
+        this.sources = new ArrayList<String>();
+        for (FilePath source : sources) {
+            this.sources.add(source.getRemote());
+        }
+    }
+    
+    /**
+     * @return names of used defines sorted by name for every source by its
+     *         absolute path.
+     */
+    public Map<String, Set<String>> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, Set<String>> usage = new LinkedHashMap<String, Set<String>>();
+        for (String source : sources) {
+            Set<String> names = new TreeSet<String>();
+            scan(new File(source), names, new HashSet<String>());
+            usage.put(source, names);
+        }
+        return usage;
+    }
+    
+    private void scan(File file, Set<String> names, Set<String> visited) throws IOException {
+        if (!visited.add(file.getCanonicalPath())) {
+            return;
+        }
+        // content is only scanned for instructions, any ASCII compatible encoding works
+        String content = new String(SourceDigest.read(file), "ISO-8859-1");
+        Matcher m = VARIABLE.matcher(content);
+        while (m.find()) {
+            names.add(m.group(1));
+        }
+        m = INSTRUCTION.matcher(content);
+        while (m.find()) {
+            if ("include".equals(m.group(1))) {
+                File include = includes.resolve(file.getParentFile(), m.group(2).trim());
+                if (include == null) {
+                    names.add(ALL);
+                } else {
+                    scan(include, names, visited);
+                }
+            } else {
+                // strings of the expression may contain names, they only make the key stricter
+                Matcher name = NAME.matcher(m.group(2).replaceAll("\\$\\((env|sys)\\.[^)]*\\)", ""));
+                while (name.find()) {
+                    names.add(name.group());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Delta transfer of files between nodes. Files are split into chunks where
+ * a rolling hash over the last bytes matches a pattern, so a change only
+ * alters the chunks around it. The receiver sends the hashes of the chunks
+ * of its previous version of a file, the sender replaces every chunk the
+ * receiver already has by the hash of the chunk and the receiver copies
+ * these chunks from its previous version.
+ * <p>An encoded file is a sequence of operations: <i>DATA length bytes</i>,
+ * <i>COPY hash</i> and <i>END</i>.</p>
+ * @author Bjoern.Berg
+ */
+final class DeltaTransfer {
+    /** chunks end at this size at the earliest. */
+    static final int MIN_CHUNK = 16 * 1024;
+    /** chunks end at this size at the latest. */
+    static final int MAX_CHUNK = 256 * 1024;
+    // a chunk ends where the top 16 bits of the rolling hash are zero, i.e. every 64 KB on average
+    private static final long MASK = 0xFFFFL << 48;
+    // random value by byte; the fixed seed makes every node split files alike
+    private static final long[] GEAR = new long[256];
+    // operations of an encoded file
+    private static final int END = 0;
+    private static final int DATA = 1;
+    private static final int COPY = 2;
+    
+    static {
+        Random random = new Random(0x5749584CL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+    
+    private DeltaTransfer() {
+    }
+    
+    /**
+     * Chunk of a file.
+     */
+    static final class Chunk {
+        final long offset;
+        final int length;
+        final String hash;
+        
+        Chunk(long offset, int length, String hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+    
+    /**
+     * Splits a file into content-defined chunks.
+     * @param file file to split.
+     * @return chunks in order of the file.
+     * @throws IOException
+     */
+    static List<Chunk> split(File file) throws IOException {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        InputStream in = new FileInputStream(file);
+        try {
+            MessageDigest md = Fingerprints.newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            long offset = 0;
+            int length = 0;
+            long hash = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < n; i++) {
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xFF];
+                    length++;
+                    if ((length >= MIN_CHUNK && (hash & MASK) == 0) || length >= MAX_CHUNK) {
+                        md.update(buffer, start, i + 1 - start);
+                        chunks.add(new Chunk(offset, length, Fingerprints.toHex(md.digest())));
+                        offset += length;
+                        length = 0;
+                        hash = 0;
+                        start = i + 1;
+                    }
+                }
+                md.update(buffer, start, n - start);
+            }
+            if (length > 0) {
+                chunks.add(new Chunk(offset, length, Fingerprints.toHex(md.digest())));
+            }
+        } finally {
+            in.close();
+        }
+        return chunks;
+    }
+    
+    /**
+     * Writes a file encoded against the chunks of the previous version on
+     * the receiver.
+     * @param file file to send.
+     * @param previous hashes of the chunks of the previous version.
+     * @param out stream to the receiver; it is not closed.
+     * @return size and hash of the file and the number of bytes sent as data.
+     * @throws IOException
+     */
+    static OutputTransfer.Entry encode(File file, Set<String> previous, OutputStream out) throws IOException {
+        List<Chunk> chunks = split(file);
+        DataOutputStream data = new DataOutputStream(out);
+        MessageDigest md = Fingerprints.newDigest();
+        byte[] buffer = new byte[MAX_CHUNK];
+        long size = 0;
+        long sent = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            for (Chunk chunk : chunks) {
+                readFully(in, buffer, chunk.length);
+                md.update(buffer, 0, chunk.length);
+                if (previous.contains(chunk.hash)) {
+                    data.writeByte(COPY);
+                    data.writeUTF(chunk.hash);
+                } else {
+                    data.writeByte(DATA);
+                    data.writeInt(chunk.length);
+                    data.write(buffer, 0, chunk.length);
+                    sent += chunk.length;
+                }
+                size += chunk.length;
+            }
+            data.writeByte(END);
+            data.flush();
+        } finally {
+            in.close();
+        }
+        return new OutputTransfer.Entry(size, Fingerprints.toHex(md.digest()), sent, true);
+    }
+    
+    /**
+     * Restores an encoded file from the previous version.
+     * @param in encoded file; it is not closed.
+     * @param previous previous version of the file.
+     * @param out receives the restored file.
+     * @param md digest updated with the restored file.
+     * @return size of the restored file.
+     * @throws IOException if a chunk is not in the previous version.
+     */
+    static long decode(InputStream in, File previous, OutputStream out, MessageDigest md) throws IOException {
+        Map<String, Chunk> chunks = new HashMap<String, Chunk>();
+        RandomAccessFile base = null;
+        if (previous.isFile()) {
+            for (Chunk chunk : split(previous)) {
+                chunks.put(chunk.hash, chunk);
+            }
+            base = new RandomAccessFile(previous, "r");
+        }
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] buffer = new byte[MAX_CHUNK];
+            long size = 0;
+            int op;
+            while ((op = data.readUnsignedByte()) != END) {
+                int length;
+                if (op == DATA) {
+                    length = data.readInt();
+                    if (length < 0 || length > MAX_CHUNK) {
+                        throw new IOException("Invalid chunk length " + length);
+                    }
+                    data.readFully(buffer, 0, length);
+                } else if (op == COPY) {
+                    Chunk chunk = chunks.get(data.readUTF());
+                    if (chunk == null) {
+                        throw new IOException("Chunk not in previous version " + previous);
+                    }
+                    length = chunk.length;
+                    base.seek(chunk.offset);
+                    base.readFully(buffer, 0, length);
+                } else {
+                    throw new IOException("Invalid operation " + op);
+                }
+                md.update(buffer, 0, length);
+                out.write(buffer, 0, length);
+                size += length;
+            }
+            return size;
+        } finally {
+            if (base != null) {
+                base.close();
+            }
+        }
+    }
+    
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) {
+                throw new EOFException("File changed while it was sent");
+            }
+            read += n;
+        }
+    }
+    
+    /**
+     * Hashes the chunks of the previous versions of files on the receiving
+     * node.
+     */
+    static final class Signatures implements FilePath.FileCallable<Map<String, Set<String>>> {
+        private static final long serialVersionUID = 1L;
+        // paths relative to the directory
+        private final List<String> paths;
+        
+        /**
+         * constructor.
+         * @param paths files relative to the directory.
+         */
+        Signatures(List<String> paths) {
+            this.paths = new ArrayList<String>(paths);
+        }
+        
+        /**
+         * @return hashes of the chunks of every existing file by relative path.
+         */
+        public Map<String, Set<String>> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<String, Set<String>> signatures = new TreeMap<String, Set<String>>();
+            if (dir == null || !dir.isDirectory()) {
+                return signatures;
+            }
+            for (String path : paths) {
+                File file = new File(dir, path);
+                if (!file.isFile()) {
+                    continue;
+                }
+                Set<String> hashes = new HashSet<String>();
+                for (Chunk chunk : split(file)) {
+                    hashes.add(chunk.hash);
+                }
+                signatures.put(path, hashes);
+            }
+            return signatures;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+/**
+ * Execution plan of a single WiX build step. The plan is resolved by
+ * {@link Toolset#plan(hudson.FilePath[], hudson.FilePath)} without launching
+ * any process and can be printed to the build log or serialized to JSON.
+ * @author Bjoern.Berg
+ */
+public final class ExecutionPlan {
+    /** value of {@link Step#getCache()} if no cache is consulted for a step. */
+    public static final String NOT_CACHED = "none";
+    /** the output of the step would be restored from the cache. */
+    public static final String CACHE_HIT = "hit";
+    /** the step would run and store its output in the cache. */
+    public static final String CACHE_MISS = "miss";
+    /** the cache key cannot be computed without launching a process. */
+    public static final String CACHE_UNKNOWN = "unknown";
+    
+    // resolved source files
+    private final List<String> sources = new LinkedList<String>();
+    // effective settings of the build step
+    private final Map<String, String> settings = new TreeMap<String, String>();
+    // extensions passed to candle and light
+    private final List<String> extensions = new LinkedList<String>();
+    // preprocessor defines (-d)
+    private final Map<String, String> defines = new TreeMap<String, String>();
+    // planned invocations in execution order
+    private final List<Step> steps = new LinkedList<Step>();
+    // configured phases the plan does not resolve
+    private final List<String> notPlanned = new LinkedList<String>();
+    // estimated duration in milliseconds, -1 if unknown
+    private long estimatedDuration = -1;
+    
+    /**
+     * A single planned process invocation.
+     */
+    public static final class Step {
+        private final String tool;
+        private final String group;
+        private final String command;
+        private final String output;
+        private final String cache;
+        
+        /**
+         * constructor.
+         * @param tool name of the executable, e.g. candle.exe.
+         * @param group concurrency group; steps of one group may run concurrently,
+         *        groups run one after another.
+         * @param command full command line.
+         * @param output file produced by the step.
+         * @param cache expected cache result of the step.
+         */
+        Step(String tool, String group, String command, String output, String cache) {
+            this.tool = tool;
+            this.group = group;
+            this.command = command;
+            this.output = output;
+            this.cache = cache;
+        }
+        
+        public String getTool()     { return tool; }
+        public String getGroup()    { return group; }
+        public String getCommand()  { return command; }
+        public String getOutput()   { return output; }
+        public String getCache()    { return cache; }
+    }
+    
+    void addSource(String source) {
+        sources.add(source);
+    }
+    
+    void addSetting(String key, String value) {
+        settings.put(key, value);
+    }
+    
+    void addExtension(String extension) {
+        if (!extensions.contains(extension)) {
+            extensions.add(extension);
+        }
+    }
+    
+    void addDefine(String name, String value) {
+        defines.put(name, value);
+    }
+    
+    void addStep(Step step) {
+        steps.add(step);
+    }
+    
+    void addNotPlanned(String phase) {
+        notPlanned.add(phase);
+    }
+    
+    void setEstimatedDuration(long estimatedDuration) {
+        this.estimatedDuration = estimatedDuration;
+    }
+    
+    public List<String> getSources()            { return sources; }
+    public Map<String, String> getSettings()    { return settings; }
+    public List<String> getExtensions()         { return extensions; }
+    public Map<String, String> getDefines()     { return defines; }
+    public List<Step> getSteps()                { return steps; }
+    public List<String> getNotPlanned()         { return notPlanned; }
+    public long getEstimatedDuration()          { return estimatedDuration; }
+    
+    /**
+     * Returns the concurrency groups in execution order.
+     * @return names of groups.
+     */
+    public List<String> getGroups() {
+        List<String> groups = new LinkedList<String>();
+        for (Step step : steps) {
+            if (!groups.contains(step.getGroup())) {
+                groups.add(step.getGroup());
+            }
+        }
+        return groups;
+    }
+    
+    /**
+     * Renders the plan as human readable lines for the build log.
+     * @return list of lines.
+     */
+    public List<String> toLines() {
+        List<String> lines = new LinkedList<String>();
+        lines.add("Execution plan (dry run, no process is launched)");
+        lines.add("Sources:");
+        for (String source : sources) {
+            lines.add("  " + source);
+        }
+        lines.add("Settings:");
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            lines.add("  " + entry.getKey() + " = " + entry.getValue());
+        }
+        lines.add("Extensions:");
+        for (String extension : extensions) {
+            lines.add("  " + extension);
+        }
+        lines.add("Defines:");
+        for (Map.Entry<String, String> entry : defines.entrySet()) {
+            lines.add("  " + entry.getKey() + " = " + entry.getValue());
+        }
+        for (String group : getGroups()) {
+            lines.add("Concurrency group '" + group + "':");
+            for (Step step : steps) {
+                if (group.equals(step.getGroup())) {
+                    lines.add("  [cache: " + step.getCache() + "] " + step.getCommand());
+                }
+            }
+        }
+        if (!notPlanned.isEmpty()) {
+            lines.add("Not planned, resolved only when the build runs:");
+            for (String phase : notPlanned) {
+                lines.add("  " + phase);
+            }
+        }
+        lines.add("Estimated duration: " + 
+                (estimatedDuration < 0 ? "unknown (no successful build in history)" : estimatedDuration + " ms"));
+        return lines;
+    }
+    
+    /**
+     * Serializes the plan to JSON.
+     * @return JSON representation of the plan.
+     */
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        json.element("sources", JSONArray.fromObject(sources));
+        json.element("settings", JSONObject.fromObject(settings));
+        json.element("extensions", JSONArray.fromObject(extensions));
+        json.element("defines", JSONObject.fromObject(defines));
+        JSONArray groups = new JSONArray();
+        for (String group : getGroups()) {
+            JSONArray invocations = new JSONArray();
+            for (Step step : steps) {
+                if (group.equals(step.getGroup())) {
+                    JSONObject invocation = new JSONObject();
+                    invocation.element("tool", step.getTool());
+                    invocation.element("command", step.getCommand());
+                    invocation.element("output", step.getOutput());
+                    invocation.element("cache", step.getCache());
+                    invocations.element(invocation);
+                }
+            }
+            JSONObject entry = new JSONObject();
+            entry.element("group", group);
+            entry.element("invocations", invocations);
+            groups.element(entry);
+        }
+        json.element("groups", groups);
+        json.element("notPlanned", JSONArray.fromObject(notPlanned));
+        json.element("estimatedDurationMillis", estimatedDuration);
+        return json;
+    }
+}
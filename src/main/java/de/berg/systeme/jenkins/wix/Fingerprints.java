@@ -0,0 +1,235 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Helpers to compute content fingerprints used as cache keys.
+ * @author Bjoern.Berg
+ */
+public final class Fingerprints {
+    // start of every document written by the preprocessor
+    private static final byte[] XML_DECLARATION = ascii("<?xml ");
+    
+    private Fingerprints() {
+        // utility class
+    }
+    
+    /**
+     * Creates a new SHA-256 digest.
+     * @return message digest.
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Converts a digest into a hexadecimal string.
+     * @param digest finished digest.
+     * @return lowercase hexadecimal string.
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Computes the SHA-256 fingerprint of a string.
+     * @param value string to hash.
+     * @return hexadecimal fingerprint.
+     */
+    public static String of(String value) {
+        MessageDigest md = newDigest();
+        update(md, value);
+        return toHex(md.digest());
+    }
+    
+    /**
+     * Adds the given stream to the digest.
+     * @param md digest to update.
+     * @param in stream to read until its end.
+     * @throws IOException
+     */
+    public static void update(MessageDigest md, InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = in.read(buffer)) > 0) {
+            md.update(buffer, 0, len);
+        }
+    }
+    
+    /**
+     * Adds the UTF-8 bytes of a string and a separator to the digest.
+     * @param md digest to update.
+     * @param value string to add.
+     */
+    public static void update(MessageDigest md, String value) {
+        try {
+            md.update(value.getBytes("UTF-8"));
+            md.update((byte) 0);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Splits the output of candle's preprocessor into single documents. Every
+     * document starts with its XML declaration.
+     * @param output output of candle -p for several sources.
+     * @return documents in order of the sources.
+     */
+    public static List<byte[]> splitDocuments(byte[] output) {
+        List<Integer> starts = new ArrayList<Integer>();
+        for (int i = 0; i <= output.length - XML_DECLARATION.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < XML_DECLARATION.length && match; j++) {
+                match = output[i + j] == XML_DECLARATION[j];
+            }
+            if (match) {
+                starts.add(i);
+            }
+        }
+        List<byte[]> documents = new ArrayList<byte[]>();
+        for (int i = 0; i < starts.size(); i++) {
+            int from = starts.get(i);
+            int to = (i + 1 < starts.size()) ? starts.get(i + 1) : output.length;
+            byte[] document = new byte[to - from];
+            System.arraycopy(output, from, document, 0, document.length);
+            documents.add(document);
+        }
+        return documents;
+    }
+    
+    /**
+     * Computes the fingerprint of a preprocessed document after normalizing
+     * it: comments and whitespace between elements are dropped and attributes
+     * are hashed in canonical order. Text and processing instructions are
+     * hashed as they are, since whitespace in e.g. Property values and
+     * CustomAction scripts is significant. Anything following the root
+     * element (e.g. messages of candle) is ignored.
+     * @param document preprocessed XML document.
+     * @return hexadecimal fingerprint.
+     * @throws IOException if the document is not well-formed.
+     */
+    public static String ofNormalizedXml(byte[] document) throws IOException {
+        final MessageDigest md = newDigest();
+        DefaultHandler handler = new DefaultHandler() {
+            private final StringBuilder text = new StringBuilder();
+            private int depth = 0;
+            
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                flushText();
+                depth++;
+                update(md, "<" + uri + "|" + localName);
+                TreeMap<String, String> sorted = new TreeMap<String, String>();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    sorted.put(attributes.getURI(i) + "|" + attributes.getLocalName(i), attributes.getValue(i));
+                }
+                for (String name : sorted.keySet()) {
+                    update(md, "@" + name + "=" + sorted.get(name));
+                }
+            }
+            
+            @Override
+            public void endElement(String uri, String localName, String qName) throws SAXException {
+                flushText();
+                update(md, ">");
+                if (--depth == 0) {
+                    // root element is complete, ignore trailing output
+                    throw new EndOfDocument();
+                }
+            }
+            
+            @Override
+            public void characters(char[] ch, int start, int length) {
+                text.append(ch, start, length);
+            }
+            
+            @Override
+            public void processingInstruction(String target, String data) {
+                flushText();
+                update(md, "?" + target + " " + data);
+            }
+            
+            private void flushText() {
+                // whitespace-only text is the indentation between elements
+                if (text.toString().trim().length() > 0) {
+                    update(md, "#" + text);
+                }
+                text.setLength(0);
+            }
+        };
+        
+        try {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.newSAXParser().parse(new ByteArrayInputStream(document), handler);
+        } catch (EndOfDocument e) {
+            // expected
+        } catch (SAXException e) {
+            throw new IOException("Cannot normalize preprocessed document: " + e.getMessage());
+        } catch (Exception e) {
+            throw new IOException(e.getMessage());
+        }
+        return toHex(md.digest());
+    }
+    
+    /**
+     * Signals the end of the root element.
+     */
+    private static final class EndOfDocument extends SAXException {
+        private static final long serialVersionUID = 1L;
+    }
+    
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
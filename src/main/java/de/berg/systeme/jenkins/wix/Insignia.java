@@ -0,0 +1,112 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * command definition for Wix Toolset Inscribe tool (insignia.exe). Detaches
+ * the engine from a bundle, so it can be signed, and reattaches it.
+ * @author Bjoern.Berg
+ */
+class Insignia extends WixCommand {
+    // engine detached from or reattached to the bundle
+    private FilePath engine;
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Insignia(ToolsetSettings settings, EnvVars envVars) {
+        this(null, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Insignia(Launcher launcher, ToolsetSettings settings, EnvVars envVars) {
+        super(launcher, Wix.INSCRIBER, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Insignia(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.INSCRIBER, settings, invocation);
+    }
+    
+    /**
+     * Creates an inscriber with the configuration of another inscriber but without
+     * source files and output file.
+     * @param other inscriber to copy.
+     */
+    Insignia(Insignia other) {
+        super(other);
+    }
+    
+    /**
+     * Reattaches the given engine to the bundle instead of detaching it.
+     * @param engine signed engine.
+     */
+    public void setEngine(FilePath engine) {
+        this.engine = engine;
+        changed();
+    }
+
+    /**
+     * Creates the command so it can be executed. The source file is the
+     * bundle.
+     * @throws ToolsetException 
+     */
+    @Override
+    protected ArgumentListBuilder createCommand() throws ToolsetException {
+        // the insignia.exe command on command line looks like:
+        // insignia.exe -ib bundle.exe -o engine.exe
+        // insignia.exe -ab engine.exe bundle.exe -o bundle.exe
+        if (sourceFiles.size() != 1) {
+            throw new ToolsetException("Missing parameters to build statement.");
+        }
+    	args = new ArgumentListBuilder();
+    	try {
+	    	args.add(exec.getPath());	// insignia.exe
+	    	args.add(nologo ? "-nologo" : null);
+	    	args.add(verbose ? "-v" : null);
+	    	if (engine == null) {
+	    	    args.add("-ib").add(sourceFiles.get(0).getRemote());
+	    	} else {
+	    	    args.add("-ab").add(engine.getRemote()).add(sourceFiles.get(0).getRemote());
+	    	}
+	        args.add("-o").add(outputFile.getRemote());
+	    } catch (NullPointerException npe) {
+			throw new ToolsetException("Missing parameters to build statement.");
+		}
+        
+        return args;
+    }
+}
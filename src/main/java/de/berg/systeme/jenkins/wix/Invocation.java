@@ -0,0 +1,179 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.commons.lang.StringUtils;
+
+import hudson.EnvVars;
+
+/**
+ * Settings of a build shared by all WiX commands: the enabled extensions, the
+ * preprocessor parameters derived from the environment and the environment
+ * itself. The invocation is resolved once per build and cannot be changed,
+ * so commands of the same build can be created from it concurrently.
+ * Extensions and parameters are kept in a deterministic order, so rendered
+ * command lines and cache keys derived from them are stable between builds.
+ * @author Bjoern.Berg
+ */
+final class Invocation {
+    // enabled extensions in alphabetical order
+    private final List<String> extensions;
+    // preprocessor parameters (-d) by name
+    private final SortedMap<String, String> parameters;
+    // environment of the build
+    private final EnvVars environment;
+    
+    private Invocation(List<String> extensions, SortedMap<String, String> parameters, EnvVars environment) {
+        this.extensions = Collections.unmodifiableList(extensions);
+        this.parameters = Collections.unmodifiableSortedMap(parameters);
+        this.environment = environment;
+    }
+    
+    /**
+     * Resolves the invocation of a build.
+     * @param settings global settings.
+     * @param vars environment variables of the build.
+     * @return invocation.
+     */
+    static Invocation of(ToolsetSettings settings, EnvVars vars) {
+        return new Builder(settings, vars).build();
+    }
+    
+    /**
+     * @return enabled extensions in alphabetical order.
+     */
+    List<String> getExtensions() {
+        return extensions;
+    }
+    
+    /**
+     * @return preprocessor parameters sorted by name.
+     */
+    SortedMap<String, String> getParameters() {
+        return parameters;
+    }
+    
+    /**
+     * @return environment of the build.
+     */
+    EnvVars getEnvironment() {
+        return environment;
+    }
+    
+    /**
+     * Collects extensions and parameters from settings and environment.
+     */
+    private static final class Builder {
+        private final ToolsetLogger lg = ToolsetLogger.INSTANCE;
+        private final ToolsetSettings settings;
+        private final EnvVars vars;
+        // names of environment variables which are not passed as parameters, lower case
+        private final Set<String> rejectedEnvVars = new HashSet<String>();
+        
+        Builder(ToolsetSettings settings, EnvVars vars) {
+            this.settings = settings;
+            this.vars = (vars == null) ? new EnvVars() : vars;
+            // Environment variables which are not taken into account
+            String sysEnvVars = settings.get(Wix.LOV_REJECTED, Wix.DEF_LOV_TO_REJECT);
+            for (String s : sysEnvVars.split(",")) {
+                rejectedEnvVars.add(s.toLowerCase());
+            }
+        }
+        
+        Invocation build() {
+            // Add extensions, we use reflection to avoid a lot of code
+            Set<String> extensions = new TreeSet<String>();
+            for (Field field : Wix.class.getFields()) {
+                try {
+                    String fieldValue = (String) field.get(null);
+                    if (fieldValue.endsWith("Extension") && settings.get(fieldValue, false)) {
+                        extensions.add(fieldValue);
+                    }
+                } catch (IllegalAccessException ex) {
+                    lg.severe(ex);
+                }
+            }
+            
+            // add all environment variables as parameter
+            // environment variables are only added, if option is set
+            SortedMap<String, String> parameters = new TreeMap<String, String>();
+            if (settings.get(Wix.ENBL_ENV_AS_PARAM, false)) {
+                for (Map.Entry<String, String> entry : vars.entrySet()) {
+                    String varName = entry.getKey();
+                    String value = entry.getValue();
+                    lg.debug("VarName: " + varName + "; Value: " + value);
+                    // contains value a directory it is better to escape everything
+                    if (isEnvVarRejected(varName)) {
+                        lg.debug("Rejected Environment variable: " + varName);
+                    } else {
+                        // cleanUpValue removes some accidental signs
+                        parameters.put(varName, cleanUpValue(value));
+                    }
+                }
+            } else {
+                lg.log("Environment variables are not automatically added as parameters.");
+            }
+            return new Invocation(new ArrayList<String>(extensions), parameters, new EnvVars(vars));
+        }
+        
+        private boolean isEnvVarRejected(String envVar) {
+            boolean reject = false;
+            if (envVar.contains("=")) {
+                lg.debug(envVar + ": contains illegal character.");
+                reject = true;
+            } else if (rejectedEnvVars.contains(envVar.toLowerCase())) {
+                lg.debug(envVar + ": is marked as ignorable variable.");
+                reject = true;
+            }
+            return reject;
+        }
+        
+        /**
+         * Remove or replace signs in value which can cause process execution to fail.
+         * @param value
+         * @return
+         */
+        private String cleanUpValue(String value) {
+            if (StringUtils.isNotEmpty(value)) {
+                value = value.replace("\"", "\\\"");
+                // Bugfix:
+                // We have to remove the last backslash otherwise it could
+                // happen we get masked quotation marks which will fail the
+                // process execution.
+                char lastChar = value.charAt(value.length() - 1);
+                if (lastChar == '\\') {
+                    value = value.substring(0, value.length() - 1);
+                }
+            }
+            return value;
+        }
+    }
+}
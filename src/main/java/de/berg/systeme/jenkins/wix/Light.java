@@ -20,6 +20,14 @@
 
 package de.berg.systeme.jenkins.wix;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
@@ -30,6 +38,11 @@ import hudson.util.ArgumentListBuilder;
  * @author Bjoern.Berg
  */
 class Light extends WixCommand {
+    // unnamed bind paths (-b path), searched in order
+    private List<FilePath> bindPaths = new LinkedList<FilePath>();
+    // named bind paths (-b name=path) used by !(bindpath.name)
+    private Map<String, FilePath> namedBindPaths = new LinkedHashMap<String, FilePath>();
+    
     /**
      * constructor.
      * @param settings global settings.
@@ -47,6 +60,78 @@ class Light extends WixCommand {
     public Light(Launcher launcher, ToolsetSettings settings, EnvVars envVars) {
         super(launcher, Wix.LINKER, settings, envVars);
     }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Light(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.LINKER, settings, invocation);
+    }
+    
+    /**
+     * Creates a linker with the configuration of another linker.
+     * @param other linker to copy.
+     */
+    Light(Light other) {
+        super(other);
+        this.bindPaths.addAll(other.bindPaths);
+        this.namedBindPaths.putAll(other.namedBindPaths);
+    }
+    
+    /**
+     * Adds a directory light searches for files referenced by relative paths.
+     * @param bindPath directory.
+     */
+    public void addBindPath(FilePath bindPath) {
+        bindPaths.add(bindPath);
+        changed();
+    }
+    
+    /**
+     * Adds a named bind path referenced in sources by <i>!(bindpath.name)</i>.
+     * @param name name of bind path.
+     * @param bindPath directory.
+     */
+    public void addBindPath(String name, FilePath bindPath) {
+        namedBindPaths.put(name, bindPath);
+        changed();
+    }
+    
+    List<FilePath> getBindPaths() {
+        return bindPaths;
+    }
+    
+    Map<String, FilePath> getNamedBindPaths() {
+        return namedBindPaths;
+    }
+    
+    /**
+     * Returns every option influencing the linked output except the object
+     * files and the output file.
+     * @return options in a stable order.
+     */
+    String getOptionsFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(exec.getPath());
+        List<String> sortedExtensions = new ArrayList<String>(extensions);
+        Collections.sort(sortedExtensions);
+        for (String extension : sortedExtensions) {
+            sb.append("|-ext ").append(extension);
+        }
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(parameters).entrySet()) {
+            sb.append("|-d").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        for (FilePath path : bindPaths) {
+            sb.append("|-b ").append(path.getRemote());
+        }
+        for (Map.Entry<String, FilePath> path : namedBindPaths.entrySet()) {
+            sb.append("|-b ").append(path.getKey()).append('=').append(path.getValue().getRemote());
+        }
+        sb.append(verbose ? "|-v" : "").append(wxall ? "|-wxall" : "");
+        return sb.toString();
+    }
 
     /**
      * Creates the command so it can be executed.
@@ -74,6 +159,13 @@ class Light extends WixCommand {
 	    	args.add(nologo ? "-nologo" : null);
 	    	args.add(verbose ? "-v" : null);
 	        args.add(wxall ? "-wxall" : null);
+	        // bind paths
+	        for (FilePath bindPath : bindPaths) {
+	            args.add("-b").add(bindPath.getRemote());
+	        }
+	        for (Map.Entry<String, FilePath> bindPath : namedBindPaths.entrySet()) {
+	            args.add("-b").add(bindPath.getKey() + "=" + bindPath.getValue().getRemote());
+	        }
 	        // output file
 	        args.add("-out").add(outputFile.getRemote());
 	        // append sources
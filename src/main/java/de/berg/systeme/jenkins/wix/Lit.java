@@ -0,0 +1,101 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * command definition for Wix Toolset Librarian (lit.exe)
+ * @author Bjoern.Berg
+ */
+class Lit extends WixCommand {
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Lit(ToolsetSettings settings, EnvVars envVars) {
+        this(null, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Lit(Launcher launcher, ToolsetSettings settings, EnvVars envVars) {
+        super(launcher, Wix.LIBRARIAN, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Lit(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.LIBRARIAN, settings, invocation);
+    }
+    
+    /**
+     * Creates a librarian with the configuration of another librarian but without
+     * source files and output file.
+     * @param other librarian to copy.
+     */
+    Lit(Lit other) {
+        super(other);
+    }
+
+    /**
+     * Creates the command so it can be executed.
+     * @throws ToolsetException 
+     */
+    @Override
+    protected ArgumentListBuilder createCommand() throws ToolsetException {
+        // the lit.exe command on command line looks like:
+        // lit.exe [-?] [-b bindPath] [-nologo] [-out libraryFile] objectFile [objectFile ...]
+        // lit does not know preprocessor variables, so parameters are not passed
+    	
+    	args = new ArgumentListBuilder();
+    	try {
+	    	args.add(exec.getPath());	// lit.exe
+	    	// append extensions
+	    	for (String extension : extensions) {
+	            args.add("-ext").add(extension);
+	        }
+	    	args.add(nologo ? "-nologo" : null);
+	    	args.add(verbose ? "-v" : null);
+	        args.add(wxall ? "-wxall" : null);
+	        // output file
+	        args.add("-out").add(outputFile.getRemote());
+	        // append object files
+	        for (FilePath source : sourceFiles) {
+	            args.add(source.getRemote());
+	        }
+	    } catch (NullPointerException npe) {
+			throw new ToolsetException("Missing parameters to build statement.");
+		}
+        
+        return args;
+    }
+}
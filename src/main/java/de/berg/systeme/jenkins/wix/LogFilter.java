@@ -0,0 +1,246 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import hudson.Launcher;
+import hudson.remoting.Callable;
+import hudson.util.StreamTaskListener;
+
+/**
+ * Output stream of a WiX process on the node running it. The complete output
+ * is written to a compressed side log, only errors, warnings and a periodic
+ * progress line are passed to the build log. Verbose processes therefore do
+ * not send every line through the remoting channel.
+ * @author Bjoern.Berg
+ */
+public class LogFilter extends OutputStream {
+    /** extension of side logs. */
+    public static final String EXTENSION = ".log.gz";
+    // errors and warnings of candle, light and the other WiX tools, e.g. "error CNDL0104"
+    private static final Pattern ERROR = Pattern.compile("(?i:\\berror) [A-Z]{4}\\d{1,4}\\b");
+    private static final Pattern WARNING = Pattern.compile("(?i:\\bwarning) [A-Z]{4}\\d{1,4}\\b");
+    // interval of progress lines
+    static final long PROGRESS_INTERVAL = 30000;
+    
+    private final OutputStream raw;
+    private final OutputStream console;
+    private final String name;
+    private final long interval;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private final Summary summary = new Summary();
+    private long lastProgress;
+    
+    /**
+     * constructor.
+     * @param raw receives the complete output.
+     * @param console receives errors, warnings and progress.
+     * @param name name of the process, e.g. candle.exe.
+     * @param interval interval of progress lines in milliseconds.
+     */
+    public LogFilter(OutputStream raw, OutputStream console, String name, long interval) {
+        this.raw = raw;
+        this.console = console;
+        this.name = name;
+        this.interval = interval;
+        this.lastProgress = System.currentTimeMillis();
+    }
+    
+    @Override
+    public synchronized void write(int b) throws IOException {
+        raw.write(b);
+        summary.bytes++;
+        if (b == '\n') {
+            line();
+        } else {
+            line.write(b);
+        }
+    }
+    
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        raw.write(b, off, len);
+        summary.bytes += len;
+        int start = off;
+        for (int i = off; i < off + len; i++) {
+            if (b[i] == '\n') {
+                line.write(b, start, i - start);
+                line();
+                start = i + 1;
+            }
+        }
+        line.write(b, start, off + len - start);
+    }
+    
+    private void line() throws IOException {
+        byte[] bytes = line.toByteArray();
+        line.reset();
+        summary.lines++;
+        String text = new String(bytes).trim();
+        boolean forward = false;
+        if (ERROR.matcher(text).find()) {
+            summary.errors++;
+            forward = true;
+        } else if (WARNING.matcher(text).find()) {
+            summary.warnings++;
+            forward = true;
+        }
+        if (forward) {
+            console.write(bytes);
+            console.write('\n');
+            console.flush();
+        } else if (System.currentTimeMillis() - lastProgress >= interval) {
+            lastProgress = System.currentTimeMillis();
+            console.write(String.format("[wix] %s: %d lines of output so far (%d warnings, %d errors)%n", 
+                    name, summary.lines, summary.warnings, summary.errors).getBytes());
+            console.flush();
+        }
+    }
+    
+    @Override
+    public synchronized void flush() throws IOException {
+        raw.flush();
+        console.flush();
+    }
+    
+    /**
+     * Passes a last incomplete line and closes the side log. The build log
+     * stays open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (line.size() > 0) {
+            line();
+        }
+        raw.close();
+        console.flush();
+    }
+    
+    public synchronized Summary getSummary() {
+        return summary;
+    }
+    
+    /**
+     * Counts of a filtered output.
+     */
+    public static final class Summary implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private long bytes;
+        private int lines;
+        private int warnings;
+        private int errors;
+        private int exitCode;
+        private String log;
+        
+        /** @return size of the complete output in bytes. */
+        public long getBytes() {
+            return bytes;
+        }
+        
+        public int getLines() {
+            return lines;
+        }
+        
+        public int getWarnings() {
+            return warnings;
+        }
+        
+        public int getErrors() {
+            return errors;
+        }
+        
+        public int getExitCode() {
+            return exitCode;
+        }
+        
+        /** @return absolute path of the side log on the node. */
+        public String getLog() {
+            return log;
+        }
+    }
+    
+    /**
+     * Launches a process on the node the callable is sent to and filters its
+     * output there. Cancelling the call kills the process.
+     */
+    static final class Launch implements Callable<Summary, IOException> {
+        private static final long serialVersionUID = 1L;
+        private final String[] cmds;
+        private final Map<String, String> envs;
+        private final String pwd;
+        private final String logDir;
+        private final String name;
+        private final OutputStream console;
+        
+        /**
+         * constructor.
+         * @param cmds command line.
+         * @param envs environment of the process.
+         * @param pwd working directory or null.
+         * @param logDir directory of the side log on the node.
+         * @param name name of the process, e.g. candle.exe.
+         * @param console build log, must be a remote stream if sent to another node.
+         */
+        Launch(String[] cmds, Map<String, String> envs, String pwd, String logDir, String name, OutputStream console) {
+            this.cmds = cmds;
+            this.envs = new HashMap<String, String>(envs);
+            this.pwd = pwd;
+            this.logDir = logDir;
+            this.name = name;
+            this.console = console;
+        }
+        
+        public Summary call() throws IOException {
+            File dir = new File(logDir);
+            dir.mkdirs();
+            File log = File.createTempFile(name + "-", EXTENSION, dir);
+            LogFilter filter = new LogFilter(new GZIPOutputStream(new FileOutputStream(log)), console, name, PROGRESS_INTERVAL);
+            int exitCode;
+            try {
+                Launcher.ProcStarter starter = new Launcher.LocalLauncher(new StreamTaskListener(console)).launch()
+                        .cmds(cmds).envs(envs).stdout(filter).stderr(filter);
+                if (pwd != null) {
+                    starter.pwd(new File(pwd));
+                }
+                // joining a local process kills it if the call is cancelled
+                exitCode = starter.join();
+            } catch (InterruptedException e) {
+                throw (IOException) new InterruptedIOException(name + " was cancelled").initCause(e);
+            } finally {
+                filter.close();
+            }
+            Summary summary = filter.getSummary();
+            summary.exitCode = exitCode;
+            summary.log = log.getAbsolutePath();
+            return summary;
+        }
+    }
+}
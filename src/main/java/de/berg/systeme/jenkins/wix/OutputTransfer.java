@@ -0,0 +1,272 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import hudson.FilePath;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Transfers the outputs of a build step from the node of the workspace to the
+ * controller as one compressed stream instead of one remote call per file.
+ * The outputs are hashed on the node while they are written, the returned
+ * manifest is used to verify the files unpacked on the controller.
+ * <p>Files of which the receiver has a previous version are sent as delta by
+ * {@link DeltaTransfer}, all other files are copied in full.</p>
+ * @author Bjoern.Berg
+ */
+public class OutputTransfer implements FilePath.FileCallable<Map<String, OutputTransfer.Entry>> {
+    private static final long serialVersionUID = 1L;
+    /** name of manifest written next to the transferred outputs. */
+    public static final String MANIFEST = "wix-outputs.sha256";
+    // paths relative to the workspace
+    private final List<String> paths;
+    // receives the compressed stream
+    private final OutputStream out;
+    // hashes of the chunks of the previous versions on the receiver by relative path
+    private final Map<String, Set<String>> previous;
+    
+    /**
+     * size and hash of a transferred file.
+     */
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final long size;
+        private final String sha256;
+        // bytes of the file in the stream
+        private final long sent;
+        // true if the file was sent as delta to its previous version
+        private final boolean delta;
+        
+        public Entry(long size, String sha256) {
+            this(size, sha256, size, false);
+        }
+        
+        public Entry(long size, String sha256, long sent, boolean delta) {
+            this.size = size;
+            this.sha256 = sha256;
+            this.sent = sent;
+            this.delta = delta;
+        }
+        
+        public long getSize() {
+            return size;
+        }
+        
+        public String getSha256() {
+            return sha256;
+        }
+        
+        public long getSent() {
+            return sent;
+        }
+        
+        public boolean isDelta() {
+            return delta;
+        }
+    }
+    
+    /**
+     * constructor.
+     * @param paths outputs relative to the workspace.
+     * @param out stream on the controller receiving the compressed outputs.
+     */
+    public OutputTransfer(List<String> paths, OutputStream out) {
+        this(paths, out, Collections.<String, Set<String>>emptyMap());
+    }
+    
+    /**
+     * constructor.
+     * @param paths outputs relative to the workspace.
+     * @param out stream on the controller receiving the compressed outputs.
+     * @param previous hashes of the chunks of the previous versions on the 
+     * receiver, see {@link DeltaTransfer.Signatures}.
+     */
+    public OutputTransfer(List<String> paths, OutputStream out, Map<String, Set<String>> previous) {
+        this.paths = new ArrayList<String>(paths);
+        this.out = new RemoteOutputStream(out);
+        this.previous = new TreeMap<String, Set<String>>(previous);
+    }
+
+    /**
+     * Writes all outputs into one zip stream.
+     * @return manifest by relative path.
+     */
+    public Map<String, Entry> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, Entry> manifest = new TreeMap<String, Entry>();
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            for (String path : paths) {
+                File file = new File(workspace, path);
+                if (!file.isFile()) {
+                    continue;
+                }
+                zip.putNextEntry(new ZipEntry(path));
+                Set<String> chunks = previous.get(path);
+                if (chunks != null && !chunks.isEmpty()) {
+                    manifest.put(path, DeltaTransfer.encode(file, chunks, zip));
+                    zip.closeEntry();
+                    continue;
+                }
+                MessageDigest md = Fingerprints.newDigest();
+                InputStream in = new FileInputStream(file);
+                long size = 0;
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        md.update(buffer, 0, n);
+                        zip.write(buffer, 0, n);
+                        size += n;
+                    }
+                } finally {
+                    in.close();
+                }
+                zip.closeEntry();
+                manifest.put(path, new Entry(size, Fingerprints.toHex(md.digest())));
+            }
+        } finally {
+            zip.close();
+        }
+        return manifest;
+    }
+    
+    /**
+     * Unpacks the transferred outputs and verifies them against the manifest.
+     * @param in compressed stream.
+     * @param dir target directory.
+     * @param manifest manifest returned by the node.
+     * @return problems, empty if every file of the manifest was received intact.
+     * @throws IOException
+     */
+    public static List<String> unpack(InputStream in, File dir, Map<String, Entry> manifest) throws IOException {
+        return unpack(in, dir, manifest, null);
+    }
+    
+    /**
+     * Unpacks the transferred outputs and verifies them against the manifest.
+     * Files sent as delta are restored from their previous version.
+     * @param in compressed stream.
+     * @param dir target directory.
+     * @param manifest manifest returned by the node.
+     * @param previous directory with the previous versions, null for dir itself.
+     * @return problems, empty if every file of the manifest was received intact.
+     * @throws IOException
+     */
+    public static List<String> unpack(InputStream in, File dir, Map<String, Entry> manifest, File previous) 
+            throws IOException {
+        List<String> problems = new ArrayList<String>();
+        Map<String, Entry> missing = new TreeMap<String, Entry>(manifest);
+        ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, 64 * 1024));
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                Entry expected = missing.remove(entry.getName());
+                File file = new File(dir, entry.getName());
+                if (expected == null || !file.getCanonicalPath().startsWith(dir.getCanonicalPath() + File.separator)) {
+                    problems.add(entry.getName() + ": not in manifest");
+                    continue;
+                }
+                file.getParentFile().mkdirs();
+                MessageDigest md = Fingerprints.newDigest();
+                // a delta is restored next to the file, the previous version may be the file itself
+                File restored = expected.isDelta() ? new File(file.getPath() + ".delta") : file;
+                OutputStream os = new FileOutputStream(restored);
+                long size = 0;
+                String failure = null;
+                try {
+                    if (expected.isDelta()) {
+                        try {
+                            size = DeltaTransfer.decode(zip, new File((previous != null) ? previous : dir, 
+                                    entry.getName()), os, md);
+                        } catch (IOException e) {
+                            failure = e.getMessage();
+                        }
+                    } else {
+                        int n;
+                        while ((n = zip.read(buffer)) > 0) {
+                            md.update(buffer, 0, n);
+                            os.write(buffer, 0, n);
+                            size += n;
+                        }
+                    }
+                } finally {
+                    os.close();
+                }
+                if (restored != file && (failure != null || !replace(restored, file))) {
+                    restored.delete();
+                    problems.add(entry.getName() + ": " + ((failure != null) ? failure : "cannot replace previous version"));
+                    continue;
+                }
+                if (size != expected.getSize() || !Fingerprints.toHex(md.digest()).equals(expected.getSha256())) {
+                    problems.add(entry.getName() + ": size or hash differs");
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        for (String path : missing.keySet()) {
+            problems.add(path + ": missing");
+        }
+        return problems;
+    }
+    
+    private static boolean replace(File from, File to) {
+        return (!to.exists() || to.delete()) && from.renameTo(to);
+    }
+    
+    /**
+     * Formats the manifest like the output of sha256sum with the size as
+     * additional column.
+     * @param manifest manifest by relative path.
+     * @return one line per file.
+     */
+    public static String format(Map<String, Entry> manifest) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : manifest.entrySet()) {
+            sb.append(entry.getValue().getSha256()).append("  ")
+              .append(entry.getValue().getSize()).append("  ")
+              .append(entry.getKey()).append('\n');
+        }
+        return sb.toString();
+    }
+}
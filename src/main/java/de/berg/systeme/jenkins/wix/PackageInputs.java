@@ -0,0 +1,315 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Input fingerprint sets of chained packages. The set of a package has one
+ * entry per input: the content hash of every source and include file, size
+ * and modification time of every payload file and the options of candle and
+ * light. The sets are recorded in the root directory of a build, so the next
+ * build skips packages whose inputs have not changed since the last
+ * successful build.
+ * <p>The record has one line per entry with the format
+ * <i>package TAB entry TAB fingerprint</i>. The entry <i>output</i> holds the
+ * hash of the linked package.</p>
+ * @author Bjoern.Berg
+ */
+final class PackageInputs {
+    /** name of the record inside the build directory. */
+    static final String FILENAME = "wix-packages.txt";
+    /** entry holding the hash of the linked package. */
+    static final String OUTPUT = "output";
+    
+    private PackageInputs() {
+    }
+    
+    /**
+     * Computes the key of a package in the package cache.
+     * @param inputs input fingerprint set of the package.
+     * @return key of package.
+     */
+    static String key(Map<String, String> inputs) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(inputs).entrySet()) {
+            if (!OUTPUT.equals(entry.getKey())) {
+                sb.append(entry.getKey()).append('=').append(entry.getValue()).append('|');
+            }
+        }
+        return Fingerprints.of(sb.toString());
+    }
+    
+    /**
+     * Compares the inputs of a package with the inputs recorded by a
+     * previous build.
+     * @param previous recorded inputs.
+     * @param current inputs of this build.
+     * @return every changed entry followed by <i>(added)</i>, <i>(removed)</i>
+     *         or <i>(changed)</i>, empty if the inputs are unchanged.
+     */
+    static List<String> changes(Map<String, String> previous, Map<String, String> current) {
+        Set<String> entries = new TreeSet<String>(previous.keySet());
+        entries.addAll(current.keySet());
+        entries.remove(OUTPUT);
+        List<String> changes = new ArrayList<String>();
+        for (String entry : entries) {
+            String before = previous.get(entry);
+            String after = current.get(entry);
+            if (before == null) {
+                changes.add(entry + " (added)");
+            } else if (after == null) {
+                changes.add(entry + " (removed)");
+            } else if (!before.equals(after)) {
+                changes.add(entry + " (changed)");
+            }
+        }
+        return changes;
+    }
+    
+    /**
+     * Shortens a list of changes for the build log.
+     * @param changes changes of a package.
+     * @param limit number of changes listed.
+     * @return listed changes and the number of changes not listed.
+     */
+    static String summarize(List<String> changes, int limit) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < changes.size() && i < limit; i++) {
+            sb.append((i > 0) ? ", " : "").append(changes.get(i));
+        }
+        if (changes.size() > limit) {
+            sb.append(" +").append(changes.size() - limit);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Formats the input fingerprint sets of packages as record.
+     * @param packages sets by path of package.
+     * @return record.
+     */
+    static String format(Map<String, Map<String, String>> packages) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Map<String, String>> pkg : new TreeMap<String, Map<String, String>>(packages).entrySet()) {
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(pkg.getValue()).entrySet()) {
+                sb.append(pkg.getKey()).append('\t').append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Parses a record. Malformed lines are ignored.
+     * @param text record.
+     * @return sets by path of package.
+     */
+    static Map<String, Map<String, String>> parse(String text) {
+        Map<String, Map<String, String>> packages = new TreeMap<String, Map<String, String>>();
+        for (String line : text.split("\\r?\\n")) {
+            String[] fields = line.split("\t");
+            if (fields.length != 3) {
+                continue;
+            }
+            Map<String, String> inputs = packages.get(fields[0]);
+            if (inputs == null) {
+                inputs = new TreeMap<String, String>();
+                packages.put(fields[0], inputs);
+            }
+            inputs.put(fields[1], fields[2]);
+        }
+        return packages;
+    }
+    
+    /**
+     * Reads the record of a build.
+     * @param file record.
+     * @return sets by path of package, empty if the build has no record.
+     * @throws IOException
+     */
+    static Map<String, Map<String, String>> load(File file) throws IOException {
+        if (!file.isFile()) {
+            return new TreeMap<String, Map<String, String>>();
+        }
+        return parse(new String(SourceDigest.read(file), "UTF-8"));
+    }
+    
+    /**
+     * Adds input fingerprint sets to the record of a build. Sets of
+     * packages recorded by another build step are kept.
+     * @param file record.
+     * @param packages sets by path of package.
+     * @throws IOException
+     */
+    static void save(File file, Map<String, Map<String, String>> packages) throws IOException {
+        Map<String, Map<String, String>> all = load(file);
+        all.putAll(packages);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(format(all).getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Returns the path of a file relative to the workspace with forward
+     * slashes, files outside of the workspace keep their absolute path.
+     */
+    static String name(File file, File workspace) {
+        String path = file.getAbsolutePath();
+        String root = workspace.getAbsolutePath() + File.separator;
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+        }
+        return path.replace('\\', '/');
+    }
+    
+    /**
+     * Computes the hash of a file.
+     * @param file file to hash.
+     * @return hexadecimal hash or null if the file does not exist.
+     * @throws IOException
+     */
+    static String hash(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MessageDigest md = Fingerprints.newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            Fingerprints.update(md, in);
+        } finally {
+            in.close();
+        }
+        return Fingerprints.toHex(md.digest());
+    }
+    
+    /**
+     * Collects the input fingerprint set of a package on the node of the
+     * workspace. Payload referenced through variables unknown before linking
+     * is not part of the set.
+     */
+    static final class Scan implements FilePath.FileCallable<TreeMap<String, String>> {
+        private static final long serialVersionUID = 1L;
+        // absolute paths of sources
+        private final List<String> sources = new ArrayList<String>();
+        // resolves include files
+        private final SourceDigest includes;
+        // resolves payload
+        private final PayloadCheck payload;
+        
+        /**
+         * constructor.
+         * @param sources sources of the package.
+         * @param includes digest of the sources, used to resolve include files.
+         * @param payload check of the sources, used to resolve payload.
+         */
+        Scan(List<FilePath> sources, SourceDigest includes, PayloadCheck payload) {
+            for (FilePath source : sources) {
+                this.sources.add(source.getRemote());
+            }
+            this.includes = includes;
+            this.payload = payload;
+        }
+        
+        public TreeMap<String, String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            TreeMap<String, String> inputs = new TreeMap<String, String>();
+            Set<String> visited = new HashSet<String>();
+            for (String source : sources) {
+                scan(new File(source), "source:", workspace, inputs, visited);
+            }
+            for (String path : payload.invoke(workspace, channel).getPayload()) {
+                File file = new File(path);
+                // payload is often large, it is fingerprinted by size and time like by a file system watcher
+                inputs.put("payload:" + name(file, workspace), file.length() + "," + file.lastModified());
+            }
+            return inputs;
+        }
+        
+        private void scan(File file, String kind, File workspace, Map<String, String> inputs, Set<String> visited) 
+                throws IOException {
+            if (!visited.add(file.getCanonicalPath())) {
+                return;
+            }
+            byte[] content = SourceDigest.read(file);
+            MessageDigest md = Fingerprints.newDigest();
+            md.update(content);
+            inputs.put(kind + name(file, workspace), Fingerprints.toHex(md.digest()));
+            Matcher m = SourceDigest.INCLUDE.matcher(new String(content, "ISO-8859-1"));
+            while (m.find()) {
+                File include = includes.resolve(file.getParentFile(), m.group(1).trim());
+                if (include != null) {
+                    scan(include, "include:", workspace, inputs, visited);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Computes the hashes of files on their node.
+     */
+    static final class Hash implements FilePath.FileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+        // absolute paths of files
+        private final List<String> paths = new ArrayList<String>();
+        
+        /**
+         * constructor.
+         * @param files files to hash.
+         */
+        Hash(List<FilePath> files) {
+            for (FilePath file : files) {
+                paths.add(file.getRemote());
+            }
+        }
+        
+        /**
+         * @return hash of every existing file by its absolute path.
+         */
+        public Map<String, String> invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Map<String, String> hashes = new TreeMap<String, String>();
+            for (String path : paths) {
+                String hash = hash(new File(path));
+                if (hash != null) {
+                    hashes.put(path, hash);
+                }
+            }
+            return hashes;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Node local store of large payloads, e.g. runtime redistributables embedded
+ * into bundles. Payloads are configured one per line as <i>path=sha256</i>,
+ * the path relative to the workspace. Every entry is a file named by the
+ * SHA-256 of its content. Missing entries are fetched from a source, either a
+ * directory or a URL, which is asked for <i>source/sha256</i> first and for
+ * <i>source/filename</i> second. Fetched content is verified against its hash
+ * before it is added.
+ * <p>Payloads are copied into the workspace, never linked, so a build
+ * modifying a payload in place cannot change the cache. The content is
+ * verified against its hash while it is copied; an entry which does not match
+ * any more is discarded and fetched again. The time of last use is kept in a
+ * separate stamp file.</p>
+ * <p>The least recently used entries are evicted when the cache exceeds its
+ * quota; entries used by the running request are never evicted.</p>
+ * @author Bjoern.Berg
+ */
+public class PayloadCache {
+    /** name of the cache directory below {@link ArtifactCache#DIRNAME}. */
+    public static final String DIRNAME = "payloads";
+    /** default quota in megabytes. */
+    public static final int DEFAULT_QUOTA = 4096;
+    // stamp file telling when an entry was used the last time
+    private static final String STAMP = ".used";
+    private static final Pattern SHA256 = Pattern.compile("[0-9a-f]{64}");
+    // timeouts of HTTP sources in milliseconds
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int READ_TIMEOUT = 300000;
+    // serializes lookups, links and eviction of all builds on a node
+    private static final Object LOCK = new Object();
+    
+    // directory of cache entries
+    private final FilePath dir;
+    // quota in bytes
+    private final long quota;
+    
+    /**
+     * constructor.
+     * @param dir directory of the cache on the node.
+     * @param quota maximum size of all entries in bytes.
+     */
+    public PayloadCache(FilePath dir, long quota) {
+        this.dir = dir;
+        this.quota = quota;
+    }
+    
+    public FilePath getDir() {
+        return dir;
+    }
+    
+    /**
+     * Parses the payloads of a build step. Blank lines and lines starting
+     * with # are ignored.
+     * @param text one payload per line.
+     * @return SHA-256 by path relative to the workspace, in order of the lines.
+     * @throws ToolsetException if a line is not of the form path=sha256.
+     */
+    public static Map<String, String> parse(String text) throws ToolsetException {
+        Map<String, String> payloads = new LinkedHashMap<String, String>();
+        if (text == null) {
+            return payloads;
+        }
+        for (String line : text.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.lastIndexOf('=');
+            String hash = (eq > 0) ? line.substring(eq + 1).trim().toLowerCase(Locale.ENGLISH) : "";
+            if (!SHA256.matcher(hash).matches()) {
+                throw new ToolsetException(MessageFormat.format(
+                        ResourceBundle.getBundle("Messages").getString("PAYLOAD_INVALID"), line));
+            }
+            payloads.put(line.substring(0, eq).trim(), hash);
+        }
+        return payloads;
+    }
+    
+    /**
+     * Provides payloads in the workspace, fetching those not cached yet.
+     * @param payloads SHA-256 by path relative to the workspace.
+     * @param source directory or URL on the node to fetch missing payloads from,
+     *        null if payloads are only taken from the cache.
+     * @param workspace workspace of the build.
+     * @return hits, misses and evictions.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Result provide(Map<String, String> payloads, String source, FilePath workspace) 
+            throws IOException, InterruptedException {
+        return dir.act(new Provide(payloads, source, workspace.getRemote(), quota));
+    }
+    
+    /**
+     * Copies an entry and verifies its content while it is copied.
+     * @param in content of the entry.
+     * @param target file to create.
+     * @param hash expected SHA-256 of the content.
+     * @return true if the content matches, otherwise the target is removed.
+     * @throws IOException
+     */
+    static boolean copy(InputStream in, File target, String hash) throws IOException {
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory " + parent);
+        }
+        // a payload hard linked by an older version must not be overwritten in place
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        MessageDigest md = Fingerprints.newDigest();
+        OutputStream out = new FileOutputStream(target);
+        try {
+            byte[] buffer = new byte[65536];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                md.update(buffer, 0, len);
+                out.write(buffer, 0, len);
+            }
+        } finally {
+            out.close();
+        }
+        if (hash.equals(Fingerprints.toHex(md.digest()))) {
+            return true;
+        }
+        target.delete();
+        return false;
+    }
+    
+    /**
+     * Looks up and fetches payloads on the node.
+     */
+    private static final class Provide implements FilePath.FileCallable<Result> {
+        private static final long serialVersionUID = 1L;
+        private final Map<String, String> payloads;
+        private final String source;
+        private final String workspace;
+        private final long quota;
+        
+        Provide(Map<String, String> payloads, String source, String workspace, long quota) {
+            this.payloads = new LinkedHashMap<String, String>(payloads);
+            this.source = source;
+            this.workspace = workspace;
+            this.quota = quota;
+        }
+        
+        public Result invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            Result result = new Result();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create directory " + dir);
+            }
+            Set<String> used = new HashSet<String>(payloads.values());
+            for (Map.Entry<String, String> payload : payloads.entrySet()) {
+                String hash = payload.getValue();
+                File target = new File(workspace, payload.getKey().replace('\\', '/').replace('/', File.separatorChar));
+                File entry = new File(dir, hash);
+                if (!provide(entry, target, hash, result)) {
+                    if (source == null || source.length() == 0) {
+                        result.failures.add(payload.getKey() + ": not cached and no source configured");
+                        continue;
+                    }
+                    String problem = fetch(hash, target.getName(), entry, result);
+                    if (problem != null) {
+                        result.failures.add(payload.getKey() + ": " + problem);
+                        continue;
+                    }
+                    result.misses++;
+                    if (!provide(entry, target, hash, result)) {
+                        result.failures.add(payload.getKey() + ": evicted while it was fetched");
+                        result.misses--;
+                        continue;
+                    }
+                } else {
+                    result.hits++;
+                }
+            }
+            evict(dir, used, result);
+            return result;
+        }
+        
+        /**
+         * Copies an entry into the workspace and marks it as used. The entry
+         * is opened under the lock, so eviction cannot remove it before it
+         * is opened, and copied outside of it.
+         * @return false if the entry does not exist or has been discarded.
+         */
+        private boolean provide(File entry, File target, String hash, Result result) throws IOException {
+            InputStream in;
+            synchronized (LOCK) {
+                if (!entry.isFile()) {
+                    return false;
+                }
+                in = new FileInputStream(entry);
+                File stamp = new File(entry.getPath() + STAMP);
+                if (!stamp.setLastModified(System.currentTimeMillis())) {
+                    new FileOutputStream(stamp).close();
+                }
+            }
+            boolean intact;
+            try {
+                intact = copy(in, target, hash);
+            } finally {
+                in.close();
+            }
+            if (!intact) {
+                synchronized (LOCK) {
+                    entry.delete();
+                    new File(entry.getPath() + STAMP).delete();
+                    result.discarded++;
+                }
+            }
+            return intact;
+        }
+        
+        /**
+         * Fetches content from the source into the cache and verifies its hash.
+         * @return problem or null if the entry has been added.
+         */
+        private String fetch(String hash, String name, File entry, Result result) throws IOException {
+            File tmp = new File(entry.getPath() + ".tmp" + Thread.currentThread().getId());
+            String problem = "not found in " + source;
+            for (String candidate : Arrays.asList(hash, name)) {
+                InputStream in = open(candidate);
+                if (in == null) {
+                    continue;
+                }
+                MessageDigest md = Fingerprints.newDigest();
+                long size = 0;
+                try {
+                    OutputStream out = new FileOutputStream(tmp);
+                    try {
+                        byte[] buffer = new byte[65536];
+                        int len;
+                        while ((len = in.read(buffer)) > 0) {
+                            md.update(buffer, 0, len);
+                            out.write(buffer, 0, len);
+                            size += len;
+                        }
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                String actual = Fingerprints.toHex(md.digest());
+                if (!hash.equals(actual)) {
+                    tmp.delete();
+                    problem = candidate + " in " + source + " has SHA-256 " + actual;
+                    continue;
+                }
+                result.fetchedBytes += size;
+                if (!tmp.renameTo(entry)) {
+                    // another build added the same entry in the meantime
+                    tmp.delete();
+                }
+                return null;
+            }
+            return problem;
+        }
+        
+        /**
+         * Opens a file of the source.
+         * @return stream or null if the source has no such file.
+         */
+        private InputStream open(String name) throws IOException {
+            if (!source.contains("://")) {
+                File file = new File(source, name);
+                return file.isFile() ? new FileInputStream(file) : null;
+            }
+            URLConnection connection = new URL(source.endsWith("/") ? source + name : source + "/" + name).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT);
+            connection.setReadTimeout(READ_TIMEOUT);
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    http.disconnect();
+                    return null;
+                }
+            }
+            try {
+                return connection.getInputStream();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+        
+        /**
+         * Removes the least recently used entries until the cache fits its quota.
+         */
+        private void evict(File dir, Set<String> used, Result result) {
+            synchronized (LOCK) {
+                File[] files = dir.listFiles();
+                if (files == null) {
+                    return;
+                }
+                List<File> entries = new ArrayList<File>();
+                long size = 0;
+                for (File file : files) {
+                    if (SHA256.matcher(file.getName()).matches()) {
+                        entries.add(file);
+                        size += file.length();
+                    }
+                }
+                result.cacheBytes = size;
+                if (size <= quota) {
+                    return;
+                }
+                final Map<File, Long> lastUse = new HashMap<File, Long>();
+                for (File entry : entries) {
+                    lastUse.put(entry, new File(entry.getPath() + STAMP).lastModified());
+                }
+                Collections.sort(entries, new Comparator<File>() {
+                    public int compare(File a, File b) {
+                        return lastUse.get(a).compareTo(lastUse.get(b));
+                    }
+                });
+                for (File entry : entries) {
+                    if (size <= quota) {
+                        break;
+                    }
+                    if (used.contains(entry.getName())) {
+                        continue;
+                    }
+                    long length = entry.length();
+                    if (entry.delete()) {
+                        new File(entry.getPath() + STAMP).delete();
+                        size -= length;
+                        result.evicted++;
+                        result.evictedBytes += length;
+                    }
+                }
+                result.cacheBytes = size;
+            }
+        }
+    }
+    
+    /**
+     * Result of providing payloads.
+     */
+    public static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private int hits;
+        private int misses;
+        private int discarded;
+        private long fetchedBytes;
+        private int evicted;
+        private long evictedBytes;
+        private long cacheBytes;
+        private final List<String> failures = new ArrayList<String>();
+        
+        /** @return number of payloads found in the cache. */
+        public int getHits() {
+            return hits;
+        }
+        
+        /** @return number of payloads fetched from the source. */
+        public int getMisses() {
+            return misses;
+        }
+        
+        /** @return number of entries discarded because their content did not match their hash. */
+        public int getDiscarded() {
+            return discarded;
+        }
+        
+        /** @return number of bytes fetched from the source. */
+        public long getFetchedBytes() {
+            return fetchedBytes;
+        }
+        
+        /** @return number of entries evicted. */
+        public int getEvicted() {
+            return evicted;
+        }
+        
+        /** @return number of bytes evicted. */
+        public long getEvictedBytes() {
+            return evictedBytes;
+        }
+        
+        /** @return size of all entries after eviction. */
+        public long getCacheBytes() {
+            return cacheBytes;
+        }
+        
+        /** @return payloads which could not be provided as <i>path: problem</i>. */
+        public List<String> getFailures() {
+            return failures;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Checks before light is launched that every payload referenced by the
+ * sources exists. The sources are scanned with a streaming parser for
+ * <i>File/@Source</i> and <i>@SourceFile</i> attributes, preprocessor
+ * variables are replaced by the defines of candle and the references are
+ * resolved like light does: absolute paths directly, <i>!(bindpath.name)</i>
+ * against named bind paths and relative paths against the bind paths in order
+ * and the workspace. The files below every bind path are indexed once in
+ * parallel; the index is kept on the node and reused by later builds while
+ * none of the indexed directories has changed.
+ * @author Bjoern.Berg
+ */
+public class PayloadCheck implements FilePath.FileCallable<PayloadCheck.Result> {
+    private static final long serialVersionUID = 1L;
+    // number of directory indexes kept on a node
+    private static final int MAX_INDEXES = 32;
+    // directory indexes on this node by absolute path of bind path
+    private static final Map<String, DirectoryIndex> INDEXES = new LinkedHashMap<String, DirectoryIndex>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DirectoryIndex> eldest) {
+            return size() > MAX_INDEXES;
+        }
+    };
+    private static final Pattern VARIABLE = Pattern.compile("\\$\\((var|env|sys)\\.([^)]+)\\)");
+    private static final Pattern BINDPATH = Pattern.compile("^!\\(bindpath\\.([^)]+)\\)(.*)$");
+    private static final Pattern DEFINE = Pattern.compile("^\\s*([A-Za-z_][\\w.]*)\\s*=\\s*\"?(.*?)\"?\\s*$");
+    // file names are compared case-insensitive on Windows like light does
+    private static final boolean IGNORE_CASE = File.separatorChar == '\\';
+    
+    // absolute paths of sources
+    private final List<String> sources = new ArrayList<String>();
+    // include directories of candle (-I)
+    private final List<String> includePaths = new ArrayList<String>();
+    // unnamed bind paths in search order
+    private final List<String> bindPaths = new ArrayList<String>();
+    // named bind paths
+    private final Map<String, String> namedBindPaths = new HashMap<String, String>();
+    // defines of candle (-d) used for $(var.name)
+    private final Map<String, String> defines = new HashMap<String, String>();
+    // environment used for $(env.name)
+    private final Map<String, String> environment = new HashMap<String, String>();
+    
+    /**
+     * constructor.
+     * @param sources WiX sources to scan.
+     * @param includePaths include search paths of candle.
+     * @param bindPaths unnamed bind paths of light.
+     * @param namedBindPaths named bind paths of light.
+     * @param defines defines passed to candle.
+     * @param environment environment of the build.
+     */
+    public PayloadCheck(FilePath[] sources, List<FilePath> includePaths, List<FilePath> bindPaths, 
+            Map<String, FilePath> namedBindPaths, Map<String, String> defines, Map<String, String> environment) {
+        for (FilePath source : sources) {
+            this.sources.add(source.getRemote());
+        }
+        for (FilePath path : includePaths) {
+            this.includePaths.add(path.getRemote());
+        }
+        for (FilePath path : bindPaths) {
+            this.bindPaths.add(path.getRemote());
+        }
+        for (Map.Entry<String, FilePath> path : namedBindPaths.entrySet()) {
+            this.namedBindPaths.put(path.getKey(), path.getValue().getRemote());
+        }
+        this.defines.putAll(defines);
+        this.environment.putAll(environment);
+    }
+    
+    /**
+     * Scans all sources and resolves their payload.
+     * @return result with every missing payload.
+     */
+    public Result invoke(final File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        final Result result = new Result();
+        int threads = Math.max(1, Math.min(Math.max(sources.size(), bindPaths.size() + namedBindPaths.size()), 
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // index the bind paths while the sources are scanned
+            Set<String> roots = new HashSet<String>(bindPaths);
+            roots.addAll(namedBindPaths.values());
+            final Map<String, DirectoryIndex> indexes = new HashMap<String, DirectoryIndex>();
+            for (String root : roots) {
+                if (!new File(root).isDirectory()) {
+                    result.missing.add("bind path " + root + " does not exist");
+                }
+                indexes.put(root, index(new File(root), pool, result));
+            }
+            List<Future<List<Reference>>> scans = new ArrayList<Future<List<Reference>>>();
+            for (final String source : sources) {
+                scans.add(pool.submit(new Callable<List<Reference>>() {
+                    public List<Reference> call() throws Exception {
+                        List<Reference> references = new ArrayList<Reference>();
+                        scan(new File(source), new HashMap<String, String>(defines), references, new HashSet<String>());
+                        return references;
+                    }
+                }));
+            }
+            for (Future<List<Reference>> scan : scans) {
+                for (Reference reference : scan.get()) {
+                    result.references++;
+                    String problem = resolve(reference, workspace, indexes, result.payload);
+                    if (problem != null) {
+                        result.missing.add(problem);
+                    }
+                }
+            }
+            return result;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Returns the index of a bind path. A cached index is reused if none of
+     * its directories has been modified, otherwise it is rebuilt.
+     */
+    private static DirectoryIndex index(File root, ExecutorService pool, Result result) 
+            throws InterruptedException, ExecutionException {
+        DirectoryIndex index;
+        synchronized (INDEXES) {
+            index = INDEXES.get(root.getAbsolutePath());
+        }
+        if (index != null && index.isCurrent()) {
+            result.reusedIndexes++;
+            return index;
+        }
+        index = DirectoryIndex.build(root, pool);
+        synchronized (INDEXES) {
+            INDEXES.put(root.getAbsolutePath(), index);
+        }
+        result.indexedDirectories += index.stamps.size();
+        return index;
+    }
+    
+    /**
+     * Streams a source and collects its payload references. Include files are
+     * scanned recursively and preprocessor defines are recorded on the way.
+     */
+    void scan(File file, Map<String, String> vars, List<Reference> references, Set<String> visited) 
+            throws IOException, XMLStreamException {
+        if (!visited.add(file.getCanonicalPath())) {
+            return;
+        }
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        InputStream in = new FileInputStream(file);
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String source = "File".equals(reader.getLocalName()) ? reader.getAttributeValue(null, "Source") : null;
+                    if (source == null) {
+                        source = reader.getAttributeValue(null, "SourceFile");
+                    }
+                    if (source != null) {
+                        references.add(new Reference(file.getPath(), reader.getLocation().getLineNumber(), 
+                                expand(source, vars, file)));
+                    }
+                } else if (event == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                    String data = (reader.getPIData() == null) ? "" : reader.getPIData().trim();
+                    if ("define".equals(reader.getPITarget())) {
+                        Matcher m = DEFINE.matcher(data);
+                        if (m.matches()) {
+                            vars.put(m.group(1), m.group(2));
+                        }
+                    } else if ("include".equals(reader.getPITarget())) {
+                        File include = include(file.getParentFile(), expand(data, vars, file));
+                        if (include != null) {
+                            scan(include, vars, references, visited);
+                        }
+                    }
+                }
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            in.close();
+        }
+    }
+    
+    /**
+     * Replaces preprocessor variables. Unknown variables are left in place.
+     */
+    String expand(String value, Map<String, String> vars, File file) {
+        Matcher m = VARIABLE.matcher(value);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String replacement = null;
+            if ("var".equals(m.group(1))) {
+                replacement = vars.get(m.group(2));
+            } else if ("env".equals(m.group(1))) {
+                replacement = environment.get(m.group(2));
+            } else if ("SOURCEFILEDIR".equals(m.group(2))) {
+                replacement = file.getParentFile().getPath() + File.separator;
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement((replacement == null) ? m.group() : replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+    
+    private File include(File dir, String name) {
+        File candidate = new File(name);
+        if (candidate.isAbsolute()) {
+            return candidate.isFile() ? candidate : null;
+        }
+        candidate = new File(dir, name);
+        if (candidate.isFile()) {
+            return candidate;
+        }
+        for (String path : includePaths) {
+            candidate = new File(path, name);
+            if (candidate.isFile()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Resolves a reference.
+     * @param payload receives the absolute path of a payload that exists.
+     * @return problem or null if the payload exists or cannot be resolved
+     *         before linking.
+     */
+    private String resolve(Reference reference, File workspace, Map<String, DirectoryIndex> indexes, 
+            Set<String> payload) {
+        String path = reference.path;
+        // variables unknown before linking (e.g. !(wix.name) or undefined $(var.name)) are not checked
+        Matcher bind = BINDPATH.matcher(path);
+        if (bind.matches()) {
+            String root = namedBindPaths.get(bind.group(1));
+            if (root == null) {
+                return reference.problem("bind path '" + bind.group(1) + "' is not defined");
+            }
+            if (bind.group(2).contains("$(") || bind.group(2).contains("!(")) {
+                return null;
+            }
+            if (!indexes.get(root).contains(bind.group(2))) {
+                return reference.problem("payload '" + path + "' not found");
+            }
+            payload.add(new File(root, bind.group(2).replace('\\', File.separatorChar)).getAbsolutePath());
+            return null;
+        }
+        if (path.contains("$(") || path.contains("!(")) {
+            return null;
+        }
+        if (path.regionMatches(true, 0, "SourceDir\\", 0, 10)) {
+            path = path.substring(10);
+        }
+        String normalized = path.replace('\\', '/');
+        if (normalized.startsWith("/") || normalized.matches("^[A-Za-z]:/.*")) {
+            if (!new File(path).exists()) {
+                return reference.problem("payload '" + path + "' not found");
+            }
+            payload.add(new File(path).getAbsolutePath());
+            return null;
+        }
+        for (String root : bindPaths) {
+            if (indexes.get(root).contains(path)) {
+                payload.add(new File(root, normalized.replace('/', File.separatorChar)).getAbsolutePath());
+                return null;
+            }
+        }
+        File local = new File(workspace, normalized.replace('/', File.separatorChar));
+        if (!local.exists()) {
+            return reference.problem("payload '" + path + "' not found in bind paths or workspace");
+        }
+        payload.add(local.getAbsolutePath());
+        return null;
+    }
+    
+    /**
+     * Normalizes a relative path to the form stored in the index.
+     */
+    static String key(String path) {
+        String key = path.replace('\\', '/');
+        while (key.startsWith("/")) {
+            key = key.substring(1);
+        }
+        while (key.startsWith("./")) {
+            key = key.substring(2);
+        }
+        return IGNORE_CASE ? key.toLowerCase(Locale.ENGLISH) : key;
+    }
+    
+    /**
+     * A payload reference of a source.
+     */
+    static final class Reference {
+        final String file;
+        final int line;
+        final String path;
+        
+        Reference(String file, int line, String path) {
+            this.file = file;
+            this.line = line;
+            this.path = path;
+        }
+        
+        String problem(String message) {
+            return String.format("%s:%d: %s", file, line, message);
+        }
+    }
+    
+    /**
+     * Relative paths of all files below a directory together with the
+     * modification time of every directory at the time of indexing.
+     */
+    static final class DirectoryIndex {
+        // indexed directory
+        File root;
+        // modification time by absolute path of every indexed directory
+        final Map<String, Long> stamps = new HashMap<String, Long>();
+        // normalized relative paths of files and directories
+        final Set<String> files = new HashSet<String>();
+        
+        /**
+         * Lists the tree level by level, the directories of a level in parallel.
+         */
+        static DirectoryIndex build(File root, ExecutorService pool) throws InterruptedException, ExecutionException {
+            DirectoryIndex index = new DirectoryIndex();
+            index.root = root;
+            List<String> level = Collections.singletonList("");
+            final File base = root;
+            while (!level.isEmpty()) {
+                List<Future<Listing>> listings = new ArrayList<Future<Listing>>();
+                for (final String rel : level) {
+                    listings.add(pool.submit(new Callable<Listing>() {
+                        public Listing call() {
+                            return Listing.of(base, rel);
+                        }
+                    }));
+                }
+                List<String> next = new ArrayList<String>();
+                for (Future<Listing> future : listings) {
+                    Listing listing = future.get();
+                    index.stamps.put(listing.dir.getAbsolutePath(), listing.modified);
+                    index.files.addAll(listing.entries);
+                    next.addAll(listing.directories);
+                }
+                level = next;
+            }
+            return index;
+        }
+        
+        /**
+         * @return true if no indexed directory has been modified or removed.
+         */
+        boolean isCurrent() {
+            for (Map.Entry<String, Long> stamp : stamps.entrySet()) {
+                File dir = new File(stamp.getKey());
+                if (dir.lastModified() != stamp.getValue().longValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        boolean contains(String path) {
+            if (path.contains("..")) {
+                // not normalized by the index, ask the file system
+                return new File(root, path.replace('\\', File.separatorChar)).exists();
+            }
+            return files.contains(key(path));
+        }
+    }
+    
+    /**
+     * Content of a single directory.
+     */
+    private static final class Listing {
+        File dir;
+        long modified;
+        final List<String> entries = new ArrayList<String>();
+        final List<String> directories = new ArrayList<String>();
+        
+        static Listing of(File root, String rel) {
+            Listing listing = new Listing();
+            listing.dir = rel.isEmpty() ? root : new File(root, rel);
+            // stamp before listing, so changes during listing invalidate the index
+            listing.modified = listing.dir.lastModified();
+            File[] children = listing.dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    String path = rel.isEmpty() ? child.getName() : rel + "/" + child.getName();
+                    listing.entries.add(key(path));
+                    if (child.isDirectory()) {
+                        listing.directories.add(path);
+                    }
+                }
+            }
+            return listing;
+        }
+    }
+    
+    /**
+     * Result of the check.
+     */
+    public static final class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final List<String> missing = new ArrayList<String>();
+        private final Set<String> payload = new TreeSet<String>();
+        private int references;
+        private int indexedDirectories;
+        private int reusedIndexes;
+        
+        /** @return problems formatted as <i>file:line: message</i>. */
+        public List<String> getMissing() {
+            return missing;
+        }
+        
+        /** @return absolute paths of every payload found. */
+        public Set<String> getPayload() {
+            return payload;
+        }
+        
+        /** @return number of payload references found. */
+        public int getReferences() {
+            return references;
+        }
+        
+        /** @return number of directories listed to build indexes. */
+        public int getIndexedDirectories() {
+            return indexedDirectories;
+        }
+        
+        /** @return number of bind path indexes reused from previous builds. */
+        public int getReusedIndexes() {
+            return reusedIndexes;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * command definition for Wix Toolset Patch builder (pyro.exe)
+ * @author Bjoern.Berg
+ */
+class Pyro extends WixCommand {
+    // transforms by id of patch baseline (-t)
+    private Map<String, FilePath> transforms = new LinkedHashMap<String, FilePath>();
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Pyro(ToolsetSettings settings, EnvVars envVars) {
+        this(null, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Pyro(Launcher launcher, ToolsetSettings settings, EnvVars envVars) {
+        super(launcher, Wix.PATCH_BUILDER, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Pyro(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.PATCH_BUILDER, settings, invocation);
+    }
+    
+    /**
+     * Creates a patch builder with the configuration of another patch builder but without
+     * source files and output file.
+     * @param other patch builder to copy.
+     */
+    Pyro(Pyro other) {
+        super(other);
+    }
+    
+    /**
+     * Adds the transform of a patch baseline.
+     * @param baselineId id of PatchBaseline in the patch source.
+     * @param transform transform created by torch.
+     */
+    public void addTransform(String baselineId, FilePath transform) {
+        transforms.put(baselineId, transform);
+        changed();
+    }
+
+    /**
+     * Creates the command so it can be executed. The source file is the
+     * patch linked by light.
+     * @throws ToolsetException 
+     */
+    @Override
+    protected ArgumentListBuilder createCommand() throws ToolsetException {
+        // the pyro.exe command on command line looks like:
+        // pyro.exe [-?] [-nologo] inputFile -out outputFile [-t baseline wixTransform]
+        if (transforms.isEmpty()) {
+            throw new ToolsetException("Missing parameters to build statement.");
+        }
+    	args = new ArgumentListBuilder();
+    	try {
+	    	args.add(exec.getPath());	// pyro.exe
+	    	// append extensions
+	    	for (String extension : extensions) {
+	            args.add("-ext").add(extension);
+	        }
+	    	args.add(nologo ? "-nologo" : null);
+	    	args.add(verbose ? "-v" : null);
+	        args.add(wxall ? "-wxall" : null);
+	        // patch
+	        for (FilePath source : sourceFiles) {
+	            args.add(source.getRemote());
+	        }
+	        // output file
+	        args.add("-out").add(outputFile.getRemote());
+	        // transforms
+	        for (Map.Entry<String, FilePath> transform : transforms.entrySet()) {
+	            args.add("-t").add(transform.getKey()).add(transform.getValue().getRemote());
+	        }
+	    } catch (NullPointerException npe) {
+			throw new ToolsetException("Missing parameters to build statement.");
+		}
+        
+        return args;
+    }
+}
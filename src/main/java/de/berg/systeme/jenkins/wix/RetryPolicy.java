@@ -0,0 +1,254 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Retries of tool invocations failing for transient reasons, e.g. a file or
+ * cabinet locked for a moment by a virus scanner or the search indexer.
+ * Failures are classified from the errors reported by the tool: an
+ * invocation is retried only if it reported errors and all of them are
+ * transient. The delay between attempts doubles with every attempt up to
+ * {@link #MAX_DELAY}.
+ * <p>One policy is shared by all commands of a build step and counts their
+ * retries.</p>
+ * @author Bjoern.Berg
+ */
+final class RetryPolicy {
+    /** default number of retries of one invocation. */
+    static final int DEFAULT_ATTEMPTS = 0;
+    /** default delay before the first retry in seconds. */
+    static final int DEFAULT_DELAY = 5;
+    /** maximum delay between two attempts in milliseconds. */
+    static final long MAX_DELAY = 60000;
+    // number of errors kept per attempt
+    private static final int MAX_ERRORS = 20;
+    // longer lines are truncated before they are scanned
+    private static final int MAX_LINE = 4096;
+    // error reported by a tool, e.g. "product.wxs(12) : error LGHT0001 : The process cannot access..."
+    private static final Pattern ERROR = Pattern.compile("(?i:\\berror) ([A-Z]{4}\\d{1,4})\\b\\s*:?\\s*(.*)");
+    // error reported by the signing tool, e.g. "SignTool Error: The process cannot access the file..."
+    private static final Pattern SIGN_ERROR = Pattern.compile("(?i:\\bsigntool error):\\s*(.*)");
+    // errors which are transient whatever their message, e.g. ICE validation not being able to run
+    private static final Set<String> TRANSIENT_CODES = new HashSet<String>(Arrays.asList("LGHT0216", "LGHT0217"));
+    // messages of locked files (Win32 errors 32 and 33), a denied access is permanent and not retried
+    private static final Pattern TRANSIENT_MESSAGE = Pattern.compile("being used by another process|sharing violation" 
+            + "|lock violation|cannot access the file|\\b0x8007002[01]\\b|error code 0x(20|21)\\b", 
+            Pattern.CASE_INSENSITIVE);
+    
+    private final int attempts;
+    private final long delay;
+    private int retries;
+    private int recovered;
+    private final Set<String> retried = new HashSet<String>();
+    
+    /**
+     * constructor.
+     * @param attempts number of retries of one invocation, 0 disables retries.
+     * @param delay delay before the first retry in milliseconds.
+     */
+    RetryPolicy(int attempts, long delay) {
+        this.attempts = Math.max(attempts, 0);
+        this.delay = Math.max(delay, 0);
+    }
+    
+    /**
+     * @return number of retries of one invocation.
+     */
+    int getAttempts() {
+        return attempts;
+    }
+    
+    /**
+     * Returns the delay before a retry.
+     * @param retry number of the retry, starting at 1.
+     * @return delay in milliseconds.
+     */
+    long delay(int retry) {
+        long d = delay;
+        for (int i = 1; i < retry && d < MAX_DELAY; i++) {
+            d *= 2;
+        }
+        return Math.min(d, MAX_DELAY);
+    }
+    
+    /**
+     * Checks if a failed invocation may succeed when it is run again.
+     * @param errors errors reported by the invocation as <i>CODE: message</i>.
+     * @return true if errors were reported and all of them are transient.
+     */
+    static boolean isTransient(List<String> errors) {
+        if (errors.isEmpty()) {
+            // a tool crashing without a diagnostic is not retried
+            return false;
+        }
+        for (String error : errors) {
+            if (!isTransient(error)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Checks if a single error is transient.
+     * @param error error as <i>CODE: message</i>.
+     * @return true if the error is caused by a locked file or similar.
+     */
+    static boolean isTransient(String error) {
+        int colon = error.indexOf(':');
+        String code = (colon > 0) ? error.substring(0, colon) : error;
+        return TRANSIENT_CODES.contains(code) || TRANSIENT_MESSAGE.matcher(error).find();
+    }
+    
+    /**
+     * Counts a retry.
+     * @param invocation tool and output of the retried invocation.
+     */
+    synchronized void retried(String invocation) {
+        retries++;
+        retried.add(invocation);
+    }
+    
+    /**
+     * Counts an invocation which succeeded after it was retried.
+     */
+    synchronized void recovered() {
+        recovered++;
+    }
+    
+    /** @return number of retries of all invocations. */
+    synchronized int getRetries() {
+        return retries;
+    }
+    
+    /** @return number of invocations retried at least once. */
+    synchronized int getRetriedInvocations() {
+        return retried.size();
+    }
+    
+    /** @return number of retried invocations which succeeded. */
+    synchronized int getRecovered() {
+        return recovered;
+    }
+    
+    /**
+     * Passes the output of a tool through and collects the errors it
+     * reports. Closing the collector does not close the target. Output
+     * with more errors than are kept is never transient, the errors not
+     * kept may be permanent.
+     */
+    static final class Collector extends OutputStream {
+        private final OutputStream target;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        private final List<String> errors = new ArrayList<String>();
+        // set if errors were dropped
+        private boolean overflow = false;
+        
+        /**
+         * constructor.
+         * @param target stream receiving the output.
+         */
+        Collector(OutputStream target) {
+            this.target = target;
+        }
+        
+        @Override
+        public synchronized void write(int b) throws IOException {
+            target.write(b);
+            scan(b);
+        }
+        
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            for (int i = off; i < off + len; i++) {
+                scan(b[i]);
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+        
+        @Override
+        public synchronized void close() throws IOException {
+            endLine();
+            target.flush();
+        }
+        
+        private void scan(int b) {
+            if (b == '\n') {
+                endLine();
+            } else if (b != '\r' && line.size() < MAX_LINE) {
+                line.write(b);
+            }
+        }
+        
+        private void endLine() {
+            if (line.size() == 0) {
+                return;
+            }
+            String text = line.toString();
+            line.reset();
+            Matcher m = ERROR.matcher(text);
+            if (!m.find()) {
+                m = SIGN_ERROR.matcher(text);
+                if (!m.find()) {
+                    return;
+                }
+            }
+            if (errors.size() < MAX_ERRORS) {
+                errors.add((m.groupCount() > 1) ? m.group(1) + ": " + m.group(2).trim() : "SignTool: " + m.group(1).trim());
+            } else {
+                overflow = true;
+            }
+        }
+        
+        /**
+         * @return errors reported so far as <i>CODE: message</i>.
+         */
+        synchronized List<String> getErrors() {
+            endLine();
+            return new ArrayList<String>(errors);
+        }
+        
+        /**
+         * Checks if the failure reported so far may succeed when it is run again.
+         * @return true if errors were reported, all of them are transient and
+         *         none were dropped.
+         */
+        synchronized boolean isTransient() {
+            endLine();
+            return !overflow && RetryPolicy.isTransient(errors);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ResourceBundle;
+
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Per-invocation scratch directory on fast local storage of the node. Candle
+ * and light write their intermediate files into it, only final outputs are
+ * moved into the workspace. The directory is deleted in the background after
+ * the build step finished.
+ * <p>Object files may be kept in a directory of their own, named after the
+ * workspace instead of the invocation. It is kept after an interrupted or
+ * failed build step, so a rerun in the same workspace finds the object files
+ * recorded in its checkpoint.</p>
+ * @author Bjoern.Berg
+ */
+public class ScratchSpace {
+    private static final ResourceBundle messages = ResourceBundle.getBundle("Messages");
+    private final ToolsetLogger lg = ToolsetLogger.INSTANCE;
+    // directory of this invocation
+    private final FilePath dir;
+    // directory of intermediate files
+    private final FilePath objects;
+    
+    /**
+     * Creates the scratch directory of an invocation below the given root.
+     * @param root scratch root of the node.
+     * @param name unique name of the invocation.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ScratchSpace(FilePath root, String name) throws IOException, InterruptedException {
+        this(root, name, null);
+    }
+    
+    /**
+     * Creates the scratch directory of an invocation below the given root
+     * with a separate directory of intermediate files.
+     * @param root scratch root of the node.
+     * @param name unique name of the invocation.
+     * @param objectName name of the directory of intermediate files, which
+     *        must not be used by concurrent invocations, null to keep them in
+     *        the directory of the invocation.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public ScratchSpace(FilePath root, String name, String objectName) throws IOException, InterruptedException {
+        this.dir = root.child(sanitize(name));
+        this.objects = (objectName == null) ? dir.child("obj") : root.child(sanitize(objectName));
+        this.dir.mkdirs();
+        getTempDir().mkdirs();
+    }
+    
+    private static String sanitize(String name) {
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+    
+    public FilePath getDir() {
+        return dir;
+    }
+    
+    /**
+     * Returns the directory for temporary files of candle and light.
+     * @return temp directory.
+     */
+    public FilePath getTempDir() {
+        return dir.child("tmp");
+    }
+    
+    /**
+     * Returns the location of an intermediate file in the scratch directory.
+     * @param relativePath path relative to the workspace.
+     * @return path in scratch directory.
+     */
+    public FilePath intermediate(String relativePath) {
+        return getObjectDir().child(relativePath);
+    }
+    
+    /**
+     * Returns the directory of intermediate files, which mirrors the layout
+     * of the workspace.
+     * @return directory of intermediate files.
+     */
+    public FilePath getObjectDir() {
+        return objects;
+    }
+    
+    /**
+     * Moves a final output from the scratch directory into the given
+     * directory. The file is moved on the node, falling back to copying if
+     * both directories are on different volumes.
+     * @param file file in scratch directory.
+     * @param target target directory.
+     * @return moved file.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public FilePath moveTo(FilePath file, FilePath target) throws IOException, InterruptedException {
+        FilePath moved = target.child(file.getName());
+        file.act(new Move(moved.getRemote()));
+        return moved;
+    }
+    
+    /**
+     * Logs the disk usage of the scratch directory and deletes it in the
+     * background.
+     */
+    public void cleanup() {
+        cleanup(false);
+    }
+    
+    /**
+     * Logs the disk usage of the scratch directory and deletes it in the
+     * background.
+     * @param keepObjects true keeps a separate directory of intermediate
+     *        files, e.g. for a rerun resuming from a checkpoint.
+     */
+    public void cleanup(boolean keepObjects) {
+        boolean separate = !objects.getRemote().startsWith(dir.getRemote());
+        try {
+            long[] usage = dir.act(new Usage());
+            long used = usage[0] + (separate && objects.exists() ? objects.act(new Usage())[0] : 0);
+            String msg = MessageFormat.format(messages.getString("SCRATCH_USAGE"), dir.getRemote(), 
+                    used / (1024 * 1024), usage[1] / (1024 * 1024));
+            lg.log(msg);
+            if (separate && keepObjects) {
+                lg.log(MessageFormat.format(messages.getString("SCRATCH_KEPT"), objects.getRemote()));
+            } else if (separate && objects.exists()) {
+                // moved out of the way at once, the next invocation in the workspace may start right away
+                objects.renameTo(dir.child("obj"));
+            }
+        } catch (IOException e) {
+            lg.severe(e);
+        } catch (InterruptedException e) {
+            lg.severe(e);
+        }
+        Computer.threadPoolForRemoting.submit(lg.bound(new Runnable() {
+            public void run() {
+                try {
+                    dir.deleteRecursive();
+                } catch (IOException e) {
+                    lg.severe(e);
+                } catch (InterruptedException e) {
+                    lg.severe(e);
+                }
+            }
+        }));
+    }
+    
+    /**
+     * Moves a file on the node.
+     */
+    private static final class Move implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+        private final String target;
+        
+        Move(String target) {
+            this.target = target;
+        }
+        
+        public Void invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            File to = new File(target);
+            to.getParentFile().mkdirs();
+            if (to.exists() && !to.delete()) {
+                throw new IOException("Cannot replace " + to);
+            }
+            if (!file.renameTo(to)) {
+                ArtifactCache.copy(file, to);
+                file.delete();
+            }
+            return null;
+        }
+    }
+    
+    /**
+     * Computes the bytes used by a directory and the usable space of its
+     * volume on the node.
+     */
+    private static final class Usage implements FilePath.FileCallable<long[]> {
+        private static final long serialVersionUID = 1L;
+        
+        public long[] invoke(File dir, VirtualChannel channel) throws IOException, InterruptedException {
+            long[] usage = {size(dir), dir.getUsableSpace()};
+            return usage;
+        }
+        
+        private static long size(File file) {
+            if (file.isFile()) {
+                return file.length();
+            }
+            long size = 0;
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    size += size(child);
+                }
+            }
+            return size;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.util.List;
+
+import hudson.FilePath;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * Invocation of the signing tool for a batch of files. The command line is
+ * configured by the user, the files are appended. Signing runs like the WiX
+ * tools, i.e. with the timeout, retry policy and timeline of the build, but
+ * its output is always passed to the build log.
+ * @author Bjoern.Berg
+ */
+class SignCommand extends WixCommand {
+    // tokenized command line of the signing tool
+    private final String[] command;
+    
+    /**
+     * constructor.
+     * @param other command of the build whose launcher, workspace, timeline
+     *        and retry policy are used.
+     * @param command tokenized command line of the signing tool.
+     * @param files files to sign.
+     */
+    SignCommand(WixCommand other, String[] command, List<FilePath> files) {
+        super(other);
+        if (command.length > 0) {
+            String tool = command[0];
+            this.exeName = tool.substring(Math.max(tool.lastIndexOf('/'), tool.lastIndexOf('\\')) + 1);
+        }
+        this.command = command;
+        this.logDir = null;
+        this.sourceFiles.addAll(files);
+        // names the batch on the timeline and in the retry counters
+        this.outputFile = files.isEmpty() ? null : files.get(0);
+    }
+    
+    /**
+     * Creates the command so it can be executed.
+     * @throws ToolsetException if no command or no files are given.
+     */
+    @Override
+    protected ArgumentListBuilder createCommand() throws ToolsetException {
+        // signtool.exe sign /a /fd sha256 setup.msi product1.cab ...
+        if (command.length == 0 || sourceFiles.isEmpty()) {
+            throw new ToolsetException("Missing parameters to build statement.");
+        }
+        args = new ArgumentListBuilder(command);
+        for (FilePath file : sourceFiles) {
+            args.add(file.getRemote());
+        }
+        return args;
+    }
+}
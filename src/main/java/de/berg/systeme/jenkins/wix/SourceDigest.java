@@ -0,0 +1,136 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Computes the fingerprint of source files from their raw content on the
+ * node holding the workspace. Files included with <i>&lt;?include?&gt;</i>
+ * are part of the fingerprint. Include paths containing preprocessor
+ * variables cannot be resolved and are only hashed by their name.
+ * @author Bjoern.Berg
+ */
+public class SourceDigest implements FilePath.FileCallable<Map<String, String>> {
+    private static final long serialVersionUID = 1L;
+    static final Pattern INCLUDE = Pattern.compile("<\\?include\\s+(.+?)\\s*\\?>");
+    // absolute paths of sources
+    private final List<String> sources = new ArrayList<String>();
+    // include directories (-I)
+    private final List<String> includePaths = new ArrayList<String>();
+    
+    /**
+     * constructor.
+     * @param sources sources to fingerprint.
+     * @param includePaths include search paths of candle.
+     */
+    public SourceDigest(List<FilePath> sources, List<FilePath> includePaths) {
+        for (FilePath source : sources) {
+            this.sources.add(source.getRemote());
+        }
+        for (FilePath path : includePaths) {
+            this.includePaths.add(path.getRemote());
+        }
+    }
+
+    /**
+     * @return fingerprint of every source by its absolute path.
+     */
+    public Map<String, String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        Map<String, String> fingerprints = new LinkedHashMap<String, String>();
+        for (String source : sources) {
+            MessageDigest md = Fingerprints.newDigest();
+            digest(md, new File(source), new HashSet<String>());
+            fingerprints.put(source, Fingerprints.toHex(md.digest()));
+        }
+        return fingerprints;
+    }
+    
+    private void digest(MessageDigest md, File file, Set<String> visited) throws IOException {
+        if (!visited.add(file.getCanonicalPath())) {
+            return;
+        }
+        byte[] content = read(file);
+        md.update(content);
+        // content is only scanned for include instructions, any ASCII compatible encoding works
+        Matcher m = INCLUDE.matcher(new String(content, "ISO-8859-1"));
+        while (m.find()) {
+            String name = m.group(1).trim();
+            Fingerprints.update(md, name);
+            File include = resolve(file.getParentFile(), name);
+            if (include != null) {
+                digest(md, include, visited);
+            }
+        }
+    }
+    
+    File resolve(File dir, String name) {
+        if (name.contains("$(")) {
+            return null;
+        }
+        File candidate = new File(name);
+        if (candidate.isAbsolute()) {
+            return candidate.isFile() ? candidate : null;
+        }
+        candidate = new File(dir, name);
+        if (candidate.isFile()) {
+            return candidate;
+        }
+        for (String path : includePaths) {
+            candidate = new File(path, name);
+            if (candidate.isFile()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+    
+    static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+/**
+ * Checks WiX source files for well-formedness and optionally validates them
+ * against the WiX schema. The check runs on the node holding the workspace,
+ * parses all sources in parallel with a streaming parser and reports every
+ * problem of every file instead of stopping at the first broken file.
+ * @author Bjoern.Berg
+ */
+public class SourceValidator implements FilePath.FileCallable<List<String>> {
+    private static final long serialVersionUID = 1L;
+    // absolute paths of sources on the node
+    private final List<String> sources = new ArrayList<String>();
+    // absolute path of schema, null disables schema validation
+    private final String schema;
+    
+    /**
+     * constructor.
+     * @param sources source files to check.
+     * @param schema WiX schema (wix.xsd) or null to check well-formedness only.
+     */
+    public SourceValidator(FilePath[] sources, FilePath schema) {
+        for (FilePath source : sources) {
+            this.sources.add(source.getRemote());
+        }
+        this.schema = (schema == null) ? null : schema.getRemote();
+    }
+
+    /**
+     * Checks all sources.
+     * @return list of problems formatted as <i>file:line:column: message</i>,
+     *         empty if all sources are valid.
+     */
+    public List<String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+        final SAXParserFactory factory = SAXParserFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        } catch (Exception e) {
+            // feature not supported by parser, continue with defaults
+        }
+        if (schema != null) {
+            try {
+                SchemaFactory sf = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+                Schema wixSchema = sf.newSchema(new File(schema));
+                factory.setSchema(wixSchema);
+            } catch (SAXException e) {
+                throw new IOException("Cannot load schema " + schema + ": " + e.getMessage());
+            }
+        }
+        
+        int threads = Math.max(1, Math.min(sources.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+        try {
+            for (final String source : sources) {
+                results.add(pool.submit(new Callable<List<String>>() {
+                    public List<String> call() throws Exception {
+                        return check(factory, new File(source));
+                    }
+                }));
+            }
+            List<String> problems = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                problems.addAll(result.get());
+            }
+            return problems;
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause().getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Parses a single file and collects all reported problems.
+     * @param factory configured parser factory.
+     * @param file source file.
+     * @return list of problems.
+     */
+    static List<String> check(SAXParserFactory factory, final File file) {
+        final List<String> problems = new ArrayList<String>();
+        ErrorHandler handler = new DefaultHandler() {
+            @Override
+            public void warning(SAXParseException e) {
+                // warnings do not stop candle either
+            }
+            @Override
+            public void error(SAXParseException e) {
+                problems.add(format(file, e));
+            }
+            @Override
+            public void fatalError(SAXParseException e) throws SAXException {
+                problems.add(format(file, e));
+                throw e;
+            }
+        };
+        try {
+            SAXParser parser;
+            synchronized (factory) {
+                parser = factory.newSAXParser();
+            }
+            parser.parse(file, (DefaultHandler) handler);
+        } catch (SAXParseException e) {
+            // already reported by handler
+        } catch (Exception e) {
+            problems.add(file.getPath() + ": " + e.getMessage());
+        }
+        return problems.isEmpty() ? Collections.<String>emptyList() : problems;
+    }
+    
+    private static String format(File file, SAXParseException e) {
+        return String.format("%s:%d:%d: %s", file.getPath(), e.getLineNumber(), e.getColumnNumber(), e.getMessage());
+    }
+}
@@ -0,0 +1,236 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Timeline of the phases and processes of a build in the trace event format,
+ * which can be opened in trace viewers like <i>chrome://tracing</i> or
+ * <i>ui.perfetto.dev</i>. Every agent is shown as a process and every thread
+ * launching tools, e.g. a compile worker, as one of its threads, so idle
+ * workers show up as gaps and serialization points as phases running alone.
+ * <p>All WiX build steps of a build share one timeline, it is attached to
+ * the build as {@value #FILENAME}.</p>
+ * @author Bjoern.Berg
+ */
+public final class Timeline {
+    /** name of the timeline in the artifacts of a build. */
+    public static final String FILENAME = "wix-timeline.json";
+    
+    // all timestamps are relative to the creation of the timeline
+    private final long origin = System.nanoTime();
+    // complete and instant events, already formatted
+    private final List<String> events = new ArrayList<String>();
+    // process ids by name of agent
+    private final Map<String, Integer> agents = new LinkedHashMap<String, Integer>();
+    // thread ids by agent and name of thread
+    private final Map<String, Integer> threads = new LinkedHashMap<String, Integer>();
+    
+    /**
+     * Starts a span on the current thread.
+     * @param name name of span, e.g. the tool and its output.
+     * @param category category of span, e.g. phase or process.
+     * @param agent name of the agent the span runs on.
+     * @return span to end.
+     */
+    public Span begin(String name, String category, String agent) {
+        return new Span(name, category, agent);
+    }
+    
+    /**
+     * Records an event without duration on the current thread, e.g. a cache
+     * hit.
+     * @param name name of event.
+     * @param category category of event.
+     * @param agent name of the agent.
+     * @param args alternating names and values of arguments.
+     */
+    public synchronized void instant(String name, String category, String agent, String... args) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            map.put(args[i], args[i + 1]);
+        }
+        events.add(event(name, category, "i", now(), -1, agent, Thread.currentThread().getName(), map));
+    }
+    
+    /**
+     * @return number of recorded events without metadata.
+     */
+    public synchronized int size() {
+        return events.size();
+    }
+    
+    /**
+     * Formats the timeline as trace event JSON.
+     * @return JSON object with the array <i>traceEvents</i>.
+     */
+    public synchronized String toJSON() {
+        List<String> all = new ArrayList<String>();
+        for (Map.Entry<String, Integer> agent : agents.entrySet()) {
+            all.add("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + agent.getValue() 
+                    + ",\"args\":{\"name\":" + quote(agent.getKey()) + "}}");
+        }
+        for (Map.Entry<String, Integer> thread : threads.entrySet()) {
+            String[] key = thread.getKey().split("\t", 2);
+            all.add("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + agents.get(key[0]) 
+                    + ",\"tid\":" + thread.getValue() + ",\"args\":{\"name\":" + quote(key[1]) + "}}");
+        }
+        all.addAll(events);
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        for (int i = 0; i < all.size(); i++) {
+            sb.append(all.get(i)).append((i < all.size() - 1) ? ",\n" : "\n");
+        }
+        return sb.append("]}\n").toString();
+    }
+    
+    /**
+     * Writes the timeline to a file.
+     * @param file target file.
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(toJSON().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+    
+    private long now() {
+        return (System.nanoTime() - origin) / 1000;
+    }
+    
+    private String event(String name, String category, String phase, long ts, long dur, String agent, 
+            String threadName, Map<String, String> args) {
+        int[] ids = ids(agent, threadName);
+        StringBuilder sb = new StringBuilder("{\"name\":").append(quote(name))
+            .append(",\"cat\":").append(quote(category))
+            .append(",\"ph\":\"").append(phase).append('"')
+            .append(",\"ts\":").append(ts);
+        if (dur >= 0) {
+            sb.append(",\"dur\":").append(dur);
+        } else {
+            // instant events are drawn on their thread only
+            sb.append(",\"s\":\"t\"");
+        }
+        sb.append(",\"pid\":").append(ids[0]).append(",\"tid\":").append(ids[1]).append(",\"args\":{");
+        boolean first = true;
+        for (Map.Entry<String, String> arg : args.entrySet()) {
+            sb.append(first ? "" : ",").append(quote(arg.getKey())).append(':').append(quote(arg.getValue()));
+            first = false;
+        }
+        return sb.append("}}").toString();
+    }
+    
+    /**
+     * Returns the process and thread id of a thread on an agent. Ids are
+     * assigned in order of first use.
+     */
+    private int[] ids(String agent, String threadName) {
+        Integer pid = agents.get(agent);
+        if (pid == null) {
+            pid = agents.size() + 1;
+            agents.put(agent, pid);
+        }
+        String thread = agent + "\t" + threadName;
+        Integer tid = threads.get(thread);
+        if (tid == null) {
+            tid = threads.size() + 1;
+            threads.put(thread, tid);
+        }
+        return new int[] {pid, tid};
+    }
+    
+    static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : String.valueOf(value).toCharArray()) {
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+    
+    /**
+     * Span of a phase or process. A span is recorded when it ends, on the
+     * thread which started it.
+     */
+    public final class Span {
+        private final String name;
+        private final String category;
+        private final String agent;
+        private final long start = now();
+        private final String thread = Thread.currentThread().getName();
+        private final Map<String, String> args = new LinkedHashMap<String, String>();
+        
+        private Span(String name, String category, String agent) {
+            this.name = name;
+            this.category = category;
+            this.agent = agent;
+            synchronized (Timeline.this) {
+                // agents and threads are listed in the order they started work
+                ids(agent, thread);
+            }
+        }
+        
+        /**
+         * Adds an argument shown with the span.
+         * @param key name of argument.
+         * @param value value of argument, null is ignored.
+         * @return this span.
+         */
+        public Span arg(String key, Object value) {
+            if (value != null) {
+                args.put(key, value.toString());
+            }
+            return this;
+        }
+        
+        /**
+         * Ends the span and adds it to the timeline.
+         */
+        public void end() {
+            long end = now();
+            synchronized (Timeline.this) {
+                events.add(event(name, category, "X", start, end - start, agent, thread, args));
+            }
+        }
+    }
+}
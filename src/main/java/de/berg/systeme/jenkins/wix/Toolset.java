@@ -19,14 +19,50 @@
 */
 package de.berg.systeme.jenkins.wix;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.StringUtils;
 
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.remoting.Channel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 
 /***
  * <p>Toolset checks the existence for the WIX Toolset on the buildsystem. If not available
@@ -41,30 +77,161 @@ public final class Toolset {
     private static final ResourceBundle messages = ResourceBundle.getBundle("Messages");
     // Environment variables
     private EnvVars envVars;
+    // extensions, parameters and environment shared by all commands
+    private Invocation invocation;
     // Command for compiler
     private WixCommand candle;
     // Command for linker
     private WixCommand light;
+    // Command for librarian
+    private WixCommand lit;
+    // Command for creating transforms between baseline and upgrade
+    private WixCommand torch;
+    // Command for building patches
+    private Pyro pyro;
+    // Command for detaching and reattaching the engine of bundles
+    private WixCommand insignia;
+    // launcher of the build
+    private Launcher launcher;
     // Logging instance
     private final ToolsetLogger lg = ToolsetLogger.INSTANCE;
     // global setting
     private ToolsetSettings settings;
     // Windows slave mode
     private boolean usedOnSlave = false;
+    // build the toolset is used for
+    @SuppressWarnings("rawtypes")
+    private AbstractBuild build;
+    // workspace of build
+    private FilePath workspace;
+    // compile durations of previous builds, null until scheduling needs them
+    private CompileHistory history;
+    // number of sources preprocessed by a single invocation of candle
+    private static final int PREPROCESS_BATCH = 50;
+    // how cache keys of object files are computed
+    private Wix.CacheMode cacheMode = Wix.CacheMode.none;
+    // node local cache of object files, null if disabled
+    private ArtifactCache cache;
+    // node local cache of libraries, null if the node has no root directory
+    private ArtifactCache libraryCache;
+    // sources of the library built before the product, null if there is none
+    private FilePath[] librarySources;
+    // library built from librarySources
+    private FilePath libraryFile;
+    // libraries passed to the linker together with the object files
+    private List<FilePath> libraries = new ArrayList<FilePath>();
+    // node local caches of baseline outputs by release version
+    private ArtifactCache baselinePdbs;
+    private ArtifactCache baselinePackages;
+    // node local cache of chained packages
+    private ArtifactCache packageCache;
+    // node local cache of large payloads, null if the node has no root directory
+    private PayloadCache payloadCache;
+    // package and external cabinets written by the last link
+    private List<FilePath> linkedOutputs = new ArrayList<FilePath>();
+    // outputs of this build step relative to the workspace
+    private Set<String> producedOutputs = new LinkedHashSet<String>();
+    // scratch directory for intermediate files, null if files are written to the workspace
+    private ScratchSpace scratch;
+    // directory of side logs on the node, null if the output is not filtered
+    private FilePath logDir;
+    // label expression of the agents compiling shards of the sources, null compiles on the node of the build
+    private String compileAgents;
+    // directories created in the scratch directory
+    private Set<String> scratchDirs = new HashSet<String>();
+    // set once the build step succeeded and its checkpoint is removed
+    private boolean completed = false;
+    // timeline shared by all WiX build steps of the build
+    private Timeline timeline = new Timeline();
+    // name of the node of the build on the timeline
+    private String agent = "master";
+    // running phase of this build step
+    private Timeline.Span phase;
+    // progress of this build step on the node, null if it is off or there is no workspace
+    private Checkpoint checkpoint;
+    // progress left by an interrupted build, null if there is none
+    private Checkpoint.State resumed;
+    // agents with warm caches for the job, null if the build has no node
+    private CacheAffinity affinity;
+    // true if the caches of the node were warm for the job when the build step started
+    private boolean warmNode;
+    // lookups and hits of all node local caches of this build step
+    private int cacheLookups;
+    private int cacheHits;
+    // chained packages restored from or stored in the package cache of the node
+    private Set<String> cachedPackages = new TreeSet<String>();
+    // retries of invocations failing for transient reasons
+    private RetryPolicy retryPolicy = new RetryPolicy(0, 0);
     
     @SuppressWarnings("rawtypes")
     public Toolset(AbstractBuild build, Launcher launcher, ToolsetSettings properties) throws ToolsetException {
+    	this(build, launcher, properties, null);
+    }
+    
+    /**
+     * Creates the toolset of a build. All commands are created from one
+     * invocation, which is resolved from settings and environment only once.
+     * @param build current build.
+     * @param launcher launcher of the build.
+     * @param properties settings of the build step.
+     * @param envVars environment of the build or null to read it from the build.
+     * @throws ToolsetException
+     */
+    @SuppressWarnings("rawtypes")
+    public Toolset(AbstractBuild build, Launcher launcher, ToolsetSettings properties, EnvVars envVars) throws ToolsetException {
     	try {
 			// initialize globals
+			this.build      = build;
+			this.launcher   = launcher;
 			this.settings   = properties;
-			this.envVars    = build.getEnvironment( launcher.getListener() );
+			this.envVars    = (envVars != null) ? envVars : build.getEnvironment( launcher.getListener() );
+			this.invocation = Invocation.of(this.settings, this.envVars);
 			// initialize commands
-			this.candle     = new Candle(launcher, this.settings, this.envVars);
-			this.light      = new Light(launcher, this.settings, this.envVars);
+			this.candle     = new Candle(launcher, this.settings, this.invocation);
+			this.light      = new Light(launcher, this.settings, this.invocation);
+			this.lit        = new Lit(launcher, this.settings, this.invocation);
+			this.torch      = new Torch(launcher, this.settings, this.invocation);
+			this.pyro       = new Pyro(launcher, this.settings, this.invocation);
+			this.insignia   = new Insignia(launcher, this.settings, this.invocation);
 			usedOnSlave		= properties.get(Wix.USED_ON_SLAVE, false);
 			
-			this.candle.addWorkspace(build.getWorkspace());
-			this.light.addWorkspace(build.getWorkspace());
+			this.workspace	= build.getWorkspace();
+			if (workspace != null && properties.get(Wix.CHECKPOINT, false)) {
+				this.checkpoint = new Checkpoint(workspace.child(Checkpoint.FILENAME));
+			}
+			this.candle.addWorkspace(workspace);
+			this.light.addWorkspace(workspace);
+			this.lit.addWorkspace(workspace);
+			this.torch.addWorkspace(workspace);
+			this.pyro.addWorkspace(workspace);
+			this.insignia.addWorkspace(workspace);
+			this.candle.setTimeout(properties.get(Wix.CANDLE_TIMEOUT, 0));
+			this.light.setTimeout(properties.get(Wix.LIGHT_TIMEOUT, 0));
+			
+			this.cacheMode = Wix.CacheMode.parse(properties.get(Wix.CACHE_MODE, ""));
+			Node node = build.getBuiltOn();
+			this.timeline = WixBuildAction.of(build).getTimeline();
+			this.agent = agentName(node);
+			this.retryPolicy = new RetryPolicy(properties.get(Wix.RETRY_ATTEMPTS, RetryPolicy.DEFAULT_ATTEMPTS), 
+					1000L * properties.get(Wix.RETRY_DELAY, RetryPolicy.DEFAULT_DELAY));
+			for (WixCommand cmd : new WixCommand[] {candle, light, lit, torch, pyro, insignia}) {
+				cmd.setTimeline(timeline, agent);
+				cmd.setRetryPolicy(retryPolicy);
+			}
+			if (cacheMode != Wix.CacheMode.none && node != null && node.getRootPath() != null) {
+				this.cache = new ArtifactCache(node.getRootPath().child(ArtifactCache.DIRNAME).child("objects"), ".wixobj");
+			}
+			if (node != null && node.getRootPath() != null) {
+				this.libraryCache = new ArtifactCache(node.getRootPath().child(ArtifactCache.DIRNAME).child("libraries"), ".wixlib");
+				FilePath baselines = node.getRootPath().child(ArtifactCache.DIRNAME).child("baselines");
+				this.baselinePdbs = new ArtifactCache(baselines, ".wixpdb");
+				this.baselinePackages = new ArtifactCache(baselines, ".msi");
+				this.packageCache = new ArtifactCache(node.getRootPath().child(ArtifactCache.DIRNAME).child("packages"), ".msi");
+				this.affinity = CacheAffinity.of(build.getProject().getRootDir());
+				this.warmNode = affinity.isWarm(node.getNodeName(), System.currentTimeMillis());
+				this.payloadCache = new PayloadCache(node.getRootPath().child(ArtifactCache.DIRNAME).child(PayloadCache.DIRNAME), 
+						1024L * 1024L * properties.get(Wix.PAYLOAD_CACHE_SIZE, PayloadCache.DEFAULT_QUOTA));
+			}
 			
 			// check
 			if (usedOnSlave) {
@@ -147,7 +314,7 @@ public final class Toolset {
     	if (input.length == 0) {
     		throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
     	} else {
-    		FilePath output = replaceExtension(input[0], ".wxs", ".wixobj");
+    		FilePath output = intermediate(replaceExtension(input[0], ".wxs", ".wixobj"));
     		return compile(input, output);
     	}
     }
@@ -161,88 +328,2171 @@ public final class Toolset {
      * @throws ToolsetException 
      */
     public FilePath compile(FilePath[] input, FilePath output) throws Exception, ToolsetException {
-        // add every source file
+        WixCommand compiler = prepareCompile(input, output);
+        lg.debug(messages.getString("EXECUTING_COMMAND"), compiler.toString());
+        if (compiler.execute()) {
+            lg.log(messages.getString("COMPILING_SUCCESSFUL"));
+        } else {
+            lg.log(messages.getString("COMPILING_FAILED"));
+            throw failure(compiler, messages.getString("COMPILING_FAILED"));
+        }
+        return compiler.getOutputFile();
+    }
+    
+    /**
+     * Sets the sources of a library which is built before the product and
+     * passed to the linker.
+     * @param input sources of the library.
+     * @param output library file.
+     */
+    public void setLibrary(FilePath[] input, FilePath output) {
+        this.librarySources = input;
+        this.libraryFile = output;
+    }
+    
+    /**
+     * Adds prebuilt libraries which are passed to the linker together with
+     * the object files.
+     * @param input library files.
+     */
+    public void addLibraries(FilePath[] input) {
         for (FilePath fp : input) {
-            if (isValid(fp, ".wxs")) {
-                lg.debug(messages.getString("ADDING_SOURCE_FILE"), fp.getRemote());
-                candle.addSourceFile(fp);
+            if (isValid(fp, ".wixlib")) {
+                libraries.add(fp);
             } else {
-                lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
+                lg.log(messages.getString("NO_VALID_LIBRARY_FILE"), fp.getRemote());
             }
         }
-        // add output file
-        candle.setOutputFile(output);
-        
-        candle.createCommand();
-        lg.debug(messages.getString("EXECUTING_COMMAND"), candle.toString());
-        if (candle.execute()) {
-            lg.log(messages.getString("COMPILING_SUCCESSFUL"));
+    }
+    
+    /**
+     * Builds the library set by {@link #setLibrary(FilePath[], FilePath)}.
+     * A library built from the same sources and options is restored from the
+     * cache of the node instead, so shared sources are compiled only once per
+     * node. The library is passed to the linker.
+     * @param workers number of concurrent candle processes.
+     * @return library file or null if no library is set.
+     * @throws Exception
+     * @throws ToolsetException if compiling or building the library failed.
+     */
+    public FilePath library(int workers) throws Exception, ToolsetException {
+        if (librarySources == null) {
+            return null;
+        }
+        List<CompileUnit> units = schedule(librarySources);
+        String key = libraryKey(units);
+        String msg;
+        if (libraryCache != null) {
+            cacheLookups++;
+        }
+        if (libraryCache != null && libraryCache.restore(Collections.singletonMap(key, libraryFile)).contains(key)) {
+            cacheHits++;
+            msg = MessageFormat.format(messages.getString("LIBRARY_RESTORED"), relativize(libraryFile), units.size());
         } else {
-            lg.log(messages.getString("COMPILING_FAILED"));
-            throw new ToolsetException(messages.getString("COMPILING_FAILED"));
+            FilePath[] objFiles = compile(units, workers);
+            Lit librarian = new Lit((Lit) lit);
+            for (FilePath objFile : objFiles) {
+                librarian.addSourceFile(objFile);
+            }
+            librarian.setOutputFile(libraryFile);
+            librarian.render();
+            lg.debug(messages.getString("EXECUTING_COMMAND"), librarian.toString());
+            if (!librarian.execute()) {
+                lg.log(messages.getString("LIBRARY_FAILED"));
+                throw failure(librarian, messages.getString("LIBRARY_FAILED"));
+            }
+            if (libraryCache != null) {
+                libraryCache.store(Collections.singletonMap(key, libraryFile));
+            }
+            msg = MessageFormat.format(messages.getString("LIBRARY_BUILT"), relativize(libraryFile), units.size());
         }
-        return candle.getOutputFile();
+        lg.log(msg);
+        report(msg);
+        libraries.add(libraryFile);
+        produced(libraryFile);
+        return libraryFile;
     }
     
-    /***
-     * Links the given object file into an MSI package.
-     * @param file object file.
-     * @return MSI package file.
+    /**
+     * Computes the key of a library from the raw content of its sources, the
+     * options of candle and the options of lit.
+     * @param units compile units of the library.
+     * @return key of library.
+     * @throws Exception
+     */
+    private String libraryKey(List<CompileUnit> units) throws Exception {
+        fingerprint(units, Wix.CacheMode.source);
+        Map<String, String> sources = new TreeMap<String, String>();
+        for (CompileUnit unit : units) {
+            sources.put(unit.key, unit.cacheKey);
+            // the compile cache may compute keys in a different mode
+            unit.cacheKey = null;
+        }
+        StringBuilder key = new StringBuilder(lit.getExecutable());
+        List<String> extensions = new ArrayList<String>(lit.getExtensions());
+        Collections.sort(extensions);
+        for (String extension : extensions) {
+            key.append("|-ext ").append(extension);
+        }
+        for (Map.Entry<String, String> source : sources.entrySet()) {
+            key.append('|').append(source.getKey()).append('=').append(source.getValue());
+        }
+        return Fingerprints.of(key.toString());
+    }
+    
+    /**
+     * Checks all source files for well-formedness before any process is
+     * launched. The check runs on the node of the workspace and reports every
+     * broken file in one pass.
+     * @param input set of source files.
+     * @param schema path of WiX schema relative to the workspace or null if
+     *        sources are not validated against the schema.
+     * @throws Exception
+     * @throws ToolsetException if at least one source is invalid.
+     */
+    public void validate(FilePath[] input, String schema) throws Exception, ToolsetException {
+        FilePath xsd = StringUtils.isBlank(schema) ? null : workspace.child(envVars.expand(schema.trim()));
+        long start = System.currentTimeMillis();
+        List<String> problems = workspace.act(new SourceValidator(input, xsd));
+        lg.log(messages.getString("SOURCES_CHECKED"), input.length, System.currentTimeMillis() - start);
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                lg.log(problem);
+            }
+            throw new ToolsetException(MessageFormat.format(messages.getString("SOURCES_INVALID"), problems.size()));
+        }
+    }
+    
+    /**
+     * Adds bind paths to light, one per line. A line <i>name=path</i> defines a
+     * named bind path. Relative paths are resolved against the workspace.
+     * @param spec bind paths.
+     */
+    public void setBindPaths(String spec) {
+        for (String line : spec.split("\\r?\\n")) {
+            String path = envVars.expand(line.trim());
+            if (path.length() == 0) {
+                continue;
+            }
+            int eq = path.indexOf('=');
+            if (eq > 0) {
+                ((Light) light).addBindPath(path.substring(0, eq).trim(), workspace.child(path.substring(eq + 1).trim()));
+            } else {
+                ((Light) light).addBindPath(workspace.child(path));
+            }
+        }
+    }
+    
+    /**
+     * Checks before linking that every payload referenced by the sources can
+     * be found in the bind paths of light. The check runs on the node of the
+     * workspace and reports every missing file in one pass.
+     * @param input set of source files.
+     * @throws Exception
+     * @throws ToolsetException if at least one payload is missing.
+     */
+    public void checkPayload(FilePath[] input) throws Exception, ToolsetException {
+        long start = System.currentTimeMillis();
+        Light linker = (Light) light;
+        PayloadCheck.Result result = workspace.act(new PayloadCheck(input, ((Candle) candle).getIncludePaths(), 
+                linker.getBindPaths(), linker.getNamedBindPaths(), candle.getParameters(), envVars));
+        lg.log(messages.getString("PAYLOAD_CHECKED"), result.getReferences(), System.currentTimeMillis() - start, 
+                result.getIndexedDirectories(), result.getReusedIndexes());
+        if (!result.getMissing().isEmpty()) {
+            for (String problem : result.getMissing()) {
+                lg.log(problem);
+            }
+            throw new ToolsetException(MessageFormat.format(messages.getString("PAYLOAD_MISSING"), result.getMissing().size()));
+        }
+    }
+    
+    /**
+     * Provides large payloads (e.g. redistributables embedded into a bundle)
+     * in the workspace from the payload cache of the node. Payloads not
+     * cached yet are fetched from the source and verified against their
+     * SHA-256. Hits, misses and evictions are shown on the build page.
+     * @param payloads SHA-256 by path relative to the workspace.
+     * @param source directory or URL on the node, blank if payloads are only
+     *        taken from the cache.
+     * @throws Exception
+     * @throws ToolsetException if a payload cannot be provided.
+     */
+    public void payloads(Map<String, String> payloads, String source) throws Exception, ToolsetException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        if (payloadCache == null) {
+            throw new ToolsetException(messages.getString("PAYLOAD_CACHE_UNAVAILABLE"));
+        }
+        Timeline.Span span = timeline.begin("provide payloads", "cache", agent);
+        PayloadCache.Result result = payloadCache.provide(payloads, StringUtils.isBlank(source) ? null : source.trim(), workspace);
+        span.arg("hits", result.getHits()).arg("misses", result.getMisses()).arg("evicted", result.getEvicted()).end();
+        cacheLookups += result.getHits() + result.getMisses();
+        cacheHits += result.getHits();
+        for (String failure : result.getFailures()) {
+            lg.log(failure);
+        }
+        String msg = MessageFormat.format(messages.getString("PAYLOAD_CACHE"), result.getHits(), result.getMisses(), 
+                result.getFetchedBytes() / 1024, result.getDiscarded(), result.getEvicted(), 
+                result.getCacheBytes() / (1024 * 1024));
+        lg.log(msg);
+        report(msg);
+        if (!result.getFailures().isEmpty()) {
+            throw new ToolsetException(MessageFormat.format(messages.getString("PAYLOAD_UNAVAILABLE"), result.getFailures().size()));
+        }
+    }
+    
+    /**
+     * Compiles every source file into its own object file using the given
+     * number of workers. The sources are dispatched longest first, based on the
+     * compile durations of previous builds. With a single worker and without
+     * compile cache all sources are compiled by one invocation of candle.
+     * @param input set of source files.
+     * @param workers number of concurrent candle processes.
+     * @return compiled object files.
      * @throws Exception
      * @throws ToolsetException 
      */
-    public FilePath link(FilePath file) throws Exception, ToolsetException {
-        FilePath[] input = {file};
-        return link(input);
+    public FilePath[] compile(FilePath[] input, int workers) throws Exception, ToolsetException {
+        FilePath[] objFiles;
+        if (cache == null && compileAgents == null && (workers <= 1 || input.length <= 1)) {
+            objFiles = new FilePath[] {resumeOrCompile(input)};
+        } else {
+            objFiles = compile(schedule(input), workers);
+        }
+        return finalObjects(objFiles);
     }
     
     /**
-     * Links a set of given object files into an MSI package.
-     * @param input set of object files.
-     * @return MSI package file.
+     * Compiles all sources with a single invocation of candle unless the
+     * checkpoint of an interrupted build holds the object file of the same
+     * sources and options.
+     * @param input set of source files.
+     * @return object file.
      * @throws Exception
      * @throws ToolsetException 
      */
-    public FilePath link(FilePath[] input) throws Exception, ToolsetException {
-    	if (input.length == 0) {
-    		throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
-    	} else {
-    		FilePath output = replaceExtension(input[0], ".wixobj", ".msi");
-    		return link(input, output);
-    	}
+    private FilePath resumeOrCompile(FilePath[] input) throws Exception, ToolsetException {
+        if (checkpoint == null || input.length == 0) {
+            return compile(input);
+        }
+        FilePath output = intermediate(replaceExtension(input[0], ".wxs", ".wixobj"));
+        List<FilePath> sources = new ArrayList<FilePath>();
+        for (FilePath fp : input) {
+            if (isValid(fp, ".wxs")) {
+                sources.add(fp);
+            }
+        }
+        List<FilePath> includePaths = ((Candle) candle).getIncludePaths();
+        Map<String, String> digests = workspace.act(new SourceDigest(sources, includePaths));
+        Set<String> used = new HashSet<String>();
+        for (Set<String> names : workspace.act(new DefineUsage(sources, includePaths)).values()) {
+            used.addAll(names);
+        }
+        StringBuilder key = new StringBuilder(((Candle) candle).getOptionsFingerprint(false));
+        for (FilePath fp : sources) {
+            key.append('|').append(relativize(fp)).append('=').append(digests.get(fp.getRemote()));
+        }
+        Map<String, String> keys = Collections.singletonMap(output.getRemote(), 
+                compileKey(key.toString(), candle.getParameters(), used));
+        if (resumed != null && checkpoint.reusable(keys).contains(output.getRemote())) {
+            String msg = MessageFormat.format(messages.getString("CHECKPOINT_REUSED"), 1, 1);
+            lg.log(msg);
+            report(msg);
+            return output;
+        }
+        compile(input, output);
+        record(keys);
+        return output;
     }
     
     /**
-     * Links a set of given object files into an MSI package.
-     * @param input set of object files.
-     * @param output name of MSI package.
-     * @return MSI package file.
+     * Moves object files from the scratch directory into the workspace if
+     * they are the final outputs of the build.
+     * @param objFiles compiled object files, replaced by their new location.
+     * @return object files.
+     * @throws Exception
+     */
+    private FilePath[] finalObjects(FilePath[] objFiles) throws Exception {
+        if (scratch != null && settings.get(Wix.COMPILE_ONLY, false)) {
+            // object files are the final outputs
+            for (int i = 0; i < objFiles.length; i++) {
+                FilePath target = workspace.child(objFiles[i].getRemote()
+                        .substring(scratch.getObjectDir().getRemote().length() + 1));
+                objFiles[i] = scratch.moveTo(objFiles[i], target.getParent());
+            }
+        }
+        return objFiles;
+    }
+    
+    /**
+     * Compiles the sources for every variant. The effective key of a compile
+     * covers the content of the source and its includes, the options of
+     * candle and only those defines the source uses. Compiles with the same
+     * key are identical, so each of them is run once and its object file is
+     * shared by all variants.
+     * @param input set of source files.
+     * @param variants build variants.
+     * @param workers number of concurrent candle processes.
+     * @return object files of every variant in order of the variants.
      * @throws Exception
      * @throws ToolsetException 
      */
-    public FilePath link(FilePath[] input, FilePath output) throws Exception, ToolsetException {
-        // add every object file
+    public Map<Variant, FilePath[]> compile(FilePath[] input, List<Variant> variants, int workers) 
+            throws Exception, ToolsetException {
+        List<FilePath> sources = new ArrayList<FilePath>();
         for (FilePath fp : input) {
-            if (isValid(fp, ".wixobj")) {
-                lg.debug(messages.getString("ADDING_OBJECT_FILE"), fp.getRemote());
-                light.addSourceFile(fp);
+            if (isValid(fp, ".wxs")) {
+                sources.add(fp);
             } else {
-                lg.log(messages.getString("NO_VALID_OBJECT_FILE"), fp.getRemote());
+                lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
             }
         }
-        // add output file
-        light.setOutputFile(output);
+        if (sources.isEmpty()) {
+            throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
+        }
+        List<FilePath> includePaths = ((Candle) candle).getIncludePaths();
+        Map<String, String> digests = workspace.act(new SourceDigest(sources, includePaths));
+        Map<String, Set<String>> usage = workspace.act(new DefineUsage(sources, includePaths));
+        String options = ((Candle) candle).getOptionsFingerprint(false);
         
-        light.createCommand();
-        lg.debug(messages.getString("EXECUTING_COMMAND"), light.toString());
-        if (light.execute()) {
-            lg.log(messages.getString("LINKING_SUCCESSFUL"));
-        } else {
-            lg.log(messages.getString("LINKING_FAILED"));
-            throw new ToolsetException(messages.getString("LINKING_FAILED"));
+        // distinct compiles by effective key, and the keys of every variant in source order
+        Map<String, CompileUnit> distinct = new LinkedHashMap<String, CompileUnit>();
+        Map<Variant, List<String>> keys = new LinkedHashMap<Variant, List<String>>();
+        for (Variant variant : variants) {
+            Map<String, String> defines = new TreeMap<String, String>(candle.getParameters());
+            defines.putAll(variant.getDefines());
+            List<String> variantKeys = new ArrayList<String>();
+            for (FilePath fp : sources) {
+                String effectiveKey = compileKey(digests.get(fp.getRemote()) + "|" + options, defines, 
+                        usage.get(fp.getRemote()));
+                variantKeys.add(effectiveKey);
+                if (!distinct.containsKey(effectiveKey)) {
+                    CompileUnit unit = new CompileUnit();
+                    unit.source = fp;
+                    unit.candle = new Candle((Candle) candle);
+                    for (Map.Entry<String, String> define : variant.getDefines().entrySet()) {
+                        unit.candle.setParameter(define.getKey(), define.getValue());
+                    }
+                    unit.candle.addSourceFile(fp);
+                    unit.candle.setOutputFile(intermediate(replaceExtension(fp, ".wxs", "." + variant.getName() + ".wixobj")));
+                    unit.candle.render();
+                    unit.key = relativize(fp) + " (" + variant.getName() + ")";
+                    unit.cacheKey = effectiveKey;
+                    unit.size = (history().getDuration(unit.key) < 0) ? fp.length() : -1;
+                    unit.estimate = history().estimate(unit.key, unit.size);
+                    distinct.put(effectiveKey, unit);
+                }
+            }
+            keys.put(variant, variantKeys);
+        }
+        
+        List<CompileUnit> units = new ArrayList<CompileUnit>(distinct.values());
+        Collections.sort(units, new Comparator<CompileUnit>() {
+            public int compare(CompileUnit a, CompileUnit b) {
+                return (a.estimate < b.estimate) ? 1 : (a.estimate > b.estimate) ? -1 : 0;
+            }
+        });
+        int total = variants.size() * sources.size();
+        String msg = MessageFormat.format(messages.getString("VARIANT_COMPILES"), 
+                variants.size(), total, units.size(), total - units.size());
+        lg.log(msg);
+        report(msg);
+        compile(units, workers);
+        
+        Map<Variant, FilePath[]> objects = new LinkedHashMap<Variant, FilePath[]>();
+        Map<String, FilePath> moved = new HashMap<String, FilePath>();
+        for (Map.Entry<Variant, List<String>> variant : keys.entrySet()) {
+            FilePath[] objFiles = new FilePath[variant.getValue().size()];
+            for (int i = 0; i < objFiles.length; i++) {
+                String key = variant.getValue().get(i);
+                if (!moved.containsKey(key)) {
+                    moved.put(key, finalObjects(new FilePath[] {distinct.get(key).candle.getOutputFile()})[0]);
+                }
+                objFiles[i] = moved.get(key);
+            }
+            objects.put(variant.getKey(), objFiles);
+        }
+        return objects;
+    }
+    
+    /**
+     * Compiles every unit into its own object file. Units found in the
+     * compile cache are restored instead, units finished by an interrupted
+     * build are reused from the checkpoint.
+     * @param units compile units in dispatch order.
+     * @param workers number of concurrent candle processes.
+     * @return compiled object files.
+     * @throws Exception
+     * @throws ToolsetException 
+     */
+    private FilePath[] compile(final List<CompileUnit> units, int workers) throws Exception, ToolsetException {
+        List<CompileUnit> pending = units;
+        if (cache != null) {
+            pending = restore(units);
+        }
+        List<CompileUnit> open = resume(pending);
+        if (!open.isEmpty() && compileAgents != null) {
+            distribute(open, Math.max(workers, 1));
+        } else if (!open.isEmpty()) {
+            execute(open, Math.max(workers, 1));
+        }
+        if (cache != null) {
+            Map<String, FilePath> outputs = new HashMap<String, FilePath>();
+            for (CompileUnit unit : pending) {
+                outputs.put(unit.cacheKey, unit.candle.getOutputFile());
+            }
+            cache.store(outputs);
+        }
+        
+        FilePath[] objFiles = new FilePath[units.size()];
+        for (int i = 0; i < objFiles.length; i++) {
+            objFiles[i] = units.get(i).candle.getOutputFile();
+        }
+        return objFiles;
+    }
+    
+    /**
+     * Runs the given compile units on a pool of workers. The first failing
+     * unit cancels all others.
+     * @param units compile units in dispatch order.
+     * @param workers number of concurrent candle processes.
+     * @throws Exception
+     * @throws ToolsetException if a unit failed.
+     */
+    private void execute(final List<CompileUnit> units, int workers) throws Exception, ToolsetException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers, 
+                new NamingThreadFactory(new DaemonThreadFactory(), "WiX compile worker"));
+        CompletionService<CompileUnit> completion = new ExecutorCompletionService<CompileUnit>(pool);
+        List<Future<CompileUnit>> results = new ArrayList<Future<CompileUnit>>();
+        final long start = System.currentTimeMillis();
+        try {
+            // the queue of the pool is FIFO, so the longest job is started first
+            for (final CompileUnit unit : units) {
+                results.add(completion.submit(lg.bound(new Callable<CompileUnit>() {
+                    public CompileUnit call() throws Exception {
+                        long begin = System.currentTimeMillis();
+                        try {
+                            lg.debug(messages.getString("EXECUTING_COMMAND"), unit.candle.toString());
+                            unit.candle.execute();
+                        } catch (ToolsetException e) {
+                            lg.log(e.getMessage());
+                        }
+                        unit.duration = System.currentTimeMillis() - begin;
+                        if (unit.candle.getOutcome() == WixCommand.Outcome.SUCCEEDED) {
+                            history().record(unit.key, unit.duration, unit.size);
+                            record(Collections.singletonList(unit));
+                        }
+                        return unit;
+                    }
+                })));
+            }
+            
+            // fail fast: the first failing compile cancels all others
+            CompileUnit failed = null;
+            long sum = 0;
+            long longest = 0;
+            for (int i = 0; i < results.size() && failed == null; i++) {
+                CompileUnit unit = completion.take().get();
+                if (unit.candle.getOutcome() == WixCommand.Outcome.SUCCEEDED) {
+                    sum += unit.duration;
+                    longest = Math.max(longest, unit.duration);
+                } else {
+                    failed = unit;
+                }
+            }
+            long makespan = System.currentTimeMillis() - start;
+            
+            if (failed != null) {
+                for (Future<CompileUnit> result : results) {
+                    result.cancel(false);
+                }
+                for (CompileUnit unit : units) {
+                    unit.candle.terminate();
+                }
+                pool.shutdown();
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+                int cancelled = 0;
+                for (CompileUnit unit : units) {
+                    WixCommand.Outcome outcome = unit.candle.getOutcome();
+                    if (unit != failed && (outcome == WixCommand.Outcome.CANCELLED || outcome == WixCommand.Outcome.NOT_STARTED)) {
+                        cancelled++;
+                    }
+                }
+                history().save();
+                lg.log(messages.getString("COMPILING_FAILED"));
+                if (cancelled > 0) {
+                    String msg = MessageFormat.format(messages.getString("COMPILES_CANCELLED"), cancelled, failed.key);
+                    lg.log(msg);
+                    report(msg);
+                }
+                throw failure(failed.candle, messages.getString("COMPILING_FAILED") + " " + failed.key);
+            }
+            history().save();
+            
+            // no schedule can be shorter than the longest job or the evenly distributed work
+            long ideal = Math.max(longest, (sum + workers - 1) / workers);
+            lg.log("Compiled %d sources with %d workers. Makespan: %d ms, ideal: %d ms (%d%% efficiency).", 
+                    units.size(), workers, makespan, ideal, (makespan == 0) ? 100 : ideal * 100 / makespan);
+            lg.log(messages.getString("COMPILING_SUCCESSFUL"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    /**
+     * Compiles units on all agents matching the label of the compile agents.
+     * The units are partitioned by their estimated duration, so every agent
+     * gets the same amount of work. Units which cannot be moved to another
+     * node, e.g. sources outside of the workspace, are compiled on the node
+     * of the build. The first failing shard cancels all others.
+     * @param units compile units in dispatch order.
+     * @param workers number of concurrent candle processes per agent.
+     * @throws Exception
+     * @throws ToolsetException if a unit failed.
+     */
+    private void distribute(List<CompileUnit> units, final int workers) throws Exception, ToolsetException {
+        Node local = build.getBuiltOn();
+        List<Node> nodes = CompileShards.nodes(compileAgents, local);
+        FilePath base = (scratch != null) ? scratch.getObjectDir() : workspace;
+        List<CompileUnit> movable = new ArrayList<CompileUnit>();
+        final List<CompileUnit> fixed = new ArrayList<CompileUnit>();
+        for (CompileUnit unit : units) {
+            boolean inWorkspace = unit.source.getRemote().startsWith(workspace.getRemote());
+            boolean inBase = unit.candle.getOutputFile().getRemote().startsWith(base.getRemote());
+            (inWorkspace && inBase ? movable : fixed).add(unit);
+        }
+        if (nodes.size() > movable.size()) {
+            nodes = nodes.subList(0, movable.size());
+        }
+        if (nodes.isEmpty() || (nodes.size() == 1 && isLocal(nodes.get(0)))) {
+            lg.log(messages.getString("SHARDS_NO_AGENTS"), compileAgents);
+            execute(units, workers);
+            return;
+        }
+        
+        long[] estimates = new long[movable.size()];
+        for (int i = 0; i < estimates.length; i++) {
+            estimates[i] = movable.get(i).estimate;
+        }
+        int[] assignment = CompileShards.partition(estimates, nodes.size());
+        final Map<Node, List<CompileUnit>> shards = new LinkedHashMap<Node, List<CompileUnit>>();
+        for (Node node : nodes) {
+            shards.put(node, new ArrayList<CompileUnit>());
+        }
+        for (int i = 0; i < assignment.length; i++) {
+            shards.get(nodes.get(assignment[i])).add(movable.get(i));
+        }
+        if (!fixed.isEmpty()) {
+            Node target = isLocal(nodes.get(0)) ? nodes.get(0) : local;
+            if (!shards.containsKey(target)) {
+                shards.put(target, new ArrayList<CompileUnit>());
+            }
+            shards.get(target).addAll(fixed);
+        }
+        
+        // commands of all shards, so a failing shard can terminate the others
+        final List<CompileUnit> running = Collections.synchronizedList(new ArrayList<CompileUnit>());
+        ExecutorService pool = Executors.newFixedThreadPool(shards.size(), 
+                new NamingThreadFactory(new DaemonThreadFactory(), "WiX compile shard"));
+        CompletionService<ToolsetException> completion = new ExecutorCompletionService<ToolsetException>(pool);
+        long start = System.currentTimeMillis();
+        try {
+            for (final Map.Entry<Node, List<CompileUnit>> shard : shards.entrySet()) {
+                completion.submit(lg.bound(new Callable<ToolsetException>() {
+                    public ToolsetException call() throws Exception {
+                        return compileShard(shard.getKey(), shard.getValue(), workers, running);
+                    }
+                }));
+            }
+            ToolsetException failure = null;
+            for (int i = 0; i < shards.size(); i++) {
+                ToolsetException result;
+                try {
+                    result = completion.take().get();
+                } catch (ExecutionException e) {
+                    result = new ToolsetException(e.getCause().getMessage());
+                }
+                if (result != null && failure == null) {
+                    failure = result;
+                    synchronized (running) {
+                        for (CompileUnit unit : running) {
+                            unit.candle.terminate();
+                        }
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        String msg = MessageFormat.format(messages.getString("SHARDS_COMPILED"), units.size(), shards.size(), 
+                System.currentTimeMillis() - start);
+        lg.log(msg);
+        report(msg);
+    }
+    
+    private boolean isLocal(Node node) {
+        Node local = build.getBuiltOn();
+        return local != null && node.getNodeName().equals(local.getNodeName());
+    }
+    
+    /**
+     * Compiles a shard on a node. Another node receives the sources of the
+     * shard with their include files and sends back only the object files.
+     * @param node node compiling the shard.
+     * @param shard compile units of the shard.
+     * @param workers number of concurrent candle processes.
+     * @param running receives the commands of the shard.
+     * @return null if the shard was compiled, otherwise the failure.
+     * @throws Exception
+     */
+    private ToolsetException compileShard(Node node, List<CompileUnit> shard, int workers, 
+            List<CompileUnit> running) throws Exception {
+        if (isLocal(node)) {
+            running.addAll(shard);
+            try {
+                execute(shard, workers);
+                return null;
+            } catch (ToolsetException e) {
+                return e;
+            }
         }
         
-        return light.getOutputFile();
+        long start = System.currentTimeMillis();
+        long estimate = 0;
+        List<FilePath> sources = new ArrayList<FilePath>();
+        for (CompileUnit unit : shard) {
+            estimate += unit.estimate;
+            sources.add(unit.source);
+        }
+        FilePath base = (scratch != null) ? scratch.getObjectDir() : workspace;
+        FilePath dir = node.getRootPath().child(CompileShards.DIRNAME).child(Util.getDigestOf(
+                build.getParent().getFullName() + "#" + build.getNumber() + "#" + System.nanoTime()).substring(0, 16));
+        try {
+            FilePath tmp = dir.child("tmp");
+            tmp.mkdirs();
+            Launcher remoteLauncher = node.createLauncher(new StreamTaskListener(lg.getStream()));
+            Timeline.Span transfer = timeline.begin("send sources", "transfer", node.getDisplayName());
+            List<String> inputs = workspace.act(new CompileShards.Closure(sources, ((Candle) candle).getIncludePaths()));
+            long sent = send(workspace, inputs, dir);
+            transfer.arg("files", inputs.size()).arg("bytes", sent).end();
+            
+            List<CompileUnit> remote = new ArrayList<CompileUnit>();
+            List<String> objects = new ArrayList<String>();
+            for (CompileUnit unit : shard) {
+                String object = unit.candle.getOutputFile().getRemote().substring(base.getRemote().length())
+                        .replace('\\', '/').replaceFirst("^/+", "");
+                CompileUnit copy = new CompileUnit();
+                copy.key = unit.key;
+                copy.size = unit.size;
+                copy.estimate = unit.estimate;
+                // the key of a variant is only a label, e.g. "src/product.wxs (x64)"
+                copy.source = dir.child(relativize(unit.source));
+                // a copy keeps the defines of variants
+                copy.candle = new Candle(unit.candle);
+                copy.candle.setLauncher(remoteLauncher);
+                copy.candle.setTimeline(timeline, node.getDisplayName());
+                copy.candle.addWorkspace(dir);
+                ((Candle) copy.candle).relocateIncludePaths(workspace, dir);
+                copy.candle.setTempDir(tmp);
+                copy.candle.setLogDir((logDir != null) ? dir.child("logs") : null);
+                copy.candle.addSourceFile(copy.source);
+                copy.candle.setOutputFile(dir.child(object));
+                copy.candle.render();
+                remote.add(copy);
+                objects.add(object);
+            }
+            running.addAll(remote);
+            execute(remote, workers);
+            transfer = timeline.begin("receive objects", "transfer", node.getDisplayName());
+            long received = send(dir, objects, base);
+            transfer.arg("files", objects.size()).arg("bytes", received).end();
+            record(shard);
+            String msg = MessageFormat.format(messages.getString("SHARD_COMPILED"), node.getDisplayName(), 
+                    shard.size(), System.currentTimeMillis() - start, estimate, sent / 1024, received / 1024);
+            lg.log(msg);
+            return null;
+        } catch (ToolsetException e) {
+            return e;
+        } finally {
+            try {
+                if (logDir != null && dir.child("logs").exists()) {
+                    dir.child("logs").copyRecursiveTo("*" + LogFilter.EXTENSION, logDir);
+                }
+                dir.deleteRecursive();
+            } catch (IOException e) {
+                lg.log(messages.getString("SHARD_CLEANUP_FAILED"), dir.getRemote(), e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Copies files between two nodes as one verified zip stream through the
+     * controller. Files of which the receiving node has a previous version
+     * are sent as delta.
+     * @param from directory on the sending node.
+     * @param paths files relative to from.
+     * @param to directory on the receiving node.
+     * @return number of bytes copied.
+     * @throws Exception
+     * @throws ToolsetException if a file was not received intact.
+     */
+    private long send(FilePath from, List<String> paths, FilePath to) throws Exception, ToolsetException {
+        File zip = File.createTempFile("wix-shard", ".zip");
+        try {
+            Map<String, Set<String>> previous = to.act(new DeltaTransfer.Signatures(paths));
+            Map<String, OutputTransfer.Entry> manifest;
+            OutputStream out = new FileOutputStream(zip);
+            try {
+                manifest = from.act(new OutputTransfer(paths, out, previous));
+                // writes of the node are asynchronous, wait until all of them arrived
+                if (from.getChannel() instanceof Channel) {
+                    ((Channel) from.getChannel()).syncLocalIO();
+                }
+            } finally {
+                out.close();
+            }
+            List<String> problems;
+            InputStream in = new FileInputStream(zip);
+            try {
+                problems = to.act(new CompileShards.Unpack(in, manifest));
+            } finally {
+                in.close();
+            }
+            if (!problems.isEmpty()) {
+                for (String problem : problems) {
+                    lg.log(problem);
+                }
+                throw new ToolsetException(MessageFormat.format(messages.getString("TRANSFER_CORRUPT"), problems.size()));
+            }
+            logDelta(manifest);
+            long size = 0;
+            for (OutputTransfer.Entry entry : manifest.values()) {
+                size += entry.getSize();
+            }
+            return size;
+        } finally {
+            zip.delete();
+        }
+    }
+    
+    /**
+     * Computes the checkpoint key of every unit and skips the units whose
+     * object files were recorded by an interrupted build and are unchanged.
+     * @param units compile units.
+     * @return units which have to be compiled.
+     * @throws Exception
+     */
+    private List<CompileUnit> resume(List<CompileUnit> units) throws Exception {
+        if (checkpoint == null || units.isEmpty()) {
+            return units;
+        }
+        List<FilePath> sources = new ArrayList<FilePath>();
+        for (CompileUnit unit : units) {
+            sources.add(unit.source);
+        }
+        List<FilePath> includePaths = ((Candle) candle).getIncludePaths();
+        Map<String, String> digests = workspace.act(new SourceDigest(sources, includePaths));
+        Map<String, Set<String>> usage = workspace.act(new DefineUsage(sources, includePaths));
+        Map<String, String> keys = new HashMap<String, String>();
+        for (CompileUnit unit : units) {
+            // the parameters of the unit include the defines of its variant
+            unit.checkpointKey = compileKey(digests.get(unit.source.getRemote()) + "|" 
+                    + unit.candle.getOptionsFingerprint(false), unit.candle.getParameters(), 
+                    usage.get(unit.source.getRemote()));
+            keys.put(unit.candle.getOutputFile().getRemote(), unit.checkpointKey);
+        }
+        if (resumed == null) {
+            return units;
+        }
+        Set<String> reusable = checkpoint.reusable(keys);
+        List<CompileUnit> open = new ArrayList<CompileUnit>();
+        for (CompileUnit unit : units) {
+            if (reusable.contains(unit.candle.getOutputFile().getRemote())) {
+                timeline.instant(unit.key, "cache", agent, "cache", "checkpoint");
+            } else {
+                open.add(unit);
+            }
+        }
+        if (!reusable.isEmpty()) {
+            String msg = MessageFormat.format(messages.getString("CHECKPOINT_REUSED"), reusable.size(), units.size());
+            lg.log(msg);
+            report(msg);
+        }
+        return open;
+    }
+    
+    /**
+     * Records finished compile units in the checkpoint.
+     * @param units compile units with their object files.
+     * @throws InterruptedException
+     */
+    private void record(List<CompileUnit> units) throws InterruptedException {
+        Map<String, String> keys = new HashMap<String, String>();
+        for (CompileUnit unit : units) {
+            if (unit.checkpointKey != null) {
+                keys.put(unit.candle.getOutputFile().getRemote(), unit.checkpointKey);
+            }
+        }
+        record(keys);
+    }
+    
+    /**
+     * Records finished outputs in the checkpoint. A checkpoint which cannot
+     * be written does not fail the build.
+     * @param keys key of the inputs by absolute path of output.
+     * @throws InterruptedException
+     */
+    private void record(Map<String, String> keys) throws InterruptedException {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.record(keys);
+        } catch (IOException e) {
+            lg.log(messages.getString("CHECKPOINT_FAILED"), e.getMessage());
+        }
+    }
+    
+    /**
+     * Computes the cache key of every unit and restores cached object files.
+     * @param units compile units.
+     * @return units which are not in the cache and have to be compiled.
+     * @throws Exception
+     */
+    private List<CompileUnit> restore(List<CompileUnit> units) throws Exception {
+        fingerprint(units, cacheMode);
+        Map<String, FilePath> targets = new HashMap<String, FilePath>();
+        for (CompileUnit unit : units) {
+            targets.put(unit.cacheKey, unit.candle.getOutputFile());
+        }
+        Set<String> hits = cache.restore(targets);
+        List<CompileUnit> pending = new ArrayList<CompileUnit>();
+        for (CompileUnit unit : units) {
+            if (hits.contains(unit.cacheKey)) {
+                lg.debug("Compile cache hit: %s", unit.key);
+                timeline.instant(unit.key, "cache", agent, "cache", "hit");
+            } else {
+                unit.candle.setCacheState("miss");
+                pending.add(unit);
+            }
+        }
+        cacheLookups += units.size();
+        cacheHits += units.size() - pending.size();
+        String msg = MessageFormat.format(messages.getString("COMPILE_CACHE_STATS"), 
+                units.size() - pending.size(), pending.size(), cacheMode);
+        lg.log(msg);
+        report(msg);
+        return pending;
+    }
+    
+    /**
+     * Computes the cache key of every unit. The key covers the content of the
+     * source and every option of candle which influences the object file.
+     * In mode preprocessed the content is taken from the normalized output of
+     * candle's preprocessor, so comments, formatting and branches of
+     * conditions which are not taken do not change the key. Sources which
+     * cannot be preprocessed fall back to their raw content.
+     * @param units compile units.
+     * @param mode cache mode.
+     * @throws Exception
+     */
+    private void fingerprint(List<CompileUnit> units, Wix.CacheMode mode) throws Exception {
+        if (mode == Wix.CacheMode.preprocessed) {
+            List<CompileUnit> open = new ArrayList<CompileUnit>();
+            for (CompileUnit unit : units) {
+                if (unit.cacheKey == null) {
+                    open.add(unit);
+                }
+            }
+            for (int from = 0; from < open.size(); from += PREPROCESS_BATCH) {
+                preprocess(open.subList(from, Math.min(from + PREPROCESS_BATCH, open.size())));
+            }
+        }
+        List<FilePath> raw = new ArrayList<FilePath>();
+        for (CompileUnit unit : units) {
+            if (unit.cacheKey == null) {
+                raw.add(unit.source);
+            }
+        }
+        if (!raw.isEmpty()) {
+            List<FilePath> includePaths = ((Candle) candle).getIncludePaths();
+            Map<String, String> digests = workspace.act(new SourceDigest(raw, includePaths));
+            Map<String, Set<String>> usage = workspace.act(new DefineUsage(raw, includePaths));
+            String options = ((Candle) candle).getOptionsFingerprint(false);
+            for (CompileUnit unit : units) {
+                if (unit.cacheKey == null) {
+                    unit.cacheKey = compileKey(digests.get(unit.source.getRemote()) + "|" + options, 
+                            candle.getParameters(), usage.get(unit.source.getRemote()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the key of a compile from the digests of its sources, its
+     * options and the defines its sources use. Defines the sources do not
+     * use are left out, so parameters changing with every build, e.g.
+     * BUILD_NUMBER passed with the environment as parameters, do not prevent
+     * the reuse of an object file.
+     * @param prefix digests of the sources and options without defines.
+     * @param defines defines of the compile.
+     * @param used defines used by the sources, see {@link DefineUsage}.
+     * @return key of the compile.
+     */
+    private static String compileKey(String prefix, Map<String, String> defines, Set<String> used) {
+        StringBuilder key = new StringBuilder(prefix);
+        for (Map.Entry<String, String> define : new TreeMap<String, String>(defines).entrySet()) {
+            if (used.contains(DefineUsage.ALL) || used.contains(define.getKey())) {
+                key.append("|-d").append(define.getKey()).append('=').append(define.getValue());
+            }
+        }
+        return Fingerprints.of(key.toString());
+    }
+    
+    /**
+     * Preprocesses a batch of sources with a single invocation of candle and
+     * derives the cache keys from the normalized output.
+     * @param batch compile units.
+     * @throws Exception
+     */
+    private void preprocess(List<CompileUnit> batch) throws Exception {
+        Candle preprocessor = new Candle((Candle) candle);
+        preprocessor.setPreprocessOnly(true);
+        for (CompileUnit unit : batch) {
+            preprocessor.addSourceFile(unit.source);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        preprocessor.setStdout(out);
+        try {
+            if (!preprocessor.execute()) {
+                lg.log(messages.getString("PREPROCESSING_FAILED"));
+                return;
+            }
+            List<byte[]> documents = Fingerprints.splitDocuments(out.toByteArray());
+            if (documents.size() != batch.size()) {
+                lg.log(messages.getString("PREPROCESSING_FAILED"));
+                return;
+            }
+            String options = ((Candle) candle).getOptionsFingerprint(false);
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).cacheKey = Fingerprints.of(Fingerprints.ofNormalizedXml(documents.get(i)) + "|" + options);
+            }
+        } catch (ToolsetException e) {
+            lg.log(e.getMessage());
+        } catch (IOException e) {
+            lg.log(e.getMessage());
+            lg.log(messages.getString("PREPROCESSING_FAILED"));
+        }
+    }
+    
+    /**
+     * Creates one compiler invocation per valid source file and orders them
+     * by their estimated duration, longest first.
+     * @param input set of source files.
+     * @return compile units in dispatch order.
+     * @throws Exception
+     * @throws ToolsetException 
+     */
+    private List<CompileUnit> schedule(FilePath[] input) throws Exception, ToolsetException {
+        List<CompileUnit> units = new ArrayList<CompileUnit>();
+        for (FilePath fp : input) {
+            if (!isValid(fp, ".wxs")) {
+                lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
+                continue;
+            }
+            CompileUnit unit = new CompileUnit();
+            unit.source = fp;
+            unit.candle = new Candle((Candle) candle);
+            unit.candle.addSourceFile(fp);
+            unit.candle.setOutputFile(intermediate(replaceExtension(fp, ".wxs", ".wixobj")));
+            unit.candle.render();
+            unit.key = relativize(fp);
+            // size is only needed for sources without history
+            unit.size = (history().getDuration(unit.key) < 0) ? fp.length() : -1;
+            unit.estimate = history().estimate(unit.key, unit.size);
+            units.add(unit);
+        }
+        if (units.isEmpty()) {
+            throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
+        }
+        Collections.sort(units, new Comparator<CompileUnit>() {
+            public int compare(CompileUnit a, CompileUnit b) {
+                return (a.estimate < b.estimate) ? 1 : (a.estimate > b.estimate) ? -1 : 0;
+            }
+        });
+        for (CompileUnit unit : units) {
+            lg.debug("Scheduling %s (estimated %d ms)", unit.key, unit.estimate);
+        }
+        return units;
+    }
+    
+    /**
+     * Creates the exception for a failed command. Timeouts and cancellations
+     * are also added to the summary of the build.
+     * @param cmd failed command.
+     * @param message message if the command failed by itself.
+     * @return exception to throw.
+     */
+    private ToolsetException failure(WixCommand cmd, String message) {
+        String msg;
+        switch (cmd.getOutcome()) {
+        case TIMED_OUT:
+            msg = MessageFormat.format(messages.getString("TIMED_OUT"), cmd.getExecutable(), cmd.getTimeout());
+            break;
+        case CANCELLED:
+            msg = MessageFormat.format(messages.getString("CANCELLED"), cmd.getExecutable());
+            break;
+        default:
+            return new ToolsetException(message);
+        }
+        lg.log(msg);
+        report(msg);
+        return new ToolsetException(msg);
+    }
+    
+    /**
+     * Adds a message to the summary of the build.
+     * @param message message to show on the build page.
+     */
+    private void report(String message) {
+        if (build != null) {
+            WixBuildAction.of(build).addMessage(message);
+        }
+    }
+    
+    /**
+     * Returns the compile history of the job, loaded on first use. Only
+     * builds which schedule compiles read it.
+     * @return compile history.
+     */
+    private synchronized CompileHistory history() {
+        if (history == null) {
+            history = new CompileHistory((build == null) ? null 
+                    : new File(build.getProject().getRootDir(), CompileHistory.FILENAME));
+        }
+        return history;
+    }
+    
+    /**
+     * Returns the key of a link in the compile history.
+     * @param output output of light.
+     * @return key of the link.
+     */
+    private String linkKey(FilePath output) {
+        return "link:" + relativize(output);
+    }
+    
+    /**
+     * Returns the path of a file relative to the workspace. Used as stable key
+     * across builds which may run on different nodes.
+     * @param fp file path.
+     * @return relative path.
+     */
+    private String relativize(FilePath fp) {
+        String path = fp.getRemote();
+        if (workspace != null && path.startsWith(workspace.getRemote())) {
+            path = path.substring(workspace.getRemote().length());
+        }
+        return path.replace('\\', '/').replaceFirst("^/+", "");
+    }
+    
+    /**
+     * compile invocation of a single source file.
+     */
+    private static final class CompileUnit {
+        Candle candle;
+        FilePath source;
+        String key;
+        String cacheKey;
+        // key of the inputs in the checkpoint, null for copies compiled on other nodes
+        String checkpointKey;
+        long size;
+        long estimate;
+        long duration;
+    }
+    
+    /**
+     * Creates a compiler with every valid source file and the output file and
+     * creates the command line. The configured compiler is not changed.
+     * @param input set of source files.
+     * @param output object file.
+     * @return compiler.
+     * @throws ToolsetException 
+     */
+    private WixCommand prepareCompile(FilePath[] input, FilePath output) throws ToolsetException {
+        WixCommand compiler = new Candle((Candle) candle);
+        // add every source file
+        for (FilePath fp : input) {
+            if (isValid(fp, ".wxs")) {
+                lg.debug(messages.getString("ADDING_SOURCE_FILE"), fp.getRemote());
+                compiler.addSourceFile(fp);
+            } else {
+                lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
+            }
+        }
+        // add output file
+        compiler.setOutputFile(output);
+        
+        compiler.render();
+        return compiler;
+    }
+    
+    /**
+     * Resolves the execution plan for the given sources without launching
+     * any process. If output is null, the plan does not contain a link step.
+     * Configured phases which depend on the results of earlier steps, e.g.
+     * variants, chained packages, signing and patches, are only listed as
+     * not planned.
+     * @param input set of source files.
+     * @param output name of MSI package or null if sources are only compiled.
+     * @return execution plan.
+     * @throws ToolsetException 
+     */
+    public ExecutionPlan plan(FilePath[] input, FilePath output) throws Exception, ToolsetException {
+        if (input.length == 0 && librarySources == null) {
+            throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
+        }
+        ExecutionPlan plan = new ExecutionPlan();
+        for (Map.Entry<String, String> entry : settings.toMap().entrySet()) {
+            plan.addSetting(entry.getKey(), entry.getValue());
+        }
+        
+        int workers = settings.get(Wix.COMPILE_WORKERS, 1);
+        Light linker = new Light((Light) light);
+        // estimate from the history of the steps: concurrent compiles, serial compiles and link
+        long concurrentMillis = 0;
+        long serialMillis = 0;
+        boolean known = false;
+        if (librarySources != null) {
+            List<CompileUnit> units = schedule(librarySources);
+            String key = libraryKey(units);
+            boolean restored = libraryCache != null 
+                    && libraryCache.probe(Collections.singleton(key)).contains(key);
+            Lit librarian = new Lit((Lit) lit);
+            for (CompileUnit unit : units) {
+                plan.addSource(unit.source.getRemote());
+                if (!restored) {
+                    addToPlan(plan, unit.candle, "library compile (" + Math.max(workers, 1) + " workers)", 
+                            (cache == null) ? ExecutionPlan.NOT_CACHED : ExecutionPlan.CACHE_UNKNOWN);
+                    librarian.addSourceFile(unit.candle.getOutputFile());
+                    concurrentMillis += unit.estimate;
+                    known |= history().getDuration(unit.key) >= 0;
+                }
+            }
+            librarian.setOutputFile(libraryFile);
+            librarian.render();
+            addToPlan(plan, librarian, "library", (libraryCache == null) ? ExecutionPlan.NOT_CACHED 
+                    : restored ? ExecutionPlan.CACHE_HIT : ExecutionPlan.CACHE_MISS);
+        }
+        if (input.length > 0 && cache == null && (workers <= 1 || input.length <= 1)) {
+            FilePath objFile = replaceExtension(input[0], ".wxs", ".wixobj");
+            WixCommand compiler = prepareCompile(input, objFile);
+            for (FilePath source : compiler.getSourceFiles()) {
+                plan.addSource(source.getRemote());
+                long duration = history().getDuration(relativize(source));
+                serialMillis += (duration >= 0) ? duration : history().estimate(relativize(source), source.length());
+                known |= duration >= 0;
+            }
+            addToPlan(plan, compiler, "compile", ExecutionPlan.NOT_CACHED);
+            // the object file does not exist yet, so it is not validated
+            linker.addSourceFile(objFile);
+        } else if (input.length > 0) {
+            List<CompileUnit> units = schedule(input);
+            Set<String> hits = null;
+            if (cache != null && cacheMode == Wix.CacheMode.source) {
+                // keys of preprocessed sources would need candle, so they stay unknown
+                fingerprint(units, cacheMode);
+                Set<String> keys = new HashSet<String>();
+                for (CompileUnit unit : units) {
+                    keys.add(unit.cacheKey);
+                }
+                hits = cache.probe(keys);
+            }
+            for (CompileUnit unit : units) {
+                String state = ExecutionPlan.NOT_CACHED;
+                if (cache != null) {
+                    state = (hits == null) ? ExecutionPlan.CACHE_UNKNOWN 
+                            : hits.contains(unit.cacheKey) ? ExecutionPlan.CACHE_HIT : ExecutionPlan.CACHE_MISS;
+                }
+                plan.addSource(unit.source.getRemote());
+                addToPlan(plan, unit.candle, "compile (" + Math.max(workers, 1) + " workers)", state);
+                linker.addSourceFile(unit.candle.getOutputFile());
+                if (!ExecutionPlan.CACHE_HIT.equals(state)) {
+                    concurrentMillis += unit.estimate;
+                    known |= history().getDuration(unit.key) >= 0;
+                }
+            }
+        }
+        
+        if (output != null && input.length > 0) {
+            if (librarySources != null) {
+                linker.addSourceFile(libraryFile);
+            }
+            for (FilePath library : libraries) {
+                linker.addSourceFile(library);
+            }
+            linker.setOutputFile(output);
+            linker.render();
+            addToPlan(plan, linker, "link", ExecutionPlan.NOT_CACHED);
+            long duration = history().getDuration(linkKey(output));
+            serialMillis += Math.max(duration, 0);
+            known |= duration >= 0;
+        }
+        
+        notPlanned(plan);
+        if (known) {
+            int w = Math.max(workers, 1);
+            plan.setEstimatedDuration((concurrentMillis + w - 1) / w + serialMillis);
+        } else if (build != null) {
+            // without any recorded step the duration of the last builds is the best guess
+            plan.setEstimatedDuration(build.getProject().getEstimatedDuration());
+        }
+        return plan;
+    }
+    
+    /**
+     * Lists the configured phases which the plan does not resolve.
+     * @param plan execution plan.
+     */
+    private void notPlanned(ExecutionPlan plan) {
+        String[][] phases = {
+            {Wix.VALIDATE_SOURCES, "source validation"},
+            {Wix.PAYLOADS, "payload fetches"},
+            {Wix.CHECK_PAYLOAD, "payload check"},
+            {Wix.CHAINED_PACKAGES, "chained packages"},
+            {Wix.VARIANTS, "compile and link per variant"},
+            {Wix.SIGN_COMMAND, "signing"},
+            {Wix.RELEASE_VERSION, "baseline storage"},
+            {Wix.PATCH_SOURCES, "patch and baseline restore"},
+            {Wix.TRANSFER_OUTPUTS, "output transfer"},
+        };
+        for (String[] phase : phases) {
+            String value = settings.get(phase[0], "");
+            if (StringUtils.isNotBlank(value) && !"false".equals(value)) {
+                plan.addNotPlanned(phase[1] + " (" + phase[0] + ")");
+            }
+        }
+    }
+    
+    private void addToPlan(ExecutionPlan plan, WixCommand cmd, String group, String cacheState) {
+        for (String extension : cmd.getExtensions()) {
+            plan.addExtension(extension);
+        }
+        for (Map.Entry<String, String> entry : cmd.getParameters().entrySet()) {
+            plan.addDefine(entry.getKey(), entry.getValue());
+        }
+        plan.addStep(new ExecutionPlan.Step(cmd.getExecutable(), group, cmd.toString(), 
+                cmd.getOutputFile().getRemote(), cacheState));
+    }
+    
+    /***
+     * Links the given object file into an MSI package.
+     * @param file object file.
+     * @return MSI package file.
+     * @throws Exception
+     * @throws ToolsetException 
+     */
+    public FilePath link(FilePath file) throws Exception, ToolsetException {
+        FilePath[] input = {file};
+        return link(input);
+    }
+    
+    /**
+     * Links a set of given object files into an MSI package.
+     * @param input set of object files.
+     * @return MSI package file.
+     * @throws Exception
+     * @throws ToolsetException 
+     */
+    public FilePath link(FilePath[] input) throws Exception, ToolsetException {
+    	if (input.length == 0) {
+    		throw new ToolsetException(messages.getString("NO_INPUT_FILE"));
+    	} else {
+    		FilePath output = replaceExtension(input[0], ".wixobj", ".msi");
+    		return link(input, output);
+    	}
+    }
+    
+    /**
+     * Links a set of given object files into an MSI package.
+     * @param input set of object files.
+     * @param output name of MSI package.
+     * @return MSI package file.
+     * @throws Exception
+     * @throws ToolsetException 
+     */
+    public FilePath link(FilePath[] input, FilePath output) throws Exception, ToolsetException {
+        Light linker = new Light((Light) light);
+        // add every object file
+        for (FilePath fp : input) {
+            if (isValid(fp, ".wixobj")) {
+                lg.debug(messages.getString("ADDING_OBJECT_FILE"), fp.getRemote());
+                linker.addSourceFile(fp);
+            } else {
+                lg.log(messages.getString("NO_VALID_OBJECT_FILE"), fp.getRemote());
+            }
+        }
+        // libraries are linked like object files
+        for (FilePath fp : libraries) {
+            lg.debug(messages.getString("ADDING_LIBRARY_FILE"), fp.getRemote());
+            linker.addSourceFile(fp);
+        }
+        // add output file, light writes all files into the scratch directory if set
+        FilePath linkOut = output;
+        if (scratch != null) {
+            linkOut = scratch.getDir().child("out").child(output.getName());
+            linkOut.getParent().mkdirs();
+        }
+        linker.setOutputFile(linkOut);
+        
+        linker.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), linker.toString());
+        Map<String, Long> cabinets = cabinets(linkOut);
+        long begin = System.currentTimeMillis();
+        if (linker.execute()) {
+            lg.log(messages.getString("LINKING_SUCCESSFUL"));
+            if (history != null) {
+                history.record(linkKey(output), System.currentTimeMillis() - begin, -1);
+                history.save();
+            }
+        } else {
+            lg.log(messages.getString("LINKING_FAILED"));
+            throw failure(linker, messages.getString("LINKING_FAILED"));
+        }
+        // cabinets written by light are new or have a different modification time
+        linkedOutputs.clear();
+        linkedOutputs.add(linkOut);
+        for (Map.Entry<String, Long> cab : cabinets(linkOut).entrySet()) {
+            if (!cab.getValue().equals(cabinets.get(cab.getKey()))) {
+                linkedOutputs.add(new FilePath(linkOut.getChannel(), cab.getKey()));
+            }
+        }
+        if (scratch != null) {
+            // only final outputs are moved into the workspace
+            if (pdbOf(linkOut).exists()) {
+                scratch.moveTo(pdbOf(linkOut), output.getParent());
+            }
+            for (int i = 0; i < linkedOutputs.size(); i++) {
+                linkedOutputs.set(i, scratch.moveTo(linkedOutputs.get(i), output.getParent()));
+            }
+        }
+        for (FilePath fp : linkedOutputs) {
+            produced(fp);
+        }
+        if (pdbOf(output).exists()) {
+            produced(pdbOf(output));
+        }
+        
+        return output;
+    }
+    
+    /**
+     * Builds the packages chained into a bundle concurrently. Each package is
+     * compiled by one invocation of candle and linked by light. The input
+     * fingerprint set of every package is recorded with the build. A package
+     * whose inputs have not changed since the last successful build keeps the
+     * output of that build, packages built from inputs seen before are
+     * restored from the cache of the node instead of being linked again.
+     * @param packages chained packages.
+     * @param workers number of packages built concurrently.
+     * @return packages in order of the configuration.
+     * @throws Exception
+     * @throws ToolsetException if a package failed.
+     */
+    public FilePath[] packages(List<ChainedPackage> packages, int workers) throws Exception, ToolsetException {
+        final FilePath[] outputs = new FilePath[packages.size()];
+        final List<WixCommand[]> pending = new ArrayList<WixCommand[]>();
+        Map<String, FilePath> changed = new HashMap<String, FilePath>();
+        Run<?, ?> previous = (build != null) ? build.getPreviousSuccessfulBuild() : null;
+        Map<String, Map<String, String>> recorded = (previous != null) 
+                ? PackageInputs.load(new File(previous.getRootDir(), PackageInputs.FILENAME)) 
+                : new HashMap<String, Map<String, String>>();
+        Map<String, Map<String, String>> current = new TreeMap<String, Map<String, String>>();
+        int unchanged = 0;
+        for (int i = 0; i < packages.size(); i++) {
+            ChainedPackage pkg = packages.get(i);
+            FilePath[] input = workspace.list(envVars.expand(pkg.getSources()));
+            if (input.length == 0) {
+                throw new ToolsetException(MessageFormat.format(messages.getString("PACKAGE_WITHOUT_SOURCES"), pkg));
+            }
+            outputs[i] = workspace.child(envVars.expand(pkg.getOutput()));
+            String name = relativize(outputs[i]);
+            Map<String, String> inputs = packageInputs(input);
+            current.put(name, inputs);
+            Map<String, String> last = recorded.get(name);
+            List<String> changes = (last != null) ? PackageInputs.changes(last, inputs) : null;
+            if (changes != null && changes.isEmpty() && carryForward(previous, name, last.get(PackageInputs.OUTPUT), outputs[i])) {
+                timeline.instant(name, "cache", agent, "cache", "unchanged");
+                unchanged++;
+                continue;
+            }
+            String key = PackageInputs.key(inputs);
+            if (packageCache != null) {
+                cacheLookups++;
+            }
+            if (packageCache != null && packageCache.restore(Collections.singletonMap(key, outputs[i])).contains(key)) {
+                cacheHits++;
+                cachedPackages.add(name);
+                lg.log(messages.getString("PACKAGE_UNCHANGED"), name);
+                timeline.instant(name, "cache", agent, "cache", "hit");
+                unchanged++;
+                continue;
+            }
+            if (changes == null) {
+                lg.log(messages.getString("PACKAGE_REBUILT_NEW"), name);
+            } else if (changes.isEmpty()) {
+                lg.log(messages.getString("PACKAGE_REBUILT_MISSING"), name, previous.getNumber());
+            } else {
+                lg.log(messages.getString("PACKAGE_REBUILT_CHANGED"), name, previous.getNumber(), 
+                        PackageInputs.summarize(changes, 5));
+            }
+            Candle compiler = new Candle((Candle) candle);
+            for (FilePath fp : input) {
+                if (isValid(fp, ".wxs")) {
+                    compiler.addSourceFile(fp);
+                } else {
+                    lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
+                }
+            }
+            String base = outputs[i].getName();
+            int dot = base.lastIndexOf('.');
+            compiler.setOutputFile(intermediate(outputs[i].sibling(((dot > 0) ? base.substring(0, dot) : base) + ".wixobj")));
+            compiler.render();
+            Light linker = new Light((Light) light);
+            linker.addSourceFile(compiler.getOutputFile());
+            linker.setOutputFile(outputs[i]);
+            linker.render();
+            pending.add(new WixCommand[] {compiler, linker});
+            changed.put(key, outputs[i]);
+        }
+        
+        if (!pending.isEmpty()) {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, pending.size())), 
+                    new NamingThreadFactory(new DaemonThreadFactory(), "WiX package worker"));
+            CompletionService<WixCommand> completion = new ExecutorCompletionService<WixCommand>(pool);
+            try {
+                for (final WixCommand[] commands : pending) {
+                    completion.submit(lg.bound(new Callable<WixCommand>() {
+                        public WixCommand call() throws Exception {
+                            for (WixCommand cmd : commands) {
+                                lg.debug(messages.getString("EXECUTING_COMMAND"), cmd.toString());
+                                try {
+                                    if (!cmd.execute()) {
+                                        return cmd;
+                                    }
+                                } catch (ToolsetException e) {
+                                    lg.log(e.getMessage());
+                                    return cmd;
+                                }
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                for (int i = 0; i < pending.size(); i++) {
+                    WixCommand failed = completion.take().get();
+                    if (failed != null) {
+                        // fail fast like the compile workers
+                        for (WixCommand[] commands : pending) {
+                            for (WixCommand cmd : commands) {
+                                cmd.terminate();
+                            }
+                        }
+                        throw failure(failed, MessageFormat.format(messages.getString("PACKAGE_FAILED"), 
+                                relativize(failed.getOutputFile())));
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            if (packageCache != null) {
+                packageCache.store(changed);
+                for (FilePath output : changed.values()) {
+                    cachedPackages.add(relativize(output));
+                }
+            }
+        }
+        for (FilePath output : outputs) {
+            produced(output);
+        }
+        record(current, outputs);
+        String msg = MessageFormat.format(messages.getString("PACKAGES_BUILT"), pending.size(), unchanged);
+        lg.log(msg);
+        report(msg);
+        return outputs;
+    }
+    
+    /**
+     * Collects the input fingerprint set of a chained package on the node of
+     * the workspace and adds the options of candle and light.
+     * @param input sources of the package.
+     * @return input fingerprint set.
+     * @throws Exception
+     */
+    private Map<String, String> packageInputs(FilePath[] input) throws Exception {
+        List<FilePath> sources = Arrays.asList(input);
+        List<FilePath> includePaths = ((Candle) candle).getIncludePaths();
+        Light linker = (Light) light;
+        Map<String, String> inputs = workspace.act(new PackageInputs.Scan(sources, new SourceDigest(sources, includePaths), 
+                new PayloadCheck(input, includePaths, linker.getBindPaths(), linker.getNamedBindPaths(), 
+                        candle.getParameters(), envVars)));
+        inputs.put("option:candle", Fingerprints.of(((Candle) candle).getOptionsFingerprint(true)));
+        inputs.put("option:light", Fingerprints.of(linker.getOptionsFingerprint()));
+        return inputs;
+    }
+    
+    /**
+     * Carries the output of an unchanged package forward from the last
+     * successful build. The output is kept if the workspace still holds it,
+     * otherwise it is copied from the artifacts of that build.
+     * @param previous last successful build.
+     * @param name path of the package relative to the workspace.
+     * @param hash recorded hash of the output.
+     * @param output output in the workspace.
+     * @return true if the output of the previous build is in place.
+     * @throws Exception
+     */
+    private boolean carryForward(Run<?, ?> previous, String name, String hash, FilePath output) throws Exception {
+        if (hash == null) {
+            return false;
+        }
+        if (hash.equals(workspace.act(new PackageInputs.Hash(Collections.singletonList(output))).get(output.getRemote()))) {
+            lg.log(messages.getString("PACKAGE_KEPT"), name, previous.getNumber());
+            return true;
+        }
+        File archived = new File(previous.getArtifactsDir(), name);
+        if (hash.equals(PackageInputs.hash(archived))) {
+            output.copyFrom(new FilePath(archived));
+            lg.log(messages.getString("PACKAGE_CARRIED_FORWARD"), name, previous.getNumber());
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Records the input fingerprint sets and the hashes of the outputs of
+     * chained packages in the directory of the build.
+     * @param inputs sets by path of package.
+     * @param outputs packages.
+     * @throws Exception
+     */
+    private void record(Map<String, Map<String, String>> inputs, FilePath[] outputs) throws Exception {
+        if (build == null) {
+            return;
+        }
+        Map<String, String> hashes = workspace.act(new PackageInputs.Hash(Arrays.asList(outputs)));
+        for (FilePath output : outputs) {
+            String hash = hashes.get(output.getRemote());
+            if (hash != null) {
+                inputs.get(relativize(output)).put(PackageInputs.OUTPUT, hash);
+            }
+        }
+        PackageInputs.save(new File(build.getRootDir(), PackageInputs.FILENAME), inputs);
+    }
+    
+    /**
+     * Adds an extension to the compiler and the linker if it is not used yet.
+     * @param extension name of extension.
+     */
+    public void enableExtension(String extension) {
+        if (!candle.getExtensions().contains(extension)) {
+            candle.addExtension(extension);
+        }
+        if (!light.getExtensions().contains(extension)) {
+            light.addExtension(extension);
+        }
+    }
+    
+    /**
+     * Signs a bundle. The engine is detached by insignia, signed and
+     * reattached, afterwards the bundle itself is signed.
+     * @param bundle linked bundle.
+     * @param signCommand command line of the signing tool, the files to sign
+     *        are appended.
+     * @throws Exception
+     * @throws ToolsetException if a step failed.
+     */
+    public void signBundle(FilePath bundle, String signCommand) throws Exception, ToolsetException {
+        FilePath engine = bundle.sibling("engine-" + bundle.getName());
+        Insignia detach = new Insignia((Insignia) insignia);
+        detach.addSourceFile(bundle);
+        detach.setOutputFile(engine);
+        detach.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), detach.toString());
+        if (!detach.execute()) {
+            throw failure(detach, messages.getString("SIGNING_FAILED"));
+        }
+        sign(Collections.singletonList(engine), signCommand, 1, 1);
+        
+        Insignia reattach = new Insignia((Insignia) insignia);
+        reattach.addSourceFile(bundle);
+        reattach.setEngine(engine);
+        reattach.setOutputFile(bundle);
+        reattach.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), reattach.toString());
+        if (!reattach.execute()) {
+            throw failure(reattach, messages.getString("SIGNING_FAILED"));
+        }
+        sign(Collections.singletonList(bundle), signCommand, 1, 1);
+        engine.delete();
+    }
+    
+    /**
+     * Signs the given files. Several files are passed to one invocation of the
+     * signing tool, so the tool is started and the timestamp server contacted
+     * once per batch. Batches run in parallel up to the given limit.
+     * @param files files to sign.
+     * @param signCommand command line of the signing tool, the files to sign
+     *        are appended.
+     * @param batchSize maximum number of files per invocation.
+     * @param parallel maximum number of concurrent invocations.
+     * @throws Exception
+     * @throws ToolsetException if a batch failed.
+     */
+    public void sign(List<FilePath> files, final String signCommand, int batchSize, int parallel) 
+            throws Exception, ToolsetException {
+        if (files.isEmpty()) {
+            return;
+        }
+        batchSize = Math.max(1, batchSize);
+        final List<List<FilePath>> batches = new ArrayList<List<FilePath>>();
+        for (int from = 0; from < files.size(); from += batchSize) {
+            batches.add(files.subList(from, Math.min(from + batchSize, files.size())));
+        }
+        final long start = System.currentTimeMillis();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallel, batches.size())), 
+                new NamingThreadFactory(new DaemonThreadFactory(), "WiX signing worker"));
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (int i = 0; i < batches.size(); i++) {
+                final int number = i + 1;
+                results.add(pool.submit(lg.bound(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        List<FilePath> batch = batches.get(number - 1);
+                        long begin = System.currentTimeMillis();
+                        boolean signed = signBatch(batch, signCommand);
+                        lg.log(messages.getString("SIGNED_BATCH"), number, batches.size(), batch.size(), 
+                                System.currentTimeMillis() - begin, signed ? "ok" : "failed");
+                        return signed;
+                    }
+                })));
+            }
+            int failed = 0;
+            for (Future<Boolean> result : results) {
+                if (!result.get()) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                lg.log(messages.getString("SIGNING_FAILED"));
+                throw new ToolsetException(messages.getString("SIGNING_FAILED"));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        String msg = MessageFormat.format(messages.getString("SIGNED_FILES"), files.size(), batches.size(), 
+                System.currentTimeMillis() - start);
+        lg.log(msg);
+        report(msg);
+    }
+    
+    /**
+     * Runs the signing tool once for the given files in the workspace. A
+     * failing batch is retried like the WiX tools and killed after the
+     * signing timeout.
+     * @param files files to sign.
+     * @param signCommand command line of the signing tool.
+     * @return true if the signing tool succeeded.
+     * @throws Exception
+     */
+    private boolean signBatch(List<FilePath> files, String signCommand) throws Exception {
+        SignCommand cmd = new SignCommand(insignia, Util.tokenize(envVars.expand(signCommand)), files);
+        cmd.setTimeout(settings.get(Wix.SIGN_TIMEOUT, 0));
+        try {
+            lg.debug(messages.getString("EXECUTING_COMMAND"), cmd.render().toString());
+            return cmd.execute();
+        } catch (ToolsetException e) {
+            lg.severe(e);
+            return false;
+        }
+    }
+    
+    /**
+     * Returns the package and the external cabinets written by the last link.
+     * @return outputs of the last link, empty if nothing was linked.
+     */
+    public List<FilePath> getLinkedOutputs() {
+        return linkedOutputs;
+    }
+    
+    /**
+     * Creates a scratch directory for this build step below the given root.
+     * Intermediate files and temporary files of all tools are written there.
+     * @param root scratch root on the node of the workspace.
+     * @throws Exception
+     */
+    public void setScratchDir(FilePath root) throws Exception {
+        // object files are kept per workspace, so a rerun resuming from the checkpoint finds them
+        scratch = new ScratchSpace(root, build.getParent().getFullName() + "-" + build.getNumber() 
+                + "-" + Long.toHexString(System.nanoTime()), (checkpoint == null) ? null 
+                : build.getParent().getFullName() + "-obj-" + Util.getDigestOf(workspace.getRemote()).substring(0, 12));
+        for (WixCommand cmd : new WixCommand[] {candle, light, lit, torch, pyro, insignia}) {
+            cmd.setTempDir(scratch.getTempDir());
+        }
+        lg.log(messages.getString("SCRATCH_DIR"), scratch.getDir().getRemote());
+    }
+    
+    /**
+     * Compiles the sources on all online agents matching a label expression.
+     * The node of the build only compiles if it matches, but it always links.
+     * @param label label expression, blank compiles on the node of the build.
+     */
+    public void setCompileAgents(String label) {
+        compileAgents = StringUtils.isBlank(label) ? null : label.trim();
+    }
+    
+    /**
+     * Filters the output of all tools on the node. Only errors, warnings and
+     * progress are written to the build log, the complete output of every
+     * process is kept in a compressed side log and attached to the build by
+     * cleanup(). Call after setScratchDir().
+     * @throws Exception
+     */
+    public void setOutputFilter() throws Exception {
+        logDir = (scratch != null) ? scratch.getTempDir().child("logs") 
+                : workspace.sibling(workspace.getName() + "@tmp").child("wix-logs");
+        logDir.mkdirs();
+        for (WixCommand cmd : new WixCommand[] {candle, light, lit, torch, pyro, insignia}) {
+            cmd.setLogDir(logDir);
+        }
+    }
+    
+    /**
+     * Copies the side logs of the filtered processes into the artifacts of
+     * the build and deletes them on the node.
+     */
+    private void collectLogs() {
+        if (logDir == null) {
+            return;
+        }
+        try {
+            FilePath target = new FilePath(new File(build.getArtifactsDir(), "wix-logs"));
+            int count = logDir.copyRecursiveTo("*" + LogFilter.EXTENSION, target);
+            logDir.deleteRecursive();
+            if (count > 0) {
+                String msg = MessageFormat.format(messages.getString("SIDE_LOGS_ATTACHED"), count);
+                lg.log(msg);
+                report(msg);
+            }
+        } catch (Exception e) {
+            lg.log(messages.getString("SIDE_LOGS_FAILED"), e.getMessage());
+        }
+        logDir = null;
+    }
+    
+    /**
+     * Reports the retries of this build step and whether its node had warm
+     * caches, attaches the side logs and the timeline to the build and
+     * deletes the scratch directory in the background. The object files in
+     * the scratch directory are kept while the checkpoint of a failed or
+     * aborted build step refers to them.
+     */
+    public void cleanup() {
+        phase(null);
+        if (retryPolicy.getRetries() > 0) {
+            String msg = MessageFormat.format(messages.getString("RETRIES"), retryPolicy.getRetriedInvocations(), 
+                    retryPolicy.getRetries(), retryPolicy.getRecovered());
+            lg.log(msg);
+            report(msg);
+        }
+        recordAffinity();
+        collectLogs();
+        if (scratch != null) {
+            scratch.cleanup(checkpoint != null && !completed);
+            scratch = null;
+        }
+        attachTimeline();
+    }
+    
+    /**
+     * Reports whether the build step ran on an agent with warm or cold
+     * caches and records the agent as warm for the job. A build step which
+     * neither looked up nor filled a cache leaves nothing to reuse, so it is
+     * not recorded.
+     */
+    private void recordAffinity() {
+        Node node = (build != null) ? build.getBuiltOn() : null;
+        if (affinity == null || node == null || node.getRootPath() == null) {
+            return;
+        }
+        if (cacheLookups == 0 && cachedPackages.isEmpty()) {
+            return;
+        }
+        long cacheBytes = -1;
+        try {
+            cacheBytes = CacheAffinity.cacheBytes(node.getNodeName(), node.getRootPath().child(ArtifactCache.DIRNAME), 
+                    System.currentTimeMillis());
+        } catch (IOException e) {
+            lg.log(messages.getString("AFFINITY_SIZE_FAILED"), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long now = System.currentTimeMillis();
+        String msg;
+        if (warmNode) {
+            msg = MessageFormat.format(messages.getString("AFFINITY_WARM"), agent, cacheHits, cacheLookups, 
+                    Math.max(cacheBytes, 0) / (1024 * 1024));
+        } else {
+            List<String> warm = new ArrayList<String>();
+            for (String name : affinity.getWarmNodes(now)) {
+                warm.add(name.isEmpty() ? "master" : name);
+            }
+            msg = MessageFormat.format(messages.getString("AFFINITY_COLD"), agent, cacheHits, cacheLookups, 
+                    warm.isEmpty() ? "-" : StringUtils.join(warm, ", "));
+        }
+        lg.log(msg);
+        report(msg);
+        affinity.record(node.getNodeName(), now, cacheHits, cacheLookups, cacheBytes, cachedPackages);
+    }
+    
+    /**
+     * Starts the next phase of this build step on the timeline of the build.
+     * The running phase ends.
+     * @param name name of phase, e.g. compile, null only ends the running phase.
+     */
+    public void phase(String name) {
+        if (phase != null) {
+            phase.end();
+        }
+        phase = (name == null) ? null : timeline.begin(name, "phase", agent);
+    }
+    
+    /**
+     * Reads the checkpoint an interrupted build left in the workspace and
+     * starts recording the progress of this build. Compiles recorded by the
+     * interrupted build are reused if their inputs and object files have not
+     * changed since.
+     * @throws Exception
+     */
+    public void resume() throws Exception {
+        if (checkpoint == null) {
+            return;
+        }
+        Checkpoint.State state = checkpoint.resume(build.getNumber());
+        if (!state.isEmpty()) {
+            resumed = state;
+            String msg = MessageFormat.format(messages.getString("CHECKPOINT_FOUND"), state.getBuild(), 
+                    state.getOutputs());
+            lg.log(msg);
+            report(msg);
+        }
+    }
+    
+    /**
+     * Removes the checkpoint once the build step has succeeded.
+     * @throws Exception
+     */
+    public void complete() throws Exception {
+        if (checkpoint != null) {
+            checkpoint.clear();
+        }
+        completed = true;
+    }
+    
+    /**
+     * Writes the timeline of the build into its artifacts. Every build step
+     * rewrites the file with all events recorded so far.
+     */
+    private void attachTimeline() {
+        if (build == null || timeline.size() == 0) {
+            return;
+        }
+        try {
+            timeline.write(new File(build.getArtifactsDir(), Timeline.FILENAME));
+            WixBuildAction action = WixBuildAction.of(build);
+            if (!action.isTimelineAttached()) {
+                action.setTimelineAttached();
+                lg.log(messages.getString("TIMELINE_ATTACHED"), Timeline.FILENAME, timeline.size());
+            }
+        } catch (IOException e) {
+            lg.log(messages.getString("TIMELINE_FAILED"), e.getMessage());
+        }
+    }
+    
+    /**
+     * Returns the name of a node shown on the timeline.
+     */
+    private static String agentName(Node node) {
+        return (node == null || StringUtils.isEmpty(node.getNodeName())) ? "master" : node.getDisplayName();
+    }
+    
+    /**
+     * Returns the location of an intermediate file. Without scratch directory
+     * the file stays where it is.
+     * @param file intermediate file in the workspace.
+     * @return location in scratch directory.
+     * @throws Exception
+     */
+    private FilePath intermediate(FilePath file) throws Exception {
+        if (scratch == null || !file.getRemote().startsWith(workspace.getRemote())) {
+            return file;
+        }
+        FilePath moved = scratch.intermediate(relativize(file));
+        // candle does not create missing directories
+        if (scratchDirs.add(moved.getParent().getRemote())) {
+            moved.getParent().mkdirs();
+        }
+        return moved;
+    }
+    
+    /**
+     * Records an output of this build step. Outputs outside of the workspace
+     * are not transferred.
+     * @param output output file.
+     */
+    private void produced(FilePath output) {
+        if (workspace != null && output.getRemote().startsWith(workspace.getRemote())) {
+            producedOutputs.add(relativize(output));
+        }
+    }
+    
+    /**
+     * Transfers all outputs of this build step from the node of the workspace
+     * into the artifacts of the build. The outputs are sent as one compressed
+     * stream and verified against the sizes and hashes computed on the node.
+     * Outputs also archived by the last successful build are sent as delta to
+     * that version. The manifest is archived next to the outputs.
+     * @throws Exception
+     * @throws ToolsetException if an output was not received intact.
+     */
+    public void transfer() throws Exception, ToolsetException {
+        if (producedOutputs.isEmpty()) {
+            return;
+        }
+        File dir = build.getArtifactsDir();
+        dir.mkdirs();
+        File zip = File.createTempFile("wix-outputs", ".zip", dir);
+        long start = System.currentTimeMillis();
+        List<String> paths = new ArrayList<String>(producedOutputs);
+        Run<?, ?> last = build.getPreviousSuccessfulBuild();
+        File previous = (last != null) ? last.getArtifactsDir() : null;
+        Map<String, OutputTransfer.Entry> manifest;
+        List<String> problems;
+        try {
+            Map<String, Set<String>> chunks = new DeltaTransfer.Signatures(paths).invoke(previous, null);
+            OutputStream out = new FileOutputStream(zip);
+            try {
+                manifest = workspace.act(new OutputTransfer(paths, out, chunks));
+                // writes of the node are asynchronous, wait until all of them arrived
+                if (workspace.getChannel() instanceof Channel) {
+                    ((Channel) workspace.getChannel()).syncLocalIO();
+                }
+            } finally {
+                out.close();
+            }
+            InputStream in = new FileInputStream(zip);
+            try {
+                problems = OutputTransfer.unpack(in, dir, manifest, previous);
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.delete();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        if (!problems.isEmpty()) {
+            for (String problem : problems) {
+                lg.log(problem);
+            }
+            throw new ToolsetException(MessageFormat.format(messages.getString("TRANSFER_CORRUPT"), problems.size()));
+        }
+        new FilePath(new File(dir, OutputTransfer.MANIFEST)).write(OutputTransfer.format(manifest), "UTF-8");
+        
+        long size = 0;
+        for (OutputTransfer.Entry entry : manifest.values()) {
+            size += entry.getSize();
+        }
+        String msg = MessageFormat.format(messages.getString("TRANSFERRED_OUTPUTS"), manifest.size(), size, 
+                elapsed, size * 1000.0 / elapsed / (1024 * 1024));
+        lg.log(msg);
+        report(msg);
+        logDelta(manifest);
+    }
+    
+    /**
+     * Logs the bytes a transfer saved by sending files as delta to their
+     * previous version.
+     * @param manifest manifest of the transfer.
+     */
+    private void logDelta(Map<String, OutputTransfer.Entry> manifest) {
+        int files = 0;
+        long size = 0;
+        long sent = 0;
+        for (OutputTransfer.Entry entry : manifest.values()) {
+            if (entry.isDelta()) {
+                files++;
+                size += entry.getSize();
+                sent += entry.getSent();
+            }
+        }
+        if (files > 0) {
+            lg.log(MessageFormat.format(messages.getString("DELTA_TRANSFER"), files, manifest.size(), 
+                    sent / 1024, size / 1024, (size - sent) / 1024));
+        }
+    }
+    
+    /**
+     * Returns the modification time of all cabinets in the directory of the
+     * given package.
+     * @param output package.
+     * @return modification time by cabinet.
+     * @throws Exception
+     */
+    private Map<String, Long> cabinets(FilePath output) throws Exception {
+        Map<String, Long> cabinets = new HashMap<String, Long>();
+        FilePath dir = output.getParent();
+        if (dir != null && dir.exists()) {
+            for (FilePath cab : dir.list("*.cab")) {
+                cabinets.put(cab.getRemote(), cab.lastModified());
+            }
+        }
+        return cabinets;
+    }
+    
+    /**
+     * Stores the outputs of the link as baseline of the given release
+     * version in the cache of the node. An existing baseline of the version
+     * is kept, so a released baseline is never replaced.
+     * @param msi linked package, the .wixpdb is expected next to it.
+     * @param version release version of the package.
+     * @throws Exception
+     * @throws ToolsetException if the .wixpdb of the package is missing.
+     */
+    public void storeBaseline(FilePath msi, String version) throws Exception, ToolsetException {
+        if (baselinePdbs == null) {
+            return;
+        }
+        String key = baselineKey(version);
+        String msg;
+        if (baselinePdbs.probe(Collections.singleton(key)).contains(key)) {
+            msg = MessageFormat.format(messages.getString("BASELINE_EXISTS"), version);
+        } else if (!pdbOf(msi).exists()) {
+            throw new ToolsetException(MessageFormat.format(messages.getString("NO_PDB_FILE"), pdbOf(msi).getRemote()));
+        } else {
+            baselinePackages.store(Collections.singletonMap(key, msi));
+            baselinePdbs.store(Collections.singletonMap(key, pdbOf(msi)));
+            msg = MessageFormat.format(messages.getString("BASELINE_STORED"), version);
+        }
+        lg.log(msg);
+        report(msg);
+    }
+    
+    /**
+     * Builds a patch between the cached baseline of the given release version
+     * and the upgrade linked by this build. Torch creates the transform from
+     * both .wixpdb files, the patch sources are compiled and linked into a
+     * .wixmsp and pyro creates the patch from it.
+     * @param input patch sources.
+     * @param upgrade package linked by this build.
+     * @param output patch file (.msp).
+     * @param version release version of the baseline.
+     * @param baselineId id of the PatchBaseline in the patch sources.
+     * @return patch file.
+     * @throws Exception
+     * @throws ToolsetException if the baseline is missing or a tool failed.
+     */
+    public FilePath patch(FilePath[] input, FilePath upgrade, FilePath output, String version, String baselineId) 
+            throws Exception, ToolsetException {
+        // restore baseline next to the upgrade, so relative paths of the package are the same
+        String key = baselineKey(version);
+        FilePath dir = workspace.child("wix-baseline").child(key);
+        FilePath baselineMsi = dir.child(upgrade.getName());
+        FilePath baselinePdb = pdbOf(baselineMsi);
+        if (baselinePdbs == null 
+                || !baselinePdbs.restore(Collections.singletonMap(key, baselinePdb)).contains(key)
+                || !baselinePackages.restore(Collections.singletonMap(key, baselineMsi)).contains(key)) {
+            throw new ToolsetException(MessageFormat.format(messages.getString("BASELINE_MISSING"), version));
+        }
+        lg.log(MessageFormat.format(messages.getString("BASELINE_RESTORED"), version, dir.getRemote()));
+        
+        // transform between baseline and upgrade
+        FilePath transform = intermediate(replaceExtension(output, ".msp", ".wixmst"));
+        Torch transformer = new Torch((Torch) torch);
+        transformer.addSourceFile(baselinePdb);
+        transformer.addSourceFile(pdbOf(upgrade));
+        transformer.setOutputFile(transform);
+        transformer.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), transformer.toString());
+        if (!transformer.execute()) {
+            throw failure(transformer, messages.getString("PATCH_FAILED"));
+        }
+        
+        // compile and link the patch sources
+        Candle patchCompiler = new Candle((Candle) candle);
+        for (FilePath fp : input) {
+            if (isValid(fp, ".wxs")) {
+                patchCompiler.addSourceFile(fp);
+            } else {
+                lg.log(messages.getString("NO_VALID_SOURCE_FILE"), fp.getRemote());
+            }
+        }
+        patchCompiler.setOutputFile(intermediate(replaceExtension(output, ".msp", ".wixobj")));
+        patchCompiler.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), patchCompiler.toString());
+        if (!patchCompiler.execute()) {
+            throw failure(patchCompiler, messages.getString("PATCH_FAILED"));
+        }
+        Light patchLinker = new Light((Light) light);
+        patchLinker.addSourceFile(patchCompiler.getOutputFile());
+        patchLinker.setOutputFile(intermediate(replaceExtension(output, ".msp", ".wixmsp")));
+        patchLinker.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), patchLinker.toString());
+        if (!patchLinker.execute()) {
+            throw failure(patchLinker, messages.getString("PATCH_FAILED"));
+        }
+        
+        Pyro patchBuilder = new Pyro(pyro);
+        patchBuilder.addSourceFile(patchLinker.getOutputFile());
+        patchBuilder.addTransform(baselineId, transform);
+        patchBuilder.setOutputFile(output);
+        patchBuilder.render();
+        lg.debug(messages.getString("EXECUTING_COMMAND"), patchBuilder.toString());
+        if (!patchBuilder.execute()) {
+            throw failure(patchBuilder, messages.getString("PATCH_FAILED"));
+        }
+        produced(output);
+        String msg = MessageFormat.format(messages.getString("PATCH_CREATED"), relativize(output), version);
+        lg.log(msg);
+        report(msg);
+        return output;
+    }
+    
+    /**
+     * Returns the .wixpdb light writes next to a package.
+     * @param msi package.
+     * @return path of .wixpdb.
+     */
+    private FilePath pdbOf(FilePath msi) {
+        String name = msi.getName();
+        int dot = name.lastIndexOf('.');
+        return msi.sibling(((dot > 0) ? name.substring(0, dot) : name) + ".wixpdb");
+    }
+    
+    /**
+     * Maps a release version to a name usable as file name.
+     * @param version release version.
+     * @return key of baseline.
+     * @throws ToolsetException if no version is given.
+     */
+    private static String baselineKey(String version) throws ToolsetException {
+        if (StringUtils.isBlank(version)) {
+            throw new ToolsetException(messages.getString("NO_RELEASE_VERSION"));
+        }
+        return version.trim().replaceAll("[^A-Za-z0-9._-]", "_");
     }
     
     /**
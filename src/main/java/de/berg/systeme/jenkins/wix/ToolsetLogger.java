@@ -23,20 +23,45 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
 
 /**
  * internal logger which uses PrintStream from Jenkins Listener.
  * You have to initialize logger with init().
+ * <p>
+ * The logger is shared by all builds, but its state (stream, debug flag and
+ * error count) belongs to the build which called init(). The state is bound
+ * to the thread of the build only. Tasks run by any other thread, e.g. pool
+ * workers or shared threads of Jenkins, have to be wrapped by bound(), since
+ * threads outlive the build which started them.
  * @author Bjoern.Berg
  */
 public enum ToolsetLogger {
     /**
      * Singleton approach
      */
-    INSTANCE;                    
-    private PrintStream stream;     // print stream
-    private boolean debugEnabled;   // print debug messages or not
-    private int errorCount;
+    INSTANCE;
+    // error reported by candle or light, e.g. "error CNDL0104"
+    private static final Pattern ERROR = Pattern.compile("(?i:\\berror) [A-Z]{4}\\d{1,4}\\b");
+    // state of the build of the current thread
+    private final ThreadLocal<Context> current = new ThreadLocal<Context>();
+    // state used outside of builds
+    private final Context fallback = new Context(null, false);
+    
+    /**
+     * Logging state of a build.
+     */
+    static final class Context {
+        private PrintStream stream;     // print stream
+        private boolean debugEnabled;   // print debug messages or not
+        private int errorCount;
+        
+        Context(PrintStream stream, boolean debugEnabled) {
+            this.stream = stream;
+            this.debugEnabled = debugEnabled;
+        }
+    }
     
     /**
      * initializes logger with print stream. Use Jenkins Listener.getLogger().
@@ -49,17 +74,82 @@ public enum ToolsetLogger {
     /**
      * initializes logger with print stream and enables or disables logging of
      * debug messages. Use Listener.getLogger() for initializing print stream.
+     * The logger is bound to the current thread until release() is called.
      * @param stream print stream of Listener.getLogger().
      * @param debugEnabled true enables debug logging.
      */
     public void init(PrintStream stream, boolean debugEnabled) {
-        this.stream         = stream;
-        this.debugEnabled   = debugEnabled;
-        this.errorCount		= 0;
+        current.set(new Context(stream, debugEnabled));
+    }
+    
+    /**
+     * Unbinds the logger of a finished build from the current thread.
+     */
+    public void release() {
+        current.remove();
+    }
+    
+    /**
+     * Wraps a task, so it logs to the build of the current thread even if it
+     * runs on a thread shared by all builds.
+     * @param task task to run.
+     * @return wrapped task.
+     */
+    public Runnable bound(final Runnable task) {
+        final Context context = context();
+        return new Runnable() {
+            public void run() {
+                Context previous = bind(context);
+                try {
+                    task.run();
+                } finally {
+                    unbind(previous);
+                }
+            }
+        };
+    }
+    
+    /**
+     * Wraps a task, so it logs to the build of the current thread even if it
+     * runs on another thread.
+     * @param task task to run.
+     * @return wrapped task.
+     */
+    public <T> Callable<T> bound(final Callable<T> task) {
+        final Context context = context();
+        return new Callable<T>() {
+            public T call() throws Exception {
+                Context previous = bind(context);
+                try {
+                    return task.call();
+                } finally {
+                    unbind(previous);
+                }
+            }
+        };
+    }
+    
+    private Context bind(Context context) {
+        Context previous = current.get();
+        current.set(context);
+        return previous;
+    }
+    
+    private void unbind(Context previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+    
+    private Context context() {
+        Context context = current.get();
+        return (context != null) ? context : fallback;
     }
     
     public void enableDebugLogging(boolean debug) {
-        this.debugEnabled = debug;
+        context().debugEnabled = debug;
     }
     
     /**
@@ -67,7 +157,7 @@ public enum ToolsetLogger {
      * @param t Exception thrown.
      */
     public void severe (Throwable t) {
-    	check();
+    	PrintStream stream = check();
     	stream.printf("[wix] SEVERE: %s", t.getMessage());
     	stream.println();
     	stream.println("[wix] Stacktrace follows:");
@@ -89,7 +179,7 @@ public enum ToolsetLogger {
     * @param args arguments to replace formatting symbols.
     */
     public void log(String format, Object...args) {
-        check();
+        PrintStream stream = check();
         String line = String.format(format, args);
         checkForErrors(line);
         stream.println("[wix] " + line);
@@ -110,8 +200,8 @@ public enum ToolsetLogger {
      * @param args replacements as comma-separated list for format specifiers.
      */
     public void debug(String format, Object...args) {
-        if (debugEnabled) {
-            check();
+        if (context().debugEnabled) {
+            PrintStream stream = check();
             String line = String.format(format, args);
             checkForErrors(line);
             stream.println("[wix] " + line);
@@ -126,21 +216,32 @@ public enum ToolsetLogger {
      */
     private void checkForErrors(String line) {
     	// test if candle or light reported an error
-        if (line.toLowerCase().matches(".*error [A-Z]{4,4}[0-9]{1,4}.*")) {
-        	errorCount++;
+        if (ERROR.matcher(line).find()) {
+            Context context = context();
+            synchronized (context) {
+                context.errorCount++;
+            }
         }
     }
     
     public boolean hasNoErrors() {
-    	return errorCount == 0;
+        Context context = context();
+        synchronized (context) {
+            return context.errorCount == 0;
+        }
     }
     
     /**
      * Checks if print stream exists. Otherwise stdout is used for logging.
+     * @return print stream of the current build.
      */
-    private void check() {
-        if (null == stream) {
-            stream = new PrintStream(new FileOutputStream(FileDescriptor.out));
+    private PrintStream check() {
+        Context context = context();
+        synchronized (context) {
+            if (null == context.stream) {
+                context.stream = new PrintStream(new FileOutputStream(FileDescriptor.out));
+            }
+            return context.stream;
         }
     }
     
@@ -149,7 +250,6 @@ public enum ToolsetLogger {
      * @return
      */
     public OutputStream getStream() {
-    	check();
-    	return stream;
+    	return check();
     }
 }
@@ -1,6 +1,8 @@
 package de.berg.systeme.jenkins.wix;
 
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -46,6 +48,19 @@ public class ToolsetSettings {
         return rvalue;
     }
 
+    public int get(String key, int defaultValue) {
+        int rvalue = defaultValue;
+        String tmp = this.properties.getProperty(key);
+        if (tmp != null) {
+            try {
+                rvalue = Integer.parseInt(tmp.trim());
+            } catch (NumberFormatException e) {
+                // nothing
+            }
+        }
+        return rvalue;
+    }
+
     public void set(String key, String value) {
         this.properties.setProperty(key, value);
     }
@@ -57,4 +72,20 @@ public class ToolsetSettings {
     public void set(String key, float value) {
         set(key, String.valueOf(value));
     }
+
+    public void set(String key, int value) {
+        set(key, String.valueOf(value));
+    }
+
+    /**
+     * Returns all settings sorted by their key.
+     * @return copy of all settings.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new TreeMap<String, String>();
+        for (String key : this.properties.stringPropertyNames()) {
+            map.put(key, this.properties.getProperty(key));
+        }
+        return map;
+    }
 }
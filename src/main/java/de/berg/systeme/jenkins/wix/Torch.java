@@ -0,0 +1,105 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+
+/**
+ * command definition for Wix Toolset Transform tool (torch.exe). Creates the
+ * transform between a baseline and an upgrade for patching.
+ * @author Bjoern.Berg
+ */
+class Torch extends WixCommand {
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Torch(ToolsetSettings settings, EnvVars envVars) {
+        this(null, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param envVars environment variables.
+     */
+    public Torch(Launcher launcher, ToolsetSettings settings, EnvVars envVars) {
+        super(launcher, Wix.TRANSFORMER, settings, envVars);
+    }
+    
+    /**
+     * constructor.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    Torch(Launcher launcher, ToolsetSettings settings, Invocation invocation) {
+        super(launcher, Wix.TRANSFORMER, settings, invocation);
+    }
+    
+    /**
+     * Creates a transformer with the configuration of another transformer but without
+     * source files and output file.
+     * @param other transformer to copy.
+     */
+    Torch(Torch other) {
+        super(other);
+    }
+
+    /**
+     * Creates the command so it can be executed. The first source file is
+     * the baseline, the second one the upgrade.
+     * @throws ToolsetException 
+     */
+    @Override
+    protected ArgumentListBuilder createCommand() throws ToolsetException {
+        // the torch.exe command for patches on command line looks like:
+        // torch.exe -p -xi targetInput updatedInput -out outputFile
+        if (sourceFiles.size() != 2) {
+            throw new ToolsetException("Missing parameters to build statement.");
+        }
+    	args = new ArgumentListBuilder();
+    	try {
+	    	args.add(exec.getPath());	// torch.exe
+	    	// append extensions
+	    	for (String extension : extensions) {
+	            args.add("-ext").add(extension);
+	        }
+	    	args.add(nologo ? "-nologo" : null);
+	    	args.add(verbose ? "-v" : null);
+	        args.add(wxall ? "-wxall" : null);
+	        // transform for a patch from wixpdb inputs
+	        args.add("-p").add("-xi");
+	        for (FilePath source : sourceFiles) {
+	            args.add(source.getRemote());
+	        }
+	        // output file
+	        args.add("-out").add(outputFile.getRemote());
+	    } catch (NullPointerException npe) {
+			throw new ToolsetException("Missing parameters to build statement.");
+		}
+        
+        return args;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+package de.berg.systeme.jenkins.wix;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import hudson.FilePath;
+
+/**
+ * Build variant: a named set of preprocessor defines, e.g. <i>Debug</i> or
+ * <i>Enterprise</i>. Variants are configured one per line as
+ * <i>name: NAME=value; NAME=value</i>. Every variant is linked into its own
+ * package named after the variant.
+ * @author Bjoern.Berg
+ */
+public class Variant {
+    private static final Pattern NAME = Pattern.compile("[\\w.-]+");
+    // name of variant, used in file names
+    private final String name;
+    // defines of variant sorted by name
+    private final SortedMap<String, String> defines;
+    
+    /**
+     * constructor.
+     * @param name name of the variant.
+     * @param defines preprocessor defines of the variant.
+     */
+    public Variant(String name, Map<String, String> defines) {
+        this.name = name;
+        this.defines = Collections.unmodifiableSortedMap(new TreeMap<String, String>(defines));
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public SortedMap<String, String> getDefines() {
+        return defines;
+    }
+    
+    /**
+     * Returns the file of the variant, e.g. <i>setup-Debug.msi</i> for
+     * <i>setup.msi</i>.
+     * @param file file of a build without variants.
+     * @return file of the variant.
+     */
+    public FilePath fileOf(FilePath file) {
+        String fileName = file.getName();
+        int dot = fileName.lastIndexOf('.');
+        return (dot > 0) ? file.sibling(fileName.substring(0, dot) + "-" + name + fileName.substring(dot)) 
+                : file.sibling(fileName + "-" + name);
+    }
+    
+    /**
+     * Parses the variants of a build. Blank lines and lines starting with #
+     * are ignored.
+     * @param text one variant per line.
+     * @return variants in order of the lines.
+     * @throws ToolsetException if a line is not of the form name: NAME=value; ...
+     *         or a name is used twice.
+     */
+    public static List<Variant> parse(String text) throws ToolsetException {
+        List<Variant> variants = new ArrayList<Variant>();
+        if (text == null) {
+            return variants;
+        }
+        Set<String> names = new HashSet<String>();
+        for (String line : text.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            int colon = line.indexOf(':');
+            String name = (colon > 0) ? line.substring(0, colon).trim() : "";
+            if (!NAME.matcher(name).matches() || !names.add(name)) {
+                throw new ToolsetException("Invalid variant: " + line);
+            }
+            Map<String, String> defines = new LinkedHashMap<String, String>();
+            for (String define : line.substring(colon + 1).split(";")) {
+                define = define.trim();
+                if (define.length() == 0) {
+                    continue;
+                }
+                int eq = define.indexOf('=');
+                if (eq <= 0) {
+                    throw new ToolsetException("Invalid variant: " + line);
+                }
+                defines.put(define.substring(0, eq).trim(), define.substring(eq + 1).trim());
+            }
+            variants.add(new Variant(name, defines));
+        }
+        return variants;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(name).append(':');
+        for (Map.Entry<String, String> define : defines.entrySet()) {
+            sb.append(' ').append(define.getKey()).append('=').append(define.getValue()).append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -33,11 +33,53 @@ public interface Wix {
     public static final String EXT_TAG = "WixTagExtension";
     public static final String EXT_VS = "WixVSExtension";
     public static final String MSI_PKG = "MsiPackage";
+    public static final String DRY_RUN = "dry.run";
+    public static final String COMPILE_WORKERS = "compile.workers";
+    public static final String CANDLE_TIMEOUT = "candle.timeout";
+    public static final String LIGHT_TIMEOUT = "light.timeout";
+    public static final String VALIDATE_SOURCES = "validate.sources";
+    public static final String SCHEMA_FILE = "schema.file";
+    public static final String CACHE_MODE = "cache.mode";
+    public static final String LIB_SOURCES = "lib.sources";
+    public static final String LIB_OUTPUT = "lib.output";
+    public static final String LIBRARIES = "libraries";
+    public static final String RELEASE_VERSION = "release.version";
+    public static final String PATCH_SOURCES = "patch.sources";
+    public static final String PATCH_OUTPUT = "patch.output";
+    public static final String BASELINE_VERSION = "baseline.version";
+    public static final String BASELINE_ID = "baseline.id";
+    public static final String CHAINED_PACKAGES = "chained.packages";
+    public static final String SIGN_COMMAND = "sign.command";
+    public static final String SIGN_BATCH_SIZE = "sign.batch.size";
+    public static final String SIGN_PARALLEL = "sign.parallel";
+    public static final String SIGN_TIMEOUT = "sign.timeout";
+    public static final String TRANSFER_OUTPUTS = "transfer.outputs";
+    public static final String SCRATCH_DIR = "scratch.dir";
+    public static final String BIND_PATHS = "bind.paths";
+    public static final String CHECK_PAYLOAD = "check.payload";
+    public static final String VARIANTS = "variants";
+    public static final String FILTER_OUTPUT = "filter.output";
+    public static final String COMPILE_AGENTS = "compile.agents";
+    public static final String RETRY_ATTEMPTS = "retry.attempts";
+    public static final String RETRY_DELAY = "retry.delay";
+    public static final String PAYLOADS = "payloads";
+    public static final String PAYLOAD_SOURCE = "payload.source";
+    public static final String PAYLOAD_CACHE_SIZE = "payload.cache.size";
+    public static final String AFFINITY_WAIT = "affinity.wait";
+    public static final String CHECKPOINT = "checkpoint";
     
     // --- predefined links
     public static final String COMPILER = "candle.exe";
     public static final String LINKER = "light.exe";
+    public static final String LIBRARIAN = "lit.exe";
+    public static final String LIB_DEFAULT_NAME = "library.wixlib";
+    public static final String TRANSFORMER = "torch.exe";
+    public static final String PATCH_BUILDER = "pyro.exe";
+    public static final String INSCRIBER = "insignia.exe";
+    public static final String PATCH_DEFAULT_NAME = "patch.msp";
+    public static final String BASELINE_DEFAULT_ID = "RTM";
     public static final String MSI_PKG_DEFAULT_NAME = "setup.msi";
+    public static final String PLAN_FILE = "wix-plan.json";
     
     /**
      * preferred architecture for candle.
@@ -45,4 +87,30 @@ public interface Wix {
     public enum Arch {
         x86, x64, ia64
     }
+    
+    /**
+     * how cache keys of compiled object files are computed.
+     */
+    public enum CacheMode {
+        /** object files are not cached. */
+        none,
+        /** key is derived from the raw sources, includes and all options. */
+        source,
+        /** key is derived from the normalized output of the preprocessor. */
+        preprocessed;
+        
+        /**
+         * parses a cache mode.
+         * @param value name of mode.
+         * @return mode, none if the value is unknown.
+         */
+        public static CacheMode parse(String value) {
+            for (CacheMode mode : values()) {
+                if (mode.name().equals(value)) {
+                    return mode;
+                }
+            }
+            return none;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+* This file is part of wix-plugin-jenkins.
+* 
+* Copyright (C) 2014 Berg Systeme
+* 
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Affero General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU Affero General Public License
+* along with this program. If not, see <http://www.gnu.org/licenses/>.
+*
+*/
+
+package de.berg.systeme.jenkins.wix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Action;
+
+/**
+ * Summary of the WiX build steps of a build, shown on the build page. All
+ * WiX build steps of one build share a single action.
+ * @author Bjoern.Berg
+ */
+public class WixBuildAction implements Action {
+    private final List<String> messages = new ArrayList<String>();
+    // timeline of the running build, not persisted
+    private transient Timeline timeline;
+    private boolean timelineAttached;
+    
+    /**
+     * Returns the action of the given build and attaches a new one if the
+     * build does not have one yet.
+     * @param build current build.
+     * @return action of build.
+     */
+    public static WixBuildAction of(AbstractBuild<?, ?> build) {
+        synchronized (build) {
+            WixBuildAction action = build.getAction(WixBuildAction.class);
+            if (action == null) {
+                action = new WixBuildAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+    
+    /**
+     * Adds a line to the summary.
+     * @param message message to show.
+     */
+    public synchronized void addMessage(String message) {
+        messages.add(message);
+    }
+    
+    public synchronized List<String> getMessages() {
+        return new ArrayList<String>(messages);
+    }
+    
+    /**
+     * Returns the timeline shared by all WiX build steps of the build.
+     * @return timeline, created on first use.
+     */
+    public synchronized Timeline getTimeline() {
+        if (timeline == null) {
+            timeline = new Timeline();
+        }
+        return timeline;
+    }
+    
+    /**
+     * Marks the timeline as attached to the artifacts of the build, so the
+     * build page links it.
+     */
+    public synchronized void setTimelineAttached() {
+        timelineAttached = true;
+    }
+    
+    public synchronized boolean isTimelineAttached() {
+        return timelineAttached;
+    }
+    
+    /**
+     * @return path of the timeline relative to the build page.
+     */
+    public String getTimelineUrl() {
+        return "artifact/" + Timeline.FILENAME;
+    }
+    
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "WiX Toolset";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
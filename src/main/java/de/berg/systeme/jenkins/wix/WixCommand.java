@@ -21,36 +21,61 @@
 package de.berg.systeme.jenkins.wix;
 
 import java.io.File;
-import java.lang.reflect.Field;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.lang.StringUtils;
 
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.Channel;
+import hudson.remoting.RemoteOutputStream;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 
 /**
  * Abstract class for building commands.
  * @author Bjoern.Berg
  */
 public abstract class WixCommand {
+    /**
+     * Result of the last execution of a command.
+     */
+    public enum Outcome {
+        NOT_STARTED, SUCCEEDED, FAILED, TIMED_OUT, CANCELLED
+    }
+    
+    // kills processes exceeding their timeout
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            new NamingThreadFactory(new DaemonThreadFactory(), "WiX timeout watchdog"));
     // Logger
     protected ToolsetLogger lg = ToolsetLogger.INSTANCE;
     // Exectuables absolute path
     protected File exec;
+    // name of executable without path
+    protected String exeName;
     // global settings
     protected ToolsetSettings settings;
     // List of source files
     protected List<FilePath> sourceFiles = new LinkedList<FilePath>();
     // Map of environment variables
-    protected Map<String, String> parameters = new HashMap<String, String>();
+    protected Map<String, String> parameters = new TreeMap<String, String>();
     // list of needed extensions
     protected List<String> extensions = new LinkedList<String>();
     // skip printing candle logo information
@@ -61,16 +86,50 @@ public abstract class WixCommand {
     protected boolean verbose = false;
     // treat all warnings as errors
     protected boolean wxall = false;
-    // not accepted environment variables
-    protected List<String> rejectedEnvVars = new LinkedList<String>();
     // Jenkins Launcher
     protected Launcher launcher;
     // Workspace of build job
     protected FilePath workspace;
     protected ArgumentListBuilder args;
+    // timeout in minutes, 0 disables the timeout
+    protected long timeout = 0;
+    // receives stdout of process instead of the build log if set
+    protected OutputStream stdout;
+    // additional environment of the process, not passed as parameters
+    protected Map<String, String> environment = new HashMap<String, String>();
+    // directory of side logs on the node, null passes the complete output to the build log
+    protected FilePath logDir;
+    // timeline of the build and agent running the process, null records nothing
+    protected Timeline timeline;
+    protected String agent;
+    // state of the compile cache shown on the timeline, null if not cached
+    private String cacheState;
+    // retries of transient failures, null never retries
+    protected RetryPolicy retryPolicy;
+    // running process
+    private Proc proc;
+    // running process with filtered output
+    private Future<LogFilter.Summary> filtered;
+    // set if the command is terminated from outside
+    private volatile boolean cancelled = false;
+    // result of last execution
+    private volatile Outcome outcome = Outcome.NOT_STARTED;
     
     public WixCommand(Launcher launcher, String ExeName, ToolsetSettings settings, EnvVars vars) {
+    	this(launcher, ExeName, settings, Invocation.of(settings, vars));
+    }
+    
+    /**
+     * Creates a command from the invocation of a build. Extensions and
+     * parameters of the invocation are the initial options of the command.
+     * @param launcher launcher of the build.
+     * @param ExeName name of the executable.
+     * @param settings global settings.
+     * @param invocation resolved invocation of the build.
+     */
+    WixCommand(Launcher launcher, String ExeName, ToolsetSettings settings, Invocation invocation) {
     	this.launcher = launcher;
+    	this.exeName = ExeName;
     	// Bugfix:
     	// It is stated that candle and light will work, if no installation path
     	// is given, so installation path cannot be stated as given. This will
@@ -92,93 +151,51 @@ public abstract class WixCommand {
     	}
         
     	this.settings = settings;
-        
-        // Environment variables which are not taken into account
-        String sysEnvVars = settings.get(Wix.LOV_REJECTED, Wix.DEF_LOV_TO_REJECT);
-        for(String s : sysEnvVars.split(",")) {
-            addRejectedEnvVar(s);
-        }
-
-        parseSettings(this.settings, vars);
-    }
-    
-    private void addRejectedEnvVar(String envVar) {
-        this.rejectedEnvVars.add(envVar.toLowerCase());
+    	this.extensions.addAll(invocation.getExtensions());
+    	this.parameters.putAll(invocation.getParameters());
     }
     
-    protected boolean isEnvVarRejected(String envVar, String value) {
-        boolean reject = false;
-        if(envVar.contains("=")) {
-            lg.debug(envVar + ": contains illegal character.");
-            reject = true;
-        } else if ( rejectedEnvVars.contains(envVar.toLowerCase()) ) {
-        	lg.debug(envVar + ": is marked as ignorable variable.");
-        	reject = true;
-        }
-        return reject;
+    /**
+     * Creates a command with the executable, settings, parameters and
+     * extensions of another command. Source files and output file are not
+     * copied, so the new command can be used for a different set of sources.
+     * @param other command to copy.
+     */
+    protected WixCommand(WixCommand other) {
+    	this.launcher = other.launcher;
+    	this.exeName = other.exeName;
+    	this.exec = other.exec;
+    	this.settings = other.settings;
+    	this.workspace = other.workspace;
+    	this.nologo = other.nologo;
+    	this.verbose = other.verbose;
+    	this.wxall = other.wxall;
+    	this.timeout = other.timeout;
+    	this.parameters.putAll(other.parameters);
+    	this.extensions.addAll(other.extensions);
+    	this.environment.putAll(other.environment);
+    	this.logDir = other.logDir;
+    	this.timeline = other.timeline;
+    	this.agent = other.agent;
+    	this.retryPolicy = other.retryPolicy;
     }
     
     /**
-     * parse settings and assign variables to command.
-     * @param settings global settings.
-     * @param vars environment variables.
-     */
-    private void parseSettings(ToolsetSettings settings, EnvVars vars) {
-        // Add extensions, we use reflection to avoid a lot of code
-        Field[] fields = Wix.class.getFields();
-        for (Field field : fields) {
-            try {
-                String fieldValue = (String)field.get(String.class.newInstance());
-                if (fieldValue.endsWith("Extension") && settings.get(fieldValue, false)) {
-                    addExtension(fieldValue);
-                }
-            } catch (InstantiationException ex) {
-                Logger.getLogger(WixCommand.class.getName()).log(Level.SEVERE, null, ex);
-            } catch (IllegalAccessException ex) {
-                Logger.getLogger(WixCommand.class.getName()).log(Level.SEVERE, null, ex);
-            }
-        }
-        
-        // add all environment variables as parameter
-        // environment variables are only added, if option is set
-        if (settings.get(Wix.ENBL_ENV_AS_PARAM, false)) {
-            for (Map.Entry<String,String> entry : vars.entrySet()) {
-                String varName = entry.getKey();
-                String value = entry.getValue();
-                lg.debug("VarName: " + varName + "; Value: " + value);
-                // contains value a directory it is better to escape everything
-                if (isEnvVarRejected(varName, value)) {
-                    lg.debug("Rejected Environment variable: " + varName);
-                } else {
-                	// cleanUpValue removes some accidental signs
-                	value = cleanUpValue(value);
-                    addParameter(varName, value); 
-                }
-            }
-        } else {
-            lg.log("Environment variables are not automatically added as parameters.");
-        }
+     * Sets the directory for temporary files of the process.
+     * @param dir temp directory on the node of the workspace.
+     */
+    public void setTempDir(FilePath dir) {
+        environment.put("TMP", dir.getRemote());
+        environment.put("TEMP", dir.getRemote());
     }
     
     /**
-     * Remove or replace signs in value which can cause process execution to fail.
-     * @param value
-     * @return
+     * Runs the process with another launcher, e.g. on another node.
+     * @param launcher launcher of the node.
      */
-	private String cleanUpValue(String value) {
-		if ( StringUtils.isNotEmpty(value) ) {
-		    value = value.replace("\"", "\\\"");
-		    // Bugfix:
-		    // We have to remove the last backslash otherwise it could
-		    // happen we get masked quotation marks which will fail the
-		    // process execution.
-		    char lastChar = value.charAt(value.length() - 1);
-		    if (lastChar == '\\') {
-		    	value = value.substring(0, value.length() - 1);
-		    }
-		}
-		return value;
-	}
+    void setLauncher(Launcher launcher) {
+        this.launcher = launcher;
+    }
     
     protected void addWorkspace(FilePath workspace) {
     	this.workspace = workspace;
@@ -200,6 +217,7 @@ public abstract class WixCommand {
      */
     void addSourceFile(FilePath filepath) {
         sourceFiles.add(makeRemotePath(filepath));
+        changed();
     }
 
     /**
@@ -210,15 +228,28 @@ public abstract class WixCommand {
     public void addParameter(String name, String value) {
         if (!this.parameters.containsKey(name)) {
             this.parameters.put(name, value);
+            changed();
         }
     }
     
+    /**
+     * define a parameter for the preprocessor, replacing a parameter of the
+     * same name.
+     * @param name name of parameter.
+     * @param value value of parameter.
+     */
+    void setParameter(String name, String value) {
+        this.parameters.put(name, value);
+        changed();
+    }
+    
     /**
      * extension assembly or "class, assembly".
      * @param extensionName 
      */
     public void addExtension(String extensionName) {
         this.extensions.add(extensionName);
+        changed();
     }
 
     /**
@@ -227,6 +258,7 @@ public abstract class WixCommand {
      */
     public void setOutputFile(FilePath outputFile) {
         this.outputFile = makeRemotePath(outputFile);
+        changed();
     }
     
     /**
@@ -238,12 +270,45 @@ public abstract class WixCommand {
     	return this.outputFile;
     }
 
+    /**
+     * Returns the source files added to the command.
+     * @return list of source files.
+     */
+    List<FilePath> getSourceFiles() {
+        return this.sourceFiles;
+    }
+    
+    /**
+     * Returns the extensions added to the command.
+     * @return list of extensions.
+     */
+    List<String> getExtensions() {
+        return this.extensions;
+    }
+    
+    /**
+     * Returns the preprocessor parameters (-d) of the command.
+     * @return map of parameters.
+     */
+    Map<String, String> getParameters() {
+        return this.parameters;
+    }
+    
+    /**
+     * Returns the name of the executable, e.g. candle.exe.
+     * @return name of executable.
+     */
+    String getExecutable() {
+        return this.exeName;
+    }
+
     /**
      * verbose output.
      * @param verbose true enables verbose output (default: false)
      */
     public void setVerbose(boolean verbose) {
         this.verbose = verbose;
+        changed();
     }
 
     /**
@@ -252,6 +317,7 @@ public abstract class WixCommand {
      */
     public void setWxall(boolean wxall) {
         this.wxall = wxall;
+        changed();
     }
     
     /**
@@ -260,6 +326,97 @@ public abstract class WixCommand {
      */
     public void setNologo(boolean nologo) {
         this.nologo = nologo;
+        changed();
+    }
+    
+    /**
+     * redirect stdout of the process, e.g. to capture preprocessed sources.
+     * stderr is still written to the build log.
+     * @param stdout stream to receive stdout or null for build log (default).
+     */
+    public void setStdout(OutputStream stdout) {
+        this.stdout = stdout;
+    }
+    
+    /**
+     * run the process through a filter on the node. The complete output is
+     * written to a compressed side log in the given directory, only errors,
+     * warnings and progress are written to the build log. Not used if stdout
+     * is redirected.
+     * @param logDir directory of side logs or null to disable (default).
+     */
+    public void setLogDir(FilePath logDir) {
+        this.logDir = logDir;
+    }
+    
+    /**
+     * records every execution on the timeline of the build.
+     * @param timeline timeline of the build or null to disable (default).
+     * @param agent name of the agent running the process.
+     */
+    void setTimeline(Timeline timeline, String agent) {
+        this.timeline = timeline;
+        this.agent = agent;
+    }
+    
+    /**
+     * retries an execution failing for transient reasons, e.g. a locked file.
+     * @param retryPolicy policy of the build step or null to disable (default).
+     */
+    void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    
+    /**
+     * sets the state of the cache shown with the next execution on the timeline.
+     * @param cacheState e.g. miss, null if the output is not cached.
+     */
+    void setCacheState(String cacheState) {
+        this.cacheState = cacheState;
+    }
+    
+    /**
+     * kill the process (including all child processes) if it runs longer than
+     * the given timeout.
+     * @param minutes timeout in minutes, 0 disables the timeout (default: 0).
+     */
+    public void setTimeout(long minutes) {
+        this.timeout = Math.max(minutes, 0);
+    }
+    
+    public long getTimeout() {
+        return this.timeout;
+    }
+    
+    /**
+     * Returns the result of the last execution.
+     * @return outcome of execution.
+     */
+    public Outcome getOutcome() {
+        return this.outcome;
+    }
+    
+    /**
+     * Terminates the command. A running process is killed including all of its
+     * child processes, a command not started yet will not start anymore.
+     */
+    public void terminate() {
+        synchronized (this) {
+            cancelled = true;
+            // wakes up a command waiting for a retry
+            notifyAll();
+            if (proc != null) {
+                try {
+                    proc.kill();
+                } catch (Exception e) {
+                    lg.log("Cannot terminate %s: %s", exeName, e.getMessage());
+                }
+            }
+            if (filtered != null) {
+                // interrupts the call on the node, which kills the process
+                filtered.cancel(true);
+            }
+        }
     }
     
     /**
@@ -268,6 +425,27 @@ public abstract class WixCommand {
      */
     protected abstract ArgumentListBuilder createCommand() throws ToolsetException;
     
+    /**
+     * Returns the arguments of the command. The command line is created on
+     * first use and reused until an option of the command changes, so a
+     * command logged before execution is not created twice.
+     * @return arguments of the command.
+     * @throws ToolsetException 
+     */
+    protected ArgumentListBuilder render() throws ToolsetException {
+        if (args == null) {
+            createCommand();
+        }
+        return args;
+    }
+    
+    /**
+     * Discards the created command line after an option has changed.
+     */
+    protected void changed() {
+        args = null;
+    }
+    
     /**
      * Checks if binary exists and toolset is properly installed.
      * @return true if binary exists.
@@ -306,35 +484,173 @@ public abstract class WixCommand {
     }
     
     /**
-     * executes command and parses the output checking for errors.
+     * executes command and parses the output checking for errors. A failed
+     * execution is run again if all errors reported by the tool are
+     * transient, as long as the retry policy allows.
      * @return true if execution was successful otherwise false.
      * @throws Exception
      * @throws ToolsetException 
      */
     public boolean execute() throws Exception, ToolsetException {
+        for (int retry = 0; ; retry++) {
+            RetryPolicy.Collector errors = new RetryPolicy.Collector(lg.getStream());
+            boolean success = execute(errors, retry);
+            if (success || retryPolicy == null || outcome != Outcome.FAILED) {
+                if (success && retry > 0) {
+                    retryPolicy.recovered();
+                }
+                return success;
+            }
+            // scans a last line without line break
+            errors.close();
+            List<String> reported = errors.getErrors();
+            if (retry >= retryPolicy.getAttempts() || !errors.isTransient()) {
+                return false;
+            }
+            long delay = retryPolicy.delay(retry + 1);
+            // the codes are not logged as "error CODE", the logger would count them as new errors
+            lg.log("%s failed for a transient reason (%s), retry %d of %d in %d ms.", exeName, reported.get(0), 
+                    retry + 1, retryPolicy.getAttempts(), delay);
+            retryPolicy.retried((outputFile == null) ? exeName : exeName + " " + outputFile.getRemote());
+            if (!pause(delay)) {
+                outcome = Outcome.CANCELLED;
+                return false;
+            }
+        }
+    }
+    
+    /**
+     * Waits before a retry.
+     * @param millis delay.
+     * @return false if the command was terminated while waiting.
+     * @throws InterruptedException
+     */
+    private synchronized boolean pause(long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        for (long left = millis; left > 0 && !cancelled; left = end - System.currentTimeMillis()) {
+            wait(left);
+        }
+        return !cancelled;
+    }
+    
+    /**
+     * executes command once.
+     * @param errors receives the output of the tool to collect its errors.
+     * @param retry number of the retry, 0 for the first execution.
+     * @return true if execution was successful otherwise false.
+     */
+    private boolean execute(RetryPolicy.Collector errors, int retry) throws Exception, ToolsetException {
         boolean success = true;
+        ScheduledFuture<?> watchdog = null;
+        outcome = Outcome.NOT_STARTED;
+        Timeline.Span span = (timeline == null) ? null : timeline.begin(
+                (outputFile == null) ? exeName : exeName + " " + outputFile.getName(), "process", agent);
         
         try {
-        	ArgumentListBuilder cmd2call = this.createCommand();
-        
-        	if (0 != launcher.launch().envs(parameters)
+        	ArgumentListBuilder cmd2call = render();
+        	
+        	Proc p = null;
+        	Future<LogFilter.Summary> f = null;
+        	synchronized (this) {
+        		if (cancelled) {
+        			outcome = Outcome.CANCELLED;
+        			return false;
+        		}
+        		Map<String, String> env = new HashMap<String, String>(parameters);
+        		env.putAll(environment);
+        		if (logDir != null && stdout == null && launcher.getChannel() != null) {
+        			f = launcher.getChannel().callAsync(new LogFilter.Launch(cmd2call.toCommandArray(), env, 
+        					(workspace == null) ? null : workspace.getRemote(), logDir.getRemote(), exeName, 
+        					new RemoteOutputStream(errors)));
+        			filtered = f;
+        		} else {
+        			p = launcher.launch().envs(env)
         						  .pwd(workspace)
-        						  .stdout(lg.getStream())
-        						  .stderr(lg.getStream())
+        						  .stdout(stdout != null ? stdout : errors)
+        						  .stderr(errors)
         						  .cmds(cmd2call)
-        						  .join()) {
+        						  .start();
+        			proc = p;
+        		}
+        	}
+        	
+        	final AtomicBoolean timedOut = new AtomicBoolean(false);
+        	if (timeout > 0) {
+        		watchdog = WATCHDOG.schedule(lg.bound(new Runnable() {
+        			public void run() {
+        				timedOut.set(true);
+        				lg.log("%s did not finish within %d minutes and is killed.", exeName, timeout);
+        				terminate();
+        			}
+        		}), timeout, TimeUnit.MINUTES);
+        	}
+        	
+        	if (0 != ((f != null) ? join(f) : p.join())) {
         		success = false;
         	}
         	
-        	success &= lg.hasNoErrors();
+        	if (f != null && launcher.getChannel() instanceof Channel) {
+        		// the output of a filtered process arrives asynchronously
+        		((Channel) launcher.getChannel()).syncLocalIO();
+        	}
+        	// only errors of this invocation count, not those of earlier commands of the build
+        	success &= errors.getErrors().isEmpty();
+        	if (timedOut.get()) {
+        		outcome = Outcome.TIMED_OUT;
+        		success = false;
+        	} else if (cancelled) {
+        		outcome = Outcome.CANCELLED;
+        		success = false;
+        	} else {
+        		outcome = success ? Outcome.SUCCEEDED : Outcome.FAILED;
+        	}
+        } catch (InterruptedException e) {
+        	// the build was aborted, do not leave the process running
+        	terminate();
+        	outcome = Outcome.CANCELLED;
+        	throw e;
         } catch (Exception e) {
         	lg.severe(e);
         	success = false;
+        	outcome = Outcome.FAILED;
+        } finally {
+        	if (watchdog != null) {
+        		watchdog.cancel(false);
+        	}
+        	synchronized (this) {
+        		proc = null;
+        		filtered = null;
+        	}
+        	if (span != null) {
+        		span.arg("output", (outputFile == null) ? null : outputFile.getRemote())
+        			.arg("cache", cacheState).arg("retry", (retry > 0) ? retry : null).arg("outcome", outcome).end();
+        	}
         }
         
         return success;
     }
     
+    /**
+     * Waits for a process with filtered output and logs the summary of its output.
+     * @param f running process.
+     * @return exit code of the process, -1 if it was terminated.
+     * @throws IOException if the process could not be run.
+     * @throws InterruptedException
+     */
+    private int join(Future<LogFilter.Summary> f) throws IOException, InterruptedException {
+        try {
+            LogFilter.Summary summary = f.get();
+            lg.log("%s wrote %d lines (%d KB, %d warnings, %d errors), complete output in side log %s", 
+                    exeName, summary.getLines(), summary.getBytes() / 1024, summary.getWarnings(), 
+                    summary.getErrors(), new File(summary.getLog()).getName());
+            return summary.getExitCode();
+        } catch (CancellationException e) {
+            return -1;
+        } catch (ExecutionException e) {
+            throw new IOException(exeName + ": " + e.getCause().getMessage());
+        }
+    }
+    
     public String toString() {
     	String cmd = "";
     	try {
@@ -163,6 +163,18 @@ public final class WixDescriptorImpl extends BuildStepDescriptor<Builder> {
     return items;
   }
 
+  /**
+   * Creates the ListBoxModel from enum {@link Wix.CacheMode}.
+   * @return
+   */
+  public ListBoxModel doFillCompileCacheItems() {
+    ListBoxModel items = new ListBoxModel();
+    for (Wix.CacheMode mode : Wix.CacheMode.values()) {
+      items.add(mode.name(), mode.name());
+    }
+    return items;
+  }
+
   @Override
   public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
     try {
@@ -199,6 +211,14 @@ public final class WixDescriptorImpl extends BuildStepDescriptor<Builder> {
       return instPath;
   }
 
+  /**
+   * Sets the installation path without saving the configuration, e.g. for tests.
+   * @param instPath installation path of the toolset.
+   */
+  void setInstPath(String instPath) {
+      this.instPath = instPath;
+  }
+
   public boolean getEnableDebug() {
       return enableDebug;
   }
@@ -214,5 +234,9 @@ public final class WixDescriptorImpl extends BuildStepDescriptor<Builder> {
 	public boolean getUsedOnSlave() {
 		return usedOnSlave;
 	}
+
+	void setUsedOnSlave(boolean usedOnSlave) {
+		this.usedOnSlave = usedOnSlave;
+	}
   
 }
@@ -20,9 +20,15 @@
 package de.berg.systeme.jenkins.wix;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import hudson.EnvVars;
 import hudson.FilePath;
@@ -49,6 +55,9 @@ public class WixToolsetBuilder extends Builder {
     private final String arch;
     private final ToolsetSettings settings;
     private static final ToolsetLogger lg = ToolsetLogger.INSTANCE;;
+    // defaults of the signing stage, not in Wix as all options there must be strings
+    private static final int DEF_SIGN_BATCH_SIZE = 10;
+    private static final int DEF_SIGN_PARALLEL = 2;
     
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
@@ -123,8 +132,358 @@ public class WixToolsetBuilder extends Builder {
     public String getMsiOutput()        { return msiOutput; }
     public String getArch()             { return arch; }
 	public String getSources()			{ return sources; }
+	public boolean getDryRun()			{ return getValue(Wix.DRY_RUN); }
+	public int getCompileWorkers()		{ return (settings != null) ? settings.get(Wix.COMPILE_WORKERS, 1) : 1; }
+	public int getCandleTimeout()		{ return (settings != null) ? settings.get(Wix.CANDLE_TIMEOUT, 0) : 0; }
+	public int getLightTimeout()		{ return (settings != null) ? settings.get(Wix.LIGHT_TIMEOUT, 0) : 0; }
+	public boolean getValidateSources()	{ return getValue(Wix.VALIDATE_SOURCES); }
+	public String getSchemaFile()		{ return (settings != null) ? settings.get(Wix.SCHEMA_FILE, "") : ""; }
+	public String getLibrarySources()	{ return (settings != null) ? settings.get(Wix.LIB_SOURCES, "") : ""; }
+	public String getLibraryOutput()	{ return (settings != null) ? settings.get(Wix.LIB_OUTPUT, "") : ""; }
+	public String getLibraries()		{ return (settings != null) ? settings.get(Wix.LIBRARIES, "") : ""; }
+	public String getReleaseVersion()	{ return (settings != null) ? settings.get(Wix.RELEASE_VERSION, "") : ""; }
+	public String getPatchSources()		{ return (settings != null) ? settings.get(Wix.PATCH_SOURCES, "") : ""; }
+	public String getPatchOutput()		{ return (settings != null) ? settings.get(Wix.PATCH_OUTPUT, "") : ""; }
+	public String getBaselineVersion()	{ return (settings != null) ? settings.get(Wix.BASELINE_VERSION, "") : ""; }
+	public String getBaselineId()		{ return (settings != null) ? settings.get(Wix.BASELINE_ID, "") : ""; }
+	public String getChainedPackages()	{ return (settings != null) ? settings.get(Wix.CHAINED_PACKAGES, "") : ""; }
+	public String getSignCommand()		{ return (settings != null) ? settings.get(Wix.SIGN_COMMAND, "") : ""; }
+	public int getSignBatchSize()		{ return (settings != null) ? settings.get(Wix.SIGN_BATCH_SIZE, DEF_SIGN_BATCH_SIZE) : DEF_SIGN_BATCH_SIZE; }
+	public int getSignParallel()		{ return (settings != null) ? settings.get(Wix.SIGN_PARALLEL, DEF_SIGN_PARALLEL) : DEF_SIGN_PARALLEL; }
+	public int getSignTimeout()			{ return (settings != null) ? settings.get(Wix.SIGN_TIMEOUT, 0) : 0; }
+	public boolean getTransferOutputs()	{ return getValue(Wix.TRANSFER_OUTPUTS); }
+	public String getScratchDir()		{ return (settings != null) ? settings.get(Wix.SCRATCH_DIR, "") : ""; }
+	public boolean getCheckpoint()		{ return getValue(Wix.CHECKPOINT); }
+	public String getVariants()			{ return (settings != null) ? settings.get(Wix.VARIANTS, "") : ""; }
+	public String getBindPaths()		{ return (settings != null) ? settings.get(Wix.BIND_PATHS, "") : ""; }
+	public boolean getCheckPayload()	{ return getValue(Wix.CHECK_PAYLOAD); }
+	public boolean getFilterOutput()	{ return getValue(Wix.FILTER_OUTPUT); }
+	public String getCompileAgents()	{ return (settings != null) ? settings.get(Wix.COMPILE_AGENTS, "") : ""; }
+	public int getRetryAttempts()		{ return (settings != null) ? settings.get(Wix.RETRY_ATTEMPTS, RetryPolicy.DEFAULT_ATTEMPTS) : RetryPolicy.DEFAULT_ATTEMPTS; }
+	public int getRetryDelay()			{ return (settings != null) ? settings.get(Wix.RETRY_DELAY, RetryPolicy.DEFAULT_DELAY) : RetryPolicy.DEFAULT_DELAY; }
+	public String getPayloads()			{ return (settings != null) ? settings.get(Wix.PAYLOADS, "") : ""; }
+	public String getPayloadSource()	{ return (settings != null) ? settings.get(Wix.PAYLOAD_SOURCE, "") : ""; }
+	public int getPayloadCacheSize()	{ return (settings != null) ? settings.get(Wix.PAYLOAD_CACHE_SIZE, PayloadCache.DEFAULT_QUOTA) : PayloadCache.DEFAULT_QUOTA; }
+	public int getAffinityWait()		{ return (settings != null) ? settings.get(Wix.AFFINITY_WAIT, 0) : 0; }
+	public String getCompileCache()		{ return (settings != null) ? settings.get(Wix.CACHE_MODE, Wix.CacheMode.none.name()) : Wix.CacheMode.none.name(); }
 	///////////////////////// End of Getter section ////////////////////////////
 	
+	/**
+	 * Enables the dry run. The execution plan is resolved and printed, but
+	 * neither candle nor light are launched.
+	 * @param dryRun true enables the dry run.
+	 */
+	@DataBoundSetter
+	public void setDryRun(boolean dryRun) {
+		settings.set(Wix.DRY_RUN, dryRun);
+	}
+	
+	/**
+	 * Sets the number of concurrent candle processes. With more than one
+	 * worker every source file is compiled into its own object file.
+	 * @param compileWorkers number of workers (default: 1).
+	 */
+	@DataBoundSetter
+	public void setCompileWorkers(int compileWorkers) {
+		settings.set(Wix.COMPILE_WORKERS, Math.max(compileWorkers, 1));
+	}
+	
+	/**
+	 * Sets the timeout of a single candle invocation. 
+	 * @param candleTimeout timeout in minutes, 0 disables the timeout.
+	 */
+	@DataBoundSetter
+	public void setCandleTimeout(int candleTimeout) {
+		settings.set(Wix.CANDLE_TIMEOUT, Math.max(candleTimeout, 0));
+	}
+	
+	/**
+	 * Sets the timeout of a single light invocation. 
+	 * @param lightTimeout timeout in minutes, 0 disables the timeout.
+	 */
+	@DataBoundSetter
+	public void setLightTimeout(int lightTimeout) {
+		settings.set(Wix.LIGHT_TIMEOUT, Math.max(lightTimeout, 0));
+	}
+	
+	/**
+	 * Checks all sources for well-formedness before candle is launched.
+	 * @param validateSources true enables the check.
+	 */
+	@DataBoundSetter
+	public void setValidateSources(boolean validateSources) {
+		settings.set(Wix.VALIDATE_SOURCES, validateSources);
+	}
+	
+	/**
+	 * Validates the sources against the given WiX schema during the check.
+	 * @param schemaFile path of wix.xsd, empty to check well-formedness only.
+	 */
+	@DataBoundSetter
+	public void setSchemaFile(String schemaFile) {
+		settings.set(Wix.SCHEMA_FILE, (schemaFile == null) ? "" : schemaFile);
+	}
+	
+	/**
+	 * Caches compiled object files on the node.
+	 * @param compileCache name of {@link Wix.CacheMode}.
+	 */
+	@DataBoundSetter
+	public void setCompileCache(String compileCache) {
+		settings.set(Wix.CACHE_MODE, Wix.CacheMode.parse(compileCache).name());
+	}
+	
+	/**
+	 * Builds a library from the given sources before the product is built.
+	 * @param librarySources Ant-style pattern of library sources.
+	 */
+	@DataBoundSetter
+	public void setLibrarySources(String librarySources) {
+		settings.set(Wix.LIB_SOURCES, (librarySources == null) ? "" : librarySources);
+	}
+	
+	/**
+	 * Name of the library built from the library sources.
+	 * @param libraryOutput path of .wixlib file relative to the workspace.
+	 */
+	@DataBoundSetter
+	public void setLibraryOutput(String libraryOutput) {
+		settings.set(Wix.LIB_OUTPUT, (libraryOutput == null) ? "" : libraryOutput);
+	}
+	
+	/**
+	 * Prebuilt libraries passed to the linker.
+	 * @param libraries Ant-style pattern of .wixlib files.
+	 */
+	@DataBoundSetter
+	public void setLibraries(String libraries) {
+		settings.set(Wix.LIBRARIES, (libraries == null) ? "" : libraries);
+	}
+	
+	/**
+	 * Stores the linked package as baseline of this release version.
+	 * @param releaseVersion release version, may contain environment variables.
+	 */
+	@DataBoundSetter
+	public void setReleaseVersion(String releaseVersion) {
+		settings.set(Wix.RELEASE_VERSION, (releaseVersion == null) ? "" : releaseVersion);
+	}
+	
+	/**
+	 * Builds a patch from the given sources after linking.
+	 * @param patchSources Ant-style pattern of patch sources.
+	 */
+	@DataBoundSetter
+	public void setPatchSources(String patchSources) {
+		settings.set(Wix.PATCH_SOURCES, (patchSources == null) ? "" : patchSources);
+	}
+	
+	/**
+	 * Name of the patch.
+	 * @param patchOutput path of .msp file relative to the workspace.
+	 */
+	@DataBoundSetter
+	public void setPatchOutput(String patchOutput) {
+		settings.set(Wix.PATCH_OUTPUT, (patchOutput == null) ? "" : patchOutput);
+	}
+	
+	/**
+	 * Release version of the baseline the patch is created against.
+	 * @param baselineVersion release version, may contain environment variables.
+	 */
+	@DataBoundSetter
+	public void setBaselineVersion(String baselineVersion) {
+		settings.set(Wix.BASELINE_VERSION, (baselineVersion == null) ? "" : baselineVersion);
+	}
+	
+	/**
+	 * Id of the PatchBaseline element in the patch sources.
+	 * @param baselineId id of patch baseline.
+	 */
+	@DataBoundSetter
+	public void setBaselineId(String baselineId) {
+		settings.set(Wix.BASELINE_ID, (baselineId == null) ? "" : baselineId);
+	}
+	
+	/**
+	 * Packages chained into the bundle, one <i>output=sources</i> per line.
+	 * @param chainedPackages chained packages.
+	 */
+	@DataBoundSetter
+	public void setChainedPackages(String chainedPackages) {
+		settings.set(Wix.CHAINED_PACKAGES, (chainedPackages == null) ? "" : chainedPackages);
+	}
+	
+	/**
+	 * Command line of the signing tool. The files to sign are appended.
+	 * @param signCommand command line, may contain environment variables.
+	 */
+	@DataBoundSetter
+	public void setSignCommand(String signCommand) {
+		settings.set(Wix.SIGN_COMMAND, (signCommand == null) ? "" : signCommand);
+	}
+	
+	/**
+	 * Maximum number of files passed to one invocation of the signing tool.
+	 * @param signBatchSize number of files per batch.
+	 */
+	@DataBoundSetter
+	public void setSignBatchSize(int signBatchSize) {
+		settings.set(Wix.SIGN_BATCH_SIZE, Math.max(1, signBatchSize));
+	}
+	
+	/**
+	 * Maximum number of concurrent invocations of the signing tool.
+	 * @param signParallel number of concurrent batches.
+	 */
+	@DataBoundSetter
+	public void setSignParallel(int signParallel) {
+		settings.set(Wix.SIGN_PARALLEL, Math.max(1, signParallel));
+	}
+	
+	/**
+	 * Sets the timeout of a single invocation of the signing tool.
+	 * @param signTimeout timeout in minutes, 0 disables the timeout.
+	 */
+	@DataBoundSetter
+	public void setSignTimeout(int signTimeout) {
+		settings.set(Wix.SIGN_TIMEOUT, Math.max(signTimeout, 0));
+	}
+	
+	/**
+	 * Transfers all outputs into the artifacts of the build as one stream.
+	 * @param transferOutputs true to transfer outputs.
+	 */
+	@DataBoundSetter
+	public void setTransferOutputs(boolean transferOutputs) {
+		settings.set(Wix.TRANSFER_OUTPUTS, transferOutputs);
+	}
+	
+	/**
+	 * Writes intermediate files into a scratch directory on the node.
+	 * @param scratchDir root of scratch directories, may contain environment variables.
+	 */
+	@DataBoundSetter
+	public void setScratchDir(String scratchDir) {
+		settings.set(Wix.SCRATCH_DIR, (scratchDir == null) ? "" : scratchDir);
+	}
+	
+	/**
+	 * Records finished compiles in a checkpoint in the workspace, so a rerun
+	 * after an interrupted build reuses their object files.
+	 * @param checkpoint true enables the checkpoint.
+	 */
+	@DataBoundSetter
+	public void setCheckpoint(boolean checkpoint) {
+		settings.set(Wix.CHECKPOINT, checkpoint);
+	}
+	
+	/**
+	 * Build variants, one <i>name: NAME=value; NAME=value</i> per line.
+	 * @param variants build variants.
+	 */
+	@DataBoundSetter
+	public void setVariants(String variants) {
+		settings.set(Wix.VARIANTS, (variants == null) ? "" : variants);
+	}
+	
+	/**
+	 * Directories light searches for payload, one per line. A line
+	 * <i>name=path</i> defines a named bind path.
+	 * @param bindPaths bind paths.
+	 */
+	@DataBoundSetter
+	public void setBindPaths(String bindPaths) {
+		settings.set(Wix.BIND_PATHS, (bindPaths == null) ? "" : bindPaths);
+	}
+	
+	/**
+	 * Checks on the node that all payload of the sources exists before any
+	 * process is launched.
+	 * @param checkPayload true enables the check.
+	 */
+	@DataBoundSetter
+	public void setCheckPayload(boolean checkPayload) {
+		settings.set(Wix.CHECK_PAYLOAD, checkPayload);
+	}
+	
+	/**
+	 * Filters the output of all tools on the node and keeps the complete
+	 * output as side logs of the build.
+	 * @param filterOutput true enables the filter.
+	 */
+	@DataBoundSetter
+	public void setFilterOutput(boolean filterOutput) {
+		settings.set(Wix.FILTER_OUTPUT, filterOutput);
+	}
+	
+	/**
+	 * Compiles the sources on all agents matching a label expression.
+	 * @param compileAgents label expression, blank compiles on the node of the build.
+	 */
+	@DataBoundSetter
+	public void setCompileAgents(String compileAgents) {
+		settings.set(Wix.COMPILE_AGENTS, (compileAgents == null) ? "" : compileAgents);
+	}
+	
+	/**
+	 * Sets how often a candle or light invocation failing for a transient
+	 * reason, e.g. a locked file, is run again.
+	 * @param retryAttempts number of retries, 0 disables retries.
+	 */
+	@DataBoundSetter
+	public void setRetryAttempts(int retryAttempts) {
+		settings.set(Wix.RETRY_ATTEMPTS, Math.max(retryAttempts, 0));
+	}
+	
+	/**
+	 * Sets the delay before the first retry, it doubles with every retry.
+	 * @param retryDelay delay in seconds.
+	 */
+	@DataBoundSetter
+	public void setRetryDelay(int retryDelay) {
+		settings.set(Wix.RETRY_DELAY, Math.max(retryDelay, 0));
+	}
+	
+	/**
+	 * Large payloads provided from the payload cache of the node, one per
+	 * line as <i>path=sha256</i> with the path relative to the workspace.
+	 * @param payloads payloads.
+	 */
+	@DataBoundSetter
+	public void setPayloads(String payloads) {
+		settings.set(Wix.PAYLOADS, (payloads == null) ? "" : payloads);
+	}
+	
+	/**
+	 * Directory or URL on the node payloads missing in the cache are fetched from.
+	 * @param payloadSource directory or URL, blank only uses the cache.
+	 */
+	@DataBoundSetter
+	public void setPayloadSource(String payloadSource) {
+		settings.set(Wix.PAYLOAD_SOURCE, (payloadSource == null) ? "" : payloadSource);
+	}
+	
+	/**
+	 * Sets the quota of the payload cache, the least recently used payloads
+	 * are evicted above it.
+	 * @param payloadCacheSize quota in megabytes.
+	 */
+	@DataBoundSetter
+	public void setPayloadCacheSize(int payloadCacheSize) {
+		settings.set(Wix.PAYLOAD_CACHE_SIZE, Math.max(payloadCacheSize, 0));
+	}
+	
+	/**
+	 * Sets how long a build waits for a busy agent with warm caches for the
+	 * job before it takes an agent with cold caches.
+	 * @param affinityWait wait in seconds, 0 only prefers idle warm agents.
+	 */
+	@DataBoundSetter
+	public void setAffinityWait(int affinityWait) {
+		settings.set(Wix.AFFINITY_WAIT, Math.max(affinityWait, 0));
+	}
+	
 	@Override
     public boolean perform(@SuppressWarnings("rawtypes") AbstractBuild build, Launcher launcher, BuildListener listener) {
         // At this point we also have to check the global variables again
@@ -139,6 +498,7 @@ public class WixToolsetBuilder extends Builder {
         boolean performedSuccessful = false;
         final String instPath = settings.get(Wix.INST_PATH, "");
         final boolean debugEnabled = Boolean.valueOf(settings.get(Wix.DEBUG_ENBL, "false"));
+        Toolset toolset = null;
     	
         try {
         	// initialize our own logger
@@ -153,26 +513,162 @@ public class WixToolsetBuilder extends Builder {
 	      lg.log( messages.getString("DETECTING_ENVIRONMENT_VARIABLES") );	      
 	      EnvVars envVars = build.getEnvironment(listener);
 	
-	      FilePath[] sources = workspace.list(getSources());
+	      // a job may only build a library
+	      FilePath[] sources = StringUtils.isBlank(getSources()) ? new FilePath[0] : workspace.list(getSources());
 	      lg.log(java.text.MessageFormat.format(java.util.ResourceBundle.getBundle("Messages").getString("FOUND_SOURCES"), new Object[] {sources.length}));
 	
 	      lg.log( messages.getString("INITIALIZING_TOOLS") );
-	      Toolset toolset = new Toolset(build, launcher, settings);
+	      toolset = new Toolset(build, launcher, settings, envVars);
 	      // add architecture for compiler
 	      toolset.setArchitecture(arch);
+	      
+	      String scratchDir = envVars.expand(settings.get(Wix.SCRATCH_DIR, ""));
+	      if (StringUtils.isNotBlank(scratchDir) && !settings.get(Wix.DRY_RUN, false)) {
+	          toolset.setScratchDir(new FilePath(workspace.getChannel(), scratchDir.trim()));
+	      }
+	      if (settings.get(Wix.FILTER_OUTPUT, false) && !settings.get(Wix.DRY_RUN, false)) {
+	          toolset.setOutputFilter();
+	      }
+	      toolset.setCompileAgents(envVars.expand(settings.get(Wix.COMPILE_AGENTS, "")));
+	      String bindPaths = settings.get(Wix.BIND_PATHS, "");
+	      if (StringUtils.isNotBlank(bindPaths)) {
+	          toolset.setBindPaths(bindPaths);
+	      }
+	      
+	      String librarySources = settings.get(Wix.LIB_SOURCES, "");
+	      if (StringUtils.isNotBlank(librarySources)) {
+	          String libraryOutput = settings.get(Wix.LIB_OUTPUT, "");
+	          if (StringUtils.isBlank(libraryOutput)) {
+	              libraryOutput = Wix.LIB_DEFAULT_NAME;
+	          }
+	          toolset.setLibrary(workspace.list(envVars.expand(librarySources)), 
+	                  new FilePath(workspace, envVars.expand(libraryOutput)));
+	      }
+	      String libraries = settings.get(Wix.LIBRARIES, "");
+	      if (StringUtils.isNotBlank(libraries)) {
+	          toolset.addLibraries(workspace.list(envVars.expand(libraries)));
+	      }
+	      
+	      if (settings.get(Wix.DRY_RUN, false)) {
+	          lg.log( messages.getString("DRY_RUN") );
+	          FilePath outFile = null;
+	          if (!settings.get(Wix.COMPILE_ONLY, false) && sources.length > 0) {
+	              outFile = new FilePath(workspace, envVars.expand(settings.get(Wix.MSI_PKG, Wix.MSI_PKG_DEFAULT_NAME)));
+	          }
+	          ExecutionPlan plan = toolset.plan(sources, outFile);
+	          for (String line : plan.toLines()) {
+	              lg.log(line);
+	          }
+	          FilePath planFile = workspace.child(Wix.PLAN_FILE);
+	          planFile.write(plan.toJSON().toString(2), "UTF-8");
+	          lg.log( java.text.MessageFormat.format(messages.getString("PLAN_WRITTEN_TO"), planFile.getRemote()) );
+	          build.setResult(Result.SUCCESS);
+	          return true;
+	      }
+	      
+	      if (settings.get(Wix.VALIDATE_SOURCES, false)) {
+	          toolset.phase("validate");
+	          toolset.validate(sources, settings.get(Wix.SCHEMA_FILE, ""));
+	      }
+	      // a rerun after an interrupted build reuses the compiles it finished
+	      toolset.resume();
+	      Map<String, String> payloads = PayloadCache.parse(settings.get(Wix.PAYLOADS, ""));
+	      if (!payloads.isEmpty()) {
+	          toolset.phase("payloads");
+	          toolset.payloads(payloads, envVars.expand(settings.get(Wix.PAYLOAD_SOURCE, "")));
+	      }
+	      if (settings.get(Wix.CHECK_PAYLOAD, false) && sources.length > 0) {
+	          toolset.phase("payload check");
+	          toolset.checkPayload(sources);
+	      }
+	      
 	      lg.log( messages.getString("STARTING_COMPILE_PROCESS") );
-	      FilePath objFile = toolset.compile(sources);
+	      toolset.phase("library");
+	      FilePath library = toolset.library(settings.get(Wix.COMPILE_WORKERS, 1));
+	      if (library != null && sources.length == 0) {
+	          if (settings.get(Wix.TRANSFER_OUTPUTS, false)) {
+	              toolset.transfer();
+	          }
+	          toolset.complete();
+	          build.setResult(Result.SUCCESS);
+	          return true;
+	      }
+	      
+	      // chained packages of a bundle are built concurrently before the bundle
+	      String signCommand = settings.get(Wix.SIGN_COMMAND, "");
+	      int signBatchSize = settings.get(Wix.SIGN_BATCH_SIZE, DEF_SIGN_BATCH_SIZE);
+	      int signParallel = settings.get(Wix.SIGN_PARALLEL, DEF_SIGN_PARALLEL);
+	      List<ChainedPackage> packages = ChainedPackage.parse(settings.get(Wix.CHAINED_PACKAGES, ""));
+	      if (!packages.isEmpty()) {
+	          toolset.phase("packages");
+	          FilePath[] packageFiles = toolset.packages(packages, packages.size());
+	          // packages are embedded into the bundle, so they are signed before
+	          if (StringUtils.isNotBlank(signCommand)) {
+	              toolset.phase("sign packages");
+	              toolset.sign(Arrays.asList(packageFiles), signCommand, signBatchSize, signParallel);
+	          }
+	      }
+	      boolean bundle = envVars.expand(settings.get(Wix.MSI_PKG, Wix.MSI_PKG_DEFAULT_NAME)).toLowerCase().endsWith(".exe");
+	      if (bundle) {
+	          lg.log( messages.getString("BALEXT_ENABLED") );
+	          toolset.enableExtension(Wix.EXT_BAL);
+	      }
+	      // identical compiles of different variants are run only once
+	      toolset.phase("compile");
+	      List<Variant> variants = Variant.parse(settings.get(Wix.VARIANTS, ""));
+	      Map<Variant, FilePath[]> variantObjects = variants.isEmpty() ? null 
+	              : toolset.compile(sources, variants, settings.get(Wix.COMPILE_WORKERS, 1));
+	      FilePath[] objFiles = (variantObjects != null) ? null 
+	              : toolset.compile(sources, settings.get(Wix.COMPILE_WORKERS, 1));
 	      
 	      if (settings.get(Wix.COMPILE_ONLY, false)) {
 	          lg.log( messages.getString("SKIPPING_LINK") );
+	      } else if (variantObjects != null) {
+	          FilePath outFile = new FilePath(workspace, envVars.expand(settings.get(Wix.MSI_PKG, Wix.MSI_PKG_DEFAULT_NAME)));
+	          for (Map.Entry<Variant, FilePath[]> variant : variantObjects.entrySet()) {
+	              FilePath variantFile = variant.getKey().fileOf(outFile);
+	              lg.log( java.text.MessageFormat.format(java.util.ResourceBundle.getBundle("Messages").getString("LINKING_TO"), new Object[] {variantFile}));
+	              toolset.phase("link " + variantFile.getName());
+	              toolset.link(variant.getValue(), variantFile);
+	              sign(toolset, variantFile, bundle, signCommand, signBatchSize, signParallel);
+	          }
 	      } else {
 	          String output = settings.get(Wix.MSI_PKG, Wix.MSI_PKG_DEFAULT_NAME);
 	          output = envVars.expand(output);
 	          FilePath outFile = new FilePath(workspace, output);
 	          lg.log( java.text.MessageFormat.format(java.util.ResourceBundle.getBundle("Messages").getString("LINKING_TO"), new Object[] {outFile}));
-	          toolset.link(objFile, outFile);
+	          toolset.phase("link");
+	          toolset.link(objFiles, outFile);
+	          sign(toolset, outFile, bundle, signCommand, signBatchSize, signParallel);
+	          
+	          String releaseVersion = envVars.expand(settings.get(Wix.RELEASE_VERSION, ""));
+	          if (StringUtils.isNotBlank(releaseVersion)) {
+	              toolset.phase("store baseline");
+	              toolset.storeBaseline(outFile, releaseVersion);
+	          }
+	          String patchSources = settings.get(Wix.PATCH_SOURCES, "");
+	          if (StringUtils.isNotBlank(patchSources)) {
+	              String patchOutput = settings.get(Wix.PATCH_OUTPUT, "");
+	              String baselineId = settings.get(Wix.BASELINE_ID, "");
+	              toolset.phase("patch");
+	              // the upgrade is the package linked above
+	              FilePath patch = toolset.patch(workspace.list(envVars.expand(patchSources)), outFile, 
+	                      new FilePath(workspace, envVars.expand(StringUtils.isBlank(patchOutput) ? Wix.PATCH_DEFAULT_NAME : patchOutput)), 
+	                      envVars.expand(settings.get(Wix.BASELINE_VERSION, "")), 
+	                      StringUtils.isBlank(baselineId) ? Wix.BASELINE_DEFAULT_ID : baselineId.trim());
+	              if (StringUtils.isNotBlank(signCommand)) {
+	                  toolset.phase("sign patch");
+	                  toolset.sign(Collections.singletonList(patch), signCommand, signBatchSize, signParallel);
+	              }
+	          }
+	      }
+	      
+	      if (settings.get(Wix.TRANSFER_OUTPUTS, false)) {
+	          toolset.phase("transfer");
+	          toolset.transfer();
 	      }
 	      
+	      toolset.complete();
 	      build.setResult(Result.SUCCESS);
 	      performedSuccessful = true;
         } catch (ToolsetException e) {
@@ -195,11 +691,41 @@ public class WixToolsetBuilder extends Builder {
         	lg.severe(ex);
             build.setResult(settings.get(Wix.MARK_UNSTABLE, false) ? Result.UNSTABLE : Result.FAILURE);
             performedSuccessful = false;
+        } finally {
+            // intermediates are not needed anymore
+            if (toolset != null) {
+                toolset.cleanup();
+            }
+            lg.release();
         }
 	    
         return performedSuccessful;
     }
 
+    /**
+     * Signs the outputs of the last link. A bundle is signed including its
+     * engine, packages are signed together with their external cabinets.
+     * @param toolset toolset of the build.
+     * @param outFile linked package or bundle.
+     * @param bundle true if outFile is a bundle.
+     * @param signCommand command to sign files, nothing is signed if blank.
+     * @param signBatchSize files per invocation of the sign command.
+     * @param signParallel concurrent invocations of the sign command.
+     * @throws Exception
+     * @throws ToolsetException if signing failed.
+     */
+    private void sign(Toolset toolset, FilePath outFile, boolean bundle, String signCommand, 
+            int signBatchSize, int signParallel) throws Exception, ToolsetException {
+        if (StringUtils.isNotBlank(signCommand)) {
+            toolset.phase("sign");
+            if (bundle) {
+                toolset.signBundle(outFile, signCommand);
+            } else {
+                toolset.sign(toolset.getLinkedOutputs(), signCommand, signBatchSize, signParallel);
+            }
+        }
+    }
+    
     // Overridden for better type safety.
     // If your plugin doesn't really define any property on Descriptor,
     // you don't have to do this.
@@ -0,0 +1,157 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+/**
+ * Tests recording the agents with warm WiX caches of a job.
+ * @author Bjoern.Berg
+ */
+public class CacheAffinityTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private static final long NOW = 1500000000000L;
+    private FilePath dir;
+    private File file;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        file = new File(tmp.getRoot(), CacheAffinity.FILENAME);
+    }
+    
+    @Test
+    public void testRecordAndLoad() throws Exception {
+        CacheAffinity affinity = new CacheAffinity(file);
+        assertFalse(affinity.isWarm("agent1", NOW));
+        assertEquals(-1, affinity.getHits("agent1"));
+        affinity.record("agent1", NOW, 3, 4, 2048, new HashSet<String>(Arrays.asList("core.msi")));
+        assertTrue(file.exists());
+        
+        CacheAffinity loaded = new CacheAffinity(file);
+        assertTrue(loaded.isWarm("agent1", NOW + 1000));
+        assertEquals(3, loaded.getHits("agent1"));
+        assertEquals(4, loaded.getLookups("agent1"));
+        assertEquals(2048, loaded.getCacheBytes("agent1"));
+        assertEquals(Collections.singleton("core.msi"), loaded.getPackages("agent1"));
+    }
+    
+    @Test
+    public void testPackagesAccumulate() throws Exception {
+        CacheAffinity affinity = new CacheAffinity(null);
+        affinity.record("agent1", NOW, 1, 1, 0, new HashSet<String>(Arrays.asList("core.msi")));
+        affinity.record("agent1", NOW + 1, 1, 1, 0, new HashSet<String>(Arrays.asList("tools.msi")));
+        assertEquals(new HashSet<String>(Arrays.asList("core.msi", "tools.msi")), affinity.getPackages("agent1"));
+    }
+    
+    @Test
+    public void testColdAfterMaxAge() throws Exception {
+        CacheAffinity affinity = new CacheAffinity(file);
+        affinity.record("agent1", NOW, 0, 2, 0, Collections.<String>emptySet());
+        assertTrue(affinity.isWarm("agent1", NOW + CacheAffinity.MAX_AGE - 1));
+        assertFalse(affinity.isWarm("agent1", NOW + CacheAffinity.MAX_AGE));
+        
+        affinity.record("agent2", NOW + CacheAffinity.MAX_AGE, 0, 2, 0, Collections.<String>emptySet());
+        assertEquals(-1, new CacheAffinity(file).getHits("agent1"));
+        assertEquals(Arrays.asList("agent2"), affinity.getWarmNodes(NOW + CacheAffinity.MAX_AGE));
+    }
+    
+    @Test
+    public void testWarmNodesMostRecentFirst() throws Exception {
+        CacheAffinity affinity = new CacheAffinity(null);
+        affinity.record("agent1", NOW, 0, 1, 0, Collections.<String>emptySet());
+        affinity.record("", NOW + 2, 0, 1, 0, Collections.<String>emptySet());
+        affinity.record("agent2", NOW + 1, 0, 1, 0, Collections.<String>emptySet());
+        assertEquals(Arrays.asList("", "agent2", "agent1"), affinity.getWarmNodes(NOW + 3));
+    }
+    
+    @Test
+    public void testWarmOnlyWithCacheUse() throws Exception {
+        CacheAffinity affinity = new CacheAffinity(null);
+        // built recently, but without a cache lookup or a cached package
+        affinity.record("agent1", NOW, 0, 0, 4096, Collections.<String>emptySet());
+        assertFalse(affinity.isWarm("agent1", NOW + 1));
+        // filled the package cache only
+        affinity.record("agent2", NOW, 0, 0, 4096, Collections.singleton("core.msi"));
+        assertTrue(affinity.isWarm("agent2", NOW + 1));
+        assertEquals(Arrays.asList("agent2"), affinity.getWarmNodes(NOW + 1));
+    }
+    
+    @Test
+    public void testSharedByJob() throws Exception {
+        File jobDir = new File(dir.getRemote());
+        assertSame(CacheAffinity.of(jobDir), CacheAffinity.of(jobDir));
+    }
+    
+    @Test
+    public void testPeekAndEvictMissing() throws Exception {
+        File jobDir = new File(dir.getRemote(), "job");
+        jobDir.mkdirs();
+        assertEquals(null, CacheAffinity.peek(jobDir));
+        CacheAffinity affinity = CacheAffinity.of(jobDir);
+        assertSame(affinity, CacheAffinity.peek(jobDir));
+        CacheAffinity.evictMissing();
+        assertSame(affinity, CacheAffinity.peek(jobDir));
+        // the job was deleted or moved
+        dir.child("job").deleteRecursive();
+        CacheAffinity.evictMissing();
+        assertEquals(null, CacheAffinity.peek(jobDir));
+    }
+    
+    @Test
+    public void testCacheBytesSampled() throws Exception {
+        FilePath cache = dir.child("wix-cache");
+        cache.child("objects/a.wixobj").write("12345", "UTF-8");
+        assertEquals(5, CacheAffinity.cacheBytes("sampled", cache, NOW));
+        cache.child("packages/b.msi").write("123", "UTF-8");
+        // measured again only once the interval is over
+        assertEquals(5, CacheAffinity.cacheBytes("sampled", cache, NOW + CacheAffinity.SIZE_INTERVAL - 1));
+        assertEquals(8, CacheAffinity.cacheBytes("sampled", cache, NOW + CacheAffinity.SIZE_INTERVAL));
+    }
+    
+    @Test
+    public void testSize() throws Exception {
+        dir.child("wix-cache/objects/a.wixobj").write("12345", "UTF-8");
+        dir.child("wix-cache/packages/b.msi").write("123", "UTF-8");
+        assertEquals(Long.valueOf(8), dir.child("wix-cache").act(new CacheAffinity.Size()));
+        assertEquals(Long.valueOf(0), dir.child("missing").act(new CacheAffinity.Size()));
+    }
+    
+    @Test
+    public void testNoWarmAgentWithoutJenkins() throws Exception {
+        assertEquals(null, CacheAffinityDispatcher.waitFor(Arrays.asList("agent1"), null, 0, 60000));
+    }
+}
@@ -193,6 +193,51 @@ public class CandleTest {
         }
     }
     
+    /**
+     * A terminated command must not launch a process anymore.
+     */
+    @Test
+    public void testTerminateBeforeExecute() {
+        try {
+            FilePath fp = new FilePath(new File("test.txt"));
+            candle = new Candle(settings, vars);
+            candle.addSourceFile(fp);
+            candle.setOutputFile(fp);
+            assertEquals(WixCommand.Outcome.NOT_STARTED, candle.getOutcome());
+            candle.terminate();
+            assertFalse(candle.execute());
+            assertEquals(WixCommand.Outcome.CANCELLED, candle.getOutcome());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        } catch (Exception ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
+    /**
+     * A copied compiler keeps its configuration but not its sources.
+     */
+    @Test
+    public void testCopyKeepsConfiguration() {
+        final String CMD = "candle.exe -arch x64 -ext MyExtension -nologo -out other.txt other.txt";
+        try {
+            candle = new Candle(settings, vars);
+            candle.addSourceFile(new FilePath(new File("test.txt")));
+            candle.setArch(Wix.Arch.x64);
+            candle.addExtension("MyExtension");
+            candle.setTimeout(5);
+            Candle copy = new Candle(candle);
+            FilePath other = new FilePath(new File("other.txt"));
+            copy.addSourceFile(other);
+            copy.setOutputFile(other);
+            copy.createCommand();
+            assertEquals(CMD, copy.toString());
+            assertEquals(5, copy.getTimeout());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
     @Test
     public void testIfExistsWithExecutableInPath() {
     	try { 
@@ -213,4 +258,15 @@ public class CandleTest {
     		// a toolset exception can be thrown on a Unix build
         }
     }   
+    
+    @Test
+    public void testRelocateIncludePaths() throws Exception, ToolsetException {
+        FilePath workspace = new FilePath(new File("/ws"));
+        candle = new Candle(settings, vars);
+        candle.addIncludePath(workspace.child("include"));
+        candle.addIncludePath(new FilePath(new File("/sdk/include")));
+        candle.relocateIncludePaths(workspace, new FilePath(new File("/shard")));
+        assertEquals(new FilePath(new File("/shard")).child("include").getRemote(), candle.getIncludePaths().get(0).getRemote());
+        assertEquals(new File("/sdk/include").getPath(), candle.getIncludePaths().get(1).getRemote());
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests parsing of {@link ChainedPackage}.
+ * @author Bjoern.Berg
+ */
+public class ChainedPackageTest {
+
+    @Test
+    public void testParse() throws ToolsetException {
+        List<ChainedPackage> packages = ChainedPackage.parse(
+                "# packages of the bundle\r\npackages/core.msi = core/*.wxs\r\n\r\npackages/ui.msi=ui/**/*.wxs\r\n");
+        assertEquals(2, packages.size());
+        assertEquals("packages/core.msi", packages.get(0).getOutput());
+        assertEquals("core/*.wxs", packages.get(0).getSources());
+        assertEquals("packages/ui.msi", packages.get(1).getOutput());
+        assertEquals("ui/**/*.wxs", packages.get(1).getSources());
+    }
+    
+    @Test
+    public void testParseEmpty() throws ToolsetException {
+        assertTrue(ChainedPackage.parse(null).isEmpty());
+        assertTrue(ChainedPackage.parse("  \n").isEmpty());
+    }
+    
+    @Test
+    public void testParseInvalid() {
+        try {
+            ChainedPackage.parse("packages/core.msi");
+            fail("must fail without sources.");
+        } catch (ToolsetException ex) {
+            // accepted
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+/**
+ * Tests recording and validating the progress of an interrupted build.
+ * @author Bjoern.Berg
+ */
+public class CheckpointTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    private Checkpoint checkpoint;
+    private Map<String, String> keys;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        dir.child("obj/product.wixobj").write("<wixObject id='product'/>", "UTF-8");
+        dir.child("obj/feature.wixobj").write("<wixObject id='feature'/>", "UTF-8");
+        checkpoint = new Checkpoint(dir.child(Checkpoint.FILENAME));
+        keys = new HashMap<String, String>();
+        keys.put(dir.child("obj/product.wixobj").getRemote(), "key1");
+        keys.put(dir.child("obj/feature.wixobj").getRemote(), "key2");
+    }
+    
+    @Test
+    public void testNoCheckpoint() throws Exception {
+        Checkpoint.State state = checkpoint.resume(7);
+        assertTrue(state.isEmpty());
+        assertEquals(0, state.getBuild());
+        assertTrue(checkpoint.reusable(keys).isEmpty());
+    }
+    
+    @Test
+    public void testResume() throws Exception {
+        checkpoint.resume(7);
+        checkpoint.record(keys);
+        
+        Checkpoint.State state = checkpoint.resume(8);
+        assertFalse(state.isEmpty());
+        assertEquals(7, state.getBuild());
+        assertEquals(2, state.getOutputs());
+        assertEquals(keys.keySet(), checkpoint.reusable(keys));
+        // the next attempt reads the number of the last one
+        assertEquals(8, checkpoint.resume(9).getBuild());
+    }
+    
+    @Test
+    public void testChangedInputsOrOutputs() throws Exception {
+        checkpoint.record(keys);
+        String product = dir.child("obj/product.wixobj").getRemote();
+        String feature = dir.child("obj/feature.wixobj").getRemote();
+        
+        // the inputs of product changed
+        Map<String, String> changed = new HashMap<String, String>(keys);
+        changed.put(product, "key3");
+        assertEquals(keys.keySet().size() - 1, checkpoint.reusable(changed).size());
+        
+        // feature was overwritten after it was recorded, e.g. by an interrupted compile
+        dir.child("obj/feature.wixobj").write("<wixObj", "UTF-8");
+        Set<String> reusable = checkpoint.reusable(keys);
+        assertTrue(reusable.contains(product));
+        assertFalse(reusable.contains(feature));
+        
+        // recompiled with new inputs, the later record wins
+        checkpoint.record(changed);
+        assertTrue(checkpoint.reusable(changed).contains(product));
+        assertFalse(checkpoint.reusable(keys).contains(product));
+    }
+    
+    @Test
+    public void testInterruptedAppend() throws Exception {
+        checkpoint.record(keys);
+        OutputStream out = new FileOutputStream(new File(dir.child(Checkpoint.FILENAME).getRemote()), true);
+        out.write(("output\t" + dir.child("obj/other.wixobj").getRemote() + "\tkey").getBytes("UTF-8"));
+        out.close();
+        // the next record starts on a new line
+        assertEquals(2, checkpoint.resume(2).getOutputs());
+        Checkpoint.State state = checkpoint.resume(3);
+        assertEquals(2, state.getBuild());
+        assertEquals(2, state.getOutputs());
+        assertEquals(2, checkpoint.reusable(keys).size());
+    }
+    
+    @Test
+    public void testClear() throws Exception {
+        checkpoint.record(keys);
+        checkpoint.clear();
+        assertFalse(dir.child(Checkpoint.FILENAME).exists());
+        assertTrue(checkpoint.resume(3).isEmpty());
+    }
+}
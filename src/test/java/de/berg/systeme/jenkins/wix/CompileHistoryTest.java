@@ -0,0 +1,104 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests recording and estimation of compile durations.
+ * @author Bjoern.Berg
+ */
+public class CompileHistoryTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private CompileHistory history;
+    
+    @Before
+    public void setUp() {
+        history = new CompileHistory(null);
+    }
+    
+    @Test
+    public void testUnknownSourceIsEstimatedBySize() {
+        long expected = CompileHistory.STARTUP_MILLIS + Math.round(1000 * CompileHistory.DEFAULT_RATE);
+        assertEquals(-1, history.getDuration("product.wxs"));
+        assertEquals(expected, history.estimate("product.wxs", 1000));
+    }
+    
+    @Test
+    public void testRecordedDurationIsSmoothed() {
+        history.record("product.wxs", 1000, 2000);
+        assertEquals(1000, history.estimate("product.wxs", 2000));
+        history.record("product.wxs", 3000, -1);
+        assertEquals(2000, history.getDuration("product.wxs"));
+        // size is kept if unknown
+        assertEquals(2000, history.getSize("product.wxs"));
+    }
+    
+    @Test
+    public void testRateIsDerivedFromHistory() {
+        history.record("a.wxs", CompileHistory.STARTUP_MILLIS + 1000, 10000);
+        assertEquals(0.1, history.getRate(), 0.0001);
+        assertEquals(CompileHistory.STARTUP_MILLIS + 500, history.estimate("b.wxs", 5000));
+    }
+    
+    @Test
+    public void testLinkDoesNotChangeRate() {
+        history.record("a.wxs", CompileHistory.STARTUP_MILLIS + 1000, 10000);
+        history.record("link:setup.msi", 30000, -1);
+        assertEquals(0.1, history.getRate(), 0.0001);
+        assertEquals(30000, history.getDuration("link:setup.msi"));
+    }
+    
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File file = tmp.newFile("history.properties");
+        history = new CompileHistory(file);
+        history.record("dir/product.wxs", 1234, 42);
+        history.save();
+        CompileHistory loaded = new CompileHistory(file);
+        assertEquals(1234, loaded.getDuration("dir/product.wxs"));
+        assertEquals(42, loaded.getSize("dir/product.wxs"));
+    }
+    
+    @Test
+    public void testConcurrentBuildsKeepEachOthersRecords() throws IOException {
+        File file = tmp.newFile("history.properties");
+        CompileHistory first = new CompileHistory(file);
+        CompileHistory second = new CompileHistory(file);
+        first.record("a.wxs", 1000, 10);
+        second.record("b.wxs", 2000, 20);
+        second.record("a.wxs", 3000, 10);
+        first.save();
+        second.save();
+        CompileHistory loaded = new CompileHistory(file);
+        // the measurement of the second build is smoothed with the record of the first
+        assertEquals(2000, loaded.getDuration("a.wxs"));
+        assertEquals(2000, loaded.getDuration("b.wxs"));
+    }
+}
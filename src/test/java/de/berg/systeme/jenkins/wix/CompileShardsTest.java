@@ -0,0 +1,96 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+/**
+ * Tests partitioning and transfer of compile shards.
+ * @author Bjoern.Berg
+ */
+public class CompileShardsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath workspace;
+    
+    @Before
+    public void setUp() throws Exception {
+        workspace = new FilePath(tmp.getRoot());
+        workspace.child("src/product.wxs").write("<Wix><?include common.wxi ?><?include $(var.Dir)\\x.wxi ?></Wix>", "UTF-8");
+        workspace.child("src/common.wxi").write("<Include><?include ../inc/version.wxi ?></Include>", "UTF-8");
+        workspace.child("inc/version.wxi").write("<Include/>", "UTF-8");
+        workspace.child("inc/unused.wxi").write("<Include/>", "UTF-8");
+    }
+    
+    @Test
+    public void testPartition() {
+        long[] estimates = {10, 70, 20, 30, 40, 30};
+        int[] assignment = CompileShards.partition(estimates, 2);
+        long[] load = new long[2];
+        for (int i = 0; i < estimates.length; i++) {
+            load[assignment[i]] += estimates[i];
+        }
+        // the longest job goes to the first shard, the rest fills up the other one
+        assertEquals(0, assignment[1]);
+        assertEquals(100, load[0]);
+        assertEquals(100, load[1]);
+    }
+    
+    @Test
+    public void testPartitionWithMoreShardsThanJobs() {
+        int[] assignment = CompileShards.partition(new long[] {5, 5}, 3);
+        assertTrue(assignment[0] != assignment[1]);
+    }
+    
+    @Test
+    public void testClosure() throws Exception {
+        List<String> paths = workspace.act(new CompileShards.Closure(
+                Collections.singletonList(workspace.child("src/product.wxs")), Collections.<FilePath>emptyList()));
+        assertEquals(Arrays.asList("inc/version.wxi", "src/common.wxi", "src/product.wxs"), paths);
+    }
+    
+    @Test
+    public void testTransfer() throws Exception {
+        List<String> paths = Arrays.asList("src/product.wxs", "inc/version.wxi");
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        Map<String, OutputTransfer.Entry> manifest = workspace.act(new OutputTransfer(paths, zip));
+        FilePath shard = workspace.child("shard");
+        List<String> problems = shard.act(new CompileShards.Unpack(new ByteArrayInputStream(zip.toByteArray()), manifest));
+        assertTrue(problems.toString(), problems.isEmpty());
+        assertEquals(workspace.child("src/product.wxs").readToString(), shard.child("src/product.wxs").readToString());
+        assertTrue(shard.child("inc/version.wxi").exists());
+        assertTrue(!shard.child("inc/unused.wxi").exists());
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+/**
+ * Tests the detection of defines used by sources.
+ * @author Bjoern.Berg
+ */
+public class DefineUsageTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        dir.child("common.wxi").write("<Include><?ifdef Edition?><Property Id=\"A\" Value=\"$(var.Label)\"/><?endif?></Include>", "UTF-8");
+    }
+    
+    private Set<String> usage(String name, String content) throws Exception {
+        FilePath source = dir.child(name);
+        source.write(content, "UTF-8");
+        Map<String, Set<String>> usage = new DefineUsage(Collections.singletonList(source), 
+                Collections.<FilePath>emptyList()).invoke(new File(dir.getRemote()), null);
+        return usage.get(source.getRemote());
+    }
+    
+    @Test
+    public void testSourceWithoutDefines() throws Exception {
+        assertTrue(usage("plain.wxs", "<Wix><Fragment><Property Id=\"X\" Value=\"1\"/></Fragment></Wix>").isEmpty());
+    }
+    
+    @Test
+    public void testReferencesAndIncludes() throws Exception {
+        Set<String> used = usage("product.wxs", "<Wix><?include common.wxi?>"
+                + "<?if $(var.Configuration) = \"Debug\"?><Property Id=\"D\" Value=\"$(env.USERNAME)\"/><?endif?></Wix>");
+        assertTrue(used.toString(), used.containsAll(Arrays.asList("Configuration", "Edition", "Label")));
+        // parameters are passed to the environment of candle as well
+        assertTrue(used.toString(), used.contains("USERNAME"));
+        assertTrue(used.toString(), !used.contains("BUILD_NUMBER"));
+    }
+    
+    @Test
+    public void testUnresolvedIncludeUsesAllDefines() throws Exception {
+        Set<String> used = usage("other.wxs", "<Wix><?include $(var.Dir)\\missing.wxi?></Wix>");
+        assertEquals(new TreeSet<String>(Arrays.asList(DefineUsage.ALL, "Dir")), used);
+    }
+}
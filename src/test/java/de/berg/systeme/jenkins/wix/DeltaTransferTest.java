@@ -0,0 +1,156 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the content-defined chunks and the delta encoding of {@link DeltaTransfer}.
+ * @author Bjoern.Berg
+ */
+public class DeltaTransferTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private File dir;
+    private byte[] content;
+    
+    @Before
+    public void setUp() throws IOException {
+        dir = tmp.getRoot();
+        content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+    }
+    
+    private File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+    
+    // content with bytes inserted in the middle
+    private byte[] inserted() {
+        byte[] changed = new byte[content.length + 100];
+        System.arraycopy(content, 0, changed, 0, 500000);
+        Arrays.fill(changed, 500000, 500100, (byte) 7);
+        System.arraycopy(content, 500000, changed, 500100, content.length - 500000);
+        return changed;
+    }
+    
+    private static Set<String> hashes(List<DeltaTransfer.Chunk> chunks) {
+        Set<String> hashes = new HashSet<String>();
+        for (DeltaTransfer.Chunk chunk : chunks) {
+            hashes.add(chunk.hash);
+        }
+        return hashes;
+    }
+    
+    @Test
+    public void testSplit() throws Exception {
+        List<DeltaTransfer.Chunk> chunks = DeltaTransfer.split(write("setup.cab", content));
+        assertTrue(chunks.size() > 1);
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            DeltaTransfer.Chunk chunk = chunks.get(i);
+            assertEquals(offset, chunk.offset);
+            assertTrue(chunk.length <= DeltaTransfer.MAX_CHUNK);
+            assertTrue(chunk.length >= DeltaTransfer.MIN_CHUNK || i == chunks.size() - 1);
+            offset += chunk.length;
+        }
+        assertEquals(content.length, offset);
+    }
+    
+    @Test
+    public void testInsertionChangesFewChunks() throws Exception {
+        Set<String> before = hashes(DeltaTransfer.split(write("before.cab", content)));
+        List<DeltaTransfer.Chunk> after = DeltaTransfer.split(write("after.cab", inserted()));
+        int changed = 0;
+        for (DeltaTransfer.Chunk chunk : after) {
+            if (!before.contains(chunk.hash)) {
+                changed++;
+            }
+        }
+        assertTrue("changed chunks: " + changed, changed <= 2);
+    }
+    
+    @Test
+    public void testEncodeAndDecode() throws Exception {
+        File previous = write("previous.cab", content);
+        byte[] changed = inserted();
+        File current = write("current.cab", changed);
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputTransfer.Entry entry = DeltaTransfer.encode(current, hashes(DeltaTransfer.split(previous)), out);
+        assertTrue(entry.isDelta());
+        assertEquals(changed.length, entry.getSize());
+        assertTrue("sent: " + entry.getSent(), entry.getSent() < changed.length / 2);
+        assertTrue(out.size() < changed.length / 2);
+        
+        ByteArrayOutputStream restored = new ByteArrayOutputStream();
+        MessageDigest md = Fingerprints.newDigest();
+        long size = DeltaTransfer.decode(new ByteArrayInputStream(out.toByteArray()), previous, restored, md);
+        assertEquals(changed.length, size);
+        assertTrue(Arrays.equals(changed, restored.toByteArray()));
+        assertEquals(entry.getSha256(), Fingerprints.toHex(md.digest()));
+    }
+    
+    @Test(expected = IOException.class)
+    public void testDecodeWithoutPreviousVersion() throws Exception {
+        File current = write("current.cab", content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeltaTransfer.encode(current, hashes(DeltaTransfer.split(current)), out);
+        DeltaTransfer.decode(new ByteArrayInputStream(out.toByteArray()), new File(dir, "missing.cab"), 
+                new ByteArrayOutputStream(), Fingerprints.newDigest());
+    }
+    
+    @Test
+    public void testSignaturesOfExistingFiles() throws Exception {
+        write("setup.cab", content);
+        Map<String, Set<String>> signatures = new DeltaTransfer.Signatures(
+                Arrays.asList("setup.cab", "missing.cab")).invoke(dir, null);
+        assertEquals(Collections.singleton("setup.cab"), signatures.keySet());
+        assertTrue(signatures.get("setup.cab").size() > 1);
+        assertTrue(new DeltaTransfer.Signatures(Arrays.asList("setup.cab")).invoke(null, null).isEmpty());
+    }
+}
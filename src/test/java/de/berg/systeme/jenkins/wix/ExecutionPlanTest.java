@@ -0,0 +1,87 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests rendering of the {@link ExecutionPlan}.
+ * @author Bjoern.Berg
+ */
+public class ExecutionPlanTest {
+    private ExecutionPlan plan;
+    
+    @Before
+    public void setUp() {
+        plan = new ExecutionPlan();
+        plan.addSource("product.wxs");
+        plan.addSetting(Wix.COMPILE_ONLY, "false");
+        plan.addExtension(Wix.EXT_UI);
+        plan.addExtension(Wix.EXT_UI);
+        plan.addDefine("Version", "1.0");
+        plan.addStep(new ExecutionPlan.Step(Wix.COMPILER, "compile", "candle.exe -out product.wixobj product.wxs", 
+                "product.wixobj", ExecutionPlan.NOT_CACHED));
+        plan.addStep(new ExecutionPlan.Step(Wix.LINKER, "link", "light.exe -out setup.msi product.wixobj", 
+                "setup.msi", ExecutionPlan.NOT_CACHED));
+    }
+    
+    @Test
+    public void testGroupsInExecutionOrder() {
+        List<String> groups = plan.getGroups();
+        assertEquals(2, groups.size());
+        assertEquals("compile", groups.get(0));
+        assertEquals("link", groups.get(1));
+    }
+    
+    @Test
+    public void testExtensionsAreUnique() {
+        assertEquals(1, plan.getExtensions().size());
+    }
+    
+    @Test
+    public void testToLinesContainsCommands() {
+        List<String> lines = plan.toLines();
+        assertTrue(lines.contains("  [cache: none] candle.exe -out product.wixobj product.wxs"));
+        assertTrue(lines.contains("  [cache: none] light.exe -out setup.msi product.wixobj"));
+        assertTrue(lines.contains("Estimated duration: unknown (no successful build in history)"));
+    }
+    
+    @Test
+    public void testEstimatedDuration() {
+        plan.setEstimatedDuration(4200);
+        assertTrue(plan.toLines().contains("Estimated duration: 4200 ms"));
+    }
+    
+    @Test
+    public void testNotPlannedPhases() {
+        assertTrue(plan.getNotPlanned().isEmpty());
+        plan.addNotPlanned("signing (sign.command)");
+        List<String> lines = plan.toLines();
+        int index = lines.indexOf("Not planned, resolved only when the build runs:");
+        assertTrue(index > 0);
+        assertEquals("  signing (sign.command)", lines.get(index + 1));
+    }
+}
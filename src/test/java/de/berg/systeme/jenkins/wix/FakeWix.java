@@ -0,0 +1,424 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Emulates candle.exe, light.exe and lit.exe on any platform, so the
+ * orchestration of the plugin can be tested and benchmarked without a
+ * Windows node. The emulator parses the arguments rendered by Candle, Light
+ * and Lit, writes placeholder outputs derived from the content of the inputs
+ * and simulates latency, CPU load, output volume and errors as configured by
+ * a Profile.
+ * <p>
+ * install() writes launchers named like the real tools into a directory,
+ * which is then used as installation path of the toolset. Every invocation
+ * is appended to a journal in that directory.
+ * @author Bjoern.Berg
+ */
+public final class FakeWix {
+    /** name of the journal in the installation directory. */
+    public static final String JOURNAL = "invocations.log";
+    // options followed by a value
+    private static final List<String> VALUED = Arrays.asList(
+            "-arch", "-ext", "-I", "-b", "-out", "-loc", "-cultures", "-pdbout");
+    // magic number of compound documents, i.e. .msi files
+    private static final byte[] MSI_MAGIC = {(byte) 0xD0, (byte) 0xCF, 0x11, (byte) 0xE0, 
+            (byte) 0xA1, (byte) 0xB1, 0x1A, (byte) 0xE1};
+    
+    private FakeWix() {
+    }
+    
+    /**
+     * Behaviour of the emulated tools. Durations apply to every source of an
+     * invocation, so larger invocations take longer like with the real tools.
+     */
+    public static final class Profile {
+        private static final String PREFIX = "fakewix.";
+        long latency;
+        long cpu;
+        int lines;
+        int warnings;
+        int exitCode;
+        String failOn = "";
+        int locked;
+        
+        /** @param millis time spent waiting per source, e.g. for I/O. */
+        public Profile latency(long millis) {
+            this.latency = millis;
+            return this;
+        }
+        
+        /** @param millis time spent computing per source. */
+        public Profile cpu(long millis) {
+            this.cpu = millis;
+            return this;
+        }
+        
+        /** @param count lines of verbose output per source. */
+        public Profile lines(int count) {
+            this.lines = count;
+            return this;
+        }
+        
+        /** @param count warnings per source. */
+        public Profile warnings(int count) {
+            this.warnings = count;
+            return this;
+        }
+        
+        /** @param code exit code of every invocation, 0 for success. */
+        public Profile exitCode(int code) {
+            this.exitCode = code;
+            return this;
+        }
+        
+        /** @param regex sources matching fail with an error, empty for none. */
+        public Profile failOn(String regex) {
+            this.failOn = regex;
+            return this;
+        }
+        
+        /**
+         * @param invocations number of invocations of each tool failing
+         * because the output is locked by another process, e.g. a virus scanner.
+         */
+        public Profile locked(int invocations) {
+            this.locked = invocations;
+            return this;
+        }
+        
+        String toOptions() {
+            return "-D" + PREFIX + "latency=" + latency + " -D" + PREFIX + "cpu=" + cpu 
+                    + " -D" + PREFIX + "lines=" + lines + " -D" + PREFIX + "warnings=" + warnings 
+                    + " -D" + PREFIX + "exitCode=" + exitCode + " '-D" + PREFIX + "failOn=" + failOn + "'" 
+                    + " -D" + PREFIX + "locked=" + locked;
+        }
+        
+        static Profile fromSystem() {
+            Profile profile = new Profile();
+            profile.latency = Long.getLong(PREFIX + "latency", 0);
+            profile.cpu = Long.getLong(PREFIX + "cpu", 0);
+            profile.lines = Integer.getInteger(PREFIX + "lines", 0);
+            profile.warnings = Integer.getInteger(PREFIX + "warnings", 0);
+            profile.exitCode = Integer.getInteger(PREFIX + "exitCode", 0);
+            profile.failOn = System.getProperty(PREFIX + "failOn", "");
+            profile.locked = Integer.getInteger(PREFIX + "locked", 0);
+            return profile;
+        }
+    }
+    
+    /**
+     * Writes launchers of candle.exe, light.exe and lit.exe into a directory.
+     * The launchers start this class with the class path of the running JVM.
+     * Only works on Unix-like systems.
+     * @param dir installation directory, use its path with a trailing slash
+     * as installation path of the toolset.
+     * @param profile behaviour of the tools.
+     * @return directory.
+     * @throws IOException
+     */
+    public static File install(File dir, Profile profile) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        for (String tool : new String[] {"candle", "light", "lit"}) {
+            File launcher = new File(dir, tool + ".exe");
+            PrintStream out = new PrintStream(new FileOutputStream(launcher), true, "UTF-8");
+            try {
+                out.println("#!/bin/sh");
+                out.println("exec '" + java + "' -cp '" + System.getProperty("java.class.path") + "' " 
+                        + profile.toOptions() + " '-Dfakewix.journal=" + new File(dir, JOURNAL).getPath() + "' " 
+                        + FakeWix.class.getName() + " " + tool + " \"$@\"");
+            } finally {
+                out.close();
+            }
+            if (!launcher.setExecutable(true)) {
+                throw new IOException("Cannot make " + launcher + " executable");
+            }
+        }
+        return dir;
+    }
+    
+    /**
+     * Reads the journal of an installation directory.
+     * @param dir installation directory.
+     * @return one line per finished invocation: tool, start and end in
+     * milliseconds, exit code and number of sources separated by tabs.
+     * @throws IOException
+     */
+    public static List<String> journal(File dir) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        File journal = new File(dir, JOURNAL);
+        if (journal.isFile()) {
+            for (String line : new String(read(journal), "UTF-8").split("\n")) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String[] toolArgs = new String[args.length - 1];
+        System.arraycopy(args, 1, toolArgs, 0, toolArgs.length);
+        long start = System.currentTimeMillis();
+        String journal = System.getProperty("fakewix.journal");
+        Profile profile = Profile.fromSystem();
+        if (journal != null) {
+            // every process is a new JVM, previous invocations are counted in the journal
+            for (String line : journal(new File(journal).getParentFile())) {
+                if (line.startsWith(args[0] + "\t")) {
+                    profile.locked--;
+                }
+            }
+        }
+        Result result = run(args[0], toolArgs, profile, System.out);
+        System.out.flush();
+        if (journal != null) {
+            append(new File(journal), args[0] + "\t" + start + "\t" + System.currentTimeMillis() 
+                    + "\t" + result.exitCode + "\t" + result.sources + "\n");
+        }
+        System.exit(result.exitCode);
+    }
+    
+    /**
+     * Result of an emulated invocation.
+     */
+    static final class Result {
+        int exitCode;
+        int sources;
+    }
+    
+    /**
+     * Emulates a tool in this JVM.
+     * @param tool candle, light or lit.
+     * @param args arguments without the executable.
+     * @param profile behaviour of the tool.
+     * @param out receives the output of the tool.
+     * @return exit code and number of sources.
+     * @throws Exception
+     */
+    static Result run(String tool, String[] args, Profile profile, PrintStream out) throws Exception {
+        String prefix = "candle".equals(tool) ? "CNDL" : "light".equals(tool) ? "LGHT" : "LIT";
+        Map<String, String> defines = new TreeMap<String, String>();
+        Map<String, String> options = new TreeMap<String, String>();
+        List<String> flags = new ArrayList<String>();
+        List<File> sources = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (VALUED.contains(arg) && i + 1 < args.length) {
+                String value = args[++i];
+                options.put(arg, options.containsKey(arg) ? options.get(arg) + ";" + value : value);
+            } else if (arg.startsWith("-d") && arg.indexOf('=') > 2) {
+                defines.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("-")) {
+                flags.add(arg);
+            } else {
+                sources.add(new File(arg));
+            }
+        }
+        Result result = new Result();
+        result.sources = sources.size();
+        if (!flags.contains("-nologo")) {
+            out.println("Windows Installer XML Toolset " + tool + " version 3.8.1128.0 (emulated)");
+        }
+        if (sources.isEmpty()) {
+            out.println(tool + ".exe : error " + prefix + "0001 : No source files specified.");
+            result.exitCode = 1;
+            return result;
+        }
+        
+        if (profile.locked > 0) {
+            profile.locked--;
+            out.println(tool + ".exe : error " + prefix + "0001 : The process cannot access the file '" 
+                    + options.get("-out") + "' because it is being used by another process.");
+            result.exitCode = 1;
+            return result;
+        }
+        
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Pattern failOn = (profile.failOn.length() == 0) ? null : Pattern.compile(profile.failOn);
+        for (File source : sources) {
+            if ("candle".equals(tool)) {
+                out.println(source.getName());
+            }
+            if (!source.isFile()) {
+                out.println(tool + ".exe : error " + prefix + "0103 : The system cannot find the file '" 
+                        + source.getPath() + "'.");
+                result.exitCode = 103;
+                return result;
+            }
+            byte[] content = read(source);
+            digest.update(content);
+            simulate(profile, content);
+            for (int line = 0; line < profile.lines; line++) {
+                out.println("  Processing element Component 'cmp" + line + "' in " + source.getName() + ".");
+            }
+            for (int warning = 0; warning < profile.warnings; warning++) {
+                out.println(source.getPath() + "(" + (warning + 1) + ") : warning " + prefix 
+                        + "1000 : Emulated warning.");
+            }
+            if (failOn != null && failOn.matcher(source.getPath()).find()) {
+                out.println(source.getPath() + "(1) : error " + prefix + "0104 : Emulated error.");
+                result.exitCode = 104;
+            }
+            if (flags.contains("-p")) {
+                out.write(content);
+                out.println();
+            }
+        }
+        if (profile.exitCode != 0) {
+            out.println(tool + ".exe : error " + prefix + "0001 : Emulated failure.");
+            result.exitCode = profile.exitCode;
+        }
+        if (result.exitCode != 0 || flags.contains("-p")) {
+            return result;
+        }
+        
+        String output = options.get("-out");
+        if (output == null) {
+            output = sources.get(0).getPath().replaceFirst("\\.[^.\\\\/]*$", "") 
+                    + ("candle".equals(tool) ? ".wixobj" : "light".equals(tool) ? ".msi" : ".wixlib");
+        }
+        if ("candle".equals(tool)) {
+            boolean toDirectory = output.endsWith("/") || output.endsWith("\\") || sources.size() > 1;
+            for (File source : sources) {
+                File target = toDirectory 
+                        ? new File(output, source.getName().replaceFirst("\\.[^.]*$", "") + ".wixobj") : new File(output);
+                write(target, ("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<wixObject version=\"3.0.2002.0\" xmlns=\"http://schemas.microsoft.com/wix/2006/objects\">\n"
+                        + "  <!-- source=" + source.getName() + " sha1=" + hex(sha1(read(source))) 
+                        + " arch=" + options.get("-arch") + " defines=" + defines + " -->\n"
+                        + "</wixObject>\n").getBytes("UTF-8"));
+            }
+        } else {
+            byte[] hash = digest.digest((defines.toString() + options.get("-b")).getBytes("UTF-8"));
+            File target = new File(output);
+            if ("light".equals(tool)) {
+                ByteArrayOutputStream msi = new ByteArrayOutputStream();
+                msi.write(MSI_MAGIC);
+                msi.write(hash);
+                write(target, msi.toByteArray());
+                if (!flags.contains("-spdb")) {
+                    String pdb = options.containsKey("-pdbout") ? options.get("-pdbout") 
+                            : target.getPath().replaceFirst("\\.[^.\\\\/]*$", "") + ".wixpdb";
+                    write(new File(pdb), ("<wixPdb sha1=\"" + hex(hash) + "\"/>\n").getBytes("UTF-8"));
+                }
+            } else {
+                write(target, ("<wixLibrary sha1=\"" + hex(hash) + "\"/>\n").getBytes("UTF-8"));
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Waits and keeps one CPU busy as configured.
+     */
+    private static void simulate(Profile profile, byte[] content) throws Exception {
+        if (profile.latency > 0) {
+            Thread.sleep(profile.latency);
+        }
+        long end = System.currentTimeMillis() + profile.cpu;
+        byte[] hash = content;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 1000; i++) {
+                hash = sha1(hash);
+            }
+        }
+    }
+    
+    private static byte[] sha1(byte[] data) throws Exception {
+        return MessageDigest.getInstance("SHA-1").digest(data);
+    }
+    
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+    
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+    
+    private static void write(File file, byte[] content) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+    
+    /**
+     * Appends a line to the journal. Concurrent invocations lock the journal.
+     */
+    private static void append(File journal, String line) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            FileLock lock = file.getChannel().lock();
+            try {
+                file.seek(file.length());
+                file.write(line.getBytes("UTF-8"));
+            } finally {
+                lock.release();
+            }
+        } finally {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+/**
+ * Tests the emulated toolset with the commands rendered by the plugin.
+ * @author Bjoern.Berg
+ */
+public class FakeWixTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    private ToolsetSettings settings;
+    private ByteArrayOutputStream output;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        dir.child("src").child("product.wxs").write("<Wix><Product/></Wix>", "UTF-8");
+        dir.child("src").child("feature.wxs").write("<Wix><Fragment/></Wix>", "UTF-8");
+        settings = new ToolsetSettings();
+        settings.set(Wix.INST_PATH, dir.child("bin").getRemote() + File.separator);
+        output = new ByteArrayOutputStream();
+    }
+    
+    private FakeWix.Result run(String tool, WixCommand command, FakeWix.Profile profile) throws Exception, ToolsetException {
+        String[] args = command.render().toCommandArray();
+        return FakeWix.run(tool, Arrays.copyOfRange(args, 1, args.length), profile, 
+                new PrintStream(output, true, "UTF-8"));
+    }
+    
+    @Test
+    public void testCompileAndLink() throws Exception, ToolsetException {
+        Candle candle = new Candle(settings, new EnvVars());
+        candle.addSourceFile(dir.child("src/product.wxs"));
+        candle.setOutputFile(dir.child("obj/product.wixobj"));
+        candle.setParameter("Version", "1.0");
+        assertEquals(0, run("candle", candle, new FakeWix.Profile()).exitCode);
+        String object = dir.child("obj/product.wixobj").readToString();
+        assertTrue(object.contains("source=product.wxs"));
+        assertTrue(object.contains("Version=1.0"));
+        
+        Light light = new Light(settings, new EnvVars());
+        light.addSourceFile(dir.child("obj/product.wixobj"));
+        light.setOutputFile(dir.child("out/setup.msi"));
+        assertEquals(0, run("light", light, new FakeWix.Profile()).exitCode);
+        assertTrue(dir.child("out/setup.msi").exists());
+        assertTrue(dir.child("out/setup.wixpdb").exists());
+        assertFalse(output.toString("UTF-8").contains("error"));
+    }
+    
+    @Test
+    public void testOutputIsDeterministic() throws Exception, ToolsetException {
+        Candle candle = new Candle(settings, new EnvVars());
+        candle.addSourceFile(dir.child("src/product.wxs"));
+        candle.setOutputFile(dir.child("a.wixobj"));
+        run("candle", candle, new FakeWix.Profile());
+        candle.setOutputFile(dir.child("b.wixobj"));
+        run("candle", candle, new FakeWix.Profile());
+        assertEquals(dir.child("a.wixobj").readToString(), dir.child("b.wixobj").readToString());
+    }
+    
+    @Test
+    public void testProfile() throws Exception, ToolsetException {
+        Candle candle = new Candle(settings, new EnvVars());
+        candle.addSourceFile(dir.child("src/product.wxs"));
+        candle.addSourceFile(dir.child("src/feature.wxs"));
+        candle.setOutputFile(dir.child("obj"));
+        long start = System.currentTimeMillis();
+        FakeWix.Result result = run("candle", candle, new FakeWix.Profile().latency(50).lines(3).warnings(1).failOn("feature"));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(104, result.exitCode);
+        assertEquals(2, result.sources);
+        String log = output.toString("UTF-8");
+        assertTrue(log.contains("warning CNDL1000"));
+        assertTrue(log.contains("feature.wxs(1) : error CNDL0104"));
+        assertEquals(7, log.split("Processing element").length);
+        assertFalse(dir.child("obj/product.wixobj").exists());
+    }
+    
+    @Test
+    public void testMissingSource() throws Exception, ToolsetException {
+        Light light = new Light(settings, new EnvVars());
+        light.addSourceFile(dir.child("obj/missing.wixobj"));
+        light.setOutputFile(dir.child("setup.msi"));
+        assertEquals(103, run("light", light, new FakeWix.Profile()).exitCode);
+        assertTrue(output.toString("UTF-8").contains("error LGHT0103"));
+    }
+    
+    @Test
+    public void testLauncher() throws Exception, ToolsetException {
+        if (File.separatorChar == '\\') {
+            // launchers are shell scripts
+            return;
+        }
+        File bin = FakeWix.install(new File(dir.getRemote(), "bin"), new FakeWix.Profile().exitCode(2));
+        Candle candle = new Candle(settings, new EnvVars());
+        assertTrue(candle.exists());
+        candle.addSourceFile(dir.child("src/product.wxs"));
+        candle.setOutputFile(dir.child("product.wixobj"));
+        Process process = new ProcessBuilder(candle.render().toCommandArray()).redirectErrorStream(true).start();
+        InputStream in = process.getInputStream();
+        while (in.read() >= 0) {
+            // drain output
+        }
+        assertEquals(2, process.waitFor());
+        List<String> journal = FakeWix.journal(bin);
+        assertEquals(1, journal.size());
+        assertTrue(journal.get(0).startsWith("candle\t"));
+        assertTrue(journal.get(0).endsWith("\t2\t1"));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the normalization of preprocessed sources in {@link Fingerprints}.
+ * @author Bjoern.Berg
+ */
+public class FingerprintsTest {
+    private static final String PRODUCT = "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+            + "<Wix xmlns=\"http://schemas.microsoft.com/wix/2006/wi\">"
+            + "<Product Id=\"*\" Name=\"Test\" Version=\"1.0.0\"><Package /></Product></Wix>";
+
+    private static String hash(String document) throws Exception {
+        return Fingerprints.ofNormalizedXml(document.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void testCommentsAndWhitespaceAreIgnored() throws Exception {
+        String formatted = "<?xml version=\"1.0\" encoding=\"utf-8\"?>\r\n"
+                + "<!-- generated -->\r\n"
+                + "<Wix xmlns=\"http://schemas.microsoft.com/wix/2006/wi\">\r\n"
+                + "  <Product Id=\"*\" Name=\"Test\" Version=\"1.0.0\">\r\n"
+                + "    <!-- the package -->\r\n"
+                + "    <Package/>\r\n"
+                + "  </Product>\r\n"
+                + "</Wix>\r\n";
+        assertEquals(hash(PRODUCT), hash(formatted));
+    }
+
+    @Test
+    public void testAttributeOrderIsIgnored() throws Exception {
+        String reordered = PRODUCT.replace("Id=\"*\" Name=\"Test\" Version=\"1.0.0\"", 
+                "Version=\"1.0.0\" Id=\"*\" Name=\"Test\"");
+        assertEquals(hash(PRODUCT), hash(reordered));
+    }
+
+    @Test
+    public void testContentChangesFingerprint() throws Exception {
+        assertFalse(hash(PRODUCT).equals(hash(PRODUCT.replace("1.0.0", "1.0.1"))));
+        assertFalse(hash(PRODUCT).equals(hash(PRODUCT.replace("<Package />", "<Package Compressed=\"yes\" />"))));
+    }
+
+    @Test
+    public void testWhitespaceInTextIsSignificant() throws Exception {
+        String script = PRODUCT.replace("<Package />", "<Package /><CustomAction Id=\"Run\" Script=\"vbscript\">"
+                + "\r\n  MsgBox \"a  b\"\r\n</CustomAction>");
+        assertFalse(hash(script).equals(hash(script.replace("\"a  b\"", "\"a b\""))));
+        assertFalse(hash(script).equals(hash(script.replace("\r\n  MsgBox", "MsgBox"))));
+    }
+
+    @Test
+    public void testTrailingOutputIsIgnored() throws Exception {
+        assertEquals(hash(PRODUCT), hash(PRODUCT + "\r\ncandle.exe : warning CNDL1000 : something"));
+    }
+
+    @Test
+    public void testSplitDocuments() throws Exception {
+        byte[] output = (PRODUCT + "\r\n" + PRODUCT.replace("Test", "Other")).getBytes("UTF-8");
+        List<byte[]> documents = Fingerprints.splitDocuments(output);
+        assertEquals(2, documents.size());
+        assertEquals(hash(PRODUCT), Fingerprints.ofNormalizedXml(documents.get(0)));
+        assertFalse(hash(PRODUCT).equals(Fingerprints.ofNormalizedXml(documents.get(1))));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+/**
+ * Tests the invocation shared by the commands of a build.
+ * @author Bjoern.Berg
+ */
+public class InvocationTest {
+    private ToolsetSettings settings;
+    private EnvVars vars;
+    
+    @Before
+    public void setUp() {
+        settings = new ToolsetSettings();
+        settings.set(Wix.EXT_UTIL, true);
+        settings.set(Wix.EXT_UI, true);
+        vars = new EnvVars();
+        vars.put("VERSION", "1.2.3");
+        vars.put("BUILD_DIR", "C:\\build\\");
+        vars.put("Path", "C:\\Windows");
+    }
+    
+    @Test
+    public void testDeterministicOrder() {
+        settings.set(Wix.ENBL_ENV_AS_PARAM, true);
+        Invocation invocation = Invocation.of(settings, vars);
+        assertEquals(Arrays.asList(Wix.EXT_UI, Wix.EXT_UTIL), invocation.getExtensions());
+        assertEquals(Arrays.asList("BUILD_DIR", "VERSION"), Arrays.asList(invocation.getParameters().keySet().toArray()));
+        // trailing backslash would mask the quotation mark
+        assertEquals("C:\\build", invocation.getParameters().get("BUILD_DIR"));
+    }
+    
+    @Test
+    public void testEnvironmentNotAddedByDefault() {
+        assertTrue(Invocation.of(settings, vars).getParameters().isEmpty());
+    }
+    
+    @Test
+    public void testCommandsDoNotChangeInvocation() throws ToolsetException {
+        final String CMD = "candle.exe -arch x86 -ext WixUIExtension -ext WixUtilExtension -dA=1 -nologo -out b.wixobj b.wxs";
+        Invocation invocation = Invocation.of(settings, vars);
+        Candle first = new Candle(null, settings, invocation);
+        first.addExtension("MyExtension");
+        Candle second = new Candle(null, settings, invocation);
+        second.addParameter("A", "1");
+        second.addSourceFile(new FilePath(new File("b.wxs")));
+        second.setOutputFile(new FilePath(new File("b.wixobj")));
+        assertEquals(CMD, second.render().toStringWithQuote());
+        assertFalse(invocation.getExtensions().contains("MyExtension"));
+        assertTrue(invocation.getParameters().isEmpty());
+    }
+    
+    @Test
+    public void testCommandIsRenderedOnce() throws ToolsetException {
+        Light light = new Light(null, settings, Invocation.of(settings, vars));
+        light.addSourceFile(new FilePath(new File("a.wixobj")));
+        light.setOutputFile(new FilePath(new File("a.msi")));
+        assertTrue(light.render() == light.render());
+        // a changed option creates the command line again
+        light.setWxall(true);
+        assertTrue(light.render().toStringWithQuote().contains("-wxall"));
+    }
+}
@@ -86,6 +86,31 @@ public class LightTest {
         }
     }
     
+    /**
+     * Test of createCommand with bind paths.
+     */
+    @Test
+    public void testCreateCommand_withBindPaths() {
+        final String CMD = "light.exe -nologo -b payload -b docs=manuals -out test.msi test.wixobj";
+        try {
+            light = new Light(settings, vars);
+            light.addBindPath(new FilePath(new File("payload")));
+            light.addBindPath("docs", new FilePath(new File("manuals")));
+            light.addSourceFile(new FilePath(new File("test.wixobj")));
+            light.setOutputFile(new FilePath(new File("test.msi")));
+            light.createCommand();
+            assertEquals(CMD, light.toString());
+            // bind paths are kept by a copy, sources and output are not
+            Light copy = new Light(light);
+            copy.addSourceFile(new FilePath(new File("test.wixobj")));
+            copy.setOutputFile(new FilePath(new File("test.msi")));
+            copy.createCommand();
+            assertEquals(CMD, copy.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
     /**
      * Test of createCommand with null files.
      */
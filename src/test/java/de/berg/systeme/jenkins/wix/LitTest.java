@@ -0,0 +1,118 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+/**
+ *
+ * @author Bjoern.Berg
+ */
+public class LitTest {
+    private EnvVars vars;
+    private ToolsetSettings settings;
+    private Lit lit;
+    
+    @Before
+    public void setUp() {
+        vars = new EnvVars();
+        settings = new ToolsetSettings();
+    }
+
+    /**
+     * Test of createCommand method, of class Lit.
+     */
+    @Test
+    public void testCreateCommand() {
+        try {
+            lit = new Lit(settings, vars);
+            lit.createCommand();
+            fail("must fail with missing object files.");
+        } catch (ToolsetException ex) {
+            // accepted
+        }
+    }
+    
+    /**
+     * Test of createCommand with object files.
+     */
+    @Test
+    public void testCreateCommand_withObjects() {
+        final String CMD = "lit.exe -nologo -out shared.wixlib ui.wixobj registry.wixobj";
+        try {
+            lit = new Lit(settings, vars);
+            lit.addSourceFile(new FilePath(new File("ui.wixobj")));
+            lit.addSourceFile(new FilePath(new File("registry.wixobj")));
+            lit.setOutputFile(new FilePath(new File("shared.wixlib")));
+            lit.createCommand();
+            assertEquals(CMD, lit.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
+    /**
+     * Lit does not know preprocessor variables, so parameters are dropped.
+     */
+    @Test
+    public void testCreateCommand_complete() {
+        final String CMD = "lit.exe -ext MyExtension -nologo -out output.wixlib input.wixobj";
+        try {
+            lit = new Lit(settings, vars);
+            lit.addSourceFile(new FilePath(new File("input.wixobj")));
+            lit.setOutputFile(new FilePath(new File("output.wixlib")));
+            lit.addExtension("MyExtension");
+            lit.addParameter("var_key", "var_name");
+            lit.createCommand();
+            assertEquals(CMD, lit.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
+    /**
+     * A copy keeps the extensions but not the object files of the original.
+     */
+    @Test
+    public void testCopy() {
+        final String CMD = "lit.exe -ext MyExtension -nologo -out second.wixlib second.wixobj";
+        try {
+            lit = new Lit(settings, vars);
+            lit.addExtension("MyExtension");
+            lit.addSourceFile(new FilePath(new File("first.wixobj")));
+            Lit copy = new Lit(lit);
+            copy.addSourceFile(new FilePath(new File("second.wixobj")));
+            copy.setOutputFile(new FilePath(new File("second.wixlib")));
+            copy.createCommand();
+            assertEquals(CMD, copy.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests filtering of process output.
+ * @author Bjoern.Berg
+ */
+public class LogFilterTest {
+    private static final String OUTPUT = "Windows Installer XML Toolset Compiler version 3.8\r\n"
+            + "product.wxs\r\n"
+            + "product.wxs(12) : warning CNDL1077 : The 'Icon' property is set twice.\r\n"
+            + "feature.wxs\r\n"
+            + "feature.wxs(3) : error CNDL0104 : Not a valid source file.\r\n"
+            + "done";
+    
+    @Test
+    public void testForwardsErrorsAndWarnings() throws Exception {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        LogFilter filter = new LogFilter(new GZIPOutputStream(raw), console, "candle.exe", Long.MAX_VALUE);
+        // split writes must not break lines
+        byte[] bytes = OUTPUT.getBytes("UTF-8");
+        filter.write(bytes, 0, 100);
+        filter.write(bytes[100]);
+        filter.write(bytes, 101, bytes.length - 101);
+        filter.close();
+        
+        String forwarded = console.toString("UTF-8");
+        assertTrue(forwarded.contains("warning CNDL1077"));
+        assertTrue(forwarded.contains("error CNDL0104"));
+        assertFalse(forwarded.contains("product.wxs\r\n"));
+        assertFalse(forwarded.contains("lines of output"));
+        
+        LogFilter.Summary summary = filter.getSummary();
+        assertEquals(6, summary.getLines());
+        assertEquals(1, summary.getWarnings());
+        assertEquals(1, summary.getErrors());
+        assertEquals(bytes.length, summary.getBytes());
+        
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(raw.toByteArray()));
+        ByteArrayOutputStream unpacked = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            unpacked.write(b);
+        }
+        assertEquals(OUTPUT, unpacked.toString("UTF-8"));
+    }
+    
+    @Test
+    public void testProgress() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        LogFilter filter = new LogFilter(new ByteArrayOutputStream(), console, "light.exe", 0);
+        filter.write("first\nsecond\n".getBytes("UTF-8"));
+        filter.close();
+        String forwarded = console.toString("UTF-8");
+        assertTrue(forwarded.contains("light.exe: 1 lines of output so far"));
+        assertTrue(forwarded.contains("light.exe: 2 lines of output so far"));
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the single stream transfer of outputs by {@link OutputTransfer}.
+ * @author Bjoern.Berg
+ */
+public class OutputTransferTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private File workspace;
+    private File target;
+    
+    @Before
+    public void setUp() throws IOException {
+        workspace = tmp.newFolder("workspace");
+        new File(workspace, "out").mkdirs();
+        write(new File(workspace, "out/setup.msi"), "package");
+        write(new File(workspace, "out/data1.cab"), "cabinet");
+        target = tmp.newFolder("artifacts");
+    }
+    
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+    
+    private Map<String, OutputTransfer.Entry> send(ByteArrayOutputStream stream) throws Exception {
+        List<String> paths = Arrays.asList("out/setup.msi", "out/data1.cab");
+        return new OutputTransfer(paths, stream).invoke(workspace, null);
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Map<String, OutputTransfer.Entry> manifest = send(stream);
+        assertEquals(2, manifest.size());
+        assertEquals(7, manifest.get("out/setup.msi").getSize());
+        
+        List<String> problems = OutputTransfer.unpack(new ByteArrayInputStream(stream.toByteArray()), target, manifest);
+        assertTrue(problems.toString(), problems.isEmpty());
+        assertTrue(new File(target, "out/setup.msi").isFile());
+        assertTrue(new File(target, "out/data1.cab").isFile());
+    }
+    
+    @Test
+    public void testCorruptedStreamIsReported() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Map<String, OutputTransfer.Entry> manifest = send(stream);
+        manifest.put("out/data1.cab", new OutputTransfer.Entry(7, "0000"));
+        manifest.put("out/setup.wixpdb", new OutputTransfer.Entry(1, "0000"));
+        
+        List<String> problems = OutputTransfer.unpack(new ByteArrayInputStream(stream.toByteArray()), target, manifest);
+        assertEquals(2, problems.size());
+    }
+    
+    @Test
+    public void testDeltaToPreviousVersion() throws Exception {
+        byte[] data = new byte[512 * 1024];
+        new Random(7).nextBytes(data);
+        new File(target, "out").mkdirs();
+        FileOutputStream out = new FileOutputStream(new File(target, "out/data1.cab"));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        data[data.length - 1]++;
+        out = new FileOutputStream(new File(workspace, "out/data1.cab"));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        
+        List<String> paths = Arrays.asList("out/setup.msi", "out/data1.cab");
+        Map<String, Set<String>> previous = new DeltaTransfer.Signatures(paths).invoke(target, null);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        Map<String, OutputTransfer.Entry> manifest = new OutputTransfer(paths, stream, previous).invoke(workspace, null);
+        assertFalse(manifest.get("out/setup.msi").isDelta());
+        assertEquals(7, manifest.get("out/setup.msi").getSent());
+        assertTrue(manifest.get("out/data1.cab").isDelta());
+        assertTrue(manifest.get("out/data1.cab").getSent() < data.length / 2);
+        
+        List<String> problems = OutputTransfer.unpack(new ByteArrayInputStream(stream.toByteArray()), target, manifest);
+        assertTrue(problems.toString(), problems.isEmpty());
+        assertEquals(data.length, new File(target, "out/data1.cab").length());
+        assertFalse(new File(target, "out/data1.cab.delta").exists());
+    }
+    
+    @Test
+    public void testFormat() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        String text = OutputTransfer.format(send(stream));
+        assertTrue(text.contains("  7  out/data1.cab\n"));
+        assertTrue(text.contains("  7  out/setup.msi\n"));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the input fingerprint sets of chained packages.
+ * @author Bjoern.Berg
+ */
+public class PackageInputsTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        dir.child("core").child("core.wxs").write("<?xml version=\"1.0\"?>\n<Wix>\n<?include common.wxi ?>\n" 
+                + "<File Source=\"bin\\core.dll\" />\n</Wix>", "UTF-8");
+        dir.child("include").child("common.wxi").write("<?xml version=\"1.0\"?>\n<Include />", "UTF-8");
+        dir.child("bin").child("core.dll").write("core", "UTF-8");
+    }
+    
+    private TreeMap<String, String> scan() throws Exception {
+        List<FilePath> sources = Collections.singletonList(dir.child("core").child("core.wxs"));
+        List<FilePath> includePaths = Collections.singletonList(dir.child("include"));
+        PayloadCheck payload = new PayloadCheck(sources.toArray(new FilePath[0]), includePaths, 
+                Collections.<FilePath>emptyList(), new HashMap<String, FilePath>(), new HashMap<String, String>(), 
+                new HashMap<String, String>());
+        return new PackageInputs.Scan(sources, new SourceDigest(sources, includePaths), payload)
+                .invoke(new File(dir.getRemote()), null);
+    }
+    
+    @Test
+    public void testScan() throws Exception {
+        TreeMap<String, String> inputs = scan();
+        assertEquals(Arrays.asList("include:include/common.wxi", "payload:bin/core.dll", "source:core/core.wxs"), 
+                Arrays.asList(inputs.keySet().toArray()));
+        assertEquals(PackageInputs.hash(new File(dir.child("core").child("core.wxs").getRemote())), 
+                inputs.get("source:core/core.wxs"));
+        assertTrue(inputs.get("payload:bin/core.dll").startsWith("4,"));
+    }
+    
+    @Test
+    public void testChanges() throws Exception {
+        TreeMap<String, String> before = scan();
+        before.put(PackageInputs.OUTPUT, "0123");
+        assertTrue(PackageInputs.changes(before, scan()).isEmpty());
+        assertEquals(PackageInputs.key(before), PackageInputs.key(scan()));
+        
+        dir.child("include").child("common.wxi").write("<?xml version=\"1.0\"?>\n<Include Changed=\"1\" />", "UTF-8");
+        dir.child("bin").child("core.dll").write("core 2", "UTF-8");
+        TreeMap<String, String> after = scan();
+        after.put("option:light", "b");
+        assertEquals(Arrays.asList("include:include/common.wxi (changed)", "option:light (added)", 
+                "payload:bin/core.dll (changed)"), PackageInputs.changes(before, after));
+        assertFalse(PackageInputs.key(before).equals(PackageInputs.key(after)));
+        Map<String, String> fewer = scan();
+        fewer.remove("source:core/core.wxs");
+        assertEquals(Arrays.asList("source:core/core.wxs (removed)"), PackageInputs.changes(scan(), fewer));
+    }
+    
+    @Test
+    public void testSummarize() {
+        List<String> changes = Arrays.asList("a (changed)", "b (added)", "c (removed)");
+        assertEquals("a (changed), b (added), c (removed)", PackageInputs.summarize(changes, 3));
+        assertEquals("a (changed), b (added) +1", PackageInputs.summarize(changes, 2));
+    }
+    
+    @Test
+    public void testRecord() throws Exception {
+        Map<String, Map<String, String>> first = new TreeMap<String, Map<String, String>>();
+        first.put("packages/core.msi", scan());
+        first.get("packages/core.msi").put(PackageInputs.OUTPUT, "abc");
+        File file = new File(dir.getRemote(), PackageInputs.FILENAME);
+        PackageInputs.save(file, first);
+        Map<String, Map<String, String>> second = new TreeMap<String, Map<String, String>>();
+        second.put("packages/tools.msi", Collections.singletonMap("option:candle", "x"));
+        PackageInputs.save(file, second);
+        
+        Map<String, Map<String, String>> loaded = PackageInputs.load(file);
+        assertEquals(2, loaded.size());
+        assertEquals(first.get("packages/core.msi"), loaded.get("packages/core.msi"));
+        assertEquals("x", loaded.get("packages/tools.msi").get("option:candle"));
+        assertTrue(PackageInputs.load(new File(dir.getRemote(), "missing.txt")).isEmpty());
+        assertEquals(1, PackageInputs.parse("broken line\na\tb\tc\n").size());
+    }
+    
+    @Test
+    public void testHash() throws Exception {
+        FilePath dll = dir.child("bin").child("core.dll");
+        Map<String, String> hashes = new PackageInputs.Hash(Arrays.asList(dll, dir.child("missing.dll")))
+                .invoke(new File(dir.getRemote()), null);
+        assertEquals(1, hashes.size());
+        assertEquals(PackageInputs.hash(new File(dll.getRemote())), hashes.get(dll.getRemote()));
+        assertNull(PackageInputs.hash(new File(dir.getRemote(), "missing.dll")));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+
+/**
+ * Tests the patch and bundle commands {@link Torch}, {@link Pyro} and {@link Insignia}.
+ * @author Bjoern.Berg
+ */
+public class PatchCommandTest {
+    private EnvVars vars;
+    private ToolsetSettings settings;
+    
+    @Before
+    public void setUp() {
+        vars = new EnvVars();
+        settings = new ToolsetSettings();
+    }
+
+    @Test
+    public void testTorchNeedsBaselineAndUpgrade() {
+        try {
+            Torch torch = new Torch(settings, vars);
+            torch.addSourceFile(new FilePath(new File("baseline.wixpdb")));
+            torch.setOutputFile(new FilePath(new File("diff.wixmst")));
+            torch.createCommand();
+            fail("must fail without upgrade.");
+        } catch (ToolsetException ex) {
+            // accepted
+        }
+    }
+    
+    @Test
+    public void testTorchCreateCommand() {
+        final String CMD = "torch.exe -nologo -p -xi baseline.wixpdb upgrade.wixpdb -out diff.wixmst";
+        try {
+            Torch torch = new Torch(settings, vars);
+            torch.addSourceFile(new FilePath(new File("baseline.wixpdb")));
+            torch.addSourceFile(new FilePath(new File("upgrade.wixpdb")));
+            torch.setOutputFile(new FilePath(new File("diff.wixmst")));
+            torch.createCommand();
+            assertEquals(CMD, torch.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testInsigniaDetachAndReattach() {
+        try {
+            FilePath bundle = new FilePath(new File("bundle.exe"));
+            FilePath engine = new FilePath(new File("engine.exe"));
+            Insignia insignia = new Insignia(settings, vars);
+            insignia.addSourceFile(bundle);
+            insignia.setOutputFile(engine);
+            insignia.createCommand();
+            assertEquals("insignia.exe -nologo -ib bundle.exe -o engine.exe", insignia.toString());
+            
+            insignia = new Insignia(settings, vars);
+            insignia.addSourceFile(bundle);
+            insignia.setEngine(engine);
+            insignia.setOutputFile(bundle);
+            insignia.createCommand();
+            assertEquals("insignia.exe -nologo -ab engine.exe bundle.exe -o bundle.exe", insignia.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+    
+    @Test
+    public void testPyroNeedsTransform() {
+        try {
+            Pyro pyro = new Pyro(settings, vars);
+            pyro.addSourceFile(new FilePath(new File("patch.wixmsp")));
+            pyro.setOutputFile(new FilePath(new File("patch.msp")));
+            pyro.createCommand();
+            fail("must fail without transform.");
+        } catch (ToolsetException ex) {
+            // accepted
+        }
+    }
+    
+    @Test
+    public void testPyroCreateCommand() {
+        final String CMD = "pyro.exe -nologo patch.wixmsp -out patch.msp -t RTM diff.wixmst";
+        try {
+            Pyro pyro = new Pyro(settings, vars);
+            pyro.addSourceFile(new FilePath(new File("patch.wixmsp")));
+            pyro.setOutputFile(new FilePath(new File("patch.msp")));
+            pyro.addTransform("RTM", new FilePath(new File("diff.wixmst")));
+            pyro.createCommand();
+            assertEquals(CMD, pyro.toString());
+        } catch (ToolsetException ex) {
+            fail(ex.getMessage());
+        }
+    }
+}
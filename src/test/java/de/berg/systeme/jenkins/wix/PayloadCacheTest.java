@@ -0,0 +1,212 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import hudson.FilePath;
+
+/**
+ * Tests the payload cache of a node with a directory and an HTTP source.
+ * @author Bjoern.Berg
+ */
+public class PayloadCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    private FilePath source;
+    private FilePath workspace;
+    private PayloadCache cache;
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        source = dir.child("source");
+        workspace = dir.child("workspace");
+        workspace.mkdirs();
+        cache = new PayloadCache(dir.child("cache"), 1024 * 1024);
+    }
+    
+    private static String hash(String content) throws UnsupportedEncodingException {
+        return Fingerprints.toHex(Fingerprints.newDigest().digest(content.getBytes("UTF-8")));
+    }
+    
+    private static Map<String, String> payloads(String... pathsAndContents) throws UnsupportedEncodingException {
+        Map<String, String> payloads = new LinkedHashMap<String, String>();
+        for (int i = 0; i < pathsAndContents.length; i += 2) {
+            payloads.put(pathsAndContents[i], hash(pathsAndContents[i + 1]));
+        }
+        return payloads;
+    }
+    
+    @Test
+    public void testParse() throws Exception, ToolsetException {
+        String sha = hash("redist");
+        Map<String, String> payloads = PayloadCache.parse("# prerequisites\n\nredist/vc_redist.x64.exe = " 
+                + sha.toUpperCase() + "\r\nredist/ndp48.exe=" + sha);
+        assertEquals(2, payloads.size());
+        assertEquals(sha, payloads.get("redist/vc_redist.x64.exe"));
+        assertTrue(PayloadCache.parse(null).isEmpty());
+    }
+    
+    @Test(expected = ToolsetException.class)
+    public void testParseInvalidHash() throws Exception, ToolsetException {
+        PayloadCache.parse("redist/vc_redist.x64.exe=1234");
+    }
+    
+    @Test
+    public void testMissThenHit() throws Exception {
+        source.child(hash("runtime")).write("runtime", "UTF-8");
+        source.child("ndp48.exe").write("framework", "UTF-8");
+        Map<String, String> payloads = payloads("redist/vc_redist.x64.exe", "runtime", "redist/ndp48.exe", "framework");
+        
+        PayloadCache.Result result = cache.provide(payloads, source.getRemote(), workspace);
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(0, result.getHits());
+        assertEquals(2, result.getMisses());
+        assertEquals(16, result.getFetchedBytes());
+        assertEquals("runtime", workspace.child("redist/vc_redist.x64.exe").readToString());
+        assertEquals("framework", workspace.child("redist/ndp48.exe").readToString());
+        
+        // a clean workspace is served from the cache without the source
+        workspace.deleteContents();
+        source.deleteRecursive();
+        result = cache.provide(payloads, source.getRemote(), workspace);
+        assertEquals(2, result.getHits());
+        assertEquals(0, result.getMisses());
+        assertEquals(0, result.getFetchedBytes());
+        assertEquals("framework", workspace.child("redist/ndp48.exe").readToString());
+    }
+    
+    @Test
+    public void testModifiedPayloadKeepsCache() throws Exception {
+        source.child("runtime.exe").write("runtime", "UTF-8");
+        cache.provide(payloads("runtime.exe", "runtime"), source.getRemote(), workspace);
+        // a build changing its payload in place does not change the entry
+        workspace.child("runtime.exe").write("patched", "UTF-8");
+        assertEquals("runtime", cache.getDir().child(hash("runtime")).readToString());
+    }
+    
+    @Test
+    public void testCorruptEntryIsFetchedAgain() throws Exception {
+        source.child("runtime.exe").write("runtime", "UTF-8");
+        Map<String, String> payloads = payloads("runtime.exe", "runtime");
+        cache.provide(payloads, source.getRemote(), workspace);
+        cache.getDir().child(hash("runtime")).write("damaged", "UTF-8");
+        
+        PayloadCache.Result result = cache.provide(payloads, source.getRemote(), workspace);
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(1, result.getDiscarded());
+        assertEquals(0, result.getHits());
+        assertEquals(1, result.getMisses());
+        assertEquals("runtime", workspace.child("runtime.exe").readToString());
+        assertEquals("runtime", cache.getDir().child(hash("runtime")).readToString());
+    }
+    
+    @Test
+    public void testWrongContent() throws Exception {
+        source.child("runtime.exe").write("tampered", "UTF-8");
+        PayloadCache.Result result = cache.provide(payloads("runtime.exe", "runtime"), source.getRemote(), workspace);
+        assertEquals(1, result.getFailures().size());
+        assertTrue(result.getFailures().get(0).contains(hash("tampered")));
+        assertFalse(workspace.child("runtime.exe").exists());
+        assertFalse(cache.getDir().child(hash("runtime")).exists());
+    }
+    
+    @Test
+    public void testNoSource() throws Exception {
+        PayloadCache.Result result = cache.provide(payloads("runtime.exe", "runtime"), null, workspace);
+        assertEquals(1, result.getFailures().size());
+        assertTrue(result.getFailures().get(0).startsWith("runtime.exe: "));
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        cache = new PayloadCache(dir.child("cache"), 10);
+        source.child("a.exe").write("aaaaaa", "UTF-8");
+        source.child("b.exe").write("bbbbbb", "UTF-8");
+        source.child("c.exe").write("cccccc", "UTF-8");
+        cache.provide(payloads("a.exe", "aaaaaa"), source.getRemote(), workspace);
+        // stamps have a resolution of a second on some file systems
+        new File(cache.getDir().child(hash("aaaaaa") + ".used").getRemote()).setLastModified(System.currentTimeMillis() - 60000);
+        PayloadCache.Result result = cache.provide(payloads("b.exe", "bbbbbb"), source.getRemote(), workspace);
+        assertEquals(1, result.getEvicted());
+        assertEquals(6, result.getEvictedBytes());
+        assertEquals(6, result.getCacheBytes());
+        assertFalse(cache.getDir().child(hash("aaaaaa")).exists());
+        // evicted payloads stay valid in the workspace
+        assertEquals("aaaaaa", workspace.child("a.exe").readToString());
+        
+        // entries used by the request are kept even above the quota
+        result = cache.provide(payloads("b.exe", "bbbbbb", "c.exe", "cccccc"), source.getRemote(), workspace);
+        assertEquals(1, result.getHits());
+        assertEquals(0, result.getEvicted());
+        assertEquals(12, result.getCacheBytes());
+    }
+    
+    @Test
+    public void testHttpSource() throws Exception {
+        final String sha = hash("runtime");
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/payloads/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                boolean found = exchange.getRequestURI().getPath().equals("/payloads/" + sha);
+                byte[] body = found ? "runtime".getBytes("UTF-8") : new byte[0];
+                exchange.sendResponseHeaders(found ? 200 : 404, found ? body.length : -1);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/payloads";
+            PayloadCache.Result result = cache.provide(payloads("redist/runtime.exe", "runtime"), url, workspace);
+            assertTrue(result.getFailures().isEmpty());
+            assertEquals(1, result.getMisses());
+            assertEquals("runtime", workspace.child("redist/runtime.exe").readToString());
+            
+            result = cache.provide(payloads("other.exe", "other"), url + "/", workspace);
+            assertEquals(1, result.getFailures().size());
+            assertTrue(result.getFailures().get(0).contains("not found"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the payload check before linking.
+ * @author Bjoern.Berg
+ */
+public class PayloadCheckTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath dir;
+    private FilePath payload;
+    private Map<String, FilePath> named = new HashMap<String, FilePath>();
+    private Map<String, String> defines = new HashMap<String, String>();
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = new FilePath(tmp.getRoot());
+        payload = dir.child("payload");
+        payload.child("bin").child("app.exe").write("app", "UTF-8");
+        dir.child("docs").child("manual.pdf").write("pdf", "UTF-8");
+        named.put("docs", dir.child("docs"));
+        defines.put("BinDir", "bin");
+    }
+    
+    private PayloadCheck.Result check(String content) throws Exception {
+        FilePath source = dir.child("product.wxs");
+        source.write("<?xml version=\"1.0\"?>\n<Wix xmlns=\"http://schemas.microsoft.com/wix/2006/wi\">\n" 
+                + content + "\n</Wix>", "UTF-8");
+        PayloadCheck check = new PayloadCheck(new FilePath[] { source }, Collections.<FilePath>emptyList(), 
+                Collections.singletonList(payload), named, defines, new HashMap<String, String>());
+        return check.invoke(new File(dir.getRemote()), null);
+    }
+    
+    @Test
+    public void testResolvedPayload() throws Exception {
+        PayloadCheck.Result result = check("<?define Name = \"app.exe\" ?>\n"
+                + "<File Source=\"$(var.BinDir)\\$(var.Name)\" />\n"
+                + "<File Source=\"!(bindpath.docs)\\manual.pdf\" />\n"
+                + "<File Source=\"product.wxs\" />\n"
+                + "<File Source=\"!(wix.Unknown)\" />");
+        assertEquals(4, result.getReferences());
+        assertTrue(result.getMissing().toString(), result.getMissing().isEmpty());
+        assertEquals(3, result.getPayload().size());
+        assertTrue(result.getPayload().contains(new File(payload.getRemote(), "bin" + File.separator + "app.exe").getAbsolutePath()));
+    }
+    
+    @Test
+    public void testAllMissingReported() throws Exception {
+        PayloadCheck.Result result = check("<File Source=\"bin\\missing.dll\" />\n"
+                + "<File Source=\"!(bindpath.docs)\\missing.pdf\" />\n"
+                + "<Payload SourceFile=\"!(bindpath.other)\\license.rtf\" />");
+        List<String> missing = result.getMissing();
+        assertEquals(3, missing.size());
+        assertTrue(missing.get(0), missing.get(0).endsWith(":3: payload 'bin\\missing.dll' not found in bind paths or workspace"));
+        assertTrue(missing.get(2), missing.get(2).endsWith("bind path 'other' is not defined"));
+    }
+    
+    @Test
+    public void testIndexReusedUntilChanged() throws Exception {
+        check("<File Source=\"bin\\app.exe\" />");
+        PayloadCheck.Result result = check("<File Source=\"bin\\app.exe\" />");
+        assertEquals(2, result.getReusedIndexes());
+        assertEquals(0, result.getIndexedDirectories());
+        
+        // a new file in an indexed directory invalidates its index
+        File added = new File(payload.child("bin").getRemote(), "new.dll");
+        added.createNewFile();
+        added.getParentFile().setLastModified(System.currentTimeMillis() + 5000);
+        result = check("<File Source=\"bin\\new.dll\" />");
+        assertTrue(result.getMissing().toString(), result.getMissing().isEmpty());
+        assertEquals(1, result.getReusedIndexes());
+    }
+}
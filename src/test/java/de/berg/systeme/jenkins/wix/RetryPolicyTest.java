@@ -0,0 +1,133 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the classification and backoff of retried invocations.
+ * @author Bjoern.Berg
+ */
+public class RetryPolicyTest {
+    
+    @Test
+    public void testTransientErrors() {
+        assertTrue(RetryPolicy.isTransient("LGHT0001: The process cannot access the file 'setup.msi' "
+                + "because it is being used by another process."));
+        assertTrue(RetryPolicy.isTransient("LGHT0216: An unexpected Win32 exception with error code 0x5 occurred."));
+        assertTrue(RetryPolicy.isTransient("LGHT0217: Error executing ICE action 'ICE01'."));
+        assertFalse(RetryPolicy.isTransient("CNDL0001: Access to the path 'obj\\product.wixobj' is denied."));
+        assertFalse(RetryPolicy.isTransient("SignTool: Access is denied."));
+        assertFalse(RetryPolicy.isTransient("CNDL0104: Not a valid source file."));
+        assertFalse(RetryPolicy.isTransient("LGHT0103: The system cannot find the file 'missing.wixobj'."));
+    }
+    
+    @Test
+    public void testAllErrorsMustBeTransient() {
+        String locked = "LGHT0001: The process cannot access the file 'a.cab' because it is being used by another process.";
+        assertTrue(RetryPolicy.isTransient(Collections.singletonList(locked)));
+        assertFalse(RetryPolicy.isTransient(Arrays.asList(locked, "LGHT0094: Unresolved reference.")));
+        assertFalse(RetryPolicy.isTransient(Collections.<String>emptyList()));
+    }
+    
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy(5, 1000);
+        assertEquals(1000, policy.delay(1));
+        assertEquals(2000, policy.delay(2));
+        assertEquals(4000, policy.delay(3));
+        assertEquals(RetryPolicy.MAX_DELAY, policy.delay(10));
+        assertEquals(0, new RetryPolicy(-1, -1).getAttempts());
+        assertEquals(0, new RetryPolicy(1, 0).delay(3));
+    }
+    
+    @Test
+    public void testCounters() {
+        RetryPolicy policy = new RetryPolicy(2, 0);
+        policy.retried("light setup.msi");
+        policy.retried("light setup.msi");
+        policy.retried("candle product.wixobj");
+        policy.recovered();
+        assertEquals(3, policy.getRetries());
+        assertEquals(2, policy.getRetriedInvocations());
+        assertEquals(1, policy.getRecovered());
+    }
+    
+    @Test
+    public void testCollector() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        RetryPolicy.Collector collector = new RetryPolicy.Collector(target);
+        String output = "Windows Installer XML Toolset\r\nproduct.wxs(3) : warning CNDL1000 : Emulated warning.\r\n"
+                + "product.wxs(12) : error CNDL0104 : Not a valid source file.\r\nlight.exe : error LGHT0001";
+        collector.write(output.getBytes("UTF-8"));
+        collector.close();
+        assertEquals(output, target.toString("UTF-8"));
+        assertEquals(Arrays.asList("CNDL0104: Not a valid source file.", "LGHT0001: "), collector.getErrors());
+    }
+    
+    @Test
+    public void testLockedOutput() throws Exception {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        RetryPolicy.Collector collector = new RetryPolicy.Collector(target);
+        FakeWix.Profile profile = new FakeWix.Profile().locked(1);
+        FakeWix.Result result = FakeWix.run("light", new String[] { "-out", "setup.msi", "product.wixobj" }, 
+                profile, new PrintStream(collector, true, "UTF-8"));
+        collector.close();
+        assertEquals(1, result.exitCode);
+        List<String> errors = collector.getErrors();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).startsWith("LGHT0001: The process cannot access the file 'setup.msi'"));
+        assertTrue(RetryPolicy.isTransient(errors));
+    }
+    
+    @Test
+    public void testSignToolErrors() throws Exception {
+        RetryPolicy.Collector collector = new RetryPolicy.Collector(new ByteArrayOutputStream());
+        collector.write(("Done Adding Additional Store\r\nSignTool Error: The process cannot access the file "
+                + "because it is being used by another process.\r\n").getBytes("UTF-8"));
+        assertEquals(Collections.singletonList("SignTool: The process cannot access the file because it is "
+                + "being used by another process."), collector.getErrors());
+        assertTrue(collector.isTransient());
+    }
+    
+    @Test
+    public void testOverflowIsNotTransient() throws Exception {
+        RetryPolicy.Collector collector = new RetryPolicy.Collector(new ByteArrayOutputStream());
+        String locked = "light.exe : error LGHT0001 : The process cannot access the file 'a.cab' because it is being "
+                + "used by another process.\n";
+        for (int i = 0; i < 20; i++) {
+            collector.write(locked.getBytes("UTF-8"));
+        }
+        assertTrue(collector.isTransient());
+        collector.write(locked.getBytes("UTF-8"));
+        assertEquals(20, collector.getErrors().size());
+        assertFalse(collector.isTransient());
+    }
+}
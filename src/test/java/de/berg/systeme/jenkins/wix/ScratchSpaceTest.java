@@ -0,0 +1,83 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import hudson.FilePath;
+
+/**
+ * Tests the scratch directory of an invocation.
+ * @author Bjoern.Berg
+ */
+public class ScratchSpaceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    private FilePath root;
+    
+    @Before
+    public void setUp() throws Exception {
+        root = new FilePath(tmp.getRoot());
+    }
+    
+    @Test
+    public void testLayout() throws Exception {
+        ScratchSpace scratch = new ScratchSpace(root, "folder/job-42");
+        assertEquals("folder_job-42", scratch.getDir().getName());
+        assertTrue(scratch.getTempDir().isDirectory());
+        assertEquals(scratch.getObjectDir().child("src").child("product.wixobj").getRemote(), 
+                scratch.intermediate("src/product.wixobj").getRemote());
+    }
+    
+    @Test
+    public void testMoveTo() throws Exception {
+        ScratchSpace scratch = new ScratchSpace(root, "job-1");
+        FilePath msi = scratch.getDir().child("out").child("setup.msi");
+        msi.write("package", "UTF-8");
+        FilePath target = root.child("workspace");
+        
+        FilePath moved = scratch.moveTo(msi, target);
+        assertEquals("setup.msi", moved.getName());
+        assertEquals("package", moved.readToString());
+        assertFalse(msi.exists());
+    }
+    
+    @Test
+    public void testObjectsKeptForCheckpoint() throws Exception {
+        ScratchSpace scratch = new ScratchSpace(root, "job-1", "job-obj");
+        assertEquals(root.child("job-obj").getRemote(), scratch.getObjectDir().getRemote());
+        scratch.intermediate("product.wixobj").write("object", "UTF-8");
+        scratch.cleanup(true);
+        assertEquals("object", root.child("job-obj").child("product.wixobj").readToString());
+        
+        // a rerun in the same workspace finds the object file and removes it once it succeeded
+        scratch = new ScratchSpace(root, "job-2", "job-obj");
+        assertTrue(scratch.intermediate("product.wixobj").exists());
+        scratch.cleanup(false);
+        assertFalse(root.child("job-obj").exists());
+    }
+}
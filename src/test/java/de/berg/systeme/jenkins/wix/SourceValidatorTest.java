@@ -0,0 +1,77 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the well-formedness check of source files.
+ * @author Bjoern.Berg
+ */
+public class SourceValidatorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    private FilePath source(String content) throws IOException {
+        File file = File.createTempFile("wix", ".wxs", tmp.getRoot());
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        return new FilePath(file);
+    }
+    
+    @Test
+    public void testWellFormedSources() throws Exception {
+        FilePath[] sources = {
+            source("<?xml version=\"1.0\"?><Wix xmlns=\"http://schemas.microsoft.com/wix/2006/wi\"><?if $(var.X) = 1 ?><Fragment/><?endif?></Wix>"),
+            source("<Wix><Product Id=\"*\" Name=\"$(var.Name)\"/></Wix>")
+        };
+        List<String> problems = new SourceValidator(sources, null).invoke(null, null);
+        assertTrue(problems.isEmpty());
+    }
+    
+    @Test
+    public void testEveryBrokenFileIsReported() throws Exception {
+        FilePath[] sources = {
+            source("<Wix><Product></Wix>"),
+            source("<Wix/>"),
+            source("<Wix attr=\"unterminated></Wix>")
+        };
+        List<String> problems = new SourceValidator(sources, null).invoke(null, null);
+        assertEquals(2, problems.size());
+        assertTrue(problems.get(0).startsWith(sources[0].getRemote() + ":1:"));
+        assertTrue(problems.get(1).startsWith(sources[2].getRemote() + ":"));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the timeline in trace event format.
+ * @author Bjoern.Berg
+ */
+public class TimelineTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+    
+    private static int count(String text, String pattern) {
+        Matcher m = Pattern.compile(pattern).matcher(text);
+        int count = 0;
+        while (m.find()) {
+            count++;
+        }
+        return count;
+    }
+    
+    @Test
+    public void testSpansOfWorkers() throws Exception {
+        final Timeline timeline = new Timeline();
+        Timeline.Span phase = timeline.begin("compile", "phase", "master");
+        Thread[] workers = new Thread[2];
+        for (int i = 0; i < workers.length; i++) {
+            final int n = i;
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    timeline.begin("candle.exe " + n + ".wixobj", "process", "agent-1").arg("cache", "miss").end();
+                }
+            }, "WiX compile worker [#" + (i + 1) + "]");
+            workers[i].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        timeline.instant("core.wxs", "cache", "master", "cache", "hit");
+        phase.arg("sources", 3).end();
+        
+        assertEquals(4, timeline.size());
+        String json = timeline.toJSON();
+        assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json, json.endsWith("]}\n"));
+        // one process per agent and one thread per worker
+        assertEquals(2, count(json, "\"process_name\""));
+        assertEquals(3, count(json, "\"thread_name\""));
+        assertEquals(1, count(json, "\"name\":\"WiX compile worker \\[#2\\]\""));
+        assertEquals(3, count(json, "\"ph\":\"X\""));
+        assertEquals(1, count(json, "\"ph\":\"i\",\"ts\":\\d+,\"s\":\"t\""));
+        assertTrue(json, json.contains("\"name\":\"compile\",\"cat\":\"phase\",\"ph\":\"X\""));
+        assertTrue(json, json.contains("\"args\":{\"sources\":\"3\"}"));
+        // both workers belong to the process of the agent
+        assertEquals(2, count(json, "\"cat\":\"process\",\"ph\":\"X\",\"ts\":\\d+,\"dur\":\\d+,\"pid\":2"));
+        // no trailing comma before the end of the array
+        assertEquals(0, count(json, ",\\s*\\]"));
+    }
+    
+    @Test
+    public void testQuote() {
+        assertEquals("\"C:\\\\ws\\\\\\\"a\\\"\\n\\u0001\"", Timeline.quote("C:\\ws\\\"a\"\n\u0001"));
+    }
+    
+    @Test
+    public void testWrite() throws Exception {
+        Timeline timeline = new Timeline();
+        File file = new File(new File(tmp.getRoot(), "timeline"), Timeline.FILENAME);
+        timeline.write(file);
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n]}\n", new String(SourceDigest.read(file), "UTF-8"));
+    }
+}
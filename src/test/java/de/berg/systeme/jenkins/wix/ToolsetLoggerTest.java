@@ -23,6 +23,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
+import java.util.concurrent.Callable;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -165,4 +166,84 @@ public class ToolsetLoggerTest {
             fail(e.getMessage());
         }
     }
+    
+    @Test
+    public void testErrorCount() {
+        lg.init(stream);
+        lg.log("product.wxs(3) : error CNDL0104 : Not a valid source file.");
+        assertFalse(lg.hasNoErrors());
+        lg.init(stream);
+        lg.log("No errors in 3 files.");
+        assertTrue(lg.hasNoErrors());
+    }
+    
+    @Test
+    public void testConcurrentBuilds() throws Exception {
+        // every build thread has its own stream and error count
+        final ByteArrayOutputStream other = new ByteArrayOutputStream();
+        final boolean[] otherHasNoErrors = new boolean[1];
+        lg.init(stream);
+        Thread build = new Thread() {
+            public void run() {
+                lg.init(new PrintStream(other));
+                lg.log("other build");
+                otherHasNoErrors[0] = lg.hasNoErrors();
+                lg.release();
+            }
+        };
+        lg.log("light.exe : error LGHT0103 : The system cannot find the file.");
+        build.start();
+        build.join();
+        assertTrue(otherHasNoErrors[0]);
+        assertFalse(lg.hasNoErrors());
+        assertFalse(buffer.toString().contains("other build"));
+        assertTrue(other.toString().contains("other build"));
+        
+        // a shared thread logs to the build which scheduled the task
+        Runnable task = lg.bound(new Runnable() {
+            public void run() {
+                lg.log("scheduled task");
+            }
+        });
+        lg.release();
+        Thread shared = new Thread(task);
+        shared.start();
+        shared.join();
+        assertTrue(buffer.toString().contains("scheduled task"));
+    }
+    
+    @Test
+    public void testThreadsDoNotInheritTheBuild() throws Exception {
+        // a thread started by a build may be reused by later builds
+        lg.init(stream);
+        Thread worker = new Thread() {
+            public void run() {
+                lg.log("unbound worker");
+            }
+        };
+        worker.start();
+        worker.join();
+        assertFalse(buffer.toString().contains("unbound worker"));
+        
+        final String[] result = new String[1];
+        final Callable<String> task = lg.bound(new Callable<String>() {
+            public String call() {
+                lg.log("bound worker");
+                return "done";
+            }
+        });
+        worker = new Thread() {
+            public void run() {
+                try {
+                    result[0] = task.call();
+                } catch (Exception e) {
+                    result[0] = e.getMessage();
+                }
+            }
+        };
+        worker.start();
+        worker.join();
+        assertEquals("done", result[0]);
+        assertTrue(buffer.toString().contains("bound worker"));
+    }
 }
@@ -2,6 +2,7 @@ package de.berg.systeme.jenkins.wix;
 
 import static org.junit.Assert.assertEquals;
 
+import java.util.Map;
 import java.util.Properties;
 
 import org.junit.After;
@@ -44,4 +45,12 @@ public class ToolsetSettingsTest {
 		assertEquals(1.0, ts.get("Level", 2.0), 0);
 		assertEquals(2.0, ts.get("Meins", 2.0), 0);
 	}
+
+	@Test
+	public void testToMapIsSorted() {
+		Map<String, String> map = ts.toMap();
+		assertEquals(3, map.size());
+		assertEquals("Level", map.keySet().iterator().next());
+		assertEquals("/hallo/welt", map.get(Wix.INST_PATH));
+	}
 }
@@ -0,0 +1,75 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import hudson.FilePath;
+
+/**
+ * Tests the parser of build variants.
+ * @author Bjoern.Berg
+ */
+public class VariantTest {
+    
+    @Test
+    public void testParse() throws ToolsetException {
+        List<Variant> variants = Variant.parse("# variants\n"
+                + "Debug-Standard: Edition=Standard; Configuration=Debug\n\n"
+                + "Release: Configuration=Release;\n");
+        assertEquals(2, variants.size());
+        assertEquals("Debug-Standard", variants.get(0).getName());
+        assertEquals("Debug-Standard: Configuration=Debug; Edition=Standard;", variants.get(0).toString());
+        assertEquals("Release", variants.get(1).getDefines().get("Configuration"));
+    }
+    
+    @Test
+    public void testParseEmpty() throws ToolsetException {
+        assertTrue(Variant.parse("").isEmpty());
+        assertTrue(Variant.parse(null).isEmpty());
+    }
+    
+    @Test
+    public void testParseInvalid() {
+        String[] invalid = { "Configuration=Debug", "Debug: Configuration", "Debug/x: A=1", "A: X=1\nA: X=2" };
+        for (String text : invalid) {
+            try {
+                Variant.parse(text);
+                fail("must fail: " + text);
+            } catch (ToolsetException e) {
+                // accepted
+            }
+        }
+    }
+    
+    @Test
+    public void testFileOf() throws ToolsetException {
+        Variant debug = Variant.parse("Debug: Configuration=Debug").get(0);
+        assertEquals("setup-Debug.msi", debug.fileOf(new FilePath(new File("out", "setup.msi"))).getName());
+        assertEquals("setup-Debug", debug.fileOf(new FilePath(new File("out", "setup"))).getName());
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.QueueTaskFuture;
+import hudson.remoting.Channel;
+import hudson.slaves.DumbSlave;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.RetentionStrategy;
+
+/**
+ * Measures the cost of WiX builds on the controller while the number of
+ * concurrent builds grows. The tools are emulated by FakeWix on test agents,
+ * so only the orchestration of the plugin is measured.
+ * <p>
+ * Runs only with <i>mvn test -Pload-test</i>. The system properties
+ * <i>wix.loadTest.builds</i> (concurrent builds per round, default 1,4,16),
+ * <i>wix.loadTest.agents</i> (default 2) and <i>wix.loadTest.latency</i>
+ * (milliseconds per compiled source, default 200) change the load. Every
+ * round is logged and appended to target/wix-load-test.csv.
+ * <p>
+ * Every round also checks the builds for correctness: broken sources fail
+ * only their own build and no build log contains output of another build.
+ * @author Bjoern.Berg
+ */
+public class WixToolsetBuilderLoadTest {
+    private static final String LABEL = "wix-load";
+    private static final Logger LOGGER = Logger.getLogger(WixToolsetBuilderLoadTest.class.getName());
+    
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    // bytes allocated by the threads running the builds of the current round
+    private static final AtomicLong ALLOCATED = new AtomicLong();
+    // bytes the running build thread had allocated when its build started
+    private static final ThreadLocal<Long> START = new ThreadLocal<Long>();
+    
+    @Test
+    public void testConcurrentBuilds() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("wix.loadTest"));
+        // the emulated tools are started by shell scripts
+        Assume.assumeTrue(File.separatorChar == '/');
+        
+        List<Integer> rounds = new ArrayList<Integer>();
+        for (String n : System.getProperty("wix.loadTest.builds", "1,4,16").split(",")) {
+            rounds.add(Integer.valueOf(n.trim()));
+        }
+        int agents = Integer.getInteger("wix.loadTest.agents", 2);
+        int executors = (Collections.max(rounds) + agents - 1) / agents;
+        for (int i = 0; i < agents; i++) {
+            DumbSlave agent = new DumbSlave("wix-agent-" + i, "", j.createTmpDir().getPath(), 
+                    String.valueOf(executors), Node.Mode.NORMAL, LABEL, j.createComputerLauncher(null), 
+                    RetentionStrategy.NOOP, Collections.<NodeProperty<?>>emptyList());
+            j.jenkins.addNode(agent);
+            agent.toComputer().connect(false).get();
+        }
+        
+        File bin = FakeWix.install(j.createTmpDir(), new FakeWix.Profile()
+                .latency(Long.getLong("wix.loadTest.latency", 200)).lines(50).warnings(2).failOn("broken"));
+        WixDescriptorImpl descriptor = j.jenkins.getDescriptorByType(WixDescriptorImpl.class);
+        descriptor.setInstPath(bin.getPath() + File.separator);
+        descriptor.setUsedOnSlave(true);
+        
+        File csv = new File("target", "wix-load-test.csv");
+        if (!csv.isFile()) {
+            append(csv, "builds,agents,cpu ms per build,KB allocated per build thread,round trips per build,"
+                    + "mean latency ms,p95 latency ms,max latency ms");
+        }
+        for (int builds : rounds) {
+            append(csv, round(builds, agents, bin));
+        }
+    }
+    
+    /**
+     * Runs the given number of builds at the same time.
+     * @return measurements of the round as CSV line.
+     */
+    private String round(int builds, int agents, File bin) throws Exception {
+        List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+        for (int i = 0; i < builds; i++) {
+            FreeStyleProject project = j.createFreeStyleProject();
+            project.setAssignedLabel(Label.get(LABEL));
+            final String source = sourceOf(builds, i);
+            project.getBuildersList().add(new TestBuilder() {
+                @Override
+                public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) 
+                        throws InterruptedException, IOException {
+                    build.getWorkspace().child(source).write("<Wix><Product/></Wix>", "UTF-8");
+                    return true;
+                }
+            });
+            project.getBuildersList().add(new WixToolsetBuilder(source, false, false, false, false, false, 
+                    false, false, false, false, false, false, false, false, false, false, false, false, false, 
+                    "setup-" + i + ".msi", Wix.Arch.x86.name()));
+            projects.add(project);
+        }
+        
+        int invocations = FakeWix.journal(bin).size();
+        long roundTrips = roundTrips();
+        ALLOCATED.set(0);
+        long cpu = cpuTime();
+        List<QueueTaskFuture<FreeStyleBuild>> futures = new ArrayList<QueueTaskFuture<FreeStyleBuild>>();
+        long scheduled = System.currentTimeMillis();
+        for (FreeStyleProject project : projects) {
+            futures.add(project.scheduleBuild2(0));
+        }
+        List<Long> latencies = new ArrayList<Long>();
+        List<FreeStyleBuild> finished = new ArrayList<FreeStyleBuild>();
+        for (QueueTaskFuture<FreeStyleBuild> future : futures) {
+            FreeStyleBuild build = future.get();
+            finished.add(build);
+            latencies.add(build.getStartTimeInMillis() + build.getDuration() - scheduled);
+        }
+        cpu = (cpuTime() - cpu) / 1000000;
+        roundTrips = (roundTrips < 0) ? -1 : roundTrips() - roundTrips;
+        
+        // correctness
+        for (int i = 0; i < builds; i++) {
+            FreeStyleBuild build = finished.get(i);
+            String log = JenkinsRule.getLog(build);
+            boolean broken = sourceOf(builds, i).contains("broken");
+            assertEquals(log, broken ? Result.FAILURE : Result.SUCCESS, build.getResult());
+            assertTrue(log, log.contains(sourceOf(builds, i)));
+            for (int other = 0; other < builds; other++) {
+                if (other != i) {
+                    assertFalse("output of build " + other + " in " + log, log.contains(sourceOf(builds, other)));
+                }
+            }
+        }
+        // every good build compiles and links, a broken one only compiles
+        int broken = 0;
+        for (int i = 0; i < builds; i++) {
+            broken += sourceOf(builds, i).contains("broken") ? 1 : 0;
+        }
+        assertEquals(2 * builds - broken, FakeWix.journal(bin).size() - invocations);
+        
+        Collections.sort(latencies);
+        long sum = 0;
+        for (long latency : latencies) {
+            sum += latency;
+        }
+        String line = builds + "," + agents + "," + (cpu / builds) + "," + (ALLOCATED.get() / 1024 / builds) + "," 
+                + ((roundTrips < 0) ? "n/a" : String.valueOf(roundTrips / builds)) + "," + (sum / builds) + "," 
+                + latencies.get((int) Math.ceil(builds * 0.95) - 1) + "," + latencies.get(builds - 1);
+        LOGGER.info("load test: " + line);
+        return line;
+    }
+    
+    /**
+     * Every fourth build has a source which candle refuses.
+     */
+    private static String sourceOf(int round, int build) {
+        return "load-" + round + "-" + build + ((build % 4 == 3) ? "-broken" : "") + ".wxs";
+    }
+    
+    private static long cpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+    
+    /**
+     * Returns the bytes allocated by the current thread so far.
+     */
+    private static long threadAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+    
+    /**
+     * Adds the bytes each build's executor thread allocated between the start
+     * and the end of the build to the round. Worker threads of the WiX build
+     * step are not counted.
+     */
+    @TestExtension("testConcurrentBuilds")
+    public static class AllocationListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            START.set(threadAllocatedBytes());
+        }
+        
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            Long start = START.get();
+            if (start != null) {
+                ALLOCATED.addAndGet(threadAllocatedBytes() - start);
+                START.remove();
+            }
+        }
+    }
+    
+    /**
+     * Counts the commands sent to all agents, -1 if the remoting library
+     * does not count them.
+     */
+    private long roundTrips() {
+        long sum = 0;
+        for (Node node : j.jenkins.getNodes()) {
+            if (!(node.toComputer().getChannel() instanceof Channel)) {
+                continue;
+            }
+            try {
+                Field sent = Channel.class.getDeclaredField("commandsSent");
+                sent.setAccessible(true);
+                sum += ((Number) sent.get(node.toComputer().getChannel())).longValue();
+            } catch (NoSuchFieldException e) {
+                return -1;
+            } catch (IllegalAccessException e) {
+                return -1;
+            }
+        }
+        return sum;
+    }
+    
+    private static void append(File csv, String line) throws IOException {
+        csv.getParentFile().mkdirs();
+        FileWriter out = new FileWriter(csv, true);
+        try {
+            out.write(line + "\n");
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of wix-plugin-jenkins.
+ * 
+ * Copyright (C) 2014 Berg Systeme
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package de.berg.systeme.jenkins.wix;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Label;
+import hudson.model.Result;
+
+/**
+ * Runs the build step with the toolset emulated by FakeWix.
+ * @author Bjoern.Berg
+ */
+public class WixToolsetBuilderTest {
+    private static final String LABEL = "wix-compile";
+    
+    @Rule
+    public JenkinsRule j = new JenkinsRule();
+    
+    @Test
+    public void testVariantsOnCompileAgents() throws Exception {
+        // the emulated tools are started by shell scripts
+        Assume.assumeTrue(File.separatorChar == '/');
+        j.createOnlineSlave(Label.get(LABEL));
+        j.createOnlineSlave(Label.get(LABEL));
+        File bin = FakeWix.install(j.createTmpDir(), new FakeWix.Profile());
+        WixDescriptorImpl descriptor = j.jenkins.getDescriptorByType(WixDescriptorImpl.class);
+        descriptor.setInstPath(bin.getPath() + File.separator);
+        descriptor.setUsedOnSlave(true);
+        
+        FreeStyleProject project = j.createFreeStyleProject();
+        project.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) 
+                    throws InterruptedException, IOException {
+                build.getWorkspace().child("src/product.wxs").write(
+                        "<Wix><Product Name=\"$(var.Edition)\"/></Wix>", "UTF-8");
+                build.getWorkspace().child("src/feature.wxs").write(
+                        "<Wix><Fragment Id=\"$(var.Edition)\"/></Wix>", "UTF-8");
+                return true;
+            }
+        });
+        WixToolsetBuilder builder = new WixToolsetBuilder("src/*.wxs", false, false, false, false, false, 
+                false, false, false, false, false, false, false, false, false, false, false, false, false, 
+                "setup.msi", Wix.Arch.x86.name());
+        builder.setVariants("pro: Edition=Pro\nlite: Edition=Lite");
+        builder.setCompileAgents(LABEL);
+        project.getBuildersList().add(builder);
+        
+        FreeStyleBuild build = j.assertBuildStatus(Result.SUCCESS, project.scheduleBuild2(0).get());
+        String log = JenkinsRule.getLog(build);
+        assertFalse(log, log.contains("compiling on the node of the build"));
+        FilePath workspace = build.getWorkspace();
+        for (String source : new String[] {"product", "feature"}) {
+            assertTrue(log, workspace.child("src/" + source + ".pro.wixobj").readToString().contains("Edition=Pro"));
+            assertTrue(log, workspace.child("src/" + source + ".lite.wixobj").readToString().contains("Edition=Lite"));
+        }
+        assertTrue(log, workspace.child("setup-pro.msi").exists());
+        assertTrue(log, workspace.child("setup-lite.msi").exists());
+    }
+}